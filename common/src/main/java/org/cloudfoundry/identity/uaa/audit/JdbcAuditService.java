@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.audit;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.sql.DataSource;
@@ -58,6 +59,35 @@ public class JdbcAuditService implements UaaAuditService {
                         auditEvent.getData(), auditEvent.getIdentityZoneId());
     }
 
+    /**
+     * Logs the events with a single batch insert. The events are stored with the
+     * time they were raised, not the time they are written.
+     *
+     * @param auditEvents the audit events to log
+     */
+    public void logBatch(List<AuditEvent> auditEvents) {
+        if (auditEvents.isEmpty()) {
+            return;
+        }
+        List<Object[]> params = new ArrayList<>(auditEvents.size());
+        for (AuditEvent auditEvent : auditEvents) {
+            params.add(new Object[] {
+                auditEvent.getPrincipalId(),
+                auditEvent.getType().getCode(),
+                truncate(auditEvent.getOrigin()),
+                truncate(auditEvent.getData()),
+                auditEvent.getIdentityZoneId(),
+                new Timestamp(auditEvent.getTime())
+            });
+        }
+        template.batchUpdate("insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id, created) values (?,?,?,?,?,?)", params);
+    }
+
+    private static String truncate(String s) {
+        s = s == null ? "" : s;
+        return s.length() > 255 ? s.substring(0, 255) : s;
+    }
+
     private class AuditEventRowMapper implements RowMapper<AuditEvent> {
         @Override
         public AuditEvent mapRow(ResultSet rs, int rowNum) throws SQLException {
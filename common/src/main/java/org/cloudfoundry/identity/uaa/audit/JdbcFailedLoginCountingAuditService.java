@@ -13,9 +13,16 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
+import org.springframework.util.ObjectUtils;
+
 /**
  * An audit service that subscribes to audit events but only saves enough data
  * to answer queries about consecutive
@@ -56,4 +63,49 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         }
     }
 
+    /**
+     * Applies a batch of events with one statement per kind of change: the
+     * failure history of every principal that logged in or changed its password
+     * is reset in one batch, and the failures that happened after that are then
+     * inserted in another. Failures followed by a reset in the same batch are
+     * never written.
+     */
+    @Override
+    public void logBatch(List<AuditEvent> auditEvents) {
+        Set<String> reset = new LinkedHashSet<>();
+        List<AuditEvent> failures = new ArrayList<>();
+        for (AuditEvent auditEvent : auditEvents) {
+            switch (auditEvent.getType()) {
+                case UserAuthenticationSuccess:
+                case PasswordChangeSuccess:
+                    String principalId = auditEvent.getPrincipalId();
+                    reset.add(principalId);
+                    for (Iterator<AuditEvent> it = failures.iterator(); it.hasNext();) {
+                        if (ObjectUtils.nullSafeEquals(principalId, it.next().getPrincipalId())) {
+                            it.remove();
+                        }
+                    }
+                    break;
+                case UserAuthenticationFailure:
+                    failures.add(auditEvent);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!reset.isEmpty()) {
+            List<Object[]> params = new ArrayList<>(reset.size());
+            for (String principalId : reset) {
+                params.add(new Object[] {principalId});
+            }
+            getJdbcTemplate().batchUpdate("delete from sec_audit where principal_id=?", params);
+        }
+        if (!failures.isEmpty()) {
+            getJdbcTemplate().update("delete from sec_audit where created < ?",
+                            new Timestamp(System.currentTimeMillis()
+                                            - saveDataPeriodMillis));
+            super.logBatch(failures);
+        }
+    }
+
 }
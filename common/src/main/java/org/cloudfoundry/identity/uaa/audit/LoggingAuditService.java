@@ -92,8 +92,16 @@ public class LoggingAuditService implements UaaAuditService {
     @Override
     public void log(AuditEvent auditEvent) {
         updateCounters(auditEvent);
-        log(String.format("%s ('%s'): principal=%s, origin=[%s], identityZoneId=[%s]", auditEvent.getType().name(), auditEvent.getData(),
-                        auditEvent.getPrincipalId(), auditEvent.getOrigin(), auditEvent.getIdentityZoneId()));
+        if (logger.isInfoEnabled()) {
+            // appended directly, String.format parses the pattern on every event
+            StringBuilder msg = new StringBuilder(128)
+                .append(auditEvent.getType().name())
+                .append(" ('").append(auditEvent.getData()).append("'): principal=")
+                .append(auditEvent.getPrincipalId())
+                .append(", origin=[").append(auditEvent.getOrigin())
+                .append("], identityZoneId=[").append(auditEvent.getIdentityZoneId()).append("]");
+            log(msg.toString());
+        }
     }
 
     private void updateCounters(AuditEvent auditEvent) {
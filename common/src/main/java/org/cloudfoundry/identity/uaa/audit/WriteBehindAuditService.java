@@ -0,0 +1,381 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+/**
+ * Writes audit events to a delegate on a background thread, so that logging an
+ * event does not cost the request thread a database round trip.
+ * <p>
+ * Events are queued in a bounded lock free ring buffer and drained by a single
+ * writer thread in batches of up to {@link #setBatchSize(int) batchSize} events.
+ * When the delegate is a {@link JdbcAuditService} each batch is written with
+ * {@link JdbcAuditService#logBatch(List)}. What happens when the buffer is full
+ * is decided by the {@link OverflowPolicy}. No policy discards events, as the
+ * lockout policies count the failed logins that are written here.
+ * <p>
+ * {@link #find(String, long)} first waits for the events of the principal that
+ * are still queued to be written, so lockout decisions never depend on the
+ * write lag. Queued events are flushed when the bean is destroyed.
+ */
+@ManagedResource
+public class WriteBehindAuditService implements UaaAuditService, InitializingBean, DisposableBean {
+
+    public enum OverflowPolicy {
+        /**
+         * wait for the writer to make room
+         */
+        BLOCK,
+        /**
+         * write the event on the calling thread
+         */
+        SYNC
+    }
+
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final UaaAuditService delegate;
+
+    private final ConcurrentMap<String, Long> pendingByPrincipal = new ConcurrentHashMap<>();
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private final AtomicLong syncCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private AtomicReferenceArray<Entry> slots;
+
+    private int capacity = 8192;
+
+    private int mask;
+
+    private int batchSize = 100;
+
+    private long pollInterval = 50;
+
+    private long shutdownTimeout = 10000;
+
+    private boolean enabled = true;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private volatile long writtenUpTo;
+
+    private volatile boolean running;
+
+    private Thread writer;
+
+    public WriteBehindAuditService(UaaAuditService delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param capacity the number of events that can be queued, rounded up to a
+     *            power of two
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param pollInterval the time in milliseconds the writer waits for new
+     *            events when the buffer is empty
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param shutdownTimeout the time in milliseconds the writer is given to
+     *            flush the buffer on shutdown
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * @param enabled false to write every event on the calling thread
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "WriteBehindAuditService");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(shutdownTimeout);
+        if (writer.isAlive()) {
+            logger.warn("Audit writer did not finish within " + shutdownTimeout + "ms, " + getPendingCount() + " events not written.");
+        } else {
+            // events queued while the writer was stopping
+            List<Entry> batch = new ArrayList<>(batchSize);
+            while (drain(batch) > 0) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        Long sequence = principal == null ? null : pendingByPrincipal.get(principal);
+        if (sequence != null) {
+            awaitWritten(sequence);
+        }
+        return delegate.find(principal, after);
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        while (running) {
+            long t = tail.get();
+            long queued = t - head.get();
+            if (queued < slots.length()) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    Entry entry = new Entry(t, auditEvent);
+                    if (entry.principal != null) {
+                        pendingByPrincipal.merge(entry.principal, t, Math::max);
+                    }
+                    slots.set(index(t), entry);
+                    if (queued + 1 >= batchSize) {
+                        LockSupport.unpark(writer);
+                    }
+                    return;
+                }
+                continue;
+            }
+            switch (overflowPolicy) {
+                case SYNC:
+                    syncCount.incrementAndGet();
+                    writeSync(auditEvent);
+                    return;
+                default:
+                    blockedCount.incrementAndGet();
+                    LockSupport.unpark(writer);
+                    LockSupport.parkNanos(this, WAIT_NANOS);
+                    break;
+            }
+        }
+        writeSync(auditEvent);
+    }
+
+    /**
+     * Writes an event on the calling thread, after the queued events of the same
+     * principal, so the delegate sees the events of a principal in order.
+     */
+    protected void writeSync(AuditEvent auditEvent) {
+        Long sequence = auditEvent.getPrincipalId() == null ? null : pendingByPrincipal.get(auditEvent.getPrincipalId());
+        if (sequence != null) {
+            awaitWritten(sequence);
+        }
+        delegate.log(auditEvent);
+    }
+
+    protected void awaitWritten(long sequence) {
+        while (writtenUpTo <= sequence && writer != null && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(this, WAIT_NANOS);
+        }
+    }
+
+    protected void writeEvents() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (running) {
+            if (drain(batch) == 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(pollInterval));
+                continue;
+            }
+            write(batch);
+            batch.clear();
+        }
+        while (head.get() < tail.get()) {
+            if (drain(batch) == 0) {
+                // an event has been claimed but not yet published
+                Thread.yield();
+                continue;
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Takes up to batchSize published events from the head of the buffer.
+     */
+    protected int drain(List<Entry> batch) {
+        while (batch.size() < batchSize) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                break;
+            }
+            Entry entry = slots.get(index(h));
+            if (entry == null || entry.sequence != h) {
+                break;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                slots.compareAndSet(index(h), entry, null);
+                batch.add(entry);
+            }
+        }
+        return batch.size();
+    }
+
+    protected void write(List<Entry> batch) {
+        List<AuditEvent> events = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            events.add(entry.event);
+        }
+        try {
+            if (delegate instanceof JdbcAuditService) {
+                ((JdbcAuditService) delegate).logBatch(events);
+            } else {
+                for (AuditEvent event : events) {
+                    delegate.log(event);
+                }
+            }
+            writtenCount.addAndGet(events.size());
+        } catch (RuntimeException x) {
+            logger.warn("Unable to write a batch of " + events.size() + " audit events, writing them one at a time.", x);
+            for (AuditEvent event : events) {
+                try {
+                    delegate.log(event);
+                    writtenCount.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failureCount.incrementAndGet();
+                    logger.error("Unable to write audit event:" + event.getType() + " for principal:" + event.getPrincipalId(), e);
+                }
+            }
+        }
+        batchCount.incrementAndGet();
+        writtenUpTo = batch.get(batch.size() - 1).sequence + 1;
+        for (Entry entry : batch) {
+            if (entry.principal != null) {
+                pendingByPrincipal.remove(entry.principal, entry.sequence);
+            }
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Queued Audit Events")
+    public long getPendingCount() {
+        return tail.get() - head.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Write Lag (ms)")
+    public long getLag() {
+        if (slots == null) {
+            return 0;
+        }
+        long h = head.get();
+        Entry oldest = slots.get(index(h));
+        return oldest == null || oldest.sequence != h ? 0 : Math.max(0, System.currentTimeMillis() - oldest.event.getTime());
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Written Audit Events")
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Batches Written")
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Blocked Audit Writes")
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Synchronous Audit Writes on Overflow")
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Failed Audit Writes")
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    protected static class Entry {
+        private final long sequence;
+        private final AuditEvent event;
+        private final String principal;
+
+        private Entry(long sequence, AuditEvent event) {
+            this.sequence = sequence;
+            this.event = event;
+            this.principal = event.getPrincipalId();
+        }
+    }
+}
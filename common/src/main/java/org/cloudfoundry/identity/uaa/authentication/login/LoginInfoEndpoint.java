@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.authentication.login;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.cloudfoundry.identity.uaa.authentication.AuthzAuthenticationRequest;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
@@ -42,6 +43,7 @@ import org.springframework.security.oauth2.provider.ClientDetailsService;
 import org.springframework.security.oauth2.provider.NoSuchClientException;
 import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -50,6 +52,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
@@ -63,15 +66,21 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Controller that sends login info (e.g. prompts) to clients wishing to
@@ -84,9 +93,15 @@ public class LoginInfoEndpoint {
 
     public static final String NotANumber = Origin.NotANumber;
 
-    private Properties gitProperties = new Properties();
+    private final String startTime = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date());
 
-    private Properties buildProperties = new Properties();
+    private final String commitId;
+
+    private final String timestamp;
+
+    private final Map<String, ?> app;
+
+    private final String commitInfoHash;
 
     private Map<String, String> links = new HashMap<String, String>();
 
@@ -108,12 +123,26 @@ public class LoginInfoEndpoint {
     private String customSignupLink;
     private String customPasswordLink;
 
+    private final ConcurrentMap<List<Object>, LoginModel> loginModels = new ConcurrentHashMap<>();
+    private final AtomicLong loginModelVersion = new AtomicLong();
+    private int maxLoginModels = 1000;
+
     public void setSelfServiceLinksEnabled(boolean selfServiceLinksEnabled) {
         this.selfServiceLinksEnabled = selfServiceLinksEnabled;
+        loginModelVersion.incrementAndGet();
     }
 
     public void setDisableInternalUserManagement(boolean disableInternalUserManagement) {
         this.disableInternalUserManagement = disableInternalUserManagement;
+        loginModelVersion.incrementAndGet();
+    }
+
+    /**
+     * @param maxLoginModels the number of zone and allowed provider
+     *            combinations whose login model is kept
+     */
+    public void setMaxLoginModels(int maxLoginModels) {
+        this.maxLoginModels = maxLoginModels;
     }
 
     public void setCustomSignupLink(String customSignupLink) {
@@ -138,6 +167,7 @@ public class LoginInfoEndpoint {
 
     public void setIdpDefinitions(SamlIdentityProviderConfigurator idpDefinitions) {
         this.idpDefinitions = idpDefinitions;
+        loginModelVersion.incrementAndGet();
     }
 
     public AuthenticationManager getAuthenticationManager() {
@@ -155,15 +185,26 @@ public class LoginInfoEndpoint {
     }
 
     public LoginInfoEndpoint() {
+        this(loadProperties("git.properties"), loadProperties("build.properties"));
+    }
+
+    /**
+     * The commit and build info never change while running, so their part of
+     * the ETag of /login is computed here once.
+     */
+    protected LoginInfoEndpoint(Properties gitProperties, Properties buildProperties) {
+        commitId = gitProperties.getProperty("git.commit.id.abbrev", "UNKNOWN");
+        timestamp = gitProperties.getProperty("git.commit.time", startTime);
+        app = UaaStringUtils.getMapFromProperties(buildProperties, "build.");
+        commitInfoHash = DigestUtils.md5Hex(commitId + "|" + timestamp + "|" + new TreeMap<>(app));
+    }
+
+    private static Properties loadProperties(String resourceName) {
         try {
-            gitProperties = PropertiesLoaderUtils.loadAllProperties("git.properties");
-        } catch (IOException e) {
-            // Ignore
-        }
-        try {
-            buildProperties = PropertiesLoaderUtils.loadAllProperties("build.properties");
+            return PropertiesLoaderUtils.loadAllProperties(resourceName);
         } catch (IOException e) {
             // Ignore
+            return new Properties();
         }
     }
 
@@ -174,6 +215,7 @@ public class LoginInfoEndpoint {
 
     public void setPrompts(List<Prompt> prompts) {
         this.prompts = prompts;
+        loginModelVersion.incrementAndGet();
     }
 
     public List<Prompt> getPrompts() {
@@ -181,13 +223,13 @@ public class LoginInfoEndpoint {
     }
 
     @RequestMapping(value = {"/login" }, headers = "Accept=application/json")
-    public String loginForJson(Model model, Principal principal) {
-        return login(model, principal, Collections.<String>emptyList(), false);
+    public String loginForJson(Model model, Principal principal, WebRequest webRequest) {
+        return login(model, principal, Collections.<String>emptyList(), false, null, webRequest);
     }
 
     @RequestMapping(value = {"/info" }, headers = "Accept=application/json")
-    public String infoForJson(Model model, Principal principal) {
-        return login(model, principal, Collections.<String>emptyList(), true);
+    public String infoForJson(Model model, Principal principal, WebRequest webRequest) {
+        return login(model, principal, Collections.<String>emptyList(), true, null, webRequest);
     }
 
     @RequestMapping(value = {"/info" }, headers = "Accept=text/html, */*")
@@ -197,7 +239,7 @@ public class LoginInfoEndpoint {
 
     @RequestMapping(value = {"/login" }, headers = "Accept=text/html, */*")
     public String loginForHtml(Model model, Principal principal, HttpServletRequest request) {
-        return login(model, principal, Arrays.asList("passcode"), false, request);
+        return login(model, principal, Arrays.asList("passcode"), false, request, null);
     }
 
     @RequestMapping(value = {"/invalid_request" })
@@ -210,14 +252,15 @@ public class LoginInfoEndpoint {
     }
 
     private String login(Model model, Principal principal, List<String> excludedPrompts, boolean nonHtml) {
-        return login(model, principal, excludedPrompts, nonHtml, null);
+        return login(model, principal, excludedPrompts, nonHtml, null, null);
     }
 
-    private String login(Model model, Principal principal, List<String> excludedPrompts, boolean nonHtml, HttpServletRequest request) {
+    private String login(Model model, Principal principal, List<String> excludedPrompts, boolean nonHtml, HttpServletRequest request, WebRequest webRequest) {
         HttpSession session = request != null ? request.getSession(false) : null;
         List<String> allowedIdps = getAllowedIdps(session);
 
-        List<SamlIdentityProviderDefinition> idps = getSamlIdentityProviderDefinitions(allowedIdps);
+        LoginModel loginModel = getLoginModel(allowedIdps, excludedPrompts, nonHtml);
+        List<SamlIdentityProviderDefinition> idps = loginModel.idps;
 
         boolean fieldUsernameShow = true;
 
@@ -240,25 +283,24 @@ public class LoginInfoEndpoint {
         model.addAttribute("fieldUsernameShow", fieldUsernameShow);
         setCommitInfo(model);
         model.addAttribute("zone_name", IdentityZoneHolder.get().getName());
-        model.addAttribute("links", getLinksInfo());
+        model.addAttribute("links", loginModel.links);
 
-        boolean noSamlIdpsPresent = true;
         // Entity ID to start the discovery
-        model.addAttribute("entityID", getZonifiedEntityId());
+        String zonifiedEntityId = getZonifiedEntityId();
+        model.addAttribute("entityID", zonifiedEntityId);
         model.addAttribute("idpDefinitions", idps);
-        for (SamlIdentityProviderDefinition idp : idps) {
-            if(idp.isShowSamlLink()) {
-                model.addAttribute("showSamlLoginLinks", true);
-                noSamlIdpsPresent = false;
-                break;
-            }
+        if (loginModel.showSamlLoginLinks) {
+            model.addAttribute("showSamlLoginLinks", true);
         }
-        //make the list writeable
-        excludedPrompts = new LinkedList<>(excludedPrompts);
-        if (noSamlIdpsPresent) {
-            excludedPrompts.add("passcode");
+        model.addAttribute("prompts", loginModel.prompts);
+
+        if (webRequest!=null) {
+            String etag = "\"" + DigestUtils.md5Hex(loginModel.hash + "|" + commitInfoHash + "|" + IdentityZoneHolder.get().getName() + "|" +
+                zonifiedEntityId + "|" + (principal == null ? "" : principal.getName())) + "\"";
+            if (webRequest.checkNotModified(etag)) {
+                return null;
+            }
         }
-        populatePrompts(model, excludedPrompts, nonHtml);
 
         if (principal == null) {
             if (selfServiceLinksEnabled && (!nonHtml)) {
@@ -288,6 +330,61 @@ public class LoginInfoEndpoint {
         return idpDefinitions.getIdentityProviderDefinitions(allowedIdps, IdentityZoneHolder.get());
     }
 
+    /**
+     * Returns the identity providers, prompts and links shown on the login
+     * page of the current zone to a client with the given allowed providers.
+     * The model is kept until a provider is added, changed or removed or the
+     * prompts or links of this endpoint are set.
+     */
+    protected LoginModel getLoginModel(List<String> allowedIdps, List<String> excludedPrompts, boolean nonHtml) {
+        List<Object> key = Arrays.<Object>asList(
+            IdentityZoneHolder.get().getId(),
+            allowedIdps == null ? null : new HashSet<>(allowedIdps),
+            excludedPrompts,
+            nonHtml
+        );
+        long idpVersion = idpDefinitions.getVersion();
+        long version = loginModelVersion.get();
+        LoginModel loginModel = loginModels.get(key);
+        if (loginModel == null || loginModel.idpVersion != idpVersion || loginModel.version != version) {
+            loginModel = buildLoginModel(allowedIdps, excludedPrompts, nonHtml, idpVersion, version);
+            if (loginModels.size() >= maxLoginModels) {
+                loginModels.clear();
+            }
+            loginModels.put(key, loginModel);
+        }
+        return loginModel;
+    }
+
+    private LoginModel buildLoginModel(List<String> allowedIdps, List<String> excludedPrompts, boolean nonHtml, long idpVersion, long version) {
+        List<SamlIdentityProviderDefinition> idps = Collections.unmodifiableList(new ArrayList<>(getSamlIdentityProviderDefinitions(allowedIdps)));
+        boolean showSamlLoginLinks = false;
+        for (SamlIdentityProviderDefinition idp : idps) {
+            if(idp.isShowSamlLink()) {
+                showSamlLoginLinks = true;
+                break;
+            }
+        }
+        //make the list writeable
+        excludedPrompts = new LinkedList<>(excludedPrompts);
+        if (!showSamlLoginLinks) {
+            excludedPrompts.add("passcode");
+        }
+        Model model = new ExtendedModelMap();
+        populatePrompts(model, excludedPrompts, nonHtml);
+        Map<String, Object> links = Collections.unmodifiableMap(new HashMap<String, Object>(getLinksInfo()));
+        Object prompts = model.asMap().get("prompts");
+        prompts = nonHtml ? Collections.unmodifiableList((List<?>) prompts) : Collections.unmodifiableMap((Map<?, ?>) prompts);
+        StringBuilder content = new StringBuilder();
+        for (SamlIdentityProviderDefinition idp : idps) {
+            content.append(idp).append('\n');
+        }
+        content.append(JsonUtils.writeValueAsString(prompts)).append('\n');
+        content.append(JsonUtils.writeValueAsString(new TreeMap<>(links)));
+        String hash = DigestUtils.md5Hex(content.toString());
+        return new LoginModel(idpVersion, version, idps, showSamlLoginLinks, prompts, links, hash);
+    }
+
     protected boolean hasSavedOauthAuthorizeRequest(HttpSession session) {
         if (session==null || session.getAttribute("SPRING_SECURITY_SAVED_REQUEST")==null) {
             return false;
@@ -316,12 +413,9 @@ public class LoginInfoEndpoint {
     }
 
     private void setCommitInfo(Model model) {
-        model.addAttribute("commit_id", gitProperties.getProperty("git.commit.id.abbrev", "UNKNOWN"));
-        model.addAttribute(
-                        "timestamp",
-                        gitProperties.getProperty("git.commit.time",
-                                        new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date())));
-        model.addAttribute("app", UaaStringUtils.getMapFromProperties(buildProperties, "build."));
+        model.addAttribute("commit_id", commitId);
+        model.addAttribute("timestamp", timestamp);
+        model.addAttribute("app", app);
     }
 
 
@@ -451,6 +545,7 @@ public class LoginInfoEndpoint {
 
     public void setUaaBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        loginModelVersion.incrementAndGet();
         try {
             URI uri = new URI(baseUrl);
             setUaaHost(uri.getHost());
@@ -469,6 +564,7 @@ public class LoginInfoEndpoint {
 
     public void setLinks(Map<String, String> links) {
         this.links = links;
+        loginModelVersion.incrementAndGet();
     }
 
     public String getBaseUrl() {
@@ -477,6 +573,7 @@ public class LoginInfoEndpoint {
 
     public void setBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        loginModelVersion.incrementAndGet();
     }
 
     protected String getUaaBaseUrl() {
@@ -512,6 +609,27 @@ public class LoginInfoEndpoint {
         this.clientDetailsService = clientDetailsService;
     }
 
+    protected static final class LoginModel {
+        private final long idpVersion;
+        private final long version;
+        private final List<SamlIdentityProviderDefinition> idps;
+        private final boolean showSamlLoginLinks;
+        private final Object prompts;
+        private final Map<String, ?> links;
+        private final String hash;
+
+        private LoginModel(long idpVersion, long version, List<SamlIdentityProviderDefinition> idps, boolean showSamlLoginLinks,
+                           Object prompts, Map<String, ?> links, String hash) {
+            this.idpVersion = idpVersion;
+            this.version = version;
+            this.idps = idps;
+            this.showSamlLoginLinks = showSamlLoginLinks;
+            this.prompts = prompts;
+            this.links = links;
+            this.hash = hash;
+        }
+    }
+
     @ResponseStatus(value = HttpStatus.FORBIDDEN, reason = "Unknown authentication token type, unable to derive user ID.")
     public static final class UnknownPrincipalException extends RuntimeException {}
 
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops calls to a remote service after
+ * {@link #setFailureThreshold(int) failureThreshold} consecutive failures.
+ * Once {@link #setOpenDuration(long) openDuration} milliseconds have passed a
+ * single trial call is let through: if it succeeds calls resume, otherwise
+ * the breaker stays open for another openDuration.
+ */
+public class CircuitBreaker {
+
+    private int failureThreshold = 5;
+
+    private long openDuration = 30000;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openedAt = 0;
+
+    private final AtomicBoolean trialInProgress = new AtomicBoolean(false);
+
+    /**
+     * @param failureThreshold consecutive failures that open the breaker, 0
+     *            or less to never open it
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @return true if the call may go ahead. The caller must then report the
+     *         outcome with {@link #recordSuccess()} or {@link #recordFailure()}.
+     */
+    public boolean allowRequest() {
+        if (!isOpen()) {
+            return true;
+        }
+        if (System.currentTimeMillis() - openedAt < openDuration) {
+            return false;
+        }
+        return trialInProgress.compareAndSet(false, true);
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        openedAt = 0;
+        trialInProgress.set(false);
+    }
+
+    public void recordFailure() {
+        if (failureThreshold > 0 && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+        }
+        trialInProgress.set(false);
+    }
+
+    public boolean isOpen() {
+        return openedAt != 0;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+}
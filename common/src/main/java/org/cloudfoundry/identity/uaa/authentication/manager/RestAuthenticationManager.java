@@ -25,19 +25,39 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+import org.springframework.security.crypto.keygen.KeyGenerators;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.DefaultResponseErrorHandler;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.security.crypto.util.EncodingUtils.concatenate;
 
 /**
  * An authentication manager that can be used to login to a remote UAA service
@@ -46,24 +66,59 @@ import java.util.Map;
  * The request is handled by the UAA's
  * RemoteAuhenticationEndpoint and success or failure is determined by the
  * response code.
+ * <p>
+ * Remote calls go through a pool of at most
+ * {@link #setMaxConnectionsPerRoute(int) maxConnectionsPerRoute} connections,
+ * with connect and read timeouts, and stop for a while once the remote server
+ * keeps failing (see {@link CircuitBreaker}). Successful logins can be
+ * remembered for {@link #setSuccessCacheTtl(long) successCacheTtl}
+ * milliseconds, keyed by a salted hash of the credentials, so that repeated
+ * logins with the same credentials don't each need a remote call.
  *
  * @author Dave Syer
  * @author Luke Taylor
  *
  */
-public class RestAuthenticationManager implements AuthenticationManager {
+@ManagedResource
+public class RestAuthenticationManager implements AuthenticationManager, InitializingBean, DisposableBean {
 
     protected final Log logger = LogFactory.getLog(getClass());
 
     private RestOperations restTemplate = new RestTemplate();
 
+    private final RestTemplate defaultRestTemplate;
+
     private static String DEFAULT_LOGIN_URL = "http://uaa.cloudfoundry.com/authenticate";
 
     private String remoteUrl = DEFAULT_LOGIN_URL;
 
     private boolean nullPassword = false;
 
+    private int maxConnections = 100;
+
+    private int maxConnectionsPerRoute = 20;
+
+    private int connectTimeout = 5000;
+
+    private int readTimeout = 10000;
+
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    private long successCacheTtl = 0;
+
+    private int maxCachedSuccesses = 1000;
+
+    private final ConcurrentMap<String, Long> successCache = new ConcurrentHashMap<>();
+
+    private final byte[] salt = KeyGenerators.secureRandom().generateKey();
+
+    private final AtomicLong remoteCallCount = new AtomicLong();
 
+    private final AtomicLong remoteFailureCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
 
     /**
      * @param remoteUrl the login url to set
@@ -87,10 +142,61 @@ public class RestAuthenticationManager implements AuthenticationManager {
         return restTemplate;
     }
 
+    /**
+     * @param maxConnections the size of the connection pool of the default
+     *            rest template
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxConnectionsPerRoute the pooled connections to the remote
+     *            server, which bounds the concurrent remote logins
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection, both from
+     *            the pool and to the remote server
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param readTimeout milliseconds to wait for the remote server to answer
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @param successCacheTtl milliseconds a successful login is remembered,
+     *            0 (the default) to always ask the remote server
+     */
+    public void setSuccessCacheTtl(long successCacheTtl) {
+        this.successCacheTtl = successCacheTtl;
+    }
+
+    public void setMaxCachedSuccesses(int maxCachedSuccesses) {
+        this.maxCachedSuccesses = maxCachedSuccesses;
+    }
+
     public RestAuthenticationManager() {
         RestTemplate restTemplate = new RestTemplate();
         // The default java.net client doesn't allow you to handle 4xx responses
-        restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory());
+        restTemplate.setRequestFactory(createRequestFactory());
         restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
             @Override
             protected boolean hasError(HttpStatus statusCode) {
@@ -98,6 +204,44 @@ public class RestAuthenticationManager implements AuthenticationManager {
             }
         });
         this.restTemplate = restTemplate;
+        this.defaultRestTemplate = restTemplate;
+    }
+
+    /**
+     * Applies the pool and timeout settings to the default rest template.
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (restTemplate == defaultRestTemplate) {
+            HttpComponentsClientHttpRequestFactory previous = (HttpComponentsClientHttpRequestFactory) defaultRestTemplate.getRequestFactory();
+            defaultRestTemplate.setRequestFactory(createRequestFactory());
+            previous.destroy();
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        ((HttpComponentsClientHttpRequestFactory) defaultRestTemplate.getRequestFactory()).destroy();
+    }
+
+    protected HttpComponentsClientHttpRequestFactory createRequestFactory() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        RequestConfig config = RequestConfig.custom()
+            .setConnectionRequestTimeout(connectTimeout)
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .build();
+        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(
+            HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .build());
+        factory.setConnectionRequestTimeout(connectTimeout);
+        factory.setConnectTimeout(connectTimeout);
+        factory.setReadTimeout(readTimeout);
+        return factory;
     }
 
     @Override
@@ -105,17 +249,43 @@ public class RestAuthenticationManager implements AuthenticationManager {
         String username = authentication.getName();
         String password = (String) authentication.getCredentials();
 
+        String cacheKey = successCacheTtl > 0 ? getCacheKey(username, password) : null;
+        if (cacheKey != null && isCachedSuccess(cacheKey)) {
+            cacheHitCount.incrementAndGet();
+            logger.debug("Successful authentication for " + username + " remembered from a previous request");
+            return getSuccessfulAuthentication(username);
+        }
+
         HttpHeaders headers = getHeaders();
+        HttpEntity<Object> request = new HttpEntity<Object>(getParameters(username, password), headers);
 
+        if (!circuitBreaker.allowRequest()) {
+            rejectedCount.incrementAndGet();
+            logger.warn("Remote authentication at " + remoteUrl + " is suspended after repeated failures");
+            throw new AuthenticationServiceException("Remote authentication is temporarily unavailable");
+        }
+
+        remoteCallCount.incrementAndGet();
         @SuppressWarnings("rawtypes")
-        ResponseEntity<Map> response = restTemplate.exchange(remoteUrl, HttpMethod.POST,
-                        new HttpEntity<Object>(getParameters(username, password), headers), Map.class);
+        ResponseEntity<Map> response = null;
+        try {
+            response = restTemplate.exchange(remoteUrl, HttpMethod.POST, request, Map.class);
+        } finally {
+            // whatever the call threw, a trial call must end with an outcome
+            if (response == null || response.getStatusCode().series() == HttpStatus.Series.SERVER_ERROR) {
+                recordRemoteFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+        }
 
         if (response.getStatusCode() == HttpStatus.OK || response.getStatusCode() == HttpStatus.CREATED) {
             if (evaluateResponse(authentication,response)) {
                 logger.info("Successful authentication request for " + authentication.getName());
-                //TODO - we can return a UAA principal containing the correct origin here.
-                return new UsernamePasswordAuthenticationToken(username, nullPassword?null:"", UaaAuthority.USER_AUTHORITIES);
+                if (cacheKey != null) {
+                    cacheSuccess(cacheKey);
+                }
+                return getSuccessfulAuthentication(username);
             }
         } else if (response.getStatusCode() == HttpStatus.UNAUTHORIZED) {
             logger.info("Failed authentication request");
@@ -129,6 +299,74 @@ public class RestAuthenticationManager implements AuthenticationManager {
         throw new RuntimeException("Could not authenticate with remote server");
     }
 
+    private void recordRemoteFailure() {
+        remoteFailureCount.incrementAndGet();
+        circuitBreaker.recordFailure();
+    }
+
+    protected Authentication getSuccessfulAuthentication(String username) {
+        //TODO - we can return a UAA principal containing the correct origin here.
+        return new UsernamePasswordAuthenticationToken(username, nullPassword?null:"", UaaAuthority.USER_AUTHORITIES);
+    }
+
+    /**
+     * The salt is generated per instance and the credentials are only ever
+     * kept as this hash.
+     */
+    protected String getCacheKey(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(concatenate(salt, Utf8.encode(remoteUrl + "\n" + username + "\n" + password)));
+            return new String(Hex.encode(hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean isCachedSuccess(String cacheKey) {
+        Long expires = successCache.get(cacheKey);
+        if (expires == null) {
+            return false;
+        }
+        if (expires > System.currentTimeMillis()) {
+            return true;
+        }
+        successCache.remove(cacheKey, expires);
+        return false;
+    }
+
+    private void cacheSuccess(String cacheKey) {
+        if (successCache.size() >= maxCachedSuccesses) {
+            successCache.clear();
+        }
+        successCache.put(cacheKey, System.currentTimeMillis() + successCacheTtl);
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Remote Authentication Calls")
+    public long getRemoteCallCount() {
+        return remoteCallCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Remote Authentication Failures")
+    public long getRemoteFailureCount() {
+        return remoteFailureCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Logins Rejected While Suspended")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Logins Answered From Cache")
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    @ManagedAttribute(description = "Whether remote authentication is suspended after repeated failures")
+    public boolean isCircuitOpen() {
+        return circuitBreaker.isOpen();
+    }
+
     protected boolean evaluateResponse(Authentication authentication, ResponseEntity<Map> response) {
         String userFromUaa = (String) response.getBody().get("username");
         if (userFromUaa.equals(authentication.getPrincipal().toString())) {
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.cache;
+
+/**
+ * Tells every node of a deployment that entries of a local cache are stale.
+ * An invalidation is applied to the listeners on this node right away and to
+ * the listeners on the other nodes within a bounded delay.
+ */
+public interface CacheInvalidationBus {
+
+    /**
+     * Evicts a key from the named cache on every node.
+     *
+     * @param cacheName the name the cache listeners are registered with
+     * @param key the key to evict, or null to evict the whole cache
+     * @param version the version of the changed entry, passed on to the
+     *            listeners
+     */
+    void invalidate(String cacheName, String key, long version);
+
+    /**
+     * Registers a listener for invalidations of the named cache, including
+     * the ones published by this node.
+     */
+    void addListener(String cacheName, CacheInvalidationListener listener);
+}
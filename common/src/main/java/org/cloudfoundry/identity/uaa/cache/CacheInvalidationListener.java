@@ -0,0 +1,25 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.cache;
+
+/**
+ * Evicts entries of a local cache when they change on any node.
+ */
+public interface CacheInvalidationListener {
+
+    /**
+     * @param key the key to evict, or null to evict all entries
+     * @param version the version of the changed entry, as published
+     */
+    void invalidate(String key, long version);
+}
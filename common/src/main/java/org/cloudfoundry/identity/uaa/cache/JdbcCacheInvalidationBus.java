@@ -0,0 +1,392 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.codestore.ExpiringEntryStore;
+import org.cloudfoundry.identity.uaa.rest.jdbc.DefaultLimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.rest.jdbc.LimitSqlAdapter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link CacheInvalidationBus} using a table of the UAA database, so no
+ * broker is needed.
+ *
+ * Every invalidation is appended as a (cache name, key, version) row. Each node
+ * tails the table by id every {@link #setPollInterval(long) pollInterval}
+ * milliseconds and passes the rows written by other nodes to its listeners, so
+ * a cache entry changed on one node is stale on the others for at most about
+ * one poll interval.
+ *
+ * Ids are handed out when a row is inserted but become visible when its
+ * transaction commits, so a row can show up after rows with a higher id. Ids
+ * skipped by a poll are looked up again for {@link #setGapTimeout(long)
+ * gapTimeout} milliseconds before they are assumed to belong to a rolled back
+ * transaction. Rows older than {@link #setRetention(long) retention} are
+ * removed by the {@link org.cloudfoundry.identity.uaa.codestore.ExpiredEntriesReaper}.
+ */
+@ManagedResource
+public class JdbcCacheInvalidationBus implements CacheInvalidationBus, ExpiringEntryStore, InitializingBean, DisposableBean {
+
+    public static final String TABLE_NAME = "cache_invalidation";
+
+    static final String INSERT_SQL = "insert into " + TABLE_NAME + " (cache_name, cache_key, version, node_id, created) values (?,?,?,?,?)";
+
+    static final String FIELDS = "id, cache_name, cache_key, version, node_id";
+
+    static final String SELECT_AFTER_SQL = "select " + FIELDS + " from " + TABLE_NAME + " where id > ? order by id";
+
+    static final String SELECT_BY_IDS_SQL = "select " + FIELDS + " from " + TABLE_NAME + " where id in (%s)";
+
+    static final String MAX_ID_SQL = "select max(id) from " + TABLE_NAME;
+
+    static final String SELECT_EXPIRED_SQL = "select id from " + TABLE_NAME + " where created < ?";
+
+    static final String DELETE_SQL = "delete from " + TABLE_NAME + " where id = ?";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final ConcurrentMap<String, List<CacheInvalidationListener>> listeners = new ConcurrentHashMap<>();
+
+    private LimitSqlAdapter limitSqlAdapter = new DefaultLimitSqlAdapter();
+
+    private long pollInterval = 1000;
+
+    private int batchSize = 500;
+
+    private long retention = 60 * 60 * 1000; // one hour
+
+    private long gapTimeout = 60 * 1000;
+
+    private int maxGaps = 1000;
+
+    private long lastId = -1;
+
+    /**
+     * Ids skipped by a poll, with the time they were first missed.
+     */
+    private final TreeMap<Long, Long> gaps = new TreeMap<>();
+
+    private Timer timer;
+
+    private final AtomicLong publishedCount = new AtomicLong();
+
+    private final AtomicLong receivedCount = new AtomicLong();
+
+    private final AtomicLong pollCount = new AtomicLong();
+
+    private final AtomicLong pollFailureCount = new AtomicLong();
+
+    private final AtomicLong listenerFailureCount = new AtomicLong();
+
+    private final AtomicLong lateRowCount = new AtomicLong();
+
+    public JdbcCacheInvalidationBus(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void setLimitSqlAdapter(LimitSqlAdapter limitSqlAdapter) {
+        this.limitSqlAdapter = limitSqlAdapter;
+    }
+
+    /**
+     * @param pollInterval how often other nodes' invalidations are read in
+     *            milliseconds, bounding how long a changed entry stays
+     *            cached on this node. Zero or less disables the background
+     *            poll.
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param retention how long rows are kept in milliseconds. Must be much
+     *            longer than the poll interval.
+     */
+    public void setRetention(long retention) {
+        this.retention = retention;
+    }
+
+    public void setGapTimeout(long gapTimeout) {
+        this.gapTimeout = gapTimeout;
+    }
+
+    public void setMaxGaps(int maxGaps) {
+        this.maxGaps = maxGaps;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        synchronized (this) {
+            if (lastId < 0) {
+                // only invalidations made after this node started are of interest
+                Long max = jdbcTemplate.queryForObject(MAX_ID_SQL, Long.class);
+                lastId = max == null ? 0 : max;
+            }
+        }
+        if (pollInterval > 0 && timer == null) {
+            timer = new Timer("CacheInvalidationBus", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        poll();
+                    } catch (Exception x) {
+                        pollFailureCount.incrementAndGet();
+                        logger.warn("Unable to read cache invalidations", x);
+                    }
+                }
+            }, pollInterval, pollInterval);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    @Override
+    public void addListener(String cacheName, CacheInvalidationListener listener) {
+        List<CacheInvalidationListener> list = listeners.get(cacheName);
+        if (list == null) {
+            listeners.putIfAbsent(cacheName, new CopyOnWriteArrayList<CacheInvalidationListener>());
+            list = listeners.get(cacheName);
+        }
+        list.add(listener);
+    }
+
+    /**
+     * Applies the invalidation to the listeners of this node and records it
+     * for the other nodes. The row is written in the current transaction, if
+     * there is one, so other nodes only see invalidations of committed
+     * changes. The listeners of this node are then only called once the
+     * transaction commits, as an entry reloaded before that would hold the
+     * old value, and this node skips its own rows when it polls.
+     */
+    @Override
+    public void invalidate(final String cacheName, final String key, final long version) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    notifyListeners(cacheName, key, version);
+                }
+            });
+        } else {
+            notifyListeners(cacheName, key, version);
+        }
+        jdbcTemplate.update(INSERT_SQL, cacheName, key, version, nodeId, System.currentTimeMillis());
+        publishedCount.incrementAndGet();
+    }
+
+    /**
+     * Reads the invalidations written since the last poll and applies the
+     * ones of other nodes.
+     *
+     * @return the number of invalidations applied
+     */
+    @ManagedOperation(description = "Read cache invalidations of other nodes now")
+    public synchronized int poll() {
+        pollCount.incrementAndGet();
+        if (lastId < 0) {
+            Long max = jdbcTemplate.queryForObject(MAX_ID_SQL, Long.class);
+            lastId = max == null ? 0 : max;
+        }
+        long now = System.currentTimeMillis();
+        int applied = 0;
+        if (!gaps.isEmpty()) {
+            for (Invalidation row : queryGaps()) {
+                gaps.remove(row.id);
+                lateRowCount.incrementAndGet();
+                applied += apply(row);
+            }
+            for (Iterator<Long> it = gaps.values().iterator(); it.hasNext();) {
+                if (now - it.next() >= gapTimeout) {
+                    it.remove();
+                }
+            }
+        }
+        List<Invalidation> rows;
+        do {
+            rows = jdbcTemplate.query(limitSqlAdapter.getLimitSql(SELECT_AFTER_SQL, 0, batchSize), ROW_MAPPER, lastId);
+            for (Invalidation row : rows) {
+                for (long missing = lastId + 1; missing < row.id && gaps.size() < maxGaps; missing++) {
+                    gaps.put(missing, now);
+                }
+                lastId = row.id;
+                applied += apply(row);
+            }
+        } while (rows.size() == batchSize);
+        return applied;
+    }
+
+    private List<Invalidation> queryGaps() {
+        List<Invalidation> result = new ArrayList<>();
+        List<Long> ids = new ArrayList<>(gaps.keySet());
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Long> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+            }
+            result.addAll(jdbcTemplate.query(String.format(SELECT_BY_IDS_SQL, placeholders), ROW_MAPPER, batch.toArray()));
+        }
+        return result;
+    }
+
+    private int apply(Invalidation row) {
+        if (nodeId.equals(row.nodeId)) {
+            // already applied when it was published
+            return 0;
+        }
+        receivedCount.incrementAndGet();
+        notifyListeners(row.cacheName, row.key, row.version);
+        return 1;
+    }
+
+    protected void notifyListeners(String cacheName, String key, long version) {
+        List<CacheInvalidationListener> list = listeners.get(cacheName);
+        if (list == null) {
+            return;
+        }
+        for (CacheInvalidationListener listener : list) {
+            try {
+                listener.invalidate(key, version);
+            } catch (RuntimeException x) {
+                listenerFailureCount.incrementAndGet();
+                logger.warn("Unable to invalidate " + cacheName + " key " + key, x);
+            }
+        }
+    }
+
+    @Override
+    public String getStoreName() {
+        return TABLE_NAME;
+    }
+
+    @Override
+    public int purgeExpiredEntries(int batchSize) {
+        List<Long> ids = jdbcTemplate.queryForList(limitSqlAdapter.getLimitSql(SELECT_EXPIRED_SQL, 0, batchSize), Long.class,
+                        System.currentTimeMillis() - retention);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        List<Object[]> params = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            params.add(new Object[] {id});
+        }
+        jdbcTemplate.batchUpdate(DELETE_SQL, params);
+        return ids.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Invalidations Published")
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Invalidations Received")
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Invalidations Received Out Of Order")
+    public long getLateRowCount() {
+        return lateRowCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Poll Count")
+    public long getPollCount() {
+        return pollCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Poll Failure Count")
+    public long getPollFailureCount() {
+        return pollFailureCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Listener Failure Count")
+    public long getListenerFailureCount() {
+        return listenerFailureCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Pending Gaps")
+    public synchronized int getPendingGapCount() {
+        return gaps.size();
+    }
+
+    private static final RowMapper<Invalidation> ROW_MAPPER = new RowMapper<Invalidation>() {
+        @Override
+        public Invalidation mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new Invalidation(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getString(5));
+        }
+    };
+
+    private static final class Invalidation {
+        private final long id;
+        private final String cacheName;
+        private final String key;
+        private final long version;
+        private final String nodeId;
+
+        private Invalidation(long id, String cacheName, String key, long version, String nodeId) {
+            this.id = id;
+            this.cacheName = cacheName;
+            this.key = key;
+            this.version = version;
+            this.nodeId = nodeId;
+        }
+    }
+}
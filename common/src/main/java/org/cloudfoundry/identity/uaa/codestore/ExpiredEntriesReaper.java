@@ -0,0 +1,194 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes expired entries from {@link ExpiringEntryStore}s on a background timer.
+ * Each store is purged in batches of {@link #setBatchSize(int) batchSize} rows,
+ * so a purge never holds locks on a large range of a table, and at most
+ * {@link #setMaxBatches(int) maxBatches} batches are removed from a store per run.
+ */
+@ManagedResource
+public class ExpiredEntriesReaper implements InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final List<? extends ExpiringEntryStore> stores;
+
+    private long interval = 60 * 1000; // once a minute
+
+    private int batchSize = 500;
+
+    private int maxBatches = 100;
+
+    private Timer timer;
+
+    private final AtomicLong runCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong purgedCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private final AtomicLong totalTime = new AtomicLong();
+
+    private final AtomicLong lastRunTime = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> purgedByStore = new ConcurrentHashMap<>();
+
+    public ExpiredEntriesReaper(List<? extends ExpiringEntryStore> stores) {
+        this.stores = stores;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxBatches(int maxBatches) {
+        this.maxBatches = maxBatches;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (interval > 0 && timer == null) {
+            timer = new Timer("ExpiredEntriesReaper", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    purge();
+                }
+            }, interval, interval);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Purges expired entries from all the stores.
+     *
+     * @return the number of entries removed
+     */
+    @ManagedOperation(description = "Remove expired entries now")
+    public int purge() {
+        long start = System.currentTimeMillis();
+        int total = 0;
+        for (ExpiringEntryStore store : stores) {
+            try {
+                total += purge(store);
+            } catch (Exception x) {
+                failureCount.incrementAndGet();
+                logger.warn("Unable to purge expired entries from " + store.getStoreName(), x);
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        runCount.incrementAndGet();
+        totalTime.addAndGet(time);
+        lastRunTime.set(time);
+        return total;
+    }
+
+    protected int purge(ExpiringEntryStore store) {
+        int total = 0;
+        for (int batch = 0; batch < maxBatches; batch++) {
+            int purged = store.purgeExpiredEntries(batchSize);
+            batchCount.incrementAndGet();
+            total += purged;
+            if (purged < batchSize) {
+                break;
+            }
+        }
+        purgedCount.addAndGet(total);
+        AtomicLong counter = purgedByStore.get(store.getStoreName());
+        if (counter == null) {
+            purgedByStore.putIfAbsent(store.getStoreName(), new AtomicLong());
+            counter = purgedByStore.get(store.getStoreName());
+        }
+        counter.addAndGet(total);
+        logger.debug("Expired entries purged from " + store.getStoreName() + ": " + total);
+        return total;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Purge Run Count")
+    public long getRunCount() {
+        return runCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Purge Batch Count")
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Purged Entry Count")
+    public long getPurgedCount() {
+        return purgedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Purge Failure Count")
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Last Purge Run Time (ms)")
+    public long getLastRunTime() {
+        return lastRunTime.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Total Purge Time (ms)")
+    public long getTotalTime() {
+        return totalTime.get();
+    }
+
+    @ManagedAttribute(description = "Purged entries per store")
+    public Map<String, Long> getPurgedCountByStore() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : purgedByStore.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+/**
+ * A store holding entries that expire. Expired entries are removed by the
+ * {@link ExpiredEntriesReaper}, never on the request path.
+ */
+public interface ExpiringEntryStore {
+
+    /**
+     * @return the name used to report purge metrics for this store
+     */
+    String getStoreName();
+
+    /**
+     * Removes at most <code>batchSize</code> expired entries.
+     *
+     * @return the number of entries removed, fewer than <code>batchSize</code>
+     * once no expired entries are left
+     */
+    int purgeExpiredEntries(int batchSize);
+}
@@ -13,25 +13,78 @@
 package org.cloudfoundry.identity.uaa.codestore;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
-public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
+/**
+ * Keeps expiring codes in memory.
+ * <p>
+ * Codes carrying an <code>email</code> and <code>client_id</code> are indexed by
+ * that pair, so {@link #retrieveLatest(String, String)} does not scan the store.
+ * Every code is also queued in a {@link DelayQueue} that is drained every
+ * {@link #setEvictionInterval(long) evictionInterval} ms, so codes that are never
+ * retrieved are evicted once they expire.
+ */
+@ManagedResource
+public class InMemoryExpiringCodeStore implements ExpiringCodeStore, DisposableBean {
+
+    /**
+     * Rough per code overhead in bytes of the objects holding a code: the map
+     * entries, the index entry, the timestamp and the queued expiry.
+     */
+    static final int ENTRY_OVERHEAD = 256;
+
+    private static final Timer evictionTimer = new Timer("InMemoryExpiringCodeStore.Eviction", true);
+
+    private static final Comparator<ExpiringCode> LATEST_FIRST = new Comparator<ExpiringCode>() {
+        @Override
+        public int compare(ExpiringCode o1, ExpiringCode o2) {
+            int result = o2.getExpiresAt().compareTo(o1.getExpiresAt());
+            return result != 0 ? result : o1.getCode().compareTo(o2.getCode());
+        }
+    };
 
     private RandomValueStringGenerator generator = new RandomValueStringGenerator(6);
 
-    private ConcurrentMap<String, ExpiringCode> store = new ConcurrentHashMap<String, ExpiringCode>();
+    private final ConcurrentMap<String, StoredCode> store = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, NavigableSet<ExpiringCode>> latestIndex = new ConcurrentHashMap<>();
+
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+
+    private final AtomicLong memoryUse = new AtomicLong();
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private long evictionInterval = 1000;
+
+    private TimerTask evictionTask;
+
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+        if (evictionTask != null) {
+            evictionTask.cancel();
+            evictionTask = null;
+        }
+    }
 
     @Override
     public ExpiringCode generateCode(String data, Timestamp expiresAt) {
@@ -46,11 +99,22 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
         String code = generator.generate();
 
         ExpiringCode expiringCode = new ExpiringCode(code, expiresAt, data);
+        StoredCode stored = new StoredCode(expiringCode, getIndexKey(data));
 
-        ExpiringCode duplicate = store.putIfAbsent(code, expiringCode);
+        StoredCode duplicate = store.putIfAbsent(code, stored);
         if (duplicate != null) {
             throw new DataIntegrityViolationException("Duplicate code: " + code);
         }
+        memoryUse.addAndGet(stored.size);
+        if (stored.indexKey != null) {
+            latestIndex.compute(stored.indexKey, (key, codes) -> {
+                NavigableSet<ExpiringCode> result = codes == null ? new ConcurrentSkipListSet<>(LATEST_FIRST) : codes;
+                result.add(expiringCode);
+                return result;
+            });
+        }
+        expiries.offer(new Expiry(code, expiresAt.getTime()));
+        startEviction();
 
         return expiringCode;
     }
@@ -61,7 +125,7 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
             throw new NullPointerException();
         }
 
-        ExpiringCode expiringCode = store.remove(code);
+        ExpiringCode expiringCode = remove(code);
 
         if (expiringCode == null || expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
             expiringCode = null;
@@ -75,22 +139,147 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
         this.generator = generator;
     }
 
+    /**
+     * Retrieves and removes the code for the email and client that expires last,
+     * the same way {@link JdbcExpiringCodeStore#retrieveLatest(String, String)} does.
+     */
     @Override
     public ExpiringCode retrieveLatest(String email, String clientId) {
-        List<ExpiringCode> expiringCodes = new ArrayList<>(store.values());
-        Collections.sort(expiringCodes, new Comparator<ExpiringCode>() {
-            @Override
-            public int compare(ExpiringCode o1, ExpiringCode o2) {
-                return o1.getExpiresAt().compareTo(o2.getExpiresAt());
+        NavigableSet<ExpiringCode> codes = latestIndex.get(getIndexKey(email, clientId));
+        if (codes != null) {
+            for (ExpiringCode latest : codes) {
+                //the code may have been retrieved by another thread
+                ExpiringCode removed = remove(latest.getCode());
+                if (removed != null) {
+                    return removed.isExpired() ? null : removed;
+                }
+                codes.remove(latest);
             }
-        }.reversed());
+        }
+        return null;
+    }
+
+    protected ExpiringCode remove(String code) {
+        StoredCode stored = store.remove(code);
+        if (stored == null) {
+            return null;
+        }
+        memoryUse.addAndGet(-stored.size);
+        if (stored.indexKey != null) {
+            latestIndex.computeIfPresent(stored.indexKey, (key, codes) -> {
+                codes.remove(stored.code);
+                return codes.isEmpty() ? null : codes;
+            });
+        }
+        return stored.code;
+    }
 
-        for (ExpiringCode code : expiringCodes) {
-            Map data = JsonUtils.readValue(code.getData(), Map.class);
-            if (data.get("email").equals(email) && data.get("client_id").equals(clientId)) {
-                return code;
+    /**
+     * Removes the codes that have expired.
+     *
+     * @return the number of codes removed
+     */
+    public int evictExpiredCodes() {
+        int count = 0;
+        Expiry expiry;
+        while ((expiry = expiries.poll()) != null) {
+            StoredCode stored = store.get(expiry.code);
+            //the code may have been retrieved, and the same code generated again
+            if (stored != null && stored.code.getExpiresAt().getTime() == expiry.expiresAt && remove(expiry.code) != null) {
+                count++;
             }
         }
-        return null;
+        evictedCount.addAndGet(count);
+        return count;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Code Count")
+    public int getCodeCount() {
+        return store.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Estimated Memory Use (bytes)")
+    public long getMemoryUse() {
+        return memoryUse.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Evicted Code Count")
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (this) {
+            if (evictionTask != null) {
+                evictionTask.cancel();
+                evictionTask = null;
+            }
+        }
+    }
+
+    protected void startEviction() {
+        if (evictionTask == null && evictionInterval > 0) {
+            synchronized (this) {
+                if (evictionTask == null) {
+                    evictionTask = new TimerTask() {
+                        @Override
+                        public void run() {
+                            evictExpiredCodes();
+                        }
+                    };
+                    evictionTimer.schedule(evictionTask, evictionInterval, evictionInterval);
+                }
+            }
+        }
+    }
+
+    protected String getIndexKey(String data) {
+        Map<String, Object> map;
+        try {
+            map = JsonUtils.readValue(data, Map.class);
+        } catch (JsonUtils.JsonUtilException x) {
+            return null;
+        }
+        if (map == null || !(map.get("email") instanceof String) || !(map.get("client_id") instanceof String)) {
+            return null;
+        }
+        return getIndexKey((String) map.get("email"), (String) map.get("client_id"));
+    }
+
+    protected String getIndexKey(String email, String clientId) {
+        return email + "|" + clientId;
+    }
+
+    private static class StoredCode {
+        private final ExpiringCode code;
+        private final String indexKey;
+        private final long size;
+
+        private StoredCode(ExpiringCode code, String indexKey) {
+            this.code = code;
+            this.indexKey = indexKey;
+            this.size = ENTRY_OVERHEAD + 2L * (code.getCode().length() + code.getData().length() + (indexKey == null ? 0 : indexKey.length()));
+        }
+    }
+
+    private static class Expiry implements Delayed {
+        private final String code;
+        private final long expiresAt;
+
+        private Expiry(String code, long expiresAt) {
+            this.code = code;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(expiresAt, ((Expiry) o).expiresAt);
+        }
     }
 }
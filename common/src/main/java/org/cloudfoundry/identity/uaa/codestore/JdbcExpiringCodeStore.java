@@ -15,29 +15,33 @@ package org.cloudfoundry.identity.uaa.codestore;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.jdbc.DefaultLimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.rest.jdbc.LimitSqlAdapter;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
-public class JdbcExpiringCodeStore implements ExpiringCodeStore {
+public class JdbcExpiringCodeStore implements ExpiringCodeStore, ExpiringEntryStore {
 
     public static final String tableName = "expiring_code_store";
     public static final String fields = "code, expiresat, data";
 
     public static final String insert = "insert into " + tableName + " (" + fields + ") values (?,?,?)";
     public static final String delete = "delete from " + tableName + " where code = ?";
-    public static final String deleteExpired = "delete from " + tableName + " where expiresat < ?";
+    public static final String deleteExpired = "delete from " + tableName + " where code = ? and expiresat < ?";
+    public static final String selectExpired = "select code from " + tableName + " where expiresat < ?";
     public static final String select = "select " + fields + " from " + tableName + " where code = ?";
     public static final String SELECT_BY_EMAIL_AND_CLIENT_ID = "select " + fields + " from " + tableName +
-            " where data like '%%\"email\":\"%s\"%%' and data like '%%\"client_id\":\"%s\"%%' ORDER BY expiresat DESC LIMIT 1";
+            " where data like ? and data like ? ORDER BY expiresat DESC LIMIT 1";
 
     private Log logger = LogFactory.getLog(getClass());
 
@@ -45,15 +49,10 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     private JdbcTemplate jdbcTemplate;
 
-    private AtomicLong lastExpired = new AtomicLong();
-    private long expirationInterval = 60 * 1000; // once a minute
+    private LimitSqlAdapter limitSqlAdapter = new DefaultLimitSqlAdapter();
 
-    public long getExpirationInterval() {
-        return expirationInterval;
-    }
-
-    public void setExpirationInterval(long expirationInterval) {
-        this.expirationInterval = expirationInterval;
+    public void setLimitSqlAdapter(LimitSqlAdapter limitSqlAdapter) {
+        this.limitSqlAdapter = limitSqlAdapter;
     }
 
     protected JdbcExpiringCodeStore() {
@@ -70,8 +69,6 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     @Override
     public ExpiringCode generateCode(String data, Timestamp expiresAt) {
-        cleanExpiredEntries();
-
         if (data == null || expiresAt == null) {
             throw new NullPointerException();
         }
@@ -104,8 +101,6 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     @Override
     public ExpiringCode retrieveCode(String code) {
-        cleanExpiredEntries();
-
         if (code == null) {
             throw new NullPointerException();
         }
@@ -134,10 +129,9 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     @Override
     public ExpiringCode retrieveLatest(String email, String clientId) {
-        cleanExpiredEntries();
         try {
-            String query = String.format(SELECT_BY_EMAIL_AND_CLIENT_ID, email, clientId);
-            ExpiringCode expiringCode = jdbcTemplate.queryForObject(query, new JdbcExpiringCodeMapper());
+            ExpiringCode expiringCode = jdbcTemplate.queryForObject(SELECT_BY_EMAIL_AND_CLIENT_ID, new JdbcExpiringCodeMapper(),
+                "%\"email\":\"" + email + "\"%", "%\"client_id\":\"" + clientId + "\"%");
             try {
                 if (expiringCode != null) {
                     jdbcTemplate.update(delete, expiringCode.getCode());
@@ -153,17 +147,24 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         }
     }
 
-    public int cleanExpiredEntries() {
-        long now = System.currentTimeMillis();
-        long lastCheck = lastExpired.get();
+    @Override
+    public String getStoreName() {
+        return tableName;
+    }
 
-        if ((now - lastCheck) > expirationInterval && lastExpired.compareAndSet(lastCheck, now)) {
-            int count = jdbcTemplate.update(deleteExpired, now);
-            logger.debug("Expiring code sweeper complete, deleted " + count + " entries.");
-            return count;
+    @Override
+    public int purgeExpiredEntries(int batchSize) {
+        long now = System.currentTimeMillis();
+        List<String> codes = jdbcTemplate.queryForList(limitSqlAdapter.getLimitSql(selectExpired, 0, batchSize), String.class, now);
+        if (codes.isEmpty()) {
+            return 0;
         }
-
-        return 0;
+        List<Object[]> params = new ArrayList<>(codes.size());
+        for (String code : codes) {
+            params.add(new Object[] {code, now});
+        }
+        jdbcTemplate.batchUpdate(deleteExpired, params);
+        return codes.size();
     }
 
     protected static class JdbcExpiringCodeMapper implements RowMapper<ExpiringCode> {
@@ -0,0 +1,409 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpSession;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether a connection requested from the {@link TimingDataSource} is
+ * taken from a read replica instead of the primary database.
+ * <p>
+ * Only lookups run through {@link #readOnly(Supplier)} go to the replica, and
+ * only when all of these hold:
+ * <ul>
+ * <li>a replica is configured and {@link #setEnabled(boolean) enabled}</li>
+ * <li>the replica lags the primary by at most
+ * {@link #setMaxReplicaLag(long) maxReplicaLag} milliseconds, as measured by
+ * a heartbeat row written to the primary every
+ * {@link #setHeartbeatInterval(long) heartbeatInterval} milliseconds and read
+ * back from the replica</li>
+ * <li>the current HTTP session, or the current thread outside of a session,
+ * has not written to the primary in the last
+ * {@link #setReadYourWritesWindow(long) readYourWritesWindow} milliseconds</li>
+ * </ul>
+ * Everything else, including every operation within a transaction, uses the
+ * primary. As read-your-writes only holds within a session, lookups that
+ * authentication decisions depend on, like users, clients and group
+ * memberships, are not marked read-only.
+ */
+@ManagedResource
+public class ReplicaRouter implements InitializingBean, DisposableBean {
+
+    public static final String HEARTBEAT_TABLE = "replica_heartbeat";
+
+    static final String WRITE_HEARTBEAT_SQL = "update " + HEARTBEAT_TABLE + " set beat=? where id=1";
+
+    static final String READ_HEARTBEAT_SQL = "select beat from " + HEARTBEAT_TABLE + " where id=1";
+
+    private static final ThreadLocal<Boolean> readOnly = new ThreadLocal<>();
+
+    private final ThreadLocal<Long> lastThreadWrite = new ThreadLocal<>();
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private DataSource primary;
+
+    private DataSource replica;
+
+    private boolean enabled = false;
+
+    private long heartbeatInterval = 1000;
+
+    private long maxReplicaLag = 3000;
+
+    private long readYourWritesWindow = 5000;
+
+    private int maxSessions = 10000;
+
+    /**
+     * The time of the last write of each session, the least recent first.
+     */
+    private final Map<String, Long> lastSessionWrite = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxSessions;
+        }
+    };
+
+    private volatile long replicaLag = -1;
+
+    private volatile boolean replicaHealthy = false;
+
+    private Timer timer;
+
+    private volatile boolean initialized = false;
+
+    private final AtomicLong replicaConnectionCount = new AtomicLong();
+
+    private final AtomicLong laggingFallbackCount = new AtomicLong();
+
+    private final AtomicLong readYourWritesFallbackCount = new AtomicLong();
+
+    private final AtomicLong heartbeatFailureCount = new AtomicLong();
+
+    /**
+     * Runs the lookup with connections from the replica when it is usable.
+     * Calls can be nested, and the lookup still joins a transaction that is
+     * already active.
+     */
+    public static <T> T readOnly(Supplier<T> lookup) {
+        Boolean previous = readOnly.get();
+        readOnly.set(Boolean.TRUE);
+        try {
+            return lookup.get();
+        } finally {
+            if (previous == null) {
+                readOnly.remove();
+            } else {
+                readOnly.set(previous);
+            }
+        }
+    }
+
+    public static boolean isReadOnly() {
+        return Boolean.TRUE.equals(readOnly.get());
+    }
+
+    /**
+     * @param primary the database written to, usually the
+     *            {@link TimingDataSource} this router is set on
+     */
+    public void setPrimary(DataSource primary) {
+        this.primary = primary;
+        if (initialized) {
+            startHeartbeat();
+        }
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public void setReplica(DataSource replica) {
+        this.replica = replica;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled && primary != null && replica != null;
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public void setMaxReplicaLag(long maxReplicaLag) {
+        this.maxReplicaLag = maxReplicaLag;
+    }
+
+    public void setReadYourWritesWindow(long readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        initialized = true;
+        startHeartbeat();
+    }
+
+    /**
+     * Starts the heartbeat once the router is configured and knows its
+     * primary, which may be set after the router is initialized.
+     */
+    private synchronized void startHeartbeat() {
+        if (isEnabled() && heartbeatInterval > 0 && timer == null) {
+            timer = new Timer("ReplicaRouter", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkReplica();
+                }
+            }, heartbeatInterval, heartbeatInterval);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Writes a heartbeat to the primary and reads it back from the replica.
+     * The replica is used while the heartbeat it returns is at most
+     * maxReplicaLag milliseconds old.
+     */
+    public void checkReplica() {
+        long now = System.currentTimeMillis();
+        try {
+            new JdbcTemplate(primary).update(WRITE_HEARTBEAT_SQL, now);
+            Long beat = new JdbcTemplate(replica).queryForObject(READ_HEARTBEAT_SQL, Long.class);
+            replicaLag = beat == null ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - beat);
+        } catch (Exception x) {
+            heartbeatFailureCount.incrementAndGet();
+            replicaLag = -1;
+            logger.debug("Unable to read the replica heartbeat", x);
+        }
+        boolean healthy = replicaLag >= 0 && replicaLag <= maxReplicaLag;
+        if (healthy != replicaHealthy) {
+            logger.info(healthy ? "Read replica is in sync, lookups use the replica"
+                            : "Read replica lags by " + replicaLag + "ms, lookups use the primary");
+        }
+        replicaHealthy = healthy;
+    }
+
+    /**
+     * @return true if the connection for the current operation should come
+     *         from the replica
+     */
+    public boolean useReplica() {
+        if (!isReadOnly() || !isEnabled() || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return false;
+        }
+        if (!replicaHealthy) {
+            laggingFallbackCount.incrementAndGet();
+            return false;
+        }
+        if (hasRecentWrite()) {
+            readYourWritesFallbackCount.incrementAndGet();
+            return false;
+        }
+        replicaConnectionCount.incrementAndGet();
+        return true;
+    }
+
+    protected boolean hasRecentWrite() {
+        long since = System.currentTimeMillis() - readYourWritesWindow;
+        Long threadWrite = lastThreadWrite.get();
+        if (threadWrite != null && threadWrite > since) {
+            return true;
+        }
+        String session = getSessionId();
+        if (session != null) {
+            synchronized (lastSessionWrite) {
+                Long sessionWrite = lastSessionWrite.get(session);
+                if (sessionWrite != null) {
+                    if (sessionWrite > since) {
+                        return true;
+                    }
+                    lastSessionWrite.remove(session);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the read-your-writes window of the current session and thread.
+     * Beyond maxSessions, the sessions that wrote least recently are
+     * forgotten.
+     */
+    public void recordWrite() {
+        long now = System.currentTimeMillis();
+        lastThreadWrite.set(now);
+        String session = getSessionId();
+        if (session != null) {
+            synchronized (lastSessionWrite) {
+                // moves the session to the end of the map
+                lastSessionWrite.remove(session);
+                lastSessionWrite.put(session, now);
+            }
+        }
+    }
+
+    private static String getSessionId() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes instanceof ServletRequestAttributes) {
+            HttpSession session = ((ServletRequestAttributes) attributes).getRequest().getSession(false);
+            return session == null ? null : session.getId();
+        }
+        return null;
+    }
+
+    /**
+     * Wraps a primary connection so that statements other than queries start
+     * the read-your-writes window.
+     */
+    public Connection trackWrites(Connection connection) {
+        if (!isEnabled()) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(ReplicaRouter.class.getClassLoader(),
+                        new Class<?>[] {Connection.class}, new WriteTrackingHandler(connection, this));
+    }
+
+    static boolean isWrite(String sql) {
+        if (sql == null) {
+            return false;
+        }
+        String trimmed = sql.trim();
+        return !(trimmed.regionMatches(true, 0, "select", 0, 6) || trimmed.regionMatches(true, 0, "with", 0, 4));
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Replica Connections")
+    public long getReplicaConnectionCount() {
+        return replicaConnectionCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Lookups On Primary Due To Replica Lag")
+    public long getLaggingFallbackCount() {
+        return laggingFallbackCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Lookups On Primary After A Write")
+    public long getReadYourWritesFallbackCount() {
+        return readYourWritesFallbackCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Heartbeat Failures")
+    public long getHeartbeatFailureCount() {
+        return heartbeatFailureCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Replica Lag (ms)")
+    public long getReplicaLag() {
+        return replicaLag;
+    }
+
+    @ManagedAttribute(description = "Whether lookups currently use the replica")
+    public boolean isReplicaHealthy() {
+        return replicaHealthy;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    private static class WriteTrackingHandler implements InvocationHandler {
+        private final Object target;
+        private final ReplicaRouter router;
+
+        private WriteTrackingHandler(Object target, ReplicaRouter router) {
+            this.target = target;
+            this.router = router;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if (("prepareStatement".equals(name) || "prepareCall".equals(name) || name.startsWith("execute") || "addBatch".equals(name))
+                            && args != null && args.length > 0 && args[0] instanceof String && isWrite((String) args[0])) {
+                router.recordWrite();
+            }
+            Object result = ReplicaRouter.invoke(target, method, args);
+            if (result instanceof Statement && "createStatement".equals(name)) {
+                return Proxy.newProxyInstance(ReplicaRouter.class.getClassLoader(),
+                                new Class<?>[] {Statement.class}, new WriteTrackingHandler(result, router));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return a connection to the replica
+     */
+    public Connection getReplicaConnection() throws SQLException {
+        return replica.getConnection();
+    }
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.metrics.Histogram;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+/**
+ * Per SQL statement call counts, latencies and row counts, and the time spent
+ * waiting for a pooled connection, as recorded by a {@link TimingDataSource}.
+ * <p>
+ * Statements are recorded {@link #normalize(String) normalized}, so that
+ * neither the statistics nor the log hold the values in their literals. Statements that take longer than the
+ * {@link #setSlowQueryThreshold(long) slowQueryThreshold} are logged to the
+ * <code>UAA.SlowQuery</code> log with the types of their bind parameters, never
+ * their values. The number of distinct statements tracked is bounded, further
+ * statements are counted together as {@link #OTHER}.
+ */
+@ManagedResource
+public class StatementStatistics {
+
+    public static final String OTHER = "other";
+
+    private final Log slowQueryLogger = LogFactory.getLog("UAA.SlowQuery");
+
+    private final ConcurrentMap<String, Stats> statements = new ConcurrentHashMap<>();
+
+    private final Histogram poolWait = new Histogram();
+
+    private final LongAdder slowQueryCount = new LongAdder();
+
+    private long slowQueryThreshold = 1000;
+
+    private int maxStatements = 500;
+
+    /**
+     * @param slowQueryThreshold the time in milliseconds above which a statement
+     *            is logged, or a negative value to log nothing
+     */
+    public void setSlowQueryThreshold(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    public void setMaxStatements(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    public void recordPoolWait(long elapsedNanos) {
+        poolWait.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    /**
+     * @param sql the statement, as returned by {@link #normalize(String)}
+     */
+    public void recordExecution(String sql, long elapsedNanos, boolean success, List<String> bindTypes) {
+        Stats stats = getStats(sql);
+        stats.latency.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        if (!success) {
+            stats.errors.increment();
+        }
+        if (slowQueryThreshold >= 0 && elapsedNanos > TimeUnit.MILLISECONDS.toNanos(slowQueryThreshold)) {
+            slowQueryCount.increment();
+            if (slowQueryLogger.isWarnEnabled()) {
+                slowQueryLogger.warn("Slow statement (" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms" +
+                                (success ? "" : ", failed") + "): " + sql + " binds=" + bindTypes);
+            }
+        }
+    }
+
+    /**
+     * @param sql the statement, as returned by {@link #normalize(String)}
+     */
+    public void recordRows(String sql, long rows) {
+        if (rows > 0) {
+            getStats(sql).rows.add(rows);
+        }
+    }
+
+    /**
+     * Replaces string and number literals by <code>?</code> and a list of
+     * placeholders, like the values of an <code>in</code> clause, by a single
+     * one. Quoted identifiers are kept.
+     */
+    static String normalize(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        int length = sql.length();
+        StringBuilder result = new StringBuilder(length);
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i = skipStringLiteral(sql, i);
+                appendPlaceholder(result);
+            } else if (c == '"' || c == '`') {
+                int end = sql.indexOf(c, i + 1);
+                end = end < 0 ? length : end + 1;
+                result.append(sql, i, end);
+                i = end;
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                appendPlaceholder(result);
+            } else if (c == '?') {
+                i++;
+                appendPlaceholder(result);
+            } else {
+                result.append(c);
+                i++;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the index after the string literal starting at start, in which
+     *         a quote is escaped by doubling it
+     */
+    private static int skipStringLiteral(String sql, int start) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == '\'') {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    /**
+     * Appends a placeholder unless it would follow another one in a list.
+     */
+    private static void appendPlaceholder(StringBuilder result) {
+        int i = result.length() - 1;
+        while (i >= 0 && Character.isWhitespace(result.charAt(i))) {
+            i--;
+        }
+        if (i >= 0 && result.charAt(i) == ',') {
+            int comma = i--;
+            while (i >= 0 && Character.isWhitespace(result.charAt(i))) {
+                i--;
+            }
+            if (i >= 0 && result.charAt(i) == '?') {
+                result.setLength(i + 1);
+                return;
+            }
+            i = comma;
+        }
+        result.append('?');
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Pool Wait 99th Percentile (ms)")
+    public double getPoolWait99thPercentile() {
+        return poolWait.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Pool Wait Mean (ms)")
+    public double getPoolWaitMean() {
+        return poolWait.getMean() / 1000.0;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Connections Borrowed")
+    public long getConnectionCount() {
+        return poolWait.getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Slow Statements")
+    public long getSlowQueryCount() {
+        return slowQueryCount.sum();
+    }
+
+    /**
+     * @return the statistics of every statement, the statements taking the most
+     *         time in total first
+     */
+    @ManagedAttribute(description = "Calls, errors, rows and latency of every SQL statement")
+    public Map<String, Map<String, Object>> getStatements() {
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(statements.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+            @Override
+            public int compare(Map.Entry<String, Stats> o1, Map.Entry<String, Stats> o2) {
+                return Double.compare(o2.getValue().getTotalTime(), o1.getValue().getTotalTime());
+            }
+        });
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Stats> entry : entries) {
+            result.put(entry.getKey(), entry.getValue().getSummary());
+        }
+        return result;
+    }
+
+    @ManagedOperation(description = "Clears the statement statistics")
+    public void reset() {
+        statements.clear();
+    }
+
+    private Stats getStats(String sql) {
+        String key = sql == null ? OTHER : sql;
+        Stats stats = statements.get(key);
+        if (stats == null) {
+            if (statements.size() >= maxStatements) {
+                key = OTHER;
+            }
+            stats = statements.computeIfAbsent(key, k -> new Stats());
+        }
+        return stats;
+    }
+
+    private static class Stats {
+        private final Histogram latency = new Histogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+
+        private double getTotalTime() {
+            return latency.getMean() * latency.getCount();
+        }
+
+        private Map<String, Object> getSummary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", latency.getCount());
+            summary.put("errors", errors.sum());
+            summary.put("rows", rows.sum());
+            summary.put("total_ms", getTotalTime() / 1000.0);
+            summary.put("mean_ms", latency.getMean() / 1000.0);
+            summary.put("p99_ms", latency.getValueAtPercentile(99) / 1000.0);
+            summary.put("max_ms", latency.getMax() / 1000.0);
+            return summary;
+        }
+    }
+}
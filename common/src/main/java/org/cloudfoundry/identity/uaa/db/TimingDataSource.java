@@ -0,0 +1,248 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Tomcat connection pool, optionally recording the time spent waiting for a
+ * connection and the latency and row count of every statement in a
+ * {@link StatementStatistics}.
+ * <p>
+ * When {@link #setStatementTiming(boolean) statementTiming} is on, connections
+ * are handed out wrapped in a proxy that times the <code>execute</code> methods
+ * of the statements it creates. Otherwise the pool is used as is.
+ * <p>
+ * With a {@link #setReplicaRouter(ReplicaRouter) replicaRouter}, read-only
+ * lookups may be given a connection to a read replica instead, see
+ * {@link ReplicaRouter}.
+ */
+public class TimingDataSource extends org.apache.tomcat.jdbc.pool.DataSource {
+
+    private StatementStatistics statementStatistics;
+
+    private boolean statementTiming = false;
+
+    private ReplicaRouter replicaRouter;
+
+    public void setStatementStatistics(StatementStatistics statementStatistics) {
+        this.statementStatistics = statementStatistics;
+    }
+
+    public void setStatementTiming(boolean statementTiming) {
+        this.statementTiming = statementTiming;
+    }
+
+    public boolean isStatementTiming() {
+        return statementTiming && statementStatistics != null;
+    }
+
+    public void setReplicaRouter(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+        if (replicaRouter != null && replicaRouter.getPrimary() == null) {
+            replicaRouter.setPrimary(this);
+        }
+    }
+
+    public ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return borrow(() -> super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return borrow(() -> super.getConnection(username, password));
+    }
+
+    /**
+     * Takes a connection from the replica or the primary, tracking writes on
+     * the latter, and records the time it took.
+     */
+    private Connection borrow(PrimaryConnection primary) throws SQLException {
+        boolean useReplica = replicaRouter != null && replicaRouter.useReplica();
+        if (!isStatementTiming()) {
+            return useReplica ? replicaRouter.getReplicaConnection() : trackWrites(primary.get());
+        }
+        long start = System.nanoTime();
+        Connection connection = useReplica ? replicaRouter.getReplicaConnection() : trackWrites(primary.get());
+        statementStatistics.recordPoolWait(System.nanoTime() - start);
+        return wrap(connection, statementStatistics);
+    }
+
+    private Connection trackWrites(Connection connection) {
+        return replicaRouter == null ? connection : replicaRouter.trackWrites(connection);
+    }
+
+    private interface PrimaryConnection {
+        Connection get() throws SQLException;
+    }
+
+    static Connection wrap(Connection connection, StatementStatistics statistics) {
+        return (Connection) Proxy.newProxyInstance(TimingDataSource.class.getClassLoader(),
+                        new Class<?>[] {Connection.class}, new ConnectionHandler(connection, statistics));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+        private final StatementStatistics statistics;
+
+        private ConnectionHandler(Connection target, StatementStatistics statistics) {
+            this.target = target;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            Object result = TimingDataSource.invoke(target, method, args);
+            if (result instanceof Statement && method.getReturnType().isInterface()) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                return Proxy.newProxyInstance(TimingDataSource.class.getClassLoader(),
+                                new Class<?>[] {method.getReturnType()}, new StatementHandler((Statement) result, sql, statistics));
+            }
+            return result;
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final StatementStatistics statistics;
+        private final Map<Integer, String> bindTypes = new TreeMap<>();
+        private String sql;
+
+        private StatementHandler(Statement target, String sql, StatementStatistics statistics) {
+            this.target = target;
+            this.sql = StatementStatistics.normalize(sql);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                // only the type of a bind parameter is kept, never its value
+                bindTypes.put((Integer) args[0], "setNull".equals(name) || args[1] == null ? "null" : args[1].getClass().getSimpleName());
+            } else if ("clearParameters".equals(name)) {
+                bindTypes.clear();
+            } else if ("addBatch".equals(name) && sql == null && args != null && args.length == 1) {
+                sql = StatementStatistics.normalize((String) args[0]);
+            }
+            if (!name.startsWith("execute")) {
+                Object result = TimingDataSource.invoke(target, method, args);
+                if (result instanceof ResultSet && "getResultSet".equals(name)) {
+                    return wrapResultSet((ResultSet) result, sql);
+                }
+                return result;
+            }
+            String executed = args != null && args.length > 0 && args[0] instanceof String ? StatementStatistics.normalize((String) args[0]) : sql;
+            long start = System.nanoTime();
+            boolean success = false;
+            Object result;
+            try {
+                result = TimingDataSource.invoke(target, method, args);
+                success = true;
+            } finally {
+                statistics.recordExecution(executed, System.nanoTime() - start, success, new ArrayList<>(bindTypes.values()));
+            }
+            if (result instanceof ResultSet) {
+                return wrapResultSet((ResultSet) result, executed);
+            } else if (result instanceof Number) {
+                statistics.recordRows(executed, ((Number) result).longValue());
+            } else if (result instanceof int[]) {
+                long rows = 0;
+                for (int count : (int[]) result) {
+                    rows += Math.max(0, count);
+                }
+                statistics.recordRows(executed, rows);
+            }
+            return result;
+        }
+
+        private ResultSet wrapResultSet(ResultSet resultSet, String sql) {
+            return (ResultSet) Proxy.newProxyInstance(TimingDataSource.class.getClassLoader(),
+                            new Class<?>[] {ResultSet.class}, new ResultSetHandler(resultSet, sql, statistics));
+        }
+    }
+
+    /**
+     * Counts the rows read from a result set and records them when it is
+     * closed.
+     */
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet target;
+        private final String sql;
+        private final StatementStatistics statistics;
+        private long rows;
+        private boolean closed;
+
+        private ResultSetHandler(ResultSet target, String sql, StatementStatistics statistics) {
+            this.target = target;
+            this.sql = sql;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("close".equals(name) && !closed) {
+                closed = true;
+                statistics.recordRows(sql, rows);
+            }
+            Object result = TimingDataSource.invoke(target, method, args);
+            if ("next".equals(name) && Boolean.TRUE.equals(result)) {
+                rows++;
+            }
+            return result;
+        }
+    }
+}
@@ -17,6 +17,9 @@ package org.cloudfoundry.identity.uaa.ldap.extension;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.core.LdapTemplate;
@@ -27,10 +30,18 @@ import org.springframework.util.Assert;
 
 import javax.naming.directory.SearchControls;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -87,9 +98,13 @@ import java.util.Set;
  * <p>
  * The single-level search is performed by default. Setting the <tt>searchSubTree</tt> property to true will enable
  * a search of the entire subtree under <tt>groupSearchBase</tt>.
+ * <p>
+ * The group membership roles of a user DN can be cached for a short time by setting
+ * <tt>authoritiesCacheSeconds</tt>. Search and cache statistics are exposed as managed metrics.
  *
  * @author Luke Taylor
  */
+@ManagedResource
 public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator {
     //~ Static fields/initializers =====================================================================================
 
@@ -136,6 +151,25 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
      */
     private boolean convertToUpperCase = true;
 
+    /**
+     * Group membership roles per lower cased user DN
+     */
+    private final ConcurrentMap<String, CachedValue<Set<GrantedAuthority>>> authoritiesCache = new ConcurrentHashMap<>();
+
+    private long authoritiesCacheMillis = 0;
+
+    private int maxCacheEntries = 1000;
+
+    private final AtomicInteger searchCount = new AtomicInteger();
+
+    private final AtomicLong searchTime = new AtomicLong();
+
+    private final AtomicLong maxSearchTime = new AtomicLong();
+
+    private final AtomicInteger cacheHits = new AtomicInteger();
+
+    private final AtomicInteger cacheMisses = new AtomicInteger();
+
     //~ Constructors ===================================================================================================
 
     /**
@@ -188,7 +222,7 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
             logger.debug("Getting authorities for user " + userDn);
         }
 
-        Set<GrantedAuthority> roles = getGroupMembershipRoles(userDn, username);
+        Set<GrantedAuthority> roles = getCachedGroupMembershipRoles(userDn, username);
 
         Set<GrantedAuthority> extraRoles = getAdditionalRoles(user, username);
 
@@ -206,6 +240,57 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
         return result;
     }
 
+    private Set<GrantedAuthority> getCachedGroupMembershipRoles(String userDn, String username) {
+        if (authoritiesCacheMillis <= 0) {
+            return getGroupMembershipRoles(userDn, username);
+        }
+        String key = userDn.toLowerCase();
+        CachedValue<Set<GrantedAuthority>> cached = authoritiesCache.get(key);
+        if (cached != null && !cached.isExpired(authoritiesCacheMillis)) {
+            cacheHits.incrementAndGet();
+            return new HashSet<GrantedAuthority>(cached.getValue());
+        }
+        cacheMisses.incrementAndGet();
+        Set<GrantedAuthority> roles = getGroupMembershipRoles(userDn, username);
+        putInCache(authoritiesCache, key, new CachedValue<Set<GrantedAuthority>>(Collections.unmodifiableSet(new HashSet<GrantedAuthority>(roles))));
+        return roles;
+    }
+
+    /**
+     * Adds an entry to one of the caches of this populator, clearing the cache first if it is full.
+     */
+    protected <T> void putInCache(ConcurrentMap<String, T> cache, String key, T value) {
+        if (cache.size() >= maxCacheEntries) {
+            //this should not happen if properly tuned.
+            cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * Searches the group search base with the group search filter, recording the time the search took.
+     *
+     * @param dn the DN that replaces {0} in the filter
+     * @param name the name that replaces {1} in the filter
+     * @param attributeNames the attributes to return
+     * @return the attribute values of each matching entry, including the DN of the entry
+     */
+    protected Set<Map<String, String[]>> searchForGroups(String dn, String name, String[] attributeNames) {
+        long start = System.nanoTime();
+        try {
+            return getLdapTemplate().searchForMultipleAttributeValues(getGroupSearchBase(), getGroupSearchFilter(),
+                new String[]{dn, name}, attributeNames);
+        } finally {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            searchCount.incrementAndGet();
+            searchTime.addAndGet(elapsed);
+            long max = maxSearchTime.get();
+            while (elapsed > max && !maxSearchTime.compareAndSet(max, elapsed)) {
+                max = maxSearchTime.get();
+            }
+        }
+    }
+
     public Set<GrantedAuthority> getGroupMembershipRoles(String userDn, String username) {
         if (getGroupSearchBase() == null) {
             return new HashSet<GrantedAuthority>();
@@ -218,8 +303,13 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
                     + groupSearchFilter + " in search base '" + getGroupSearchBase() + "'");
         }
 
-        Set<String> userRoles = getLdapTemplate().searchForSingleAttributeValues(getGroupSearchBase(), groupSearchFilter,
-            new String[]{userDn, username}, groupRoleAttribute);
+        Set<String> userRoles = new HashSet<String>();
+        for (Map<String, String[]> record : searchForGroups(userDn, username, new String[]{groupRoleAttribute})) {
+            String[] values = record.get(groupRoleAttribute);
+            if (values != null) {
+                userRoles.addAll(Arrays.asList(values));
+            }
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("Roles from search: " + userRoles);
@@ -237,6 +327,58 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
         return authorities;
     }
 
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Group Search Count")
+    public int getSearchCount() {
+        return searchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Group Search Total Time (ms)")
+    public long getSearchTime() {
+        return searchTime.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Group Search Average Time (ms)")
+    public long getAverageSearchTime() {
+        int count = searchCount.get();
+        return count == 0 ? 0 : searchTime.get() / count;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Group Search Maximum Time (ms)")
+    public long getMaxSearchTime() {
+        return maxSearchTime.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Authorities Cache Hit Count")
+    public int getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Authorities Cache Miss Count")
+    public int getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * How long the group membership roles of a user, and the parents of a nested group, are
+     * reused before the directory is searched again. Zero, the default, disables caching.
+     *
+     * @param authoritiesCacheSeconds the time to live of cached search results
+     */
+    public void setAuthoritiesCacheSeconds(int authoritiesCacheSeconds) {
+        this.authoritiesCacheMillis = authoritiesCacheSeconds * 1000l;
+    }
+
+    protected long getAuthoritiesCacheMillis() {
+        return authoritiesCacheMillis;
+    }
+
+    /**
+     * @param maxCacheEntries the maximum number of user DNs (and groups) that are cached (default 1000)
+     */
+    public void setMaxCacheEntries(int maxCacheEntries) {
+        this.maxCacheEntries = maxCacheEntries;
+    }
+
     protected ContextSource getContextSource() {
         return getLdapTemplate().getContextSource();
     }
@@ -334,5 +476,22 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
         return convertToUpperCase;
     }
 
+    protected static class CachedValue<T> {
+        private final T value;
+        private final long created = System.currentTimeMillis();
+
+        public CachedValue(T value) {
+            this.value = value;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public boolean isExpired(long ttlMillis) {
+            return System.currentTimeMillis() - created >= ttlMillis;
+        }
+    }
+
 
 }
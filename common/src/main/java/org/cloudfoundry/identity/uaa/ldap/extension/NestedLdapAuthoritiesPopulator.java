@@ -17,14 +17,28 @@ package org.cloudfoundry.identity.uaa.ldap.extension;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.util.StringUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A LDAP authority populator that can recursively search static nested groups.
@@ -57,12 +71,22 @@ import java.util.Set;
  * During an authentication
  */
 
-public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopulator {
+public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopulator implements DisposableBean {
     private static final Log logger = LogFactory.getLog(NestedLdapAuthoritiesPopulator.class);
 
     private Set<String> attributeNames;
 
     private int maxSearchDepth = 10;
+
+    private int searchThreads = 4;
+
+    private volatile ExecutorService searchExecutor;
+
+    /**
+     * Search results for the parents of a group, per lower cased group DN and group name
+     */
+    private final ConcurrentMap<String, CachedValue<Set<Map<String,String[]>>>> parentGroups = new ConcurrentHashMap<String, CachedValue<Set<Map<String,String[]>>>>();
+
     /**
      * Constructor for group search scenarios. <tt>userRoleAttributes</tt> may still be
      * set as a property.
@@ -87,52 +111,137 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
         return authorities;
     }
 
+    /**
+     * Expands the groups of the user breadth first. All groups found on one level of the hierarchy are
+     * searched for their parents in parallel, on at most <tt>searchThreads</tt> threads, before moving on
+     * to the next level. Groups that were already expanded are not searched again, which also stops
+     * circular group memberships.
+     */
     protected void performNestedSearch(String userDn, String username, Set<GrantedAuthority> authorities, int depth) {
-        if (depth==0) {
-            //back out of recursion
-            logger.debug("Search aborted, max depth reached,"+
-                " for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
-                + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
-            return;
+        if (StringUtils.hasText(getGroupRoleAttribute()) && !getAttributeNames().contains(getGroupRoleAttribute())) {
+            getAttributeNames().add(getGroupRoleAttribute());
         }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Searching for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
-                + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
-        }
+        Map<String, String> level = new LinkedHashMap<String, String>();
+        level.put(userDn, username);
+        Set<String> expanded = new HashSet<String>();
+        boolean userLevel = true;
+        while (!level.isEmpty()) {
+            if (depth==0) {
+                logger.debug("Search aborted, max depth reached,"+
+                    " for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
+                    + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
+                return;
+            }
 
-        if (StringUtils.hasText(getGroupRoleAttribute()) && !getAttributeNames().contains(getGroupRoleAttribute())) {
-            getAttributeNames().add(getGroupRoleAttribute());
+            Map<String, String> nextLevel = new LinkedHashMap<String, String>();
+            for (Set<Map<String,String[]>> userRoles : searchLevel(level, userLevel)) {
+                if (logger.isDebugEnabled()) {
+                    logRoles(userRoles);
+                }
+                for (Map<String,String[]> record : userRoles) {
+                    boolean circular = false;
+                    String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
+                    String[] roleValues = record.get(getGroupRoleAttribute());
+                    Set<String> roles = new HashSet<String>();
+                    roles.addAll(Arrays.asList(roleValues!=null?roleValues:new String[0]));
+                    for (String role : roles) {
+                        if (isConvertToUpperCase()) {
+                            role = role.toUpperCase();
+                        }
+                        role = getRolePrefix() + role;
+                        circular = circular | (!authorities.add(new LdapAuthority(role,dn,record)));
+                    }
+                    String roleName = roles.size()>0 ? roles.iterator().next() : dn;
+                    if (!circular && expanded.add(dn.toLowerCase())) {
+                        nextLevel.put(dn, roleName);
+                    }
+                }
+            }
+            level = nextLevel;
+            userLevel = false;
+            depth--;
         }
+    }
 
-        Set<Map<String,String[]>> userRoles = getLdapTemplate().searchForMultipleAttributeValues(
-            getGroupSearchBase(),
-            getGroupSearchFilter(),
-            new String[]{userDn, username},
-            getAttributeNames().toArray(new String[getAttributeNames().size()]));
+    private List<Set<Map<String,String[]>>> searchLevel(Map<String, String> level, boolean userLevel) {
+        List<Set<Map<String,String[]>>> result = new ArrayList<Set<Map<String,String[]>>>();
+        if (level.size()==1 || searchThreads<=1) {
+            for (Map.Entry<String, String> entry : level.entrySet()) {
+                result.add(searchForParents(entry.getKey(), entry.getValue(), userLevel));
+            }
+            return result;
+        }
+        List<Callable<Set<Map<String,String[]>>>> searches = new ArrayList<Callable<Set<Map<String,String[]>>>>();
+        for (final Map.Entry<String, String> entry : level.entrySet()) {
+            searches.add(new Callable<Set<Map<String,String[]>>>() {
+                @Override
+                public Set<Map<String,String[]>> call() throws Exception {
+                    return searchForParents(entry.getKey(), entry.getValue(), false);
+                }
+            });
+        }
+        try {
+            for (Future<Set<Map<String,String[]>>> future : getSearchExecutor().invokeAll(searches)) {
+                result.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching for nested groups", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to search for nested groups", e.getCause());
+        }
+        return result;
+    }
 
+    /**
+     * Searches for the groups that a user or group is a member of. The parents of a group are
+     * remembered for <tt>authoritiesCacheSeconds</tt> and shared by the searches of all users.
+     */
+    protected Set<Map<String,String[]>> searchForParents(String dn, String name, boolean user) {
         if (logger.isDebugEnabled()) {
-            logRoles(userRoles);
+            logger.debug("Searching for roles for user '" + name + "', DN = " + "'" + dn + "', with filter "
+                + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
+        }
+        String[] attributes = getAttributeNames().toArray(new String[getAttributeNames().size()]);
+        if (user || getAuthoritiesCacheMillis() <= 0) {
+            return searchForGroups(dn, name, attributes);
+        }
+        String key = dn.toLowerCase() + "|" + name;
+        CachedValue<Set<Map<String,String[]>>> cached = parentGroups.get(key);
+        if (cached == null || cached.isExpired(getAuthoritiesCacheMillis())) {
+            cached = new CachedValue<Set<Map<String,String[]>>>(Collections.unmodifiableSet(searchForGroups(dn, name, attributes)));
+            putInCache(parentGroups, key, cached);
         }
+        return cached.getValue();
+    }
 
-        for (Map<String,String[]> record : userRoles) {
-            boolean circular = false;
-            String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
-            String[] roleValues = record.get(getGroupRoleAttribute());
-            Set<String> roles = new HashSet<String>();
-            roles.addAll(Arrays.asList(roleValues!=null?roleValues:new String[0]));
-            for (String role : roles) {
-                if (isConvertToUpperCase()) {
-                    role = role.toUpperCase();
+    private ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            synchronized (this) {
+                if (searchExecutor == null) {
+                    searchExecutor = Executors.newFixedThreadPool(searchThreads, new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ldap-group-search-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
                 }
-                role = getRolePrefix() + role;
-                circular = circular | (!authorities.add(new LdapAuthority(role,dn,record)));
-            }
-            String roleName = roles.size()>0 ? roles.iterator().next() : dn;
-            if (!circular) {
-                performNestedSearch(dn, roleName, authorities, (depth - 1));
             }
+        }
+        return searchExecutor;
+    }
 
+    @Override
+    public void destroy() throws Exception {
+        if (searchExecutor != null) {
+            searchExecutor.shutdownNow();
         }
     }
 
@@ -176,6 +285,17 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
         this.maxSearchDepth = maxSearchDepth;
     }
 
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    /**
+     * @param searchThreads the maximum number of nested group searches that run at the same time (default 4)
+     */
+    public void setSearchThreads(int searchThreads) {
+        this.searchThreads = searchThreads;
+    }
+
 
 
 }
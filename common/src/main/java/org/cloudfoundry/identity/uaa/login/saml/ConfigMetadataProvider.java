@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.login.saml;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.opensaml.saml2.metadata.provider.AbstractMetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.xml.XMLObject;
@@ -18,30 +19,59 @@ public class ConfigMetadataProvider extends AbstractMetadataProvider implements
     private final String metadata;
     private final String zoneId;
     private final String alias;
+    private final String metadataHash;
+    private volatile XMLObject unmarshalledMetadata;
+    private volatile String entityID;
 
     public ConfigMetadataProvider(String zoneId, String alias, String metadata) {
         this.metadata = metadata;
         this.alias = alias;
         this.zoneId = zoneId;
+        this.metadataHash = DigestUtils.sha256Hex(metadata);
+    }
+
+    /**
+     * @return the SHA-256 hash of the metadata document, so that an unchanged
+     *         document can be recognized without parsing it
+     */
+    public String getMetadataHash() {
+        return metadataHash;
     }
 
     public byte[] fetchMetadata() throws MetadataProviderException {
         return metadata.getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * The metadata document never changes, so it is only unmarshalled once.
+     */
     @Override
     public XMLObject doGetMetadata() throws MetadataProviderException {
+        XMLObject result = unmarshalledMetadata;
+        if (result != null) {
+            return result;
+        }
 
         InputStream stream = new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8));
 
         try {
-            return unmarshallMetadata(stream);
+            result = unmarshallMetadata(stream);
+            unmarshalledMetadata = result;
+            return result;
         } catch (UnmarshallingException e) {
             log.error("Unable to unmarshall metadata", e);
             throw new MetadataProviderException(e);
         }
     }
 
+    @Override
+    public String getEntityID() throws MetadataProviderException {
+        if (entityID == null) {
+            entityID = ComparableProvider.super.getEntityID();
+        }
+        return entityID;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
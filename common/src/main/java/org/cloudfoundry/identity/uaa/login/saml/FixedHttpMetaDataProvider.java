@@ -38,22 +38,40 @@ public class FixedHttpMetaDataProvider extends HTTPMetadataProvider {
      * Track if we have a custom socket factory
      */
     private boolean socketFactorySet = false;
+    private ProtocolSocketFactory socketFactory;
+    private final String metadataURL;
     private byte[] metadata;
 
 
     public FixedHttpMetaDataProvider(Timer backgroundTaskTimer, HttpClient client, String metadataURL) throws MetadataProviderException {
         super(backgroundTaskTimer, client, metadataURL);
+        this.metadataURL = metadataURL;
     }
 
 
+    /**
+     * Fetches the metadata document. After the first fetch the request is
+     * conditional on the ETag and Last-Modified headers of the previous
+     * response, and the previous document is returned when the server answers
+     * that it has not been modified.
+     */
     @Override
-    public byte[] fetchMetadata() throws MetadataProviderException {
-        if (metadata==null) {
-            metadata = super.fetchMetadata();
+    public synchronized byte[] fetchMetadata() throws MetadataProviderException {
+        byte[] fetched = super.fetchMetadata();
+        if (fetched!=null) {
+            metadata = fetched;
         }
         return metadata;
     }
 
+    public String getMetadataURL() {
+        return metadataURL;
+    }
+
+    public ProtocolSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -61,6 +79,7 @@ public class FixedHttpMetaDataProvider extends HTTPMetadataProvider {
     public void setSocketFactory(ProtocolSocketFactory newSocketFactory) {
         // TODO Auto-generated method stub
         super.setSocketFactory(newSocketFactory);
+        socketFactory = newSocketFactory;
         if (newSocketFactory != null) {
             socketFactorySet = true;
         } else {
@@ -56,7 +56,9 @@ public class ProviderChangedListener implements ApplicationListener<IdentityProv
                     if (delegates[1]!=null) {
                         manager.removeMetadataProvider(delegates[1]);
                     }
-                    manager.addMetadataProvider(delegates[0]);
+                    if (!manager.getAvailableProviders().contains(delegates[0])) {
+                        manager.addMetadataProvider(delegates[0]);
+                    }
                 } else {
                     ExtendedMetadataDelegate delegate = configurator.removeIdentityProviderDefinition(definition);
                     if (delegate!=null) {
@@ -23,6 +23,7 @@ import org.cloudfoundry.identity.uaa.login.util.FileLocator;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.xml.parse.BasicParserPool;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.saml.metadata.ExtendedMetadata;
 import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
@@ -44,12 +45,23 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.cloudfoundry.identity.uaa.AbstractIdentityProviderDefinition.EMAIL_DOMAIN_ATTR;
 import static org.cloudfoundry.identity.uaa.ExternalIdentityProviderDefinition.EXTERNAL_GROUPS_WHITELIST;
 import static org.cloudfoundry.identity.uaa.ExternalIdentityProviderDefinition.ATTRIBUTE_MAPPINGS;
 
-public class SamlIdentityProviderConfigurator implements InitializingBean {
+public class SamlIdentityProviderConfigurator implements InitializingBean, DisposableBean {
     private static Log logger = LogFactory.getLog(SamlIdentityProviderConfigurator.class);
     private String legacyIdpIdentityAlias;
     private volatile String legacyIdpMetaData;
@@ -61,6 +73,11 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     private List<SamlIdentityProviderDefinition> toBeFetchedProviders = new LinkedList<>();
     private HttpClientParams clientParams;
     private BasicParserPool parserPool;
+    private Map<String, FixedHttpMetaDataProvider> urlMetadataProviders = new ConcurrentHashMap<>();
+    private int metadataFetchThreads = 4;
+    private long metadataFetchTimeout = 30000;
+    private ExecutorService metadataFetchExecutor;
+    private final AtomicLong version = new AtomicLong();
 
     private Timer dummyTimer = new Timer() {
 
@@ -97,6 +114,13 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         dummyTimer.cancel();
     }
 
+    /**
+     * @return a number that changes every time a provider is added, replaced or removed
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
     public List<SamlIdentityProviderDefinition> getIdentityProviderDefinitions() {
         return Collections.unmodifiableList(new ArrayList<>(identityProviders.keySet()));
     }
@@ -152,13 +176,7 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
             }
             uniqueAlias.add(alias);
         }
-        for (SamlIdentityProviderDefinition def : providerDefinitions) {
-            try {
-                addSamlIdentityProviderDefinition(def);
-            } catch (MetadataProviderException e) {
-                logger.error("Unable to configure SAML provider:"+def, e);
-            }
-        }
+        addSamlIdentityProviderDefinitions(providerDefinitions);
     }
 
     protected String getUniqueAlias(SamlIdentityProviderDefinition def) {
@@ -175,7 +193,60 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
      * @return an array consisting of {provider-added, provider-deleted} where provider-deleted may be null
      * @throws MetadataProviderException if the system fails to fetch meta data for this provider
      */
-    public synchronized ExtendedMetadataDelegate[] addSamlIdentityProviderDefinition(SamlIdentityProviderDefinition providerDefinition) throws MetadataProviderException {
+    public ExtendedMetadataDelegate[] addSamlIdentityProviderDefinition(SamlIdentityProviderDefinition providerDefinition) throws MetadataProviderException {
+        return addSamlIdentityProviderDefinition(providerDefinition, null);
+    }
+
+    /**
+     * adds or replaces several SAML identity providers. The metadata of the
+     * providers configured with a URL is fetched in parallel, and a provider
+     * whose metadata can not be fetched within the metadataFetchTimeout is
+     * skipped without holding up the others.
+     * @param providerDefinitions - the providers to be added
+     * @return for each provider, in order, the result of {@link #addSamlIdentityProviderDefinition(SamlIdentityProviderDefinition)}
+     * or null if the provider could not be added
+     */
+    public List<ExtendedMetadataDelegate[]> addSamlIdentityProviderDefinitions(List<SamlIdentityProviderDefinition> providerDefinitions) {
+        List<Future<byte[]>> fetches = new ArrayList<>();
+        for (final SamlIdentityProviderDefinition def : providerDefinitions) {
+            if (def!=null && def.getType()==SamlIdentityProviderDefinition.MetadataLocation.URL) {
+                fetches.add(getMetadataFetchExecutor().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return fetchURLMetadata(def);
+                    }
+                }));
+            } else {
+                fetches.add(null);
+            }
+        }
+        List<ExtendedMetadataDelegate[]> result = new ArrayList<>();
+        for (int i=0; i<providerDefinitions.size(); i++) {
+            SamlIdentityProviderDefinition def = providerDefinitions.get(i);
+            Future<byte[]> fetch = fetches.get(i);
+            try {
+                byte[] metadata = fetch==null ? null : fetch.get(metadataFetchTimeout, TimeUnit.MILLISECONDS);
+                result.add(addSamlIdentityProviderDefinition(def, metadata));
+            } catch (TimeoutException e) {
+                fetch.cancel(true);
+                logger.error("Timed out fetching metadata for SAML provider:"+def);
+                result.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted fetching metadata for SAML provider:"+def);
+                result.add(null);
+            } catch (ExecutionException e) {
+                logger.error("Unable to configure SAML provider:"+def, e.getCause());
+                result.add(null);
+            } catch (MetadataProviderException | RuntimeException e) {
+                logger.error("Unable to configure SAML provider:"+def, e);
+                result.add(null);
+            }
+        }
+        return result;
+    }
+
+    protected synchronized ExtendedMetadataDelegate[] addSamlIdentityProviderDefinition(SamlIdentityProviderDefinition providerDefinition, byte[] fetchedMetadata) throws MetadataProviderException {
         ExtendedMetadataDelegate added, deleted=null;
         if (providerDefinition==null) {
             throw new NullPointerException();
@@ -186,14 +257,32 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         if (!StringUtils.hasText(providerDefinition.getZoneId())) {
             throw new NullPointerException("IDP Zone Id must be set");
         }
+        SamlIdentityProviderDefinition existing = null;
         for (SamlIdentityProviderDefinition def : getIdentityProviderDefinitions()) {
             if (getUniqueAlias(providerDefinition).equals(getUniqueAlias(def))) {
-                deleted = identityProviders.remove(def);
+                existing = def;
                 break;
             }
         }
         SamlIdentityProviderDefinition clone = providerDefinition.clone();
-        added = getExtendedMetadataDelegate(clone);
+        if (fetchedMetadata!=null) {
+            SamlIdentityProviderDefinition fetched = clone.clone();
+            fetched.setMetaDataLocation(new String(fetchedMetadata, StandardCharsets.UTF_8));
+            added = configureXMLMetadata(fetched);
+        } else {
+            added = getExtendedMetadataDelegate(clone);
+        }
+        if (existing!=null) {
+            ExtendedMetadataDelegate current = identityProviders.get(existing);
+            if (isSameMetadata(current, added)) {
+                //keep the provider that has already parsed this document
+                identityProviders.remove(existing);
+                identityProviders.put(clone, current);
+                version.incrementAndGet();
+                return new ExtendedMetadataDelegate[] {current, null};
+            }
+            deleted = identityProviders.remove(existing);
+        }
         String entityIDToBeAdded = ((ConfigMetadataProvider)added.getDelegate()).getEntityID();
         boolean entityIDexists = false;
         for (Map.Entry<SamlIdentityProviderDefinition, ExtendedMetadataDelegate> entry : identityProviders.entrySet()) {
@@ -211,13 +300,27 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         }
 
         identityProviders.put(clone, added);
+        version.incrementAndGet();
         return new ExtendedMetadataDelegate[] {added, deleted};
     }
 
+    protected boolean isSameMetadata(ExtendedMetadataDelegate current, ExtendedMetadataDelegate added) {
+        if (current==null ||
+            !(current.getDelegate() instanceof ConfigMetadataProvider) ||
+            !(added.getDelegate() instanceof ConfigMetadataProvider) ||
+            current.isMetadataTrustCheck()!=added.isMetadataTrustCheck()) {
+            return false;
+        }
+        return ((ConfigMetadataProvider)current.getDelegate()).getMetadataHash().equals(((ConfigMetadataProvider)added.getDelegate()).getMetadataHash());
+    }
+
     public synchronized ExtendedMetadataDelegate removeIdentityProviderDefinition(SamlIdentityProviderDefinition providerDefinition) {
+        urlMetadataProviders.remove(getUniqueAlias(providerDefinition));
         for (SamlIdentityProviderDefinition def : getIdentityProviderDefinitions()) {
             if (getUniqueAlias(providerDefinition).equals(getUniqueAlias(def))) {
-                return identityProviders.remove(def);
+                ExtendedMetadataDelegate removed = identityProviders.remove(def);
+                version.incrementAndGet();
+                return removed;
             }
         }
         return null;
@@ -292,20 +395,36 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     }
 
     protected ExtendedMetadataDelegate configureURLMetadata(SamlIdentityProviderDefinition def) throws MetadataProviderException {
+        def = def.clone();
+        byte[] metadata = fetchURLMetadata(def);
+        def.setMetaDataLocation(new String(metadata, StandardCharsets.UTF_8));
+        return configureXMLMetadata(def);
+    }
+
+    /**
+     * Fetches the metadata of a provider configured with a URL. The HTTP
+     * metadata provider of each identity provider is kept, so that later
+     * fetches are conditional on the ETag and Last-Modified of the previous one.
+     */
+    protected byte[] fetchURLMetadata(SamlIdentityProviderDefinition def) throws MetadataProviderException {
         Class<ProtocolSocketFactory> socketFactory = null;
         try {
-            def = def.clone();
             socketFactory = (Class<ProtocolSocketFactory>) Class.forName(def.getSocketFactoryClassName());
-            ExtendedMetadata extendedMetadata = new ExtendedMetadata();
-            extendedMetadata.setAlias(def.getIdpEntityAlias());
-            SimpleHttpConnectionManager connectionManager = new SimpleHttpConnectionManager(true);
-            connectionManager.getParams().setDefaults(getClientParams());
-            HttpClient client = new HttpClient(connectionManager);
-            FixedHttpMetaDataProvider fixedHttpMetaDataProvider = new FixedHttpMetaDataProvider(dummyTimer, client, adjustURIForPort(def.getMetaDataLocation()));
-            fixedHttpMetaDataProvider.setSocketFactory(socketFactory.newInstance());
-            byte[] metadata = fixedHttpMetaDataProvider.fetchMetadata();
-            def.setMetaDataLocation(new String(metadata, StandardCharsets.UTF_8));
-            return configureXMLMetadata(def);
+            String metadataURL = adjustURIForPort(def.getMetaDataLocation());
+            String key = getUniqueAlias(def);
+            FixedHttpMetaDataProvider fixedHttpMetaDataProvider = urlMetadataProviders.get(key);
+            if (fixedHttpMetaDataProvider==null ||
+                !metadataURL.equals(fixedHttpMetaDataProvider.getMetadataURL()) ||
+                fixedHttpMetaDataProvider.getSocketFactory()==null ||
+                !socketFactory.equals(fixedHttpMetaDataProvider.getSocketFactory().getClass())) {
+                SimpleHttpConnectionManager connectionManager = new SimpleHttpConnectionManager(true);
+                connectionManager.getParams().setDefaults(getClientParams());
+                HttpClient client = new HttpClient(connectionManager);
+                fixedHttpMetaDataProvider = new FixedHttpMetaDataProvider(dummyTimer, client, metadataURL);
+                fixedHttpMetaDataProvider.setSocketFactory(socketFactory.newInstance());
+                urlMetadataProviders.put(key, fixedHttpMetaDataProvider);
+            }
+            return fixedHttpMetaDataProvider.fetchMetadata();
         } catch (URISyntaxException e) {
             throw new IllegalArgumentException("Invalid socket factory(invalid URI):"+def.getMetaDataLocation(), e);
         } catch (ClassNotFoundException e) {
@@ -452,4 +571,42 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     public void afterPropertiesSet() throws Exception {
         parseIdentityProviderDefinitions();
     }
+
+    @Override
+    public synchronized void destroy() {
+        if (metadataFetchExecutor!=null) {
+            metadataFetchExecutor.shutdownNow();
+            metadataFetchExecutor = null;
+        }
+    }
+
+    protected synchronized ExecutorService getMetadataFetchExecutor() {
+        if (metadataFetchExecutor==null) {
+            final AtomicInteger count = new AtomicInteger();
+            metadataFetchExecutor = Executors.newFixedThreadPool(metadataFetchThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SamlMetadataFetch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return metadataFetchExecutor;
+    }
+
+    /**
+     * @param metadataFetchThreads the number of URL metadata documents fetched at the same time
+     */
+    public void setMetadataFetchThreads(int metadataFetchThreads) {
+        this.metadataFetchThreads = metadataFetchThreads;
+    }
+
+    /**
+     * @param metadataFetchTimeout the time in milliseconds to wait for the
+     *            metadata of each provider when adding several at once
+     */
+    public void setMetadataFetchTimeout(long metadataFetchTimeout) {
+        this.metadataFetchTimeout = metadataFetchTimeout;
+    }
 }
@@ -17,6 +17,7 @@ package org.cloudfoundry.identity.uaa.login.saml;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.metrics.Histogram;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityProvider;
 import org.cloudfoundry.identity.uaa.zone.IdentityProviderProvisioning;
@@ -36,6 +37,9 @@ import org.opensaml.xml.signature.SignatureTrustEngine;
 import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.saml.key.KeyManager;
 import org.springframework.security.saml.metadata.CachingMetadataManager;
 import org.springframework.security.saml.metadata.ExtendedMetadata;
@@ -46,15 +50,34 @@ import org.springframework.security.saml.trust.httpclient.TLSProtocolConfigurer;
 
 import javax.annotation.PostConstruct;
 import javax.xml.namespace.QName;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MetadataManager} that keeps a separate {@link ExtensionMetadataManager}
+ * for each identity zone and delegates to the one of the current zone.
+ * <p>
+ * The SAML identity providers of a zone are loaded from the database the first
+ * time the zone's metadata is used. A scheduled task then rebuilds only the
+ * providers whose version changed since they were loaded, and forgets the zones
+ * that have not been used for {@link #setZoneIdleTimeout(long) zoneIdleTimeout}
+ * milliseconds. The default zone is loaded at startup and never forgotten.
+ */
+@ManagedResource
 public class ZoneAwareMetadataManager extends MetadataManager implements ExtendedMetadataProvider, InitializingBean, DisposableBean, BeanNameAware {
 
     private static final Log logger = LogFactory.getLog(ZoneAwareMetadataManager.class);
@@ -62,12 +85,18 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
     private IdentityZoneProvisioning zoneDao;
     private SamlIdentityProviderConfigurator configurator;
     private KeyManager keyManager;
-    private Map<IdentityZone,ExtensionMetadataManager> metadataManagers;
+    private ConcurrentMap<String,ZoneMetadata> zoneMetadata;
     private long refreshInterval = 30000l;
+    private long zoneIdleTimeout = 3600000l;
+    private long clockSkew = 60000l;
     private long lastRefresh = 0;
-    private Timer timer;
+    private ScheduledExecutorService executor;
     private String beanName = ZoneAwareMetadataManager.class.getName()+"-"+System.identityHashCode(this);
     private ProviderChangedListener providerChangedListener;
+    private final Histogram refreshTime = new Histogram();
+    private volatile long lastRefreshTime = 0;
+    private final AtomicLong zoneLoadCount = new AtomicLong();
+    private final AtomicLong zoneEvictionCount = new AtomicLong();
 
     public ZoneAwareMetadataManager(IdentityProviderProvisioning providerDao,
                                     IdentityZoneProvisioning zoneDao,
@@ -82,13 +111,13 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
         super.setKeyManager(keyManager);
         //disable internal timer
         super.setRefreshCheckInterval(0);
-        if (metadataManagers==null) {
-            metadataManagers = new ConcurrentHashMap<>();
+        if (zoneMetadata==null) {
+            zoneMetadata = new ConcurrentHashMap<>();
         }
         providerChangedListener = listener;
     }
 
-    private class RefreshTask extends TimerTask {
+    private class RefreshTask implements Runnable {
         @Override
         public void run() {
             try {
@@ -99,19 +128,66 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
         }
     }
 
+    /**
+     * The SAML providers of a zone as they were when last loaded, and the
+     * manager they were loaded into.
+     */
+    /**
+     * The providers of a zone are loaded and refreshed while holding the lock of
+     * its metadata, so that a zone loading does not wait for the others.
+     */
+    private static class ZoneMetadata {
+        private final String zoneId;
+        private final ExtensionMetadataManager manager;
+        private final Map<String,IdentityProvider> providers = new ConcurrentHashMap<>();
+        private volatile boolean loaded = false;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private ZoneMetadata(String zoneId, ExtensionMetadataManager manager) {
+            this.zoneId = zoneId;
+            this.manager = manager;
+        }
+    }
+
     @Override
     public void setBeanName(String name) {
         this.beanName = name;
     }
 
+    /**
+     * @param zoneIdleTimeout the time in milliseconds after which the metadata
+     *            of an unused zone is dropped, or 0 to keep it forever
+     */
+    public void setZoneIdleTimeout(long zoneIdleTimeout) {
+        this.zoneIdleTimeout = zoneIdleTimeout;
+    }
+
+    /**
+     * @param clockSkew the time in milliseconds by which each refresh looks
+     *            back before the previous one, to allow for clocks of servers
+     *            sharing the database being out of step
+     */
+    public void setClockSkew(long clockSkew) {
+        this.clockSkew = clockSkew;
+    }
+
     @PostConstruct
     public void checkAllProviders() throws MetadataProviderException {
-        for (Map.Entry<IdentityZone,ExtensionMetadataManager> entry : metadataManagers.entrySet()) {
-            entry.getValue().setKeyManager(keyManager);
+        for (Map.Entry<String,ZoneMetadata> entry : zoneMetadata.entrySet()) {
+            entry.getValue().manager.setKeyManager(keyManager);
         }
         refreshAllProviders();
-        timer = new Timer("ZoneAwareMetadataManager.Refresh["+beanName+"]", true);
-        timer.schedule(new RefreshTask(),refreshInterval , refreshInterval);
+        if (refreshInterval>0) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ZoneAwareMetadataManager.Refresh[" + beanName + "]");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new RefreshTask(), refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
         providerChangedListener.setMetadataManager(this);
     }
 
@@ -123,62 +199,210 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
         return Thread.currentThread().getName()+"-"+System.identityHashCode(Thread.currentThread());
     }
 
-    protected void refreshAllProviders(boolean ignoreTimestamp) throws MetadataProviderException {
+    /**
+     * @param ignoreTimestamp when true every provider of every loaded zone is
+     *            rebuilt, otherwise only the providers whose version changed
+     *            since the previous refresh are
+     */
+    protected synchronized void refreshAllProviders(boolean ignoreTimestamp) throws MetadataProviderException {
         logger.debug("Running SAML IDP refresh["+getThreadNameAndId()+"] - ignoreTimestamp="+ignoreTimestamp);
-        for (IdentityZone zone : zoneDao.retrieveAll()) {
-            ExtensionMetadataManager manager = getManager(zone);
-            boolean hasChanges = false;
-            for (IdentityProvider provider : providerDao.retrieveAll(false,zone.getId())) {
-                if (Origin.SAML.equals(provider.getType()) && (ignoreTimestamp || lastRefresh < provider.getLastModified().getTime())) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        if (ignoreTimestamp) {
+            for (ZoneMetadata metadata : zoneMetadata.values()) {
+                synchronized (metadata) {
+                    if (metadata.loaded) {
+                        loadProviders(metadata, providerDao.retrieveAll(false, metadata.zoneId), true);
+                    }
+                }
+            }
+        } else {
+            evictIdleZones(now);
+            Map<String,List<IdentityProvider>> modified = new HashMap<>();
+            for (IdentityProvider provider : providerDao.retrieveModifiedSince(Origin.SAML, new Date(lastRefresh - clockSkew))) {
+                ZoneMetadata metadata = zoneMetadata.get(provider.getIdentityZoneId());
+                //a zone that is still loading may have read the provider before it changed
+                if (metadata!=null) {
+                    List<IdentityProvider> providers = modified.get(metadata.zoneId);
+                    if (providers==null) {
+                        providers = new LinkedList<>();
+                        modified.put(metadata.zoneId, providers);
+                    }
+                    providers.add(provider);
+                }
+            }
+            for (Map.Entry<String,List<IdentityProvider>> entry : modified.entrySet()) {
+                ZoneMetadata metadata = zoneMetadata.get(entry.getKey());
+                if (metadata==null) {
+                    continue;
+                }
+                synchronized (metadata) {
+                    if (metadata.loaded) {
+                        loadProviders(metadata, entry.getValue(), false);
+                    }
+                }
+            }
+        }
+        //the default zone is always loaded
+        getManager(IdentityZone.getUaa());
+        lastRefresh = now;
+        lastRefreshTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        refreshTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        logger.debug("Completed SAML IDP refresh["+getThreadNameAndId()+"] in "+lastRefreshTime+"ms");
+    }
+
+    /**
+     * Adds, replaces or removes the given SAML providers of a zone, skipping
+     * those that have not changed since they were loaded unless forced to.
+     */
+    private void loadProviders(ZoneMetadata metadata, List<IdentityProvider> providers, boolean force) {
+        ExtensionMetadataManager manager = metadata.manager;
+        boolean hasChanges = false;
+        List<IdentityProvider> added = new ArrayList<>();
+        List<SamlIdentityProviderDefinition> addedDefinitions = new ArrayList<>();
+        for (IdentityProvider provider : providers) {
+            if (!Origin.SAML.equals(provider.getType())) {
+                continue;
+            }
+            IdentityProvider loaded = metadata.providers.get(provider.getId());
+            if (!force && loaded!=null && loaded.getVersion()==provider.getVersion()) {
+                continue;
+            }
+            try {
+                SamlIdentityProviderDefinition definition = JsonUtils.readValue(provider.getConfig(), SamlIdentityProviderDefinition.class);
+                if (provider.isActive()) {
+                    log.info("Adding SAML IDP zone[" + metadata.zoneId + "] alias[" + definition.getIdpEntityAlias() + "]");
+                    added.add(provider);
+                    addedDefinitions.add(definition);
+                } else {
+                    log.info("Removing SAML IDP zone[" + metadata.zoneId + "] alias[" + definition.getIdpEntityAlias() + "]");
+                    ExtendedMetadataDelegate delegate = configurator.removeIdentityProviderDefinition(definition);
+                    if (delegate!=null) {
+                        manager.removeMetadataProvider(delegate);
+                        hasChanges = true;
+                    }
+                    metadata.providers.put(provider.getId(), provider);
+                }
+            } catch (JsonUtils.JsonUtilException x) {
+                logger.error("Unable to load provider:"+provider, x);
+            }
+        }
+        //the metadata of the added providers is fetched in parallel
+        List<ExtendedMetadataDelegate[]> delegates = configurator.addSamlIdentityProviderDefinitions(addedDefinitions);
+        for (int i=0; i<added.size(); i++) {
+            ExtendedMetadataDelegate[] result = delegates.get(i);
+            if (result==null) {
+                logger.error("Unable to refresh identity provider:"+addedDefinitions.get(i));
+                continue;
+            }
+            try {
+                if (result[1] != null) {
+                    manager.removeMetadataProvider(result[1]);
+                }
+                if (!manager.getAvailableProviders().contains(result[0])) {
+                    manager.addMetadataProvider(result[0]);
+                    hasChanges = true;
+                }
+                metadata.providers.put(added.get(i).getId(), added.get(i));
+            } catch (MetadataProviderException e) {
+                logger.error("Unable to refresh identity provider:"+addedDefinitions.get(i), e);
+            }
+        }
+        if (hasChanges) {
+            refreshZoneManager(manager);
+        }
+    }
+
+    private void loadZone(ZoneMetadata metadata) {
+        synchronized (metadata) {
+            if (!metadata.loaded) {
+                logger.debug("Loading SAML IDPs for zone[" + metadata.zoneId + "]");
+                loadProviders(metadata, providerDao.retrieveAll(false, metadata.zoneId), true);
+                metadata.loaded = true;
+                zoneLoadCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the metadata of the zones that have not been used recently. Their
+     * managers are not destroyed, as a request may still hold on to one.
+     */
+    protected void evictIdleZones(long now) {
+        if (zoneIdleTimeout<=0) {
+            return;
+        }
+        for (ZoneMetadata metadata : zoneMetadata.values()) {
+            if (IdentityZone.getUaa().getId().equals(metadata.zoneId) || now - metadata.lastUsed < zoneIdleTimeout) {
+                continue;
+            }
+            if (zoneMetadata.remove(metadata.zoneId, metadata)) {
+                logger.debug("Evicting SAML IDPs for idle zone[" + metadata.zoneId + "]");
+                for (IdentityProvider provider : metadata.providers.values()) {
                     try {
-                        SamlIdentityProviderDefinition definition = JsonUtils.readValue(provider.getConfig(), SamlIdentityProviderDefinition.class);
-                        try {
-                            if (provider.isActive()) {
-                                log.info("Adding SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
-                                ExtendedMetadataDelegate[] delegates = configurator.addSamlIdentityProviderDefinition(definition);
-                                if (delegates[1] != null) {
-                                    manager.removeMetadataProvider(delegates[1]);
-                                }
-                                manager.addMetadataProvider(delegates[0]);
-                            } else {
-                                log.info("Removing SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
-                                ExtendedMetadataDelegate delegate = configurator.removeIdentityProviderDefinition(definition);
-                                if (delegate!=null) {
-                                    manager.removeMetadataProvider(delegate);
-                                }
-                            }
-                            hasChanges = true;
-                        } catch (MetadataProviderException e) {
-                            logger.error("Unable to refresh identity provider:"+definition, e);
-                        }
+                        configurator.removeIdentityProviderDefinition(JsonUtils.readValue(provider.getConfig(), SamlIdentityProviderDefinition.class));
                     } catch (JsonUtils.JsonUtilException x) {
-                        logger.error("Unable to load provider:"+provider, x);
+                        logger.error("Unable to unload provider:"+provider, x);
                     }
                 }
-            }
-            if (hasChanges) {
-                refreshZoneManager(manager);
+                zoneEvictionCount.incrementAndGet();
             }
         }
-        lastRefresh = System.currentTimeMillis();
     }
 
     protected ExtensionMetadataManager getManager(IdentityZone zone) {
-        if (metadataManagers==null) { //called during super constructor
-            metadataManagers = new ConcurrentHashMap<>();
+        if (zoneMetadata==null) { //called during super constructor
+            zoneMetadata = new ConcurrentHashMap<>();
         }
-        ExtensionMetadataManager manager = metadataManagers.get(zone);
-        if (manager==null) {
+        ZoneMetadata metadata = zoneMetadata.get(zone.getId());
+        if (metadata==null) {
+            ExtensionMetadataManager manager;
             try {
                 manager = new ExtensionMetadataManager(Collections.<MetadataProvider>emptyList());
             } catch (MetadataProviderException e) {
                 throw new IllegalStateException(e);
             }
             manager.setKeyManager(keyManager);
-            ((ConcurrentHashMap)metadataManagers).putIfAbsent(zone, manager);
+            zoneMetadata.putIfAbsent(zone.getId(), new ZoneMetadata(zone.getId(), manager));
+            metadata = zoneMetadata.get(zone.getId());
+        }
+        metadata.lastUsed = System.currentTimeMillis();
+        if (!metadata.loaded && providerDao!=null) {
+            loadZone(metadata);
         }
-        return metadataManagers.get(zone);
+        return metadata.manager;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Last Refresh Time (ms)")
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Refresh Time 99th Percentile (ms)")
+    public double getRefreshTime99thPercentile() {
+        return refreshTime.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Refresh Count")
+    public long getRefreshCount() {
+        return refreshTime.getCount();
     }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Loaded Zones")
+    public int getLoadedZoneCount() {
+        return zoneMetadata.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Loads")
+    public long getZoneLoadCount() {
+        return zoneLoadCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Evictions")
+    public long getZoneEvictionCount() {
+        return zoneEvictionCount.get();
+    }
+
     protected ExtensionMetadataManager getManager() {
         return getManager(IdentityZoneHolder.get());
     }
@@ -390,15 +614,14 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
 
     @Override
     public void destroy() {
-        if (timer != null) {
-            timer.cancel();
-            timer.purge();
-            timer = null;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
         }
-        for (Map.Entry<IdentityZone,ExtensionMetadataManager> manager : metadataManagers.entrySet()) {
-            manager.getValue().destroy();
+        for (Map.Entry<String,ZoneMetadata> entry : zoneMetadata.entrySet()) {
+            entry.getValue().manager.destroy();
         }
-        metadataManagers.clear();
+        zoneMetadata.clear();
         super.destroy();
     }
 
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latency histogram and the per zone and per client counts of one
+ * operation. The number of zones and clients counted separately is bounded,
+ * further zones and clients are counted together as {@link #OTHER}.
+ */
+public class OperationMetrics {
+
+    public static final String OTHER = "other";
+
+    private final String name;
+
+    private final int maxKeys;
+
+    private final Histogram latency = new Histogram();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final ConcurrentMap<String, LongAdder> zones = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LongAdder> clients = new ConcurrentHashMap<>();
+
+    public OperationMetrics(String name, int maxKeys) {
+        this.name = name;
+        this.maxKeys = maxKeys;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param zoneId the zone the operation ran in, may be null
+     * @param clientId the client the operation ran for, may be null
+     * @param elapsedNanos the time the operation took
+     * @param success false if the operation failed
+     */
+    public void record(String zoneId, String clientId, long elapsedNanos, boolean success) {
+        latency.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        if (!success) {
+            failures.increment();
+        }
+        increment(zones, zoneId);
+        increment(clients, clientId);
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public Map<String, Long> getZoneCounts() {
+        return counts(zones);
+    }
+
+    public Map<String, Long> getClientCounts() {
+        return counts(clients);
+    }
+
+    public Map<String, Object> getSummary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", getCount());
+        summary.put("failures", getFailureCount());
+        Map<String, Object> millis = new LinkedHashMap<>();
+        millis.put("mean", latency.getMean() / 1000.0);
+        millis.put("p50", latency.getValueAtPercentile(50) / 1000.0);
+        millis.put("p90", latency.getValueAtPercentile(90) / 1000.0);
+        millis.put("p99", latency.getValueAtPercentile(99) / 1000.0);
+        millis.put("p999", latency.getValueAtPercentile(99.9) / 1000.0);
+        millis.put("max", latency.getMax() / 1000.0);
+        summary.put("latency_ms", millis);
+        summary.put("zones", getZoneCounts());
+        summary.put("clients", getClientCounts());
+        return summary;
+    }
+
+    private void increment(ConcurrentMap<String, LongAdder> counters, String key) {
+        if (key == null) {
+            return;
+        }
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxKeys) {
+                key = OTHER;
+            }
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    private static Map<String, Long> counts(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+}
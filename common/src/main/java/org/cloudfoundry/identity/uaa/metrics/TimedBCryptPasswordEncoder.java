@@ -0,0 +1,40 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * Records the time every password check takes in the
+ * {@link UaaMetrics#PASSWORD_CHECK} metrics.
+ */
+public class TimedBCryptPasswordEncoder extends BCryptPasswordEncoder {
+
+    private OperationMetrics passwordChecks;
+
+    public void setMetrics(UaaMetrics metrics) {
+        this.passwordChecks = metrics.getOperation(UaaMetrics.PASSWORD_CHECK);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        if (passwordChecks == null) {
+            return super.matches(rawPassword, encodedPassword);
+        }
+        long start = System.nanoTime();
+        boolean matches = super.matches(rawPassword, encodedPassword);
+        passwordChecks.record(IdentityZoneHolder.get().getId(), null, System.nanoTime() - start, matches);
+        return matches;
+    }
+}
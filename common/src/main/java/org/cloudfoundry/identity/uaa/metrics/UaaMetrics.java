@@ -0,0 +1,109 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+/**
+ * Latency histograms and per zone and per client counts of the operations on
+ * the hot paths of the UAA. Exposed through JMX and the <code>/varz</code>
+ * endpoint.
+ */
+@ManagedResource
+public class UaaMetrics {
+
+    public static final String TOKEN_ISSUANCE = "token_issuance";
+
+    public static final String PASSWORD_CHECK = "password_check";
+
+    public static final String CLIENT_LOAD = "client_load";
+
+    public static final String ZONE_RESOLUTION = "zone_resolution";
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+    private int maxKeys = 200;
+
+    /**
+     * @param maxKeys the number of zones and clients counted separately for
+     *            each operation
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public OperationMetrics getOperation(String name) {
+        return operations.computeIfAbsent(name, n -> new OperationMetrics(n, maxKeys));
+    }
+
+    public Map<String, Object> getSummary() {
+        Map<String, Object> summary = new TreeMap<>();
+        for (OperationMetrics operation : operations.values()) {
+            summary.put(operation.getName(), operation.getSummary());
+        }
+        return summary;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Tokens Issued")
+    public long getTokenIssuanceCount() {
+        return getOperation(TOKEN_ISSUANCE).getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Issuance 99th Percentile (ms)")
+    public double getTokenIssuance99thPercentile() {
+        return getOperation(TOKEN_ISSUANCE).getLatency().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Checks")
+    public long getPasswordCheckCount() {
+        return getOperation(PASSWORD_CHECK).getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Check 99th Percentile (ms)")
+    public double getPasswordCheck99thPercentile() {
+        return getOperation(PASSWORD_CHECK).getLatency().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Loads")
+    public long getClientLoadCount() {
+        return getOperation(CLIENT_LOAD).getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Client Load 99th Percentile (ms)")
+    public double getClientLoad99thPercentile() {
+        return getOperation(CLIENT_LOAD).getLatency().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Resolutions")
+    public long getZoneResolutionCount() {
+        return getOperation(ZONE_RESOLUTION).getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Zone Resolution 99th Percentile (ms)")
+    public double getZoneResolution99thPercentile() {
+        return getOperation(ZONE_RESOLUTION).getLatency().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @ManagedAttribute(description = "Latency and per zone and per client counts of every operation")
+    public Map<String, Object> getOperations() {
+        return getSummary();
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves the JVM memory usage and the {@link UaaMetrics} as JSON, in the
+ * <code>/varz</code> format read by the monitoring scripts and the
+ * <code>VarzSimulation</code> load test.
+ */
+@Controller
+public class VarzEndpoint {
+
+    private final UaaMetrics metrics;
+
+    private final long startTime = System.currentTimeMillis();
+
+    public VarzEndpoint(UaaMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @RequestMapping(value = "/varz", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> getVarz() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memoryBean.getHeapMemoryUsage();
+        result.put("type", "UAA");
+        result.put("uptime", (System.currentTimeMillis() - startTime) / 1000);
+        result.put("mem", heap.getUsed() / 1024);
+        Map<String, Object> memory = new LinkedHashMap<>();
+        memory.put("heap_memory_usage", getUsage(heap));
+        memory.put("non_heap_memory_usage", getUsage(memoryBean.getNonHeapMemoryUsage()));
+        result.put("memory", memory);
+        result.put("metrics", metrics.getSummary());
+        return result;
+    }
+
+    private Map<String, Object> getUsage(MemoryUsage usage) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("init", usage.getInit());
+        result.put("used", usage.getUsed());
+        result.put("committed", usage.getCommitted());
+        result.put("max", usage.getMax());
+        return result;
+    }
+}
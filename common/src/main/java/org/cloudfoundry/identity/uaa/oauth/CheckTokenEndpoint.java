@@ -48,6 +48,8 @@ public class CheckTokenEndpoint implements InitializingBean {
 
     private ResourceServerTokenServices resourceServerTokenServices;
     protected final Log logger = LogFactory.getLog(getClass());
+
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {};
     private WebResponseExceptionTranslator exceptionTranslator = new DefaultWebResponseExceptionTranslator();
 
     public void setTokenServices(ResourceServerTokenServices resourceServerTokenServices) {
@@ -94,8 +96,7 @@ public class CheckTokenEndpoint implements InitializingBean {
 
         Map<String, Object> claims = null;
         try {
-            claims = JsonUtils.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {
-            });
+            claims = JsonUtils.readValue(tokenJwt.getClaims(), MAP_TYPE);
         } catch (JsonUtils.JsonUtilException e) {
             throw new IllegalStateException("Cannot read token claims", e);
         }
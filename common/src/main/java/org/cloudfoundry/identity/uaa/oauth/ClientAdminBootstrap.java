@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -20,11 +21,17 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.zone.MultitenantJdbcClientDetailsService;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.provider.ClientDetailsService;
@@ -54,6 +61,8 @@ public class ClientAdminBootstrap implements InitializingBean {
 
     private final PasswordEncoder passwordEncoder;
 
+    private int encoderThreads = Runtime.getRuntime().availableProcessors();
+
     public ClientAdminBootstrap(PasswordEncoder passwordEncoder) {
         this.passwordEncoder = passwordEncoder;
     }
@@ -85,6 +94,16 @@ public class ClientAdminBootstrap implements InitializingBean {
         this.domain = domain.replace(".", "\\.");
     }
 
+    /**
+     * The maximum number of threads used to encode client secrets during a
+     * bulk registration (default: number of available processors).
+     *
+     * @param encoderThreads the number of encoder threads
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        this.encoderThreads = encoderThreads;
+    }
+
     public PasswordEncoder getPasswordEncoder() {
         return passwordEncoder;
     }
@@ -194,46 +213,22 @@ public class ClientAdminBootstrap implements InitializingBean {
     }
 
     private void addNewClients() throws Exception {
+        if (clientRegistrationService instanceof MultitenantJdbcClientDetailsService && getPasswordEncoder() != null) {
+            try {
+                addNewClients((MultitenantJdbcClientDetailsService) clientRegistrationService);
+                return;
+            } catch (ClientAlreadyExistsException e) {
+                // another instance registered some of the clients in the meantime
+                logger.debug("Bulk registration of clients failed, registering them one by one: " + e.getMessage());
+            }
+        }
         for (String clientId : clients.keySet()) {
             Map<String, Object> map = clients.get(clientId);
-            BaseClientDetails client = new BaseClientDetails(clientId, (String) map.get("resource-ids"),
-                            (String) map.get("scope"), (String) map.get("authorized-grant-types"),
-                            (String) map.get("authorities"), getRedirectUris(map));
-            client.setClientSecret((String) map.get("secret"));
-            Integer validity = (Integer) map.get("access-token-validity");
-            Boolean override = (Boolean) map.get("override");
-            if (override == null) {
-                override = defaultOverride;
-            }
-            Map<String, Object> info = new HashMap<String, Object>(map);
-            if (validity != null) {
-                client.setAccessTokenValiditySeconds(validity);
-            }
-            validity = (Integer) map.get("refresh-token-validity");
-            if (validity != null) {
-                client.setRefreshTokenValiditySeconds(validity);
-            }
-            // UAA does not use the resource ids in client registrations
-            client.setResourceIds(Collections.singleton("none"));
-            if (client.getScope().isEmpty()) {
-                client.setScope(Collections.singleton("uaa.none"));
-            }
-            if (client.getAuthorities().isEmpty()) {
-                client.setAuthorities(Collections.singleton(UaaAuthority.UAA_NONE));
-            }
-            if (client.getAuthorizedGrantTypes().contains("authorization_code")) {
-                client.getAuthorizedGrantTypes().add("refresh_token");
-            }
-            for (String key : Arrays.asList("resource-ids", "scope", "authorized-grant-types", "authorities",
-                            "redirect-uri", "secret", "id", "override", "access-token-validity",
-                            "refresh-token-validity")) {
-                info.remove(key);
-            }
-            client.setAdditionalInformation(info);
+            BaseClientDetails client = getClientDetails(clientId, map);
             try {
                 clientRegistrationService.addClientDetails(client);
             } catch (ClientAlreadyExistsException e) {
-                if (override == null || override) {
+                if (isOverride(map)) {
                     logger.debug("Overriding client details for " + clientId);
                     clientRegistrationService.updateClientDetails(client);
                     if (StringUtils.hasText(client.getClientSecret()) && didPasswordChange(clientId, client.getClientSecret())) {
@@ -247,6 +242,145 @@ public class ClientAdminBootstrap implements InitializingBean {
         }
     }
 
+    /**
+     * Registers the configured clients in bulk: the existing clients are read
+     * once, secrets are verified and encoded in parallel on a bounded pool and
+     * the inserts, updates and secret changes are each written as one JDBC
+     * batch. Encoders and override semantics are the same as for the one by
+     * one path.
+     */
+    private void addNewClients(final MultitenantJdbcClientDetailsService service) throws Exception {
+        long start = System.currentTimeMillis();
+        final Map<String, ClientDetails> existingClients = new HashMap<String, ClientDetails>();
+        for (ClientDetails client : service.listClientDetails()) {
+            existingClients.put(client.getClientId(), client);
+        }
+        long lookup = System.currentTimeMillis();
+
+        final List<BaseClientDetails> newClients = new ArrayList<BaseClientDetails>();
+        final List<BaseClientDetails> updatedClients = new ArrayList<BaseClientDetails>();
+        for (String clientId : clients.keySet()) {
+            Map<String, Object> map = clients.get(clientId);
+            BaseClientDetails client = getClientDetails(clientId, map);
+            if (!existingClients.containsKey(clientId)) {
+                newClients.add(client);
+            } else if (isOverride(map)) {
+                logger.debug("Overriding client details for " + clientId);
+                updatedClients.add(client);
+            } else {
+                logger.debug("Client already exists: " + clientId);
+            }
+        }
+
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (final BaseClientDetails client : newClients) {
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return client.getClientSecret() != null ? service.getPasswordEncoder().encode(client.getClientSecret()) : null;
+                }
+            });
+        }
+        for (final BaseClientDetails client : updatedClients) {
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    String secret = client.getClientSecret();
+                    if (!StringUtils.hasText(secret)
+                        || getPasswordEncoder().matches(secret, existingClients.get(client.getClientId()).getClientSecret())) {
+                        return null;
+                    }
+                    return service.getPasswordEncoder().encode(secret);
+                }
+            });
+        }
+        List<String> encoded = encodeSecrets(tasks);
+        long encode = System.currentTimeMillis();
+
+        for (int i = 0; i < newClients.size(); i++) {
+            newClients.get(i).setClientSecret(encoded.get(i));
+        }
+        Map<String, String> changedSecrets = new HashMap<String, String>();
+        for (int i = 0; i < updatedClients.size(); i++) {
+            String secret = encoded.get(newClients.size() + i);
+            if (secret != null) {
+                changedSecrets.put(updatedClients.get(i).getClientId(), secret);
+            }
+        }
+        if (!newClients.isEmpty()) {
+            service.addEncodedClientDetails(newClients);
+        }
+        if (!updatedClients.isEmpty()) {
+            service.updateClientDetails(updatedClients);
+        }
+        if (!changedSecrets.isEmpty()) {
+            service.updateEncodedClientSecrets(changedSecrets);
+        }
+        long end = System.currentTimeMillis();
+
+        logger.info(String.format("Bootstrapped %d clients (%d created, %d updated, %d secrets changed): lookup %d ms, secrets %d ms, write %d ms",
+            clients.size(), newClients.size(), updatedClients.size(), changedSecrets.size(), lookup - start, encode - lookup, end - encode));
+    }
+
+    private List<String> encodeSecrets(List<Callable<String>> tasks) throws Exception {
+        List<String> result = new ArrayList<String>();
+        if (tasks.isEmpty()) {
+            return result;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(Math.max(1, encoderThreads), tasks.size()));
+        try {
+            for (Future<String> future : executor.invokeAll(tasks)) {
+                try {
+                    result.add(future.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private boolean isOverride(Map<String, Object> map) {
+        Boolean override = (Boolean) map.get("override");
+        return override == null ? defaultOverride : override;
+    }
+
+    private BaseClientDetails getClientDetails(String clientId, Map<String, Object> map) {
+        BaseClientDetails client = new BaseClientDetails(clientId, (String) map.get("resource-ids"),
+                        (String) map.get("scope"), (String) map.get("authorized-grant-types"),
+                        (String) map.get("authorities"), getRedirectUris(map));
+        client.setClientSecret((String) map.get("secret"));
+        Integer validity = (Integer) map.get("access-token-validity");
+        Map<String, Object> info = new HashMap<String, Object>(map);
+        if (validity != null) {
+            client.setAccessTokenValiditySeconds(validity);
+        }
+        validity = (Integer) map.get("refresh-token-validity");
+        if (validity != null) {
+            client.setRefreshTokenValiditySeconds(validity);
+        }
+        // UAA does not use the resource ids in client registrations
+        client.setResourceIds(Collections.singleton("none"));
+        if (client.getScope().isEmpty()) {
+            client.setScope(Collections.singleton("uaa.none"));
+        }
+        if (client.getAuthorities().isEmpty()) {
+            client.setAuthorities(Collections.singleton(UaaAuthority.UAA_NONE));
+        }
+        if (client.getAuthorizedGrantTypes().contains("authorization_code")) {
+            client.getAuthorizedGrantTypes().add("refresh_token");
+        }
+        for (String key : Arrays.asList("resource-ids", "scope", "authorized-grant-types", "authorities",
+                        "redirect-uri", "secret", "id", "override", "access-token-validity",
+                        "refresh-token-validity")) {
+            info.remove(key);
+        }
+        client.setAdditionalInformation(info);
+        return client;
+    }
+
     protected boolean didPasswordChange(String clientId, String rawPassword) {
         if (getPasswordEncoder()!=null && clientRegistrationService instanceof ClientDetailsService) {
             ClientDetails existing = ((ClientDetailsService)clientRegistrationService).loadClientByClientId(clientId);
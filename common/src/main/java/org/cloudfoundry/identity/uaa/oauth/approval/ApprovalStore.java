@@ -18,6 +18,8 @@ public interface ApprovalStore {
 
     public boolean addApproval(Approval approval);
 
+    public boolean addApprovals(List<Approval> approvals);
+
     public boolean revokeApproval(Approval approval);
 
     public boolean revokeApprovals(String filter);
@@ -17,14 +17,18 @@ import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStat
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.db.ReplicaRouter;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
@@ -35,18 +39,25 @@ import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 
 public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublisherAware {
 
     private final JdbcTemplate jdbcTemplate;
 
+    private final TransactionTemplate transactionTemplate;
+
     private JdbcPagingListFactory pagingListFactory;
 
     private final Log logger = LogFactory.getLog(getClass());
@@ -68,6 +79,14 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+    private static final String USER_CLIENT_FILTER = "user_id=? and client_id=?";
+
+    private static final String GET_USER_CLIENT_AUTHZ_SQL = GET_AUTHZ_SQL + " where " + USER_CLIENT_FILTER;
+
+    private static final String DELETE_AUTHZ_BY_KEY_SQL = String.format("delete from %s where %s and scope=?", TABLE_NAME, USER_CLIENT_FILTER);
+
+    private static final String EXPIRE_AUTHZ_BY_KEY_SQL = String.format("update %s set expiresAt=? where %s and scope=?", TABLE_NAME, USER_CLIENT_FILTER);
+
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
     private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
@@ -82,6 +101,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         this.jdbcTemplate = jdbcTemplate;
         this.queryConverter = queryConverter;
         this.pagingListFactory = pagingListFactory;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
     }
 
     public void setHandleRevocationsAsExpiry(boolean handleRevocationsAsExpiry) {
@@ -93,12 +113,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         int refreshed = jdbcTemplate.update(REFRESH_AUTHZ_SQL, new PreparedStatementSetter() {
             @Override
             public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setTimestamp(1, new Timestamp(approval.getLastUpdatedAt().getTime()));
-                ps.setTimestamp(2, new Timestamp(approval.getExpiresAt().getTime()));
-                ps.setString(3, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
-                ps.setString(4, approval.getUserId());
-                ps.setString(5, approval.getClientId());
-                ps.setString(6, approval.getScope());
+                setRefreshValues(ps, approval);
             }
         });
         if (refreshed != 1) {
@@ -110,6 +125,13 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public boolean addApproval(final Approval approval) {
         logger.debug(String.format("adding approval: [%s]", approval));
+        upsertApproval(approval);
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        publish(new ApprovalModifiedEvent(approval, authentication));
+        return true;
+    }
+
+    private void upsertApproval(final Approval approval) {
         try {
             refreshApproval(approval); // try to refresh the approval
         } catch (DataIntegrityViolationException ex) { // could not find the
@@ -117,24 +139,93 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             int count = jdbcTemplate.update(ADD_AUTHZ_SQL, new PreparedStatementSetter() {
                 @Override
                 public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, approval.getUserId());
-                    ps.setString(2, approval.getClientId());
-                    ps.setString(3, approval.getScope());
-                    ps.setTimestamp(4, new Timestamp(approval.getExpiresAt().getTime()));
-                    ps.setString(5, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
-                    ps.setTimestamp(6, new Timestamp(approval.getLastUpdatedAt().getTime()));
+                    setAddValues(ps, approval);
                 }
             });
             if (count==0) throw new EmptyResultDataAccessException("Approval add failed", 1);
         }
+    }
+
+    /**
+     * Adds or refreshes the approvals with two batched statements in one
+     * transaction: the approvals are refreshed in one batch, and the ones that
+     * did not exist yet are then inserted in another.
+     */
+    @Override
+    public boolean addApprovals(List<Approval> approvals) {
+        // the last approval for a scope wins, as it would with addApproval
+        Map<String, Approval> unique = new LinkedHashMap<>();
+        for (Approval approval : approvals) {
+            unique.put(approval.getUserId() + "|" + approval.getClientId() + "|" + approval.getScope(), approval);
+        }
+        final List<Approval> toRefresh = new ArrayList<>(unique.values());
+        if (toRefresh.isEmpty()) {
+            return true;
+        }
+        transactionTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                doAddApprovals(toRefresh);
+                return null;
+            }
+        });
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        publish(new ApprovalModifiedEvent(approval, authentication));
+        for (Approval approval : toRefresh) {
+            publish(new ApprovalModifiedEvent(approval, authentication));
+        }
         return true;
     }
 
+    private void doAddApprovals(final List<Approval> toRefresh) {
+        logger.debug(String.format("refreshing %d approvals", toRefresh.size()));
+        int[] refreshed = jdbcTemplate.batchUpdate(REFRESH_AUTHZ_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                setRefreshValues(ps, toRefresh.get(i));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return toRefresh.size();
+            }
+        });
+        final List<Approval> toAdd = new ArrayList<>();
+        for (int i = 0; i < refreshed.length; i++) {
+            if (refreshed[i] == Statement.SUCCESS_NO_INFO) {
+                // the driver does not report counts, fall back to one approval at a time
+                for (Approval approval : toRefresh) {
+                    upsertApproval(approval);
+                }
+                return;
+            } else if (refreshed[i] == 0) {
+                toAdd.add(toRefresh.get(i));
+            }
+        }
+        if (!toAdd.isEmpty()) {
+            logger.debug(String.format("adding %d approvals", toAdd.size()));
+            jdbcTemplate.batchUpdate(ADD_AUTHZ_SQL, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    setAddValues(ps, toAdd.get(i));
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return toAdd.size();
+                }
+            });
+        }
+    }
+
     @Override
     public boolean revokeApproval(Approval approval) {
-        return revokeApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\" and scope eq \"%s\"", approval.getUserId(), approval.getClientId(), approval.getScope()));
+        logger.debug(String.format("revoking approval: [%s]", approval));
+        if (handleRevocationsAsExpiry) {
+            jdbcTemplate.update(EXPIRE_AUTHZ_BY_KEY_SQL, new Timestamp(new Date().getTime() - 1), approval.getUserId(), approval.getClientId(), approval.getScope());
+        } else {
+            jdbcTemplate.update(DELETE_AUTHZ_BY_KEY_SQL, approval.getUserId(), approval.getClientId(), approval.getScope());
+        }
+        return true;
     }
 
     @Override
@@ -196,9 +287,32 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         }
     }
 
+    /**
+     * Looks up the approvals of a user for a client directly, without parsing a
+     * filter or counting the rows. The ids compare exactly, so that the primary
+     * key on (user_id, client_id, scope) serves the lookup.
+     */
     @Override
     public List<Approval> getApprovals(String userId, String clientId) {
-        return getApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\"", userId, clientId));
+        return ReplicaRouter.readOnly(() -> jdbcTemplate.query(GET_USER_CLIENT_AUTHZ_SQL, rowMapper, userId, clientId));
+    }
+
+    private void setRefreshValues(PreparedStatement ps, Approval approval) throws SQLException {
+        ps.setTimestamp(1, new Timestamp(approval.getLastUpdatedAt().getTime()));
+        ps.setTimestamp(2, new Timestamp(approval.getExpiresAt().getTime()));
+        ps.setString(3, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
+        ps.setString(4, approval.getUserId());
+        ps.setString(5, approval.getClientId());
+        ps.setString(6, approval.getScope());
+    }
+
+    private void setAddValues(PreparedStatement ps, Approval approval) throws SQLException {
+        ps.setString(1, approval.getUserId());
+        ps.setString(2, approval.getClientId());
+        ps.setString(3, approval.getScope());
+        ps.setTimestamp(4, new Timestamp(approval.getExpiresAt().getTime()));
+        ps.setString(5, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
+        ps.setTimestamp(6, new Timestamp(approval.getLastUpdatedAt().getTime()));
     }
 
     @Override
@@ -0,0 +1,121 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.codestore.ExpiringEntryStore;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Authorization code store for single node deployments. Codes are held in a
+ * {@link ConcurrentHashMap}, which only locks the bin a code hashes to, so
+ * concurrent logins do not contend with each other. A code is handed out by
+ * the one call that removes it from the map, and expired codes are removed by
+ * the {@link org.cloudfoundry.identity.uaa.codestore.ExpiredEntriesReaper}.
+ */
+public class InMemoryUaaTokenStore implements AuthorizationCodeServices, ExpiringEntryStore {
+
+    private static Log logger = LogFactory.getLog(InMemoryUaaTokenStore.class);
+
+    private final ConcurrentMap<String, StoredCode> codes;
+    private final long expirationTime;
+    private final RandomValueStringGenerator generator = new RandomValueStringGenerator();
+
+    public InMemoryUaaTokenStore() {
+        this(UaaTokenStore.EXPIRATION_TIME);
+    }
+
+    public InMemoryUaaTokenStore(long expirationTime) {
+        this(expirationTime, 16);
+    }
+
+    public InMemoryUaaTokenStore(long expirationTime, int concurrencyLevel) {
+        this.expirationTime = expirationTime;
+        this.codes = new ConcurrentHashMap<>(256, 0.75f, concurrencyLevel);
+    }
+
+    @Override
+    public String createAuthorizationCode(OAuth2Authentication authentication) {
+        StoredCode stored = new StoredCode(OAuth2AuthenticationSerializer.serialize(authentication), System.currentTimeMillis() + getExpirationTime());
+        String code = generator.generate();
+        while (codes.putIfAbsent(code, stored) != null) {
+            code = generator.generate();
+        }
+        return code;
+    }
+
+    @Override
+    public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
+        StoredCode stored = code == null ? null : codes.remove(code);
+        if (stored == null) {
+            throw new InvalidGrantException("Invalid authorization code: " + code);
+        }
+        if (stored.isExpired(System.currentTimeMillis())) {
+            logger.debug("[oauth_code] Found code, but it expired:" + code);
+            throw new InvalidGrantException("Authorization code expired: " + code);
+        }
+        return OAuth2AuthenticationSerializer.deserialize(stored.authentication);
+    }
+
+    @Override
+    public String getStoreName() {
+        return "oauth_code_memory";
+    }
+
+    @Override
+    public int purgeExpiredEntries(int batchSize) {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Iterator<Map.Entry<String, StoredCode>> it = codes.entrySet().iterator(); it.hasNext() && expired < batchSize; ) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+                expired++;
+            }
+        }
+        logger.debug("[oauth_code] Removed " + expired + " expired entries.");
+        return expired;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public int getSize() {
+        return codes.size();
+    }
+
+    private static class StoredCode {
+        private final byte[] authentication;
+        private final long expiresAt;
+
+        private StoredCode(byte[] authentication, long expiresAt) {
+            this.authentication = authentication;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt < now;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_APPROVED;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_AUTHORITIES;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_CLIENT_ID;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_PARAMETERS;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_REDIRECT_URI;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_RESOURCE_IDS;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_RESPONSE_TYPES;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.OAUTH2_REQUEST_SCOPE;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.USER_AUTHENTICATION_AUTHORITIES;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.USER_AUTHENTICATION_UAA_AUTHENTICATION;
+import static org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore.USER_AUTHENTICATION_UAA_PRINCIPAL;
+
+/**
+ * Serializes the {@link OAuth2Authentication} stored with an authorization code.
+ * <p>
+ * Codes are written in a compact binary layout: a version byte followed by
+ * length prefixed fields in a fixed order, or as the JSON map earlier versions
+ * wrote. Both are read, whichever format they are written in: a JSON map
+ * always starts with '{'.
+ */
+public final class OAuth2AuthenticationSerializer {
+
+    public static final byte VERSION = 1;
+
+    private static final byte NO_USER = 0;
+    private static final byte UAA_AUTHENTICATION = 1;
+    private static final byte UAA_PRINCIPAL = 2;
+
+    private static final int NULL_LENGTH = -1;
+
+    private static Log logger = LogFactory.getLog(OAuth2AuthenticationSerializer.class);
+
+    private OAuth2AuthenticationSerializer() {
+    }
+
+    public static byte[] serialize(OAuth2Authentication authentication) {
+        Authentication userAuthentication = authentication.getUserAuthentication();
+        OAuth2Request request = authentication.getOAuth2Request();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            if (userAuthentication == null) {
+                out.writeByte(NO_USER);
+            } else if (userAuthentication instanceof UaaAuthentication) {
+                out.writeByte(UAA_AUTHENTICATION);
+                writeString(out, JsonUtils.writeValueAsString(userAuthentication));
+            } else {
+                out.writeByte(UAA_PRINCIPAL);
+                writeString(out, JsonUtils.writeValueAsString(userAuthentication.getPrincipal()));
+                writeStrings(out, UaaStringUtils.getStringsFromAuthorities(userAuthentication.getAuthorities()));
+            }
+            Map<String, String> parameters = request.getRequestParameters();
+            out.writeInt(parameters == null ? NULL_LENGTH : parameters.size());
+            if (parameters != null) {
+                for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+            }
+            writeString(out, request.getClientId());
+            writeStrings(out, UaaStringUtils.getStringsFromAuthorities(request.getAuthorities()));
+            out.writeBoolean(request.isApproved());
+            writeStrings(out, request.getScope());
+            writeStrings(out, request.getResourceIds());
+            writeString(out, request.getRedirectUri());
+            writeStrings(out, request.getResponseTypes());
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize authentication", e);
+        }
+        //currently not serializing any of the
+        //Map<String, Serializable > extensionProperties
+        if (request.getExtensions() != null && request.getExtensions().size() > 0) {
+            logger.warn("[oauth_code] Unable to serialize extensions:" + request.getExtensions());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serializes the authentication as the JSON map that earlier versions
+     * write and read.
+     */
+    public static byte[] serializeJson(OAuth2Authentication authentication) {
+        Authentication userAuthentication = authentication.getUserAuthentication();
+        OAuth2Request request = authentication.getOAuth2Request();
+        HashMap<String, Object> data = new HashMap<>();
+        if (userAuthentication!=null) {
+            if (userAuthentication instanceof UaaAuthentication) {
+                data.put(USER_AUTHENTICATION_UAA_AUTHENTICATION, JsonUtils.writeValueAsString(userAuthentication));
+            } else {
+                data.put(USER_AUTHENTICATION_UAA_PRINCIPAL, JsonUtils.writeValueAsString(userAuthentication.getPrincipal()));
+                data.put(USER_AUTHENTICATION_AUTHORITIES, UaaStringUtils.getStringsFromAuthorities(userAuthentication.getAuthorities()));
+            }
+        }
+        data.put(OAUTH2_REQUEST_PARAMETERS, request.getRequestParameters());
+        data.put(OAUTH2_REQUEST_CLIENT_ID, request.getClientId());
+        data.put(OAUTH2_REQUEST_AUTHORITIES, UaaStringUtils.getStringsFromAuthorities(request.getAuthorities()));
+        data.put(OAUTH2_REQUEST_APPROVED, request.isApproved());
+        data.put(OAUTH2_REQUEST_SCOPE, request.getScope());
+        data.put(OAUTH2_REQUEST_RESOURCE_IDS, request.getResourceIds());
+        data.put(OAUTH2_REQUEST_REDIRECT_URI, request.getRedirectUri());
+        data.put(OAUTH2_REQUEST_RESPONSE_TYPES, request.getResponseTypes());
+
+        //currently not serializing any of the
+        //Map<String, Serializable > extensionProperties
+        if (request.getExtensions() != null && request.getExtensions().size() > 0) {
+            logger.warn("[oauth_code] Unable to serialize extensions:" + request.getExtensions());
+        }
+        return JsonUtils.writeValueAsBytes(data);
+    }
+
+    public static OAuth2Authentication deserialize(byte[] data) {
+        if (data != null && data.length > 0 && data[0] == '{') {
+            return deserializeJson(data);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown authorization code format:" + version);
+            }
+            Authentication userAuthentication = null;
+            switch (in.readByte()) {
+                case UAA_AUTHENTICATION:
+                    userAuthentication = JsonUtils.readValue(readString(in), UaaAuthentication.class);
+                    break;
+                case UAA_PRINCIPAL:
+                    UaaPrincipal principal = JsonUtils.readValue(readString(in), UaaPrincipal.class);
+                    Collection<? extends GrantedAuthority> userAuthorities = UaaStringUtils.getAuthoritiesFromStrings(readStrings(in));
+                    userAuthentication = new UaaAuthentication(principal, (List<? extends GrantedAuthority>) userAuthorities, UaaAuthenticationDetails.UNKNOWN);
+                    break;
+                default:
+                    break;
+            }
+            Map<String, String> requestParameters = null;
+            int size = in.readInt();
+            if (size != NULL_LENGTH) {
+                requestParameters = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    requestParameters.put(readString(in), readString(in));
+                }
+            }
+            String clientId = readString(in);
+            Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(readStrings(in));
+            boolean approved = in.readBoolean();
+            Collection<String> scope = readStrings(in);
+            Collection<String> resourceIds = readStrings(in);
+            String redirectUri = readString(in);
+            Collection<String> responseTypes = readStrings(in);
+            return createAuthentication(userAuthentication, requestParameters, clientId, authorities, approved, scope, resourceIds, redirectUri, responseTypes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to deserialize authentication", e);
+        }
+    }
+
+    protected static OAuth2Authentication deserializeJson(byte[] data) {
+        Map<String,Object> map = JsonUtils.readValue(data, new TypeReference<Map<String,Object>>() {});
+        Authentication userAuthentication = null;
+        if (map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION) != null) {
+            userAuthentication = JsonUtils.readValue((String)map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION), UaaAuthentication.class);
+        }
+        else if (map.get(USER_AUTHENTICATION_UAA_PRINCIPAL)!=null) {
+            UaaPrincipal principal = JsonUtils.readValue((String)map.get(USER_AUTHENTICATION_UAA_PRINCIPAL), UaaPrincipal.class);
+            Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings((Collection<String>) map.get(USER_AUTHENTICATION_AUTHORITIES));
+            userAuthentication = new UaaAuthentication(principal, (List<? extends GrantedAuthority>) authorities, UaaAuthenticationDetails.UNKNOWN);
+        }
+
+        return createAuthentication(
+            userAuthentication,
+            (Map<String, String>) map.get(OAUTH2_REQUEST_PARAMETERS),
+            (String) map.get(OAUTH2_REQUEST_CLIENT_ID),
+            UaaStringUtils.getAuthoritiesFromStrings((Collection<String>) map.get(OAUTH2_REQUEST_AUTHORITIES)),
+            (boolean) map.get(OAUTH2_REQUEST_APPROVED),
+            (Collection<String>) map.get(OAUTH2_REQUEST_SCOPE),
+            (Collection<String>) map.get(OAUTH2_REQUEST_RESOURCE_IDS),
+            (String) map.get(OAUTH2_REQUEST_REDIRECT_URI),
+            (Collection<String>) map.get(OAUTH2_REQUEST_RESPONSE_TYPES)
+        );
+    }
+
+    private static OAuth2Authentication createAuthentication(Authentication userAuthentication,
+                                                             Map<String, String> requestParameters,
+                                                             String clientId,
+                                                             Collection<? extends GrantedAuthority> authorities,
+                                                             boolean approved,
+                                                             Collection<String> scope,
+                                                             Collection<String> resourceIds,
+                                                             String redirectUri,
+                                                             Collection<String> responseTypes) {
+        OAuth2Request request = new OAuth2Request(
+            requestParameters,
+            clientId,
+            authorities,
+            approved,
+            toSet(scope),
+            toSet(resourceIds),
+            redirectUri,
+            toSet(responseTypes),
+            new HashMap<String,Serializable>()
+        );
+        return new OAuth2Authentication(request, userAuthentication);
+    }
+
+    private static HashSet<String> toSet(Collection<String> values) {
+        return values == null ? new HashSet<String>() : new HashSet<>(values);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values == null ? NULL_LENGTH : values.size());
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size == NULL_LENGTH) {
+            return null;
+        }
+        List<String> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(readString(in));
+        }
+        return result;
+    }
+}
@@ -20,6 +20,8 @@ import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
 import org.cloudfoundry.identity.uaa.client.ClientConstants;
+import org.cloudfoundry.identity.uaa.metrics.OperationMetrics;
+import org.cloudfoundry.identity.uaa.metrics.UaaMetrics;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
@@ -126,6 +128,8 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     private final Log logger = LogFactory.getLog(getClass());
 
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {};
+
     private UaaUserDatabase userDatabase = null;
 
     private ClientDetailsService clientDetailsService = null;
@@ -145,6 +149,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     private List<String> validIdTokenScopes = Arrays.asList("openid");
 
+    private OperationMetrics tokenIssuance;
+
+    public void setMetrics(UaaMetrics metrics) {
+        this.tokenIssuance = metrics.getOperation(UaaMetrics.TOKEN_ISSUANCE);
+    }
+
     public void setValidIdTokenScopes(List<String> validIdTokenScopes) {
         this.validIdTokenScopes = validIdTokenScopes;
     }
@@ -156,6 +166,18 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     @Override
     public OAuth2AccessToken refreshAccessToken(String refreshTokenValue, TokenRequest request) throws AuthenticationException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            OAuth2AccessToken token = issueRefreshedAccessToken(refreshTokenValue, request);
+            success = true;
+            return token;
+        } finally {
+            recordTokenIssuance(request == null ? null : request.getClientId(), start, success);
+        }
+    }
+
+    private OAuth2AccessToken issueRefreshedAccessToken(String refreshTokenValue, TokenRequest request) throws AuthenticationException {
         if (null == refreshTokenValue) {
             throw new InvalidTokenException("Invalid refresh token (empty token)");
         }
@@ -499,6 +521,24 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     @Override
     public OAuth2AccessToken createAccessToken(OAuth2Authentication authentication) throws AuthenticationException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            OAuth2AccessToken token = issueAccessToken(authentication);
+            success = true;
+            return token;
+        } finally {
+            recordTokenIssuance(authentication.getOAuth2Request() == null ? null : authentication.getOAuth2Request().getClientId(), start, success);
+        }
+    }
+
+    private void recordTokenIssuance(String clientId, long start, boolean success) {
+        if (tokenIssuance != null) {
+            tokenIssuance.record(IdentityZoneHolder.get().getId(), clientId, System.nanoTime() - start, success);
+        }
+    }
+
+    private OAuth2AccessToken issueAccessToken(OAuth2Authentication authentication) throws AuthenticationException {
 
         String userId;
         Date userAuthenticationTime = null;
@@ -615,7 +655,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         if (StringUtils.hasLength(authoritiesJson)) {
             try {
                 @SuppressWarnings("unchecked")
-                Map<String, Object> authorities = JsonUtils.readValue(authoritiesJson, new TypeReference<Map<String, Object>>() {});
+                Map<String, Object> authorities = JsonUtils.readValue(authoritiesJson, MAP_TYPE);
                 @SuppressWarnings("unchecked")
                 Map<String, String> additionalAuthorizationAttributes =
                     (Map<String, String>) authorities.get("az_attr");
@@ -944,7 +984,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
         Map<String, Object> claims = null;
         try {
-            claims = JsonUtils.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {});
+            claims = JsonUtils.readValue(tokenJwt.getClaims(), MAP_TYPE);
         } catch (JsonUtils.JsonUtilException e) {
             throw new IllegalStateException("Cannot read token claims", e);
         }
@@ -15,42 +15,32 @@
 package org.cloudfoundry.identity.uaa.oauth.token;
 
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
-import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
-import org.cloudfoundry.identity.uaa.util.JsonUtils;
-import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.codestore.ExpiringEntryStore;
+import org.cloudfoundry.identity.uaa.rest.jdbc.DefaultLimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.rest.jdbc.LimitSqlAdapter;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.SqlLobValue;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.security.oauth2.common.util.SerializationUtils;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
-import org.springframework.security.oauth2.provider.OAuth2Request;
 import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
 
 import javax.sql.DataSource;
-import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
 
-public class UaaTokenStore implements AuthorizationCodeServices {
+public class UaaTokenStore implements AuthorizationCodeServices, ExpiringEntryStore {
     public static final long EXPIRATION_TIME = 5*60*1000;
     public static final long LEGACY_CODE_EXPIRATION_TIME = 3*24*60*60*1000;
     public static final String USER_AUTHENTICATION_UAA_AUTHENTICATION = "userAuthentication.uaaAuthentication";
@@ -70,15 +60,17 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     private static final String SQL_SELECT_STATEMENT = "select code, user_id, client_id, expiresat, created, authentication from oauth_code where code = ?";
     private static final String SQL_INSERT_STATEMENT = "insert into oauth_code (code, user_id, client_id, expiresat, authentication) values (?, ?, ?, ?, ?)";
     private static final String SQL_DELETE_STATEMENT = "delete from oauth_code where code = ?";
-    private static final String SQL_EXPIRE_STATEMENT = "delete from oauth_code where expiresat > 0 AND expiresat < ?";
-    private static final String SQL_CLEAN_STATEMENT = "delete from oauth_code where created < ? and expiresat = 0";
+    private static final String SQL_SELECT_EXPIRED_STATEMENT = "select code from oauth_code where expiresat > 0 AND expiresat < ?";
+    private static final String SQL_SELECT_LEGACY_STATEMENT = "select code from oauth_code where expiresat = 0 AND created < ?";
 
     private final DataSource dataSource;
     private final long expirationTime;
     private final RandomValueStringGenerator generator = new RandomValueStringGenerator();
     private final RowMapper rowMapper = new TokenCodeRowMapper();
 
-    private final AtomicLong lastClean = new AtomicLong(0);
+    private LimitSqlAdapter limitSqlAdapter = new DefaultLimitSqlAdapter();
+
+    private boolean binaryFormat = false;
 
     public UaaTokenStore(DataSource dataSource) {
         this(dataSource, EXPIRATION_TIME);
@@ -92,7 +84,6 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     @Override
     public String createAuthorizationCode(OAuth2Authentication authentication) {
         final int max_tries = 3;
-        performExpirationClean();
         JdbcTemplate template = new JdbcTemplate(dataSource);
         int tries = 0;
         while ((tries++)<=max_tries) {
@@ -122,22 +113,18 @@ public class UaaTokenStore implements AuthorizationCodeServices {
 
     @Override
     public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
-        performExpirationClean();
         JdbcTemplate template = new JdbcTemplate(dataSource);
         try {
             TokenCode tokenCode = (TokenCode) template.queryForObject(SQL_SELECT_STATEMENT, rowMapper, code);
-            if (tokenCode != null) {
-                try {
-                    if (tokenCode.isExpired()) {
-                        logger.debug("[oauth_code] Found code, but it expired:"+tokenCode);
-                        throw new InvalidGrantException("Authorization code expired: " + code);
-                    } else if (tokenCode.getExpiresAt() == 0) {
-                        return SerializationUtils.deserialize(tokenCode.getAuthentication());
-                    } else {
-                        return deserializeOauth2Authentication(tokenCode.getAuthentication());
-                    }
-                } finally {
-                    template.update(SQL_DELETE_STATEMENT, code);
+            //only the request that removes the row gets to use the code
+            if (tokenCode != null && template.update(SQL_DELETE_STATEMENT, code) == 1) {
+                if (tokenCode.isExpired()) {
+                    logger.debug("[oauth_code] Found code, but it expired:"+tokenCode);
+                    throw new InvalidGrantException("Authorization code expired: " + code);
+                } else if (tokenCode.getExpiresAt() == 0) {
+                    return SerializationUtils.deserialize(tokenCode.getAuthentication());
+                } else {
+                    return deserializeOauth2Authentication(tokenCode.getAuthentication());
                 }
             }
         }catch (EmptyResultDataAccessException x) {
@@ -146,84 +133,59 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     }
 
     protected byte[] serializeOauth2Authentication(OAuth2Authentication auth2Authentication) {
-        Authentication userAuthentication = auth2Authentication.getUserAuthentication();
-        HashMap<String, Object> data = new HashMap<>();
-        if (userAuthentication!=null) {
-            if (userAuthentication instanceof UaaAuthentication) {
-                data.put(USER_AUTHENTICATION_UAA_AUTHENTICATION, JsonUtils.writeValueAsString(userAuthentication));
-            } else {
-                data.put(USER_AUTHENTICATION_UAA_PRINCIPAL, JsonUtils.writeValueAsString(userAuthentication.getPrincipal()));
-                data.put(USER_AUTHENTICATION_AUTHORITIES, UaaStringUtils.getStringsFromAuthorities(userAuthentication.getAuthorities()));
-            }
-        }
-        data.put(OAUTH2_REQUEST_PARAMETERS, auth2Authentication.getOAuth2Request().getRequestParameters());
-        data.put(OAUTH2_REQUEST_CLIENT_ID, auth2Authentication.getOAuth2Request().getClientId());
-        data.put(OAUTH2_REQUEST_AUTHORITIES, UaaStringUtils.getStringsFromAuthorities(auth2Authentication.getOAuth2Request().getAuthorities()));
-        data.put(OAUTH2_REQUEST_APPROVED, auth2Authentication.getOAuth2Request().isApproved());
-        data.put(OAUTH2_REQUEST_SCOPE, auth2Authentication.getOAuth2Request().getScope());
-        data.put(OAUTH2_REQUEST_RESOURCE_IDS, auth2Authentication.getOAuth2Request().getResourceIds());
-        data.put(OAUTH2_REQUEST_REDIRECT_URI, auth2Authentication.getOAuth2Request().getRedirectUri());
-        data.put(OAUTH2_REQUEST_RESPONSE_TYPES, auth2Authentication.getOAuth2Request().getResponseTypes());
-
-        //currently not serializing any of the
-        //Map<String, Serializable > extensionProperties
-        if (auth2Authentication.getOAuth2Request().getExtensions() != null && auth2Authentication.getOAuth2Request().getExtensions().size()>0) {
-            logger.warn("[oauth_code] Unable to serialize extensions:"+auth2Authentication.getOAuth2Request().getExtensions());
-        }
-        return JsonUtils.writeValueAsBytes(data);
+        return binaryFormat ? OAuth2AuthenticationSerializer.serialize(auth2Authentication) : OAuth2AuthenticationSerializer.serializeJson(auth2Authentication);
     }
 
     protected OAuth2Authentication deserializeOauth2Authentication(byte[] data) {
-        Map<String,Object> map = JsonUtils.readValue(data, new TypeReference<Map<String,Object>>() {});
-        Authentication userAuthentication = null;
-        if (map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION) != null) {
-            userAuthentication = JsonUtils.readValue((String)map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION), UaaAuthentication.class);
-        }
-        else if (map.get(USER_AUTHENTICATION_UAA_PRINCIPAL)!=null) {
-            UaaPrincipal principal = JsonUtils.readValue((String)map.get(USER_AUTHENTICATION_UAA_PRINCIPAL), UaaPrincipal.class);
-            Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings((Collection<String>) map.get(USER_AUTHENTICATION_AUTHORITIES));
-            userAuthentication = new UaaAuthentication(principal, (List<? extends GrantedAuthority>) authorities, UaaAuthenticationDetails.UNKNOWN);
-        }
+        return OAuth2AuthenticationSerializer.deserialize(data);
+    }
 
-        Map<String,String> requestParameters = (Map<String, String>) map.get(OAUTH2_REQUEST_PARAMETERS);
-        String clientId = (String) map.get(OAUTH2_REQUEST_CLIENT_ID);
-        Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings((Collection<String>) map.get(OAUTH2_REQUEST_AUTHORITIES));
-        boolean approved = (boolean) map.get(OAUTH2_REQUEST_APPROVED);
-        Collection<String> scope = (Collection<String>) map.get(OAUTH2_REQUEST_SCOPE);
-        Collection<String> resourceIds = (Collection<String>) map.get(OAUTH2_REQUEST_RESOURCE_IDS);
-        String redirectUri = (String) map.get(OAUTH2_REQUEST_REDIRECT_URI);
-        Collection<String> responseTypes = (Collection<String>) map.get(OAUTH2_REQUEST_RESPONSE_TYPES);
-
-        OAuth2Request request = new OAuth2Request(
-            requestParameters,
-            clientId,
-            authorities,
-            approved,
-            new HashSet<>(scope),
-            new HashSet<>(resourceIds),
-            redirectUri,
-            new HashSet<>(responseTypes),
-            new HashMap<String,Serializable>()
-        );
-
-        return new OAuth2Authentication(request, userAuthentication);
+    @Override
+    public String getStoreName() {
+        return "oauth_code";
     }
 
-    protected void performExpirationClean() {
-        long last = lastClean.get();
-        //check if we should expire again
-        if ((System.currentTimeMillis()-last) > getExpirationTime()) {
-            //avoid concurrent deletes from the same UAA - performance improvement
-            if (lastClean.compareAndSet(last, last+getExpirationTime())) {
-                JdbcTemplate template = new JdbcTemplate(dataSource);
-                int expired = template.update(SQL_EXPIRE_STATEMENT, System.currentTimeMillis());
-                logger.debug("[oauth_code] Removed "+expired+" expired entries.");
-                expired = template.update(SQL_CLEAN_STATEMENT, new Timestamp(System.currentTimeMillis()-LEGACY_CODE_EXPIRATION_TIME));
-                logger.debug("[oauth_code] Removed "+expired+" old entries.");
-            }
+    /**
+     * Removes expired codes, and legacy codes without an expiry that are older
+     * than {@link #LEGACY_CODE_EXPIRATION_TIME}.
+     */
+    @Override
+    public int purgeExpiredEntries(int batchSize) {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        long now = System.currentTimeMillis();
+        List<String> codes = new ArrayList<>(template.queryForList(limitSqlAdapter.getLimitSql(SQL_SELECT_EXPIRED_STATEMENT, 0, batchSize), String.class, now));
+        if (codes.size() < batchSize) {
+            Timestamp created = new Timestamp(now - LEGACY_CODE_EXPIRATION_TIME);
+            codes.addAll(template.queryForList(limitSqlAdapter.getLimitSql(SQL_SELECT_LEGACY_STATEMENT, 0, batchSize - codes.size()), String.class, created));
+        }
+        if (codes.isEmpty()) {
+            return 0;
+        }
+        List<Object[]> params = new ArrayList<>(codes.size());
+        for (String code : codes) {
+            params.add(new Object[] {code});
         }
+        template.batchUpdate(SQL_DELETE_STATEMENT, params);
+        logger.debug("[oauth_code] Removed "+codes.size()+" expired entries.");
+        return codes.size();
+    }
+
+    public void setLimitSqlAdapter(LimitSqlAdapter limitSqlAdapter) {
+        this.limitSqlAdapter = limitSqlAdapter;
+    }
 
+    /**
+     * Write new codes in the compact binary format instead of the JSON map
+     * (default false). Both formats are always read. Only turn this on once
+     * every node that shares the oauth_code table reads the binary format,
+     * otherwise nodes still on an older version can't redeem these codes.
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+    }
 
+    public boolean isBinaryFormat() {
+        return binaryFormat;
     }
 
     public long getExpirationTime() {
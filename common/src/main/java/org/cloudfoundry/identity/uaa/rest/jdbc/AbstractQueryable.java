@@ -12,7 +12,11 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,6 +40,8 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
 
     private int pageSize = 200;
 
+    private static final int MAX_IN_CLAUSE_SIZE = 1000;
+
     protected AbstractQueryable(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory,
                     RowMapper<T> rowMapper) {
         this.jdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
@@ -101,6 +107,36 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         }
     }
 
+    /**
+     * Runs the query once for every chunk of at most 1000 values, bound to
+     * the named parameter of an {@code IN} clause.
+     *
+     * @param sql the query, with {@code IN (:<parameterName>)}
+     * @param parameterName the name of the parameter the values are bound to
+     * @param values the values to look up
+     * @param params the other parameters of the query
+     * @return the rows of all chunks
+     */
+    protected List<T> queryInChunks(String sql, String parameterName, Collection<String> values, Map<String, ?> params) {
+        List<String> all = new ArrayList<>(values);
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < all.size(); i += MAX_IN_CLAUSE_SIZE) {
+            Map<String, Object> chunkParams = new HashMap<>(params);
+            chunkParams.put(parameterName, all.subList(i, Math.min(all.size(), i + MAX_IN_CLAUSE_SIZE)));
+            result.addAll(jdbcTemplate.query(sql, chunkParams, rowMapper));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the query converter compares the attribute without
+     *         wrapping it in LOWER()
+     */
+    protected boolean isCaseInsensitive(String attributeName) {
+        return queryConverter instanceof SimpleSearchQueryConverter
+            && ((SimpleSearchQueryConverter) queryConverter).isCaseInsensitive(attributeName);
+    }
+
     protected String getQuerySQL(String filter, SearchQueryConverter.ProcessedFilter where) {
         return filter == null || filter.trim().length()==0 ?
         getBaseSqlQuery() :
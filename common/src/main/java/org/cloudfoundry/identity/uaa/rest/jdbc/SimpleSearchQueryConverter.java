@@ -16,9 +16,13 @@ package org.cloudfoundry.identity.uaa.rest.jdbc;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import com.unboundid.scim.sdk.SCIMException;
 import com.unboundid.scim.sdk.SCIMFilter;
@@ -36,6 +40,8 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     private boolean dbCaseInsensitive = false;
 
+    private Set<String> caseInsensitiveAttributes = Collections.emptySet();
+
     public boolean isDbCaseInsensitive() {
         return dbCaseInsensitive;
     }
@@ -44,6 +50,29 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         this.dbCaseInsensitive = caseInsensitive;
     }
 
+    public Set<String> getCaseInsensitiveAttributes() {
+        return caseInsensitiveAttributes;
+    }
+
+    /**
+     * Internal attribute (column) names that compare case insensitive in the DB even when the
+     * DB as a whole does not, for example HSQLDB VARCHAR_IGNORECASE columns.
+     * Comparisons on these are not wrapped in LOWER() so that a plain index can be used.
+     */
+    public void setCaseInsensitiveAttributes(Collection<String> attributes) {
+        Set<String> result = new HashSet<>();
+        if (attributes != null) {
+            for (String attribute : attributes) {
+                result.add(attribute.toLowerCase(Locale.US));
+            }
+        }
+        this.caseInsensitiveAttributes = Collections.unmodifiableSet(result);
+    }
+
+    public boolean isCaseInsensitive(String attributeName) {
+        return isDbCaseInsensitive() || caseInsensitiveAttributes.contains(attributeName.toLowerCase(Locale.US));
+    }
+
     public void setAttributeNameMapper(AttributeNameMapper mapper) {
         this.mapper = mapper;
     }
@@ -138,10 +167,11 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
             if (value instanceof String) {
                 //lower is used to satisfy the requirement that all quoted values are compared case insensitive
                 values.put(pName, valuePrefix+value+valueSuffix);
-                if (isDbCaseInsensitive()) {
-                    return "" + getAttributeName(filter, mapper) + " "+comparator+" " + paramName+"";
+                String attributeName = getAttributeName(filter, mapper);
+                if (isCaseInsensitive(attributeName)) {
+                    return "" + attributeName + " "+comparator+" " + paramName+"";
                 } else {
-                    return "LOWER(" + getAttributeName(filter, mapper) + ") " + comparator + " LOWER(" + paramName + ")";
+                    return "LOWER(" + attributeName + ") " + comparator + " LOWER(" + paramName + ")";
                 }
             } else {
                 values.put(pName, value);
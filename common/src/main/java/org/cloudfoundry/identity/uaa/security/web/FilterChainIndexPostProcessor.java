@@ -0,0 +1,359 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+
+package org.cloudfoundry.identity.uaa.security.web;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.DefaultSecurityFilterChain;
+import org.springframework.security.web.FilterChainProxy;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.firewall.DefaultHttpFirewall;
+import org.springframework.security.web.firewall.FirewalledRequest;
+import org.springframework.security.web.firewall.HttpFirewall;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+/**
+ * Post processor which indexes the security filter chains of a
+ * {@link FilterChainProxy} by the path prefix of their request matcher.
+ *
+ * The filter chain proxy tries its chains in order and uses the first one
+ * that matches. With the index, a chain whose path prefix can not match the
+ * request is rejected without running its matcher, so a request only pays for
+ * the header, accept and parameter checks of the chains it could belong to.
+ * The chains themselves, their order and their matchers are unchanged, so the
+ * same chain is selected for every request.
+ *
+ * Only {@link UaaRequestMatcher} and {@link AntPathRequestMatcher} are
+ * indexed, chains using any other matcher are always tried.
+ */
+public class FilterChainIndexPostProcessor implements BeanPostProcessor {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof FilterChainProxy) || bean instanceof IndexedFilterChainProxy) {
+            return bean;
+        }
+        FilterChainProxy proxy = (FilterChainProxy) bean;
+        List<SecurityFilterChain> chains = proxy.getFilterChains();
+        FilterChainIndex index = new FilterChainIndex();
+        for (SecurityFilterChain chain : chains) {
+            index.add(chain);
+        }
+        IndexedFilterChainProxy indexed = new IndexedFilterChainProxy(chains, index);
+        DirectFieldAccessor accessor = new DirectFieldAccessor(proxy);
+        indexed.setFirewall((HttpFirewall) accessor.getPropertyValue("firewall"));
+        FilterChainProxy.FilterChainValidator validator = (FilterChainProxy.FilterChainValidator) accessor.getPropertyValue("filterChainValidator");
+        if (validator != null) {
+            indexed.setFilterChainValidator(validator);
+        }
+        indexed.afterPropertiesSet();
+        logger.info("Indexed " + chains.size() + " security filter chains of " + beanName + ", " + index.getAlwaysTried().cardinality()
+                        + " are tried for every request");
+        return indexed;
+    }
+
+    /**
+     * A filter chain proxy with the same chains that only tries the chains
+     * the index finds for the request path. The lookup of the chain is the
+     * only difference to {@link FilterChainProxy#doFilter}; the lookup by
+     * {@link #getFilters(String)} is left to the superclass.
+     */
+    public static class IndexedFilterChainProxy extends FilterChainProxy {
+        private static final String FILTER_APPLIED = FilterChainProxy.class.getName().concat(".APPLIED");
+
+        private final List<SecurityFilterChain> chains;
+        private final FilterChainIndex index;
+        private HttpFirewall firewall = new DefaultHttpFirewall();
+
+        IndexedFilterChainProxy(List<SecurityFilterChain> chains, FilterChainIndex index) {
+            super(chains);
+            this.chains = chains;
+            this.index = index;
+        }
+
+        @Override
+        public void setFirewall(HttpFirewall firewall) {
+            super.setFirewall(firewall);
+            this.firewall = firewall;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+            boolean clearContext = request.getAttribute(FILTER_APPLIED) == null;
+            if (clearContext) {
+                try {
+                    request.setAttribute(FILTER_APPLIED, Boolean.TRUE);
+                    doFilterInternal(request, response, chain);
+                } finally {
+                    SecurityContextHolder.clearContext();
+                    request.removeAttribute(FILTER_APPLIED);
+                }
+            } else {
+                doFilterInternal(request, response, chain);
+            }
+        }
+
+        private void doFilterInternal(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+            FirewalledRequest firewalledRequest = firewall.getFirewalledRequest((HttpServletRequest) request);
+            HttpServletResponse firewalledResponse = firewall.getFirewalledResponse((HttpServletResponse) response);
+            SecurityFilterChain securityFilterChain = getMatchingChain(firewalledRequest);
+            if (securityFilterChain == null || securityFilterChain.getFilters().isEmpty()) {
+                firewalledRequest.reset();
+                chain.doFilter(firewalledRequest, firewalledResponse);
+                return;
+            }
+            new VirtualFilterChain(firewalledRequest, chain, securityFilterChain.getFilters()).doFilter(firewalledRequest, firewalledResponse);
+        }
+
+        /**
+         * @return the first chain that matches the request, trying only the
+         *         candidates from the index
+         */
+        public SecurityFilterChain getMatchingChain(HttpServletRequest request) {
+            BitSet candidates = index.getCandidates(request);
+            for (int i = candidates.nextSetBit(0); i >= 0 && i < chains.size(); i = candidates.nextSetBit(i + 1)) {
+                SecurityFilterChain chain = chains.get(i);
+                if (chain.matches(request)) {
+                    return chain;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Runs the filters of the selected chain and then the rest of the
+     * servlet filter chain, as the one in {@link FilterChainProxy} does.
+     */
+    private static final class VirtualFilterChain implements FilterChain {
+        private final FirewalledRequest firewalledRequest;
+        private final FilterChain originalChain;
+        private final List<Filter> filters;
+        private int position = 0;
+
+        private VirtualFilterChain(FirewalledRequest firewalledRequest, FilterChain originalChain, List<Filter> filters) {
+            this.firewalledRequest = firewalledRequest;
+            this.originalChain = originalChain;
+            this.filters = filters;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+            if (position == filters.size()) {
+                firewalledRequest.reset();
+                originalChain.doFilter(request, response);
+            } else {
+                filters.get(position++).doFilter(request, response, this);
+            }
+        }
+    }
+
+    /**
+     * The chains that can match a request path. UaaRequestMatcher compares
+     * its path with the start of the request URI, while AntPathRequestMatcher
+     * matches its pattern against the servlet path, possibly ignoring case
+     * and empty or blank path segments. Each is indexed by the prefix of the
+     * request it can match, in a form that never excludes a chain whose
+     * matcher would accept the request.
+     */
+    static class FilterChainIndex {
+        private static final String ATTRIBUTE = FilterChainIndex.class.getName() + ".CANDIDATES";
+
+        private final BitSet alwaysTried = new BitSet();
+        private final PrefixIndex uriIndex = new PrefixIndex();
+        private final PrefixIndex servletPathIndex = new PrefixIndex();
+        private int size = 0;
+
+        void add(SecurityFilterChain chain) {
+            int position = size++;
+            RequestMatcher matcher = chain instanceof DefaultSecurityFilterChain ? ((DefaultSecurityFilterChain) chain).getRequestMatcher() : null;
+            if (matcher instanceof UaaRequestMatcher) {
+                uriIndex.add(((UaaRequestMatcher) matcher).getPath(), position);
+            } else if (matcher instanceof AntPathRequestMatcher) {
+                String prefix = getAntPatternPrefix(((AntPathRequestMatcher) matcher).getPattern());
+                if (prefix == null) {
+                    alwaysTried.set(position);
+                } else {
+                    servletPathIndex.add(prefix, position);
+                }
+            } else {
+                alwaysTried.set(position);
+            }
+        }
+
+        BitSet getAlwaysTried() {
+            return alwaysTried;
+        }
+
+        BitSet getCandidates(HttpServletRequest request) {
+            String uri = request.getRequestURI();
+            String contextPath = request.getContextPath();
+            String servletPath = request.getServletPath();
+            String pathInfo = request.getPathInfo();
+            Object cached = request.getAttribute(ATTRIBUTE);
+            if (cached instanceof Candidates && ((Candidates) cached).isFor(this, uri, contextPath, servletPath, pathInfo)) {
+                return ((Candidates) cached).candidates;
+            }
+            BitSet candidates = (BitSet) alwaysTried.clone();
+            if (uri != null) {
+                String path = contextPath == null ? uri : uri.startsWith(contextPath) ? uri.substring(contextPath.length()) : null;
+                if (path != null) {
+                    uriIndex.addCandidates(path, candidates);
+                }
+            }
+            String requestPath = servletPath == null ? "" : servletPath;
+            if (pathInfo != null) {
+                requestPath += pathInfo;
+            }
+            servletPathIndex.addCandidates(normalize(requestPath).toLowerCase(), candidates);
+            request.setAttribute(ATTRIBUTE, new Candidates(this, uri, contextPath, servletPath, pathInfo, candidates));
+            return candidates;
+        }
+
+        /**
+         * @return the lower case literal start of every path the pattern
+         *         matches after {@link #normalize(String) normalization}, or
+         *         null if the pattern can match any path
+         */
+        static String getAntPatternPrefix(String pattern) {
+            StringBuilder prefix = new StringBuilder();
+            for (String token : pattern.split("/")) {
+                token = token.trim();
+                if (token.length() == 0) {
+                    continue;
+                }
+                int wildcard = indexOfWildcard(token);
+                if (wildcard < 0) {
+                    prefix.append('/').append(token);
+                } else {
+                    if (wildcard > 0) {
+                        prefix.append('/').append(token.substring(0, wildcard));
+                    }
+                    break;
+                }
+            }
+            return prefix.length() == 0 ? null : prefix.toString().toLowerCase();
+        }
+
+        private static int indexOfWildcard(String token) {
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (c == '*' || c == '?' || c == '{') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Drops empty path segments and trims blank space around the others,
+         * as the ant path matcher does.
+         */
+        static String normalize(String path) {
+            StringBuilder result = new StringBuilder();
+            for (String token : path.split("/")) {
+                token = token.trim();
+                if (token.length() > 0) {
+                    result.append('/').append(token);
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    private static final class Candidates {
+        private final FilterChainIndex index;
+        private final String uri;
+        private final String contextPath;
+        private final String servletPath;
+        private final String pathInfo;
+        private final BitSet candidates;
+
+        private Candidates(FilterChainIndex index, String uri, String contextPath, String servletPath, String pathInfo, BitSet candidates) {
+            this.index = index;
+            this.uri = uri;
+            this.contextPath = contextPath;
+            this.servletPath = servletPath;
+            this.pathInfo = pathInfo;
+            this.candidates = candidates;
+        }
+
+        private boolean isFor(FilterChainIndex index, String uri, String contextPath, String servletPath, String pathInfo) {
+            return this.index == index && equals(this.uri, uri) && equals(this.contextPath, contextPath)
+                            && equals(this.servletPath, servletPath) && equals(this.pathInfo, pathInfo);
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Chain positions by path prefix. A path is looked up once for every
+     * distinct prefix length.
+     */
+    private static final class PrefixIndex {
+        private final Map<String, BitSet> positions = new HashMap<>();
+        private final TreeSet<Integer> lengths = new TreeSet<>();
+
+        private void add(String prefix, int position) {
+            BitSet bits = positions.get(prefix);
+            if (bits == null) {
+                bits = new BitSet();
+                positions.put(prefix, bits);
+            }
+            bits.set(position);
+            lengths.add(prefix.length());
+        }
+
+        private void addCandidates(String path, BitSet candidates) {
+            for (int length : lengths) {
+                if (length > path.length()) {
+                    break;
+                }
+                BitSet bits = positions.get(path.substring(0, length));
+                if (bits != null) {
+                    candidates.or(bits);
+                }
+            }
+        }
+    }
+}
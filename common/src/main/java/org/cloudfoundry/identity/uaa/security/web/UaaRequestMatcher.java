@@ -64,6 +64,14 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
         this.path = path;
     }
 
+    /**
+     * @return the start of the request URI, after the context path, that the
+     *         request should have
+     */
+    public String getPath() {
+        return path;
+    }
+
     /**
      * The HttpMethod that the request should be made with. Optional (if null,
      * then all values match)
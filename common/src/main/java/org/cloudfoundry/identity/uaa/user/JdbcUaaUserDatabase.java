@@ -44,12 +44,21 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
     public static final String DEFAULT_USER_BY_USERNAME_QUERY = "select " + USER_FIELDS + "from users "
                     + "where lower(username) = ? and active=? and origin=? and identity_zone_id=?";
 
+    /**
+     * Used when the username column compares case insensitive on its own (MySQL
+     * collation, HSQLDB VARCHAR_IGNORECASE), so the lookup can use users_unique_key
+     */
+    public static final String DEFAULT_CASE_INSENSITIVE_USER_BY_USERNAME_QUERY = "select " + USER_FIELDS + "from users "
+                    + "where username = ? and active=? and origin=? and identity_zone_id=?";
+
     public static final String DEFAULT_USER_BY_ID_QUERY = "select " + USER_FIELDS + "from users "
         + "where id = ? and active=?";
 
     private String userAuthoritiesQuery = null;
 
-    private String userByUserNameQuery = DEFAULT_USER_BY_USERNAME_QUERY;
+    private String userByUserNameQuery = null;
+
+    private boolean caseInsensitive = false;
 
     private JdbcTemplate jdbcTemplate;
 
@@ -61,6 +70,14 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         this.userByUserNameQuery = userByUserNameQuery;
     }
 
+    public boolean isCaseInsensitive() {
+        return caseInsensitive;
+    }
+
+    public void setCaseInsensitive(boolean caseInsensitive) {
+        this.caseInsensitive = caseInsensitive;
+    }
+
     public void setUserAuthoritiesQuery(String userAuthoritiesQuery) {
         this.userAuthoritiesQuery = userAuthoritiesQuery;
     }
@@ -77,7 +94,7 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
     @Override
     public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
         try {
-            return jdbcTemplate.queryForObject(userByUserNameQuery, mapper, username.toLowerCase(Locale.US), true, origin, IdentityZoneHolder.get().getId());
+            return jdbcTemplate.queryForObject(getUserByUserNameQuery(), mapper, username.toLowerCase(Locale.US), true, origin, IdentityZoneHolder.get().getId());
         } catch (EmptyResultDataAccessException e) {
             throw new UsernameNotFoundException(username);
         }
@@ -92,6 +109,13 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         }
     }
 
+    protected String getUserByUserNameQuery() {
+        if (userByUserNameQuery != null) {
+            return userByUserNameQuery;
+        }
+        return isCaseInsensitive() ? DEFAULT_CASE_INSENSITIVE_USER_BY_USERNAME_QUERY : DEFAULT_USER_BY_USERNAME_QUERY;
+    }
+
     private final class UaaUserRowMapper implements RowMapper<UaaUser> {
         @Override
         public UaaUser mapRow(ResultSet rs, int rowNum) throws SQLException {
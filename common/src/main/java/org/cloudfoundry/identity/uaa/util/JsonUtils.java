@@ -12,22 +12,46 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.springframework.util.StringUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-
+/**
+ * JSON conversion through a single shared {@link ObjectMapper}.
+ *
+ * The readers and writers used for each type are created once and cached, so
+ * the root (de)serializer of a type, and for a {@link TypeReference} the
+ * resolved generic type, are not looked up again on every call. The caches are
+ * cleared when they reach {@link #MAX_CACHED_TYPES}, which only happens if the
+ * set of types passed in is unbounded.
+ */
 public class JsonUtils {
+    static final int MAX_CACHED_TYPES = 500;
+
     private static ObjectMapper objectMapper = new ObjectMapper();
 
+    private static final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
     public static String writeValueAsString(Object object) throws JsonUtilException {
         try {
-            return objectMapper.writeValueAsString(object);
+            return getWriter(object).writeValueAsString(object);
         } catch (IOException e) {
             throw new JsonUtilException(e);
         }
@@ -35,7 +59,18 @@ public class JsonUtils {
 
     public static byte[] writeValueAsBytes(Object object) throws JsonUtilException {
         try {
-            return objectMapper.writeValueAsBytes(object);
+            return getWriter(object).writeValueAsBytes(object);
+        } catch (IOException e) {
+            throw new JsonUtilException(e);
+        }
+    }
+
+    /**
+     * Writes the object as UTF-8 encoded JSON to the stream, which is left open.
+     */
+    public static void writeValue(OutputStream out, Object object) throws JsonUtilException {
+        try {
+            getWriter(object).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET).writeValue(out, object);
         } catch (IOException e) {
             throw new JsonUtilException(e);
         }
@@ -44,7 +79,7 @@ public class JsonUtils {
     public static <T> T readValue(String s, Class<T> clazz) throws JsonUtilException {
         try {
             if (StringUtils.hasText(s)) {
-                return objectMapper.readValue(s, clazz);
+                return getReader(clazz).readValue(s);
             } else {
                 return null;
             }
@@ -56,7 +91,7 @@ public class JsonUtils {
     public static <T> T readValue(byte[] data, Class<T> clazz) throws JsonUtilException {
         try {
             if (data!=null && data.length>0) {
-                return objectMapper.readValue(data, clazz);
+                return getReader(clazz).readValue(data);
             } else {
                 return null;
             }
@@ -65,10 +100,19 @@ public class JsonUtils {
         }
     }
 
+    /**
+     * Reads a single value from the stream, which is left open.
+     *
+     * @return the value, or null if the stream is empty
+     */
+    public static <T> T readValue(InputStream in, Class<T> clazz) throws JsonUtilException {
+        return readValue(in, (Type) clazz);
+    }
+
     public static <T> T readValue(String s, TypeReference typeReference) {
         try {
             if (StringUtils.hasText(s)) {
-                return objectMapper.readValue(s, typeReference);
+                return getReader(typeReference.getType()).readValue(s);
             } else {
                 return null;
             }
@@ -80,7 +124,7 @@ public class JsonUtils {
     public static <T> T readValue(byte[] data, TypeReference typeReference) {
         try {
             if (data!=null && data.length>0) {
-                return objectMapper.readValue(data, typeReference);
+                return getReader(typeReference.getType()).readValue(data);
             } else {
                 return null;
             }
@@ -89,6 +133,70 @@ public class JsonUtils {
         }
     }
 
+    /**
+     * Reads a single value from the stream, which is left open.
+     *
+     * @return the value, or null if the stream is empty
+     */
+    public static <T> T readValue(InputStream in, TypeReference typeReference) {
+        return readValue(in, typeReference.getType());
+    }
+
+    private static <T> T readValue(InputStream in, Type type) {
+        try {
+            if (in == null) {
+                return null;
+            }
+            JsonParser parser = objectMapper.getFactory().createParser(in);
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            try {
+                if (parser.nextToken() == null) {
+                    return null;
+                }
+                return getReader(type).readValue(parser);
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new JsonUtilException(e);
+        }
+    }
+
+    static ObjectReader getReader(Type type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            if (readers.size() >= MAX_CACHED_TYPES) {
+                readers.clear();
+            }
+            reader = objectMapper.reader(objectMapper.getTypeFactory().constructType(type));
+            readers.put(type, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * The writer for the runtime class of the object, as
+     * {@link ObjectMapper#writeValueAsString(Object)} would use. Arrays,
+     * collections and maps are written without a cached writer.
+     */
+    static ObjectWriter getWriter(Object object) {
+        Class<?> type = object == null ? null : object.getClass();
+        if (type == null || type.isArray() || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)) {
+            // a writer for a container type writes every element as the
+            // declared element type instead of its runtime class
+            return objectMapper.writer();
+        }
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            if (writers.size() >= MAX_CACHED_TYPES) {
+                writers.clear();
+            }
+            writer = objectMapper.writerFor(type);
+            writers.put(type, writer);
+        }
+        return writer;
+    }
+
     public static <T> T convertValue(Object object, Class<T> toClazz) throws JsonUtilException {
         try {
             if (object == null) {
@@ -19,6 +19,8 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -59,6 +61,8 @@ public class CorsFilter extends OncePerRequestFilter {
 
     static final Log LOG = LogFactory.getLog(CorsFilter.class);
 
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(\\d|k<)");
+
     /**
      * A comma delimited list of regular expression patterns that defines which
      * UAA URIs allow the "X-Requested-With" header in CORS requests.
@@ -81,6 +85,25 @@ public class CorsFilter extends OncePerRequestFilter {
     @Value("#{'${cors.xhr.allowed.headers:Accept,Authorization}'.split(',')}")
     private List<String> allowedHeaders;
 
+    /**
+     * The number of seconds browsers may cache the result of a pre-flight
+     * request.
+     */
+    @Value("${cors.xhr.max_age:1728000}")
+    private int maxAge = 1728000;
+
+    /**
+     * The allowed URI and origin patterns, each combined into a single
+     * alternation so that a request is matched in one pass.
+     */
+    private Pattern corsXhrAllowedUriPattern;
+
+    private Pattern corsXhrAllowedOriginPattern;
+
+    private final ConcurrentMap<String, Boolean> corsXhrAllowedOriginCache = new ConcurrentHashMap<>();
+
+    private int maxOriginCacheSize = 1000;
+
     @PostConstruct
     public void initialize() {
 
@@ -113,6 +136,36 @@ public class CorsFilter extends OncePerRequestFilter {
                 }
             }
         }
+
+        this.corsXhrAllowedUriPattern = combine(this.corsXhrAllowedUriPatterns);
+        this.corsXhrAllowedOriginPattern = combine(this.corsXhrAllowedOriginPatterns);
+        this.corsXhrAllowedOriginCache.clear();
+    }
+
+    /**
+     * Combines the patterns into one that finds a match wherever any of them
+     * does. Patterns using back references can not be renumbered safely and
+     * are then matched one by one.
+     */
+    static Pattern combine(List<Pattern> patterns) {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        StringBuilder combined = new StringBuilder();
+        for (Pattern pattern : patterns) {
+            if (pattern.flags()!=0 || BACK_REFERENCE.matcher(pattern.pattern()).find()) {
+                return null;
+            }
+            if (combined.length()>0) {
+                combined.append('|');
+            }
+            combined.append("(?:").append(pattern.pattern()).append(')');
+        }
+        try {
+            return Pattern.compile(combined.toString());
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
     }
 
 
@@ -161,7 +214,7 @@ public class CorsFilter extends OncePerRequestFilter {
             // CORS "pre-flight" request
             response.addHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE");
             response.addHeader("Access-Control-Allow-Headers", "Authorization");
-            response.addHeader("Access-Control-Max-Age", "1728000");
+            response.addHeader("Access-Control-Max-Age", String.valueOf(maxAge));
         } else {
             filterChain.doFilter(request, response);
         }
@@ -206,7 +259,7 @@ public class CorsFilter extends OncePerRequestFilter {
             return;
         }
         response.addHeader("Access-Control-Allow-Headers", "Authorization, X-Requested-With");
-        response.addHeader("Access-Control-Max-Age", "1728000");
+        response.addHeader("Access-Control-Max-Age", String.valueOf(maxAge));
     }
 
     private static boolean containsHeader(final String accessControlRequestHeaders, final String header) {
@@ -236,11 +289,8 @@ public class CorsFilter extends OncePerRequestFilter {
             return false;
         }
 
-        for (Pattern pattern : this.corsXhrAllowedUriPatterns) {
-            // Making sure that the pattern matches
-            if (pattern.matcher(uri).find()) {
-                return true;
-            }
+        if (matches(this.corsXhrAllowedUriPattern, this.corsXhrAllowedUriPatterns, uri)) {
+            return true;
         }
         if (LOG.isDebugEnabled()) {
             LOG.debug(String.format("The '%s' URI does not allow CORS requests with the 'X-Requested-With' header.",
@@ -249,13 +299,35 @@ public class CorsFilter extends OncePerRequestFilter {
         return false;
     }
 
-    private boolean isCorsXhrAllowedOrigin(final String origin) {
-        for (Pattern pattern : this.corsXhrAllowedOriginPatterns) {
+    private static boolean matches(Pattern combined, List<Pattern> patterns, String value) {
+        if (combined!=null) {
+            return combined.matcher(value).find();
+        }
+        for (Pattern pattern : patterns) {
             // Making sure that the pattern matches
-            if (pattern.matcher(origin).find()) {
+            if (pattern.matcher(value).find()) {
                 return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * The decision for each origin is cached, browsers only ever send a
+     * handful of distinct origins. The cache is emptied when it is full.
+     */
+    private boolean isCorsXhrAllowedOrigin(final String origin) {
+        Boolean allowed = this.corsXhrAllowedOriginCache.get(origin);
+        if (allowed==null) {
+            allowed = matches(this.corsXhrAllowedOriginPattern, this.corsXhrAllowedOriginPatterns, origin);
+            if (this.corsXhrAllowedOriginCache.size()>=this.maxOriginCacheSize) {
+                this.corsXhrAllowedOriginCache.clear();
+            }
+            this.corsXhrAllowedOriginCache.put(origin, allowed);
+        }
+        if (allowed) {
+            return true;
+        }
         if (LOG.isDebugEnabled()) {
             LOG.debug(String.format(
                     "The '%s' origin is not allowed to make CORS requests with the 'X-Requested-With' header.",
@@ -275,4 +347,12 @@ public class CorsFilter extends OncePerRequestFilter {
     public void setAllowedHeaders(List<String> allowedHeaders) {
         this.allowedHeaders = allowedHeaders;
     }
+
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public void setMaxOriginCacheSize(int maxOriginCacheSize) {
+        this.maxOriginCacheSize = maxOriginCacheSize;
+    }
 }
\ No newline at end of file
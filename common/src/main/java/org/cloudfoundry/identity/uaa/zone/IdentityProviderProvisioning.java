@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IdentityProviderProvisioning {
@@ -28,5 +29,11 @@ public interface IdentityProviderProvisioning {
 
     IdentityProvider retrieveByOrigin(String origin, String zoneId);
 
+    /**
+     * @return the providers of the given type, in every zone, that were created
+     *         or last modified at or after the given time
+     */
+    List<IdentityProvider> retrieveModifiedSince(String type, Date since);
+
 
 }
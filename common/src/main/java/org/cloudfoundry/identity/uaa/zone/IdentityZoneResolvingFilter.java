@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.zone;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.metrics.OperationMetrics;
+import org.cloudfoundry.identity.uaa.metrics.UaaMetrics;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.web.filter.OncePerRequestFilter;
 
@@ -37,6 +39,7 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
     private IdentityZoneProvisioning dao;
     private Set<String> defaultZoneHostnames = new HashSet<>();
     private Log logger = LogFactory.getLog(getClass());
+    private OperationMetrics zoneResolution;
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
@@ -45,6 +48,7 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         String hostname = request.getServerName();
         String subdomain = getSubdomain(hostname);
         if (subdomain != null) {
+            long start = System.nanoTime();
             try {
                 identityZone = dao.retrieveBySubdomain(subdomain);
             } catch (EmptyResultDataAccessException ex) {
@@ -53,6 +57,10 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
                 logger.debug("Internal server error while fetching identity zone for subdomain" + subdomain, ex);
                 response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error while fetching identity zone for subdomain " + subdomain);
                 return;
+            } finally {
+                if (zoneResolution != null) {
+                    zoneResolution.record(identityZone == null ? null : identityZone.getId(), null, System.nanoTime() - start, identityZone != null);
+                }
             }
         }
         if (identityZone == null) {
@@ -79,6 +87,10 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         return null;
     }
 
+    public void setMetrics(UaaMetrics metrics) {
+        this.zoneResolution = metrics.getOperation(UaaMetrics.ZONE_RESOLUTION);
+    }
+
     public void setIdentityZoneProvisioning(IdentityZoneProvisioning dao) {
         this.dao = dao;
     }
@@ -47,6 +47,8 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     public static final String IDENTITY_PROVIDER_BY_ID_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where id=?";
 
+    public static final String IDENTITY_PROVIDERS_MODIFIED_SINCE_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where type=? and lastmodified>=?";
+
     public static final String IDENTITY_PROVIDER_BY_ORIGIN_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where origin_key=? and identity_zone_id=? ";
 
     protected final JdbcTemplate jdbcTemplate;
@@ -84,6 +86,11 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         return identityProvider;
     }
 
+    @Override
+    public List<IdentityProvider> retrieveModifiedSince(String type, Date since) {
+        return jdbcTemplate.query(IDENTITY_PROVIDERS_MODIFIED_SINCE_QUERY, mapper, type, new Timestamp(since.getTime()));
+    }
+
     @Override
     public IdentityProvider create(final IdentityProvider identityProvider) {
         validate(identityProvider);
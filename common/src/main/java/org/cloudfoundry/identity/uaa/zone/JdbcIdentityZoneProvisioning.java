@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import org.cloudfoundry.identity.uaa.db.ReplicaRouter;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -54,7 +55,7 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning {
     @Override
     public IdentityZone retrieve(String id) {
         try {
-            IdentityZone identityZone = jdbcTemplate.queryForObject(IDENTITY_ZONE_BY_ID_QUERY, mapper, id);
+            IdentityZone identityZone = ReplicaRouter.readOnly(() -> jdbcTemplate.queryForObject(IDENTITY_ZONE_BY_ID_QUERY, mapper, id));
             return identityZone;
         } catch (EmptyResultDataAccessException x) {
             throw new ZoneDoesNotExistsException("Zone["+id+"] not found.", x);
@@ -71,7 +72,7 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning {
         if (subdomain==null) {
             throw new EmptyResultDataAccessException("Subdomain cannot be null", 1);
         }
-        IdentityZone identityZone = jdbcTemplate.queryForObject(IDENTITY_ZONE_BY_SUBDOMAIN_QUERY, mapper, subdomain.toLowerCase());
+        IdentityZone identityZone = ReplicaRouter.readOnly(() -> jdbcTemplate.queryForObject(IDENTITY_ZONE_BY_SUBDOMAIN_QUERY, mapper, subdomain.toLowerCase()));
         return identityZone;
     }
 
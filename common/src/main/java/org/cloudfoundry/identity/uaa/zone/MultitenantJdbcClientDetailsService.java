@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.zone;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.metrics.OperationMetrics;
+import org.cloudfoundry.identity.uaa.metrics.UaaMetrics;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.springframework.dao.DuplicateKeyException;
@@ -40,6 +42,7 @@ import javax.sql.DataSource;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -96,6 +99,8 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     private PasswordEncoder passwordEncoder = NoOpPasswordEncoder.getInstance();
 
+    private OperationMetrics clientLoads;
+
     private final JdbcTemplate jdbcTemplate;
 
     private JdbcListFactory listFactory;
@@ -115,17 +120,35 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         this.passwordEncoder = passwordEncoder;
     }
 
+    public PasswordEncoder getPasswordEncoder() {
+        return passwordEncoder;
+    }
+
     public ClientDetails loadClientByClientId(String clientId) throws InvalidClientException {
         ClientDetails details;
+        String zoneId = IdentityZoneHolder.get().getId();
+        long start = System.nanoTime();
         try {
-            details = jdbcTemplate.queryForObject(selectClientDetailsSql, new ClientDetailsRowMapper(), clientId, IdentityZoneHolder.get().getId());
+            details = jdbcTemplate.queryForObject(selectClientDetailsSql, new ClientDetailsRowMapper(), clientId, zoneId);
         } catch (EmptyResultDataAccessException e) {
+            recordClientLoad(zoneId, clientId, start, false);
             throw new NoSuchClientException("No client with requested id: " + clientId);
         }
+        recordClientLoad(zoneId, clientId, start, true);
 
         return details;
     }
 
+    private void recordClientLoad(String zoneId, String clientId, long start, boolean success) {
+        if (clientLoads != null) {
+            clientLoads.record(zoneId, clientId, System.nanoTime() - start, success);
+        }
+    }
+
+    public void setMetrics(UaaMetrics metrics) {
+        this.clientLoads = metrics.getOperation(UaaMetrics.CLIENT_LOAD);
+    }
+
     public void addClientDetails(ClientDetails clientDetails) throws ClientAlreadyExistsException {
         try {
             jdbcTemplate.update(insertClientDetailsSql, getFields(clientDetails));
@@ -134,6 +157,58 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         }
     }
 
+    /**
+     * Inserts several clients with a single JDBC batch. Unlike
+     * {@link #addClientDetails(ClientDetails)} the client secrets of the
+     * supplied clients are expected to be encoded already.
+     */
+    public void addEncodedClientDetails(List<? extends ClientDetails> clients) throws ClientAlreadyExistsException {
+        List<Object[]> args = new ArrayList<>();
+        for (ClientDetails clientDetails : clients) {
+            args.add(getFields(clientDetails, clientDetails.getClientSecret()));
+        }
+        try {
+            jdbcTemplate.batchUpdate(insertClientDetailsSql, args);
+        } catch (DuplicateKeyException e) {
+            throw new ClientAlreadyExistsException("Client already exists: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Updates several clients with a single JDBC batch.
+     */
+    public void updateClientDetails(List<? extends ClientDetails> clients) throws NoSuchClientException {
+        List<Object[]> args = new ArrayList<>();
+        for (ClientDetails clientDetails : clients) {
+            args.add(getFieldsForUpdate(clientDetails));
+        }
+        int[] counts = jdbcTemplate.batchUpdate(updateClientDetailsSql, args);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                throw new NoSuchClientException("No client found with id = " + clients.get(i).getClientId() + " in identity zone "+IdentityZoneHolder.get().getName());
+            }
+        }
+    }
+
+    /**
+     * Updates the secrets of several clients with a single JDBC batch.
+     *
+     * @param encodedSecrets already encoded client secrets keyed by client id
+     */
+    public void updateEncodedClientSecrets(Map<String, String> encodedSecrets) throws NoSuchClientException {
+        List<String> clientIds = new ArrayList<>(encodedSecrets.keySet());
+        List<Object[]> args = new ArrayList<>();
+        for (String clientId : clientIds) {
+            args.add(new Object[] {encodedSecrets.get(clientId), clientId, IdentityZoneHolder.get().getId()});
+        }
+        int[] counts = jdbcTemplate.batchUpdate(updateClientSecretSql, args);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                throw new NoSuchClientException("No client found with id = " + clientIds.get(i));
+            }
+        }
+    }
+
     public void updateClientDetails(ClientDetails clientDetails) throws NoSuchClientException {
         int count = jdbcTemplate.update(updateClientDetailsSql, getFieldsForUpdate(clientDetails));
         if (count != 1) {
@@ -160,11 +235,15 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
     }
 
     private Object[] getFields(ClientDetails clientDetails) {
+        return getFields(clientDetails, clientDetails.getClientSecret() != null ? passwordEncoder.encode(clientDetails.getClientSecret())
+                : null);
+    }
+
+    private Object[] getFields(ClientDetails clientDetails, String encodedSecret) {
         Object[] fieldsForUpdate = getFieldsForUpdate(clientDetails);
         Object[] fields = new Object[fieldsForUpdate.length + 1];
         System.arraycopy(fieldsForUpdate, 0, fields, 1, fieldsForUpdate.length);
-        fields[0] = clientDetails.getClientSecret() != null ? passwordEncoder.encode(clientDetails.getClientSecret())
-                : null;
+        fields[0] = encodedSecret;
         return fields;
     }
 
@@ -0,0 +1,31 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+-- external groups are stored lower case so that lookups can use external_group_unique_key
+-- remove mixed case duplicates first, keeping the lower case (or lowest sorting) entry
+DELETE FROM external_group_mapping WHERE external_group <> LOWER(external_group) AND EXISTS (
+  SELECT 1 FROM external_group_mapping e
+  WHERE e.group_id = external_group_mapping.group_id
+  AND e.origin = external_group_mapping.origin
+  AND LOWER(e.external_group) = LOWER(external_group_mapping.external_group)
+  AND (e.external_group = LOWER(e.external_group) OR e.external_group < external_group_mapping.external_group)
+);
+UPDATE external_group_mapping SET external_group = LOWER(external_group) WHERE external_group <> LOWER(external_group);
+
+-- HSQLDB does not support indices with function - username is already case insensitive, make email match
+DROP INDEX user_perf_email IF EXISTS;
+ALTER TABLE users ALTER COLUMN email SET DATA TYPE VARCHAR_IGNORECASE(255);
+CREATE INDEX user_perf_email ON users(email);
+
+-- username lookups without an origin
+CREATE INDEX user_perf_username ON users(username,identity_zone_id);
@@ -0,0 +1,24 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+-- cache entries changed on one node, tailed by id by every other node
+CREATE TABLE cache_invalidation (
+   id BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1) PRIMARY KEY,
+   cache_name VARCHAR(255) NOT NULL,
+   cache_key VARCHAR(1024),
+   version BIGINT NOT NULL,
+   node_id VARCHAR(36) NOT NULL,
+   created BIGINT NOT NULL
+);
+
+CREATE INDEX cache_invalidation_created ON cache_invalidation(created);
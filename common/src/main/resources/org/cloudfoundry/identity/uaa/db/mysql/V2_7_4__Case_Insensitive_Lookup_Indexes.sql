@@ -0,0 +1,20 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+
+-- external groups are stored lower case so that lookups can use external_group_unique_key
+-- the default collation is case insensitive so the unique key already prevents mixed case duplicates
+UPDATE external_group_mapping SET external_group = LOWER(external_group);
+
+-- in mysql we turn off lower function during queries, username lookups without an origin
+CREATE INDEX user_perf_username ON users(username,identity_zone_id);
@@ -0,0 +1,20 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+-- written to the primary and read back from read replicas to measure their lag
+CREATE TABLE replica_heartbeat (
+   id INTEGER NOT NULL PRIMARY KEY,
+   beat BIGINT NOT NULL
+);
+
+INSERT INTO replica_heartbeat (id, beat) VALUES (1, 0);
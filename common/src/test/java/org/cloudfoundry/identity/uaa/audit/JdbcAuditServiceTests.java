@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PrincipalAuthenticationFailure;
@@ -72,6 +73,18 @@ public class JdbcAuditServiceTests extends JdbcTestBase {
         assertEquals(1, events.size());
     }
 
+    @Test
+    public void batchedEventsKeepTheTimeTheyWereRaised() throws Exception {
+        long raised = System.currentTimeMillis() - 3600 * 1000;
+        auditService.logBatch(Arrays.asList(
+            new AuditEvent(PrincipalAuthenticationFailure, "clientA", authDetails, null, raised, IdentityZone.getUaa().getId()),
+            getAuditEvent(PrincipalAuthenticationFailure, "clientA"),
+            getAuditEvent(PrincipalAuthenticationFailure, "clientB")));
+        assertEquals(2, auditService.find("clientA", 0).size());
+        assertEquals(1, auditService.find("clientA", raised + 1000).size());
+        assertEquals(1, auditService.find("clientB", 0).size());
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal) {
         return getAuditEvent(type, principal, null);
     }
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindAuditServiceTests extends JdbcTestBase {
+
+    private WriteBehindAuditService auditService;
+
+    @Before
+    public void createService() throws Exception {
+        jdbcTemplate.execute("DELETE FROM sec_audit WHERE principal_id='1' or principal_id='2'");
+        auditService = new WriteBehindAuditService(new JdbcFailedLoginCountingAuditService(dataSource));
+        // the writer only wakes up when it is needed
+        auditService.setPollInterval(60000);
+    }
+
+    @After
+    public void stopService() throws Exception {
+        auditService.destroy();
+    }
+
+    @Test
+    public void queuedEventsAreWrittenBeforeTheyAreFound() throws Exception {
+        auditService.afterPropertiesSet();
+        for (int i = 0; i < 3; i++) {
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        }
+        assertEquals(3, auditService.find("1", 0).size());
+        assertEquals(0, auditService.getPendingCount());
+        assertEquals(3, auditService.getWrittenCount());
+    }
+
+    @Test
+    public void successInTheSameBatchResetsEarlierFailures() throws Exception {
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2"));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, auditService.find("1", 0).size());
+        assertEquals(1, auditService.find("2", 0).size());
+    }
+
+    @Test
+    public void queuedEventsAreFlushedOnShutdown() throws Exception {
+        auditService.afterPropertiesSet();
+        for (int i = 0; i < 10; i++) {
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        }
+        auditService.destroy();
+        assertEquals(10, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        assertEquals(0, auditService.getPendingCount());
+    }
+
+    @Test
+    public void eventsAreWrittenSynchronouslyWhenDisabled() throws Exception {
+        auditService.setEnabled(false);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+    }
+
+    @Test
+    public void noEventIsDroppedOnOverflow() throws Exception {
+        BlockingAuditService delegate = new BlockingAuditService();
+        auditService = newBlockedService(delegate, WriteBehindAuditService.OverflowPolicy.BLOCK);
+        AuditEvent e2 = getAuditEvent(UserAuthenticationFailure, "2");
+        AuditEvent e3 = getAuditEvent(UserAuthenticationFailure, "3");
+        final AuditEvent e4 = getAuditEvent(UserAuthenticationFailure, "4");
+        auditService.log(e2);
+        auditService.log(e3);
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                auditService.log(e4);
+            }
+        });
+        blocked.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (auditService.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(auditService.getBlockedCount() > 0);
+        assertTrue(blocked.isAlive());
+        delegate.release.countDown();
+        blocked.join(5000);
+        auditService.destroy();
+        assertEquals(Arrays.asList(e2, e3, e4), delegate.logged.subList(1, delegate.logged.size()));
+    }
+
+    @Test
+    public void eventsAreWrittenOnTheCallingThreadOnOverflow() throws Exception {
+        BlockingAuditService delegate = new BlockingAuditService();
+        auditService = newBlockedService(delegate, WriteBehindAuditService.OverflowPolicy.SYNC);
+        AuditEvent e4 = getAuditEvent(UserAuthenticationFailure, "4");
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "3"));
+        auditService.log(e4);
+        assertEquals(1, auditService.getSyncCount());
+        assertEquals(2, delegate.logged.size());
+        assertTrue(delegate.logged.contains(e4));
+        delegate.release.countDown();
+        auditService.destroy();
+        assertEquals(4, delegate.logged.size());
+    }
+
+    /**
+     * A service with room for two events, whose writer is stuck writing the
+     * first event
+     */
+    private WriteBehindAuditService newBlockedService(BlockingAuditService delegate, WriteBehindAuditService.OverflowPolicy policy) throws Exception {
+        WriteBehindAuditService service = new WriteBehindAuditService(delegate);
+        service.setCapacity(2);
+        service.setBatchSize(1);
+        service.setPollInterval(10);
+        service.setOverflowPolicy(policy);
+        service.afterPropertiesSet();
+        service.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertTrue(delegate.writing.await(5, TimeUnit.SECONDS));
+        return service;
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal) {
+        return new AuditEvent(type, principal, "1.1.1.1", "joe", System.currentTimeMillis(), IdentityZone.getUaa().getId());
+    }
+
+    private static class BlockingAuditService implements UaaAuditService {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<AuditEvent> logged = new CopyOnWriteArrayList<>();
+
+        @Override
+        public List<AuditEvent> find(String principal, long after) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void log(AuditEvent auditEvent) {
+            logged.add(auditEvent);
+            if (!"1".equals(auditEvent.getPrincipalId())) {
+                return;
+            }
+            writing.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockHttpSession;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.provider.ClientDetailsService;
@@ -25,6 +26,7 @@ import org.springframework.security.providers.ExpiringUsernameAuthenticationToke
 import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -33,15 +35,18 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -118,7 +123,7 @@ public class LoginInfoEndpointTest  {
 
         Model model = new ExtendedModelMap();
         endpoint.setSelfServiceLinksEnabled(false);
-        endpoint.infoForJson(model, null);
+        endpoint.infoForJson(model, null, null);
         Map<String, Object> links = (Map<String, Object>) model.asMap().get("links");
         assertNotNull(links);
         assertNull(links.get("register"));
@@ -135,7 +140,7 @@ public class LoginInfoEndpointTest  {
 
         Model model = new ExtendedModelMap();
         endpoint.setDisableInternalUserManagement(true);
-        endpoint.infoForJson(model, null);
+        endpoint.infoForJson(model, null, null);
         Map<String, Object> links = (Map<String, Object>) model.asMap().get("links");
         assertNotNull(links);
         assertNull(links.get("register"));
@@ -181,7 +186,7 @@ public class LoginInfoEndpointTest  {
         assertNull(mapPrompts.get("passcode"));
         mapPrompts = null;
 
-        endpoint.infoForJson(model, null);
+        endpoint.infoForJson(model, null, null);
         List<Map<String,String>> listPrompts = (List)model.get("prompts");
         assertNotNull("prompts attribute should be present", model.get("prompts"));
         assertTrue("prompts should be a Map for Html content", model.get("prompts") instanceof List);
@@ -196,7 +201,7 @@ public class LoginInfoEndpointTest  {
         SamlIdentityProviderConfigurator mockIDPConfigurator = mock(SamlIdentityProviderConfigurator.class);
         when(mockIDPConfigurator.getIdentityProviderDefinitions((List<String>) isNull(), eq(IdentityZone.getUaa()))).thenReturn(idps);
         endpoint.setIdpDefinitions(mockIDPConfigurator);
-        endpoint.infoForJson(model, null);
+        endpoint.infoForJson(model, null, null);
         listPrompts = (List)model.get("prompts");
         assertEquals("there should be three prompts for json", 3, listPrompts.size());
         assertNotNull(listPrompts.get(0));
@@ -373,6 +378,103 @@ public class LoginInfoEndpointTest  {
         verify(mockIDPConfigurator).getIdentityProviderDefinitions(null, zone);
     }
 
+    @Test
+    public void testLoginModelIsOnlyRebuiltWhenProvidersChange() throws Exception {
+        SamlIdentityProviderConfigurator mockIDPConfigurator = mock(SamlIdentityProviderConfigurator.class);
+        when(mockIDPConfigurator.getIdentityProviderDefinitions((List<String>) isNull(), eq(IdentityZone.getUaa()))).thenReturn(getIdps());
+        LoginInfoEndpoint endpoint = getEndpoint();
+        endpoint.setIdpDefinitions(mockIDPConfigurator);
+
+        endpoint.infoForJson(new ExtendedModelMap(), null, null);
+        endpoint.infoForJson(new ExtendedModelMap(), null, null);
+        verify(mockIDPConfigurator, times(1)).getIdentityProviderDefinitions((List<String>) isNull(), eq(IdentityZone.getUaa()));
+
+        when(mockIDPConfigurator.getVersion()).thenReturn(1L);
+        ExtendedModelMap model = new ExtendedModelMap();
+        endpoint.infoForJson(model, null, null);
+        verify(mockIDPConfigurator, times(2)).getIdentityProviderDefinitions((List<String>) isNull(), eq(IdentityZone.getUaa()));
+        assertEquals(2, ((List) model.get("idpDefinitions")).size());
+
+        endpoint.setPrompts(prompts.subList(0, 2));
+        model = new ExtendedModelMap();
+        endpoint.infoForJson(model, null, null);
+        verify(mockIDPConfigurator, times(3)).getIdentityProviderDefinitions((List<String>) isNull(), eq(IdentityZone.getUaa()));
+        assertEquals(2, ((List) model.get("prompts")).size());
+    }
+
+    @Test
+    public void testLoginModelIsKeptPerZone() throws Exception {
+        LoginInfoEndpoint endpoint = getEndpoint();
+        ExtendedModelMap model = new ExtendedModelMap();
+        endpoint.infoForJson(model, null, null);
+        assertEquals(Origin.UAA, model.get("zone_name"));
+
+        IdentityZone zone = MultitenancyFixture.identityZone("other-zone", "other-zone");
+        IdentityZoneHolder.set(zone);
+        SamlIdentityProviderDefinition otherZoneIdp = createIdentityProviderDefinition("other-zone-idp", zone.getId());
+        SamlIdentityProviderConfigurator mockIDPConfigurator = mock(SamlIdentityProviderConfigurator.class);
+        when(mockIDPConfigurator.getIdentityProviderDefinitions(null, zone)).thenReturn(Arrays.asList(otherZoneIdp));
+        endpoint.setIdpDefinitions(mockIDPConfigurator);
+        model = new ExtendedModelMap();
+        endpoint.infoForJson(model, null, null);
+        assertEquals(Arrays.asList(otherZoneIdp), model.get("idpDefinitions"));
+
+        IdentityZoneHolder.clear();
+        model = new ExtendedModelMap();
+        endpoint.infoForJson(model, null, null);
+        assertEquals(0, ((List) model.get("idpDefinitions")).size());
+    }
+
+    @Test
+    public void testJsonLoginIsServedWithAnETag() throws Exception {
+        LoginInfoEndpoint endpoint = getEndpoint();
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertEquals("login", endpoint.loginForJson(new ExtendedModelMap(), null, new ServletWebRequest(request, response)));
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        request = new MockHttpServletRequest("GET", "/login");
+        request.addHeader("If-None-Match", etag);
+        response = new MockHttpServletResponse();
+        assertNull(endpoint.loginForJson(new ExtendedModelMap(), null, new ServletWebRequest(request, response)));
+        assertEquals(304, response.getStatus());
+
+        Map<String, String> linksSet = new HashMap<>();
+        linksSet.put("register", "/create_account");
+        endpoint.setLinks(linksSet);
+        response = new MockHttpServletResponse();
+        assertEquals("login", endpoint.loginForJson(new ExtendedModelMap(), null, new ServletWebRequest(request, response)));
+        assertEquals(200, response.getStatus());
+        assertNotEquals(etag, response.getHeader("ETag"));
+    }
+
+    @Test
+    public void testETagChangesWithTheCommitInfo() throws Exception {
+        Properties gitProperties = new Properties();
+        gitProperties.setProperty("git.commit.id.abbrev", "abc123");
+        gitProperties.setProperty("git.commit.time", "2015/06/01 10:00:00");
+        Properties buildProperties = new Properties();
+        buildProperties.setProperty("build.version", "2.3.0");
+        String etag = getETag(new LoginInfoEndpoint(gitProperties, buildProperties));
+        assertEquals(etag, getETag(new LoginInfoEndpoint(gitProperties, buildProperties)));
+
+        buildProperties.setProperty("build.version", "2.3.1");
+        assertNotEquals(etag, getETag(new LoginInfoEndpoint(gitProperties, buildProperties)));
+        buildProperties.setProperty("build.version", "2.3.0");
+        gitProperties.setProperty("git.commit.id.abbrev", "def456");
+        assertNotEquals(etag, getETag(new LoginInfoEndpoint(gitProperties, buildProperties)));
+    }
+
+    private String getETag(LoginInfoEndpoint endpoint) {
+        endpoint.setBaseUrl("http://someurl");
+        endpoint.setIdpDefinitions(new SamlIdentityProviderConfigurator());
+        endpoint.setPrompts(prompts);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        endpoint.loginForJson(new ExtendedModelMap(), null, new ServletWebRequest(new MockHttpServletRequest("GET", "/login"), response));
+        return response.getHeader("ETag");
+    }
+
     private MockHttpServletRequest getMockHttpServletRequest() {
         MockHttpServletRequest request = new MockHttpServletRequest();
         MockHttpSession session = new MockHttpSession();
@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.authentication.manager;
 
+import org.junit.After;
 import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,19 +10,29 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 @RunWith(Parameterized.class)
 public class KeystoneAuthenticationManagerTest {
@@ -87,6 +98,14 @@ public class KeystoneAuthenticationManagerTest {
         restAuthenticationManager.setNullPassword(false);
         restAuthenticationManager.setRemoteUrl(remoteUrl);
         restAuthenticationManager.setRestTemplate(restTemplate);
+        restAuthenticationManager.setCircuitBreaker(new CircuitBreaker());
+        restAuthenticationManager.setSuccessCacheTtl(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        restAuthenticationManager.setSuccessCacheTtl(0);
+        restAuthenticationManager.setCircuitBreaker(new CircuitBreaker());
     }
 
     @Test
@@ -120,6 +139,120 @@ public class KeystoneAuthenticationManagerTest {
         restAuthenticationManager.authenticate(input);
     }
 
+    @Test
+    public void testSuccessfulLoginsAreCached() throws Exception {
+        long hits = restAuthenticationManager.getCacheHitCount();
+        restAuthenticationManager.setSuccessCacheTtl(60000);
+        restAuthenticationManager.authenticate(input);
+        restAuthenticationManager.authenticate(new UsernamePasswordAuthenticationToken(username, password));
+        verify(restTemplate, times(1)).exchange(eq(remoteUrl), eq(HttpMethod.POST), any(HttpEntity.class), eq(Map.class));
+
+        restAuthenticationManager.authenticate(new UsernamePasswordAuthenticationToken(username, "otherpassword"));
+        verify(restTemplate, times(2)).exchange(eq(remoteUrl), eq(HttpMethod.POST), any(HttpEntity.class), eq(Map.class));
+        assertEquals(hits + 1, restAuthenticationManager.getCacheHitCount());
+    }
+
+    @Test
+    public void testFailedLoginsAreNotCached() throws Exception {
+        setUpRestAuthenticationManager(HttpStatus.UNAUTHORIZED);
+        restAuthenticationManager.setSuccessCacheTtl(60000);
+        for (int i = 0; i < 2; i++) {
+            try {
+                restAuthenticationManager.authenticate(new UsernamePasswordAuthenticationToken(username, "wrongpassword"));
+                fail();
+            } catch (BadCredentialsException expected) {
+            }
+        }
+        verify(restTemplate, times(2)).exchange(eq(remoteUrl), eq(HttpMethod.POST), any(HttpEntity.class), eq(Map.class));
+        assertFalse(restAuthenticationManager.isCircuitOpen());
+    }
+
+    @Test
+    public void testRemoteCallsStopAfterRepeatedFailures() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setFailureThreshold(2);
+        circuitBreaker.setOpenDuration(60000);
+        restAuthenticationManager.setCircuitBreaker(circuitBreaker);
+        when(restTemplate.exchange(eq(remoteUrl), eq(HttpMethod.POST), any(HttpEntity.class), eq(Map.class)))
+            .thenThrow(new ResourceAccessException("timeout"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                restAuthenticationManager.authenticate(input);
+                fail();
+            } catch (ResourceAccessException expected) {
+            }
+        }
+        assertTrue(restAuthenticationManager.isCircuitOpen());
+        try {
+            restAuthenticationManager.authenticate(input);
+            fail();
+        } catch (AuthenticationServiceException expected) {
+        }
+        verify(restTemplate, times(2)).exchange(eq(remoteUrl), eq(HttpMethod.POST), any(HttpEntity.class), eq(Map.class));
+
+        // a trial call is let through once the breaker has been open long enough
+        circuitBreaker.setOpenDuration(0);
+        setUpRestAuthenticationManager();
+        restAuthenticationManager.setCircuitBreaker(circuitBreaker);
+        restAuthenticationManager.authenticate(input);
+        assertFalse(restAuthenticationManager.isCircuitOpen());
+    }
+
+    @Test
+    public void testTrialCallFailingWithAnyExceptionKeepsTheBreakerOpen() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setFailureThreshold(1);
+        circuitBreaker.setOpenDuration(0);
+        restAuthenticationManager.setCircuitBreaker(circuitBreaker);
+        long failures = restAuthenticationManager.getRemoteFailureCount();
+        // a 200 with a body that is not JSON
+        when(restTemplate.exchange(eq(remoteUrl), eq(HttpMethod.POST), any(HttpEntity.class), eq(Map.class)))
+            .thenThrow(new HttpMessageNotReadableException("malformed"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                restAuthenticationManager.authenticate(input);
+                fail();
+            } catch (HttpMessageNotReadableException expected) {
+            }
+            assertTrue(restAuthenticationManager.isCircuitOpen());
+        }
+        assertEquals(failures + 2, restAuthenticationManager.getRemoteFailureCount());
+
+        // the failed trial did not leave the breaker waiting for its outcome
+        setUpRestAuthenticationManager();
+        restAuthenticationManager.setCircuitBreaker(circuitBreaker);
+        restAuthenticationManager.authenticate(input);
+        assertFalse(restAuthenticationManager.isCircuitOpen());
+    }
+
+    @Test
+    public void testSlowServerTimesOut() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread accepting = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    Thread.sleep(5000);
+                } catch (Exception ignored) {
+                }
+            });
+            accepting.setDaemon(true);
+            accepting.start();
+
+            RestAuthenticationManager manager = restAuthenticationManager.getClass().newInstance();
+            manager.setRemoteUrl(remoteUrl.replace("this.is.not.used", "localhost:" + server.getLocalPort()));
+            manager.setReadTimeout(200);
+            manager.afterPropertiesSet();
+            long start = System.currentTimeMillis();
+            try {
+                manager.authenticate(input);
+                fail();
+            } catch (ResourceAccessException expected) {
+            }
+            assertTrue(System.currentTimeMillis() - start < 4000);
+            assertEquals(1, manager.getRemoteFailureCount());
+            manager.destroy();
+        }
+    }
+
     @Test
     public void checkNullPassword() {
         assertFalse(restAuthenticationManager.isNullPassword());
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.cache;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two nodes, each with its own application context and connection pool,
+ * sharing one database.
+ */
+public class JdbcCacheInvalidationBusTests extends JdbcTestBase {
+
+    private XmlWebApplicationContext otherContext;
+
+    private JdbcCacheInvalidationBus bus;
+
+    private JdbcCacheInvalidationBus otherBus;
+
+    private List<String> evicted = new ArrayList<>();
+
+    private List<String> otherEvicted = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUpNodes() throws Exception {
+        otherContext = new XmlWebApplicationContext();
+        otherContext.setEnvironment(environment);
+        otherContext.setConfigLocations(new String[] {"classpath:spring/env.xml", "classpath:spring/data-source.xml"});
+        otherContext.refresh();
+
+        bus = newBus(jdbcTemplate, evicted);
+        otherBus = newBus(otherContext.getBean(JdbcTemplate.class), otherEvicted);
+    }
+
+    private JdbcCacheInvalidationBus newBus(JdbcTemplate template, final List<String> evicted) throws Exception {
+        JdbcCacheInvalidationBus bus = new JdbcCacheInvalidationBus(template);
+        bus.setLimitSqlAdapter(limitSqlAdapter);
+        bus.setPollInterval(0);
+        bus.afterPropertiesSet();
+        bus.addListener("clients", new CacheInvalidationListener() {
+            @Override
+            public void invalidate(String key, long version) {
+                evicted.add(key + ":" + version);
+            }
+        });
+        return bus;
+    }
+
+    @After
+    public void stopNodes() throws Exception {
+        bus.destroy();
+        otherBus.destroy();
+        otherContext.destroy();
+    }
+
+    @Test
+    public void invalidationsReachTheOtherNode() {
+        bus.invalidate("clients", "app", 3);
+        bus.invalidate("users", "marissa", 1);
+        bus.invalidate("clients", null, 4);
+        assertEquals(Arrays.asList("app:3", "null:4"), evicted);
+        assertEquals(0, otherEvicted.size());
+
+        assertEquals(3, otherBus.poll());
+        assertEquals(Arrays.asList("app:3", "null:4"), otherEvicted);
+        assertEquals(3, otherBus.getReceivedCount());
+        assertEquals(0, otherBus.poll());
+
+        // a node does not apply its own invalidations twice
+        assertEquals(0, bus.poll());
+        assertEquals(2, evicted.size());
+    }
+
+    @Test
+    public void localListenersAreCalledWhenTheTransactionCommits() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                bus.invalidate("clients", "app", 1);
+                assertEquals(0, evicted.size());
+            }
+        });
+        assertEquals(Arrays.asList("app:1"), evicted);
+
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                bus.invalidate("clients", "app", 2);
+                status.setRollbackOnly();
+            }
+        });
+        assertEquals(Arrays.asList("app:1"), evicted);
+        assertEquals(1, otherBus.poll());
+        assertEquals(Arrays.asList("app:1"), otherEvicted);
+    }
+
+    @Test
+    public void invalidationsMadeBeforeANodeStartedAreIgnored() throws Exception {
+        bus.invalidate("clients", "app", 1);
+        JdbcCacheInvalidationBus late = newBus(otherContext.getBean(JdbcTemplate.class), otherEvicted);
+        assertEquals(0, late.poll());
+        bus.invalidate("clients", "app", 2);
+        assertEquals(1, late.poll());
+        assertEquals(Arrays.asList("app:2"), otherEvicted);
+    }
+
+    @Test
+    public void rowsCommittedOutOfOrderAreNotMissed() {
+        bus.invalidate("clients", "first", 1);
+        long id = jdbcTemplate.queryForObject(JdbcCacheInvalidationBus.MAX_ID_SQL, Long.class);
+        insertRow(id + 2, "third");
+        assertEquals(2, otherBus.poll());
+        assertEquals(1, otherBus.getPendingGapCount());
+
+        // the row with the lower id becomes visible later
+        insertRow(id + 1, "second");
+        assertEquals(1, otherBus.poll());
+        assertEquals(Arrays.asList("first:1", "third:0", "second:0"), otherEvicted);
+        assertEquals(0, otherBus.getPendingGapCount());
+        assertEquals(1, otherBus.getLateRowCount());
+    }
+
+    @Test
+    public void gapsAreGivenUpAfterTheTimeout() {
+        otherBus.setGapTimeout(0);
+        insertRow(1000, "skipped");
+        assertEquals(1, otherBus.poll());
+        assertTrue(otherBus.getPendingGapCount() > 0);
+        assertEquals(0, otherBus.poll());
+        assertEquals(0, otherBus.getPendingGapCount());
+    }
+
+    @Test
+    public void invalidationsArePolledInTheBackground() throws Exception {
+        otherBus.destroy();
+        otherBus.setPollInterval(20);
+        otherBus.afterPropertiesSet();
+        bus.invalidate("clients", "app", 1);
+        long wait = System.currentTimeMillis() + 5000;
+        while (otherEvicted.isEmpty() && System.currentTimeMillis() < wait) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("app:1"), otherEvicted);
+    }
+
+    @Test
+    public void failingListenerDoesNotStopOthers() {
+        otherBus.addListener("clients", new CacheInvalidationListener() {
+            @Override
+            public void invalidate(String key, long version) {
+                throw new IllegalStateException();
+            }
+        });
+        final List<String> second = new ArrayList<>();
+        otherBus.addListener("clients", new CacheInvalidationListener() {
+            @Override
+            public void invalidate(String key, long version) {
+                second.add(key);
+            }
+        });
+        bus.invalidate("clients", "app", 1);
+        assertEquals(1, otherBus.poll());
+        assertEquals(Arrays.asList("app"), second);
+        assertEquals(1, otherBus.getListenerFailureCount());
+    }
+
+    @Test
+    public void oldRowsArePurged() {
+        bus.setRetention(60000);
+        bus.invalidate("clients", "app", 1);
+        jdbcTemplate.update("insert into " + JdbcCacheInvalidationBus.TABLE_NAME + " (cache_name, cache_key, version, node_id, created) values (?,?,?,?,?)",
+                        "clients", "old", 0, "node", System.currentTimeMillis() - 120000);
+        assertEquals(1, bus.purgeExpiredEntries(10));
+        assertEquals(0, bus.purgeExpiredEntries(10));
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from " + JdbcCacheInvalidationBus.TABLE_NAME));
+    }
+
+    private void insertRow(long id, String key) {
+        jdbcTemplate.update("insert into " + JdbcCacheInvalidationBus.TABLE_NAME + " (id, cache_name, cache_key, version, node_id, created) values (?,?,?,?,?,?)",
+                        id, "clients", key, 0, "node", System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ExpiredEntriesReaperTests extends JdbcTestBase {
+
+    private JdbcExpiringCodeStore codeStore;
+
+    private ExpiredEntriesReaper reaper;
+
+    @Before
+    public void setUpReaper() throws Exception {
+        TestUtils.deleteFrom(dataSource, JdbcExpiringCodeStore.tableName);
+        codeStore = new JdbcExpiringCodeStore(dataSource);
+        codeStore.setLimitSqlAdapter(limitSqlAdapter);
+        reaper = new ExpiredEntriesReaper(Arrays.asList(codeStore));
+        reaper.setBatchSize(3);
+    }
+
+    @After
+    public void stopReaper() throws Exception {
+        reaper.destroy();
+    }
+
+    private void insertCodes(int count, long expiresAt) {
+        for (int i = 0; i < count; i++) {
+            jdbcTemplate.update(JdbcExpiringCodeStore.insert, "code-" + expiresAt + "-" + i, expiresAt, "{}");
+        }
+    }
+
+    @Test
+    public void expiredCodesArePurgedInBatches() {
+        insertCodes(7, System.currentTimeMillis() - 1000);
+        insertCodes(2, System.currentTimeMillis() + 100000);
+
+        assertEquals(7, reaper.purge());
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName));
+        assertEquals(1, reaper.getRunCount());
+        assertEquals(3, reaper.getBatchCount());
+        assertEquals(7, reaper.getPurgedCount());
+        assertEquals(Long.valueOf(7), reaper.getPurgedCountByStore().get(JdbcExpiringCodeStore.tableName));
+    }
+
+    @Test
+    public void batchesPerRunAreLimited() {
+        insertCodes(7, System.currentTimeMillis() - 1000);
+        reaper.setMaxBatches(2);
+
+        assertEquals(6, reaper.purge());
+        assertEquals(1, reaper.purge());
+        assertEquals(0, jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName));
+    }
+
+    @Test
+    public void failingStoreDoesNotStopOthers() {
+        insertCodes(2, System.currentTimeMillis() - 1000);
+        ExpiringEntryStore failing = mock(ExpiringEntryStore.class);
+        when(failing.getStoreName()).thenReturn("failing");
+        when(failing.purgeExpiredEntries(anyInt())).thenThrow(new IllegalStateException());
+        reaper = new ExpiredEntriesReaper(Arrays.asList(failing, codeStore));
+
+        assertEquals(2, reaper.purge());
+        assertEquals(1, reaper.getFailureCount());
+    }
+
+    @Test
+    public void expiredCodesArePurgedInTheBackground() throws Exception {
+        insertCodes(2, System.currentTimeMillis() - 1000);
+        reaper.setInterval(50);
+        reaper.afterPropertiesSet();
+        long wait = System.currentTimeMillis() + 5000;
+        while (reaper.getPurgedCount() < 2 && System.currentTimeMillis() < wait) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName));
+    }
+}
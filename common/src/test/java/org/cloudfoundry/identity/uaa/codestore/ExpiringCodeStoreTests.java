@@ -190,6 +190,16 @@ public class ExpiringCodeStoreTests extends JdbcTestBase {
         assertNull(notMatching);
     }
 
+    @Test
+    public void testRetrieveLatestWithQuoteInEmail() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("email", "o'brien@email.com");
+        data.put("client_id", "1234567");
+        ExpiringCode code = expiringCodeStore.generateCode(JsonUtils.writeValueAsString(data), new Timestamp(System.currentTimeMillis() + 60*1000));
+
+        assertEquals(code, expiringCodeStore.retrieveLatest("o'brien@email.com", "1234567"));
+    }
+
     @Test
     public void testDatabaseDown() throws Exception {
         if (JdbcExpiringCodeStore.class == expiringCodeStoreClass) {
@@ -212,7 +222,7 @@ public class ExpiringCodeStoreTests extends JdbcTestBase {
     public void testExpirationCleaner() throws Exception {
         if (JdbcExpiringCodeStore.class == expiringCodeStoreClass) {
             jdbcTemplate.update(JdbcExpiringCodeStore.insert, "test", System.currentTimeMillis() - 1000, "{}");
-            ((JdbcExpiringCodeStore) expiringCodeStore).cleanExpiredEntries();
+            assertEquals(1, ((JdbcExpiringCodeStore) expiringCodeStore).purgeExpiredEntries(10));
             jdbcTemplate.queryForObject(JdbcExpiringCodeStore.select,
                             new JdbcExpiringCodeStore.JdbcExpiringCodeMapper(), "test");
         } else {
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryExpiringCodeStoreTests {
+
+    private InMemoryExpiringCodeStore store;
+
+    @Before
+    public void setUp() {
+        store = new InMemoryExpiringCodeStore();
+        store.setEvictionInterval(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.destroy();
+    }
+
+    private String data(String email, String clientId) {
+        Map<String, String> data = new HashMap<>();
+        data.put("email", email);
+        data.put("client_id", clientId);
+        return JsonUtils.writeValueAsString(data);
+    }
+
+    @Test
+    public void latestCodeIsRetrievedThroughTheIndex() {
+        long future = System.currentTimeMillis() + 60000;
+        ExpiringCode first = store.generateCode(data("test@email.com", "client"), new Timestamp(future));
+        ExpiringCode latest = store.generateCode(data("test@email.com", "client"), new Timestamp(future + 10000));
+        store.generateCode(data("test@email.com", "other"), new Timestamp(future + 20000));
+        store.generateCode("not json", new Timestamp(future + 20000));
+
+        assertEquals(latest, store.retrieveLatest("test@email.com", "client"));
+        //the latest code is revoked, the one before it is next
+        assertEquals(first, store.retrieveLatest("test@email.com", "client"));
+        assertNull(store.retrieveLatest("test@email.com", "client"));
+        assertNull(store.retrieveCode(first.getCode()));
+        assertEquals(2, store.getCodeCount());
+    }
+
+    @Test
+    public void retrievedCodeIsRemovedFromTheIndex() {
+        ExpiringCode code = store.generateCode(data("test@email.com", "client"), new Timestamp(System.currentTimeMillis() + 60000));
+        assertEquals(code, store.retrieveCode(code.getCode()));
+        assertNull(store.retrieveLatest("test@email.com", "client"));
+    }
+
+    @Test
+    public void expiredCodesAreEvicted() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.generateCode(data("test" + i + "@email.com", "client"), new Timestamp(System.currentTimeMillis() + 50));
+        }
+        ExpiringCode valid = store.generateCode(data("valid@email.com", "client"), new Timestamp(System.currentTimeMillis() + 60000));
+        assertEquals(11, store.getCodeCount());
+        assertEquals(0, store.evictExpiredCodes());
+
+        Thread.sleep(100);
+        assertEquals(10, store.evictExpiredCodes());
+        assertEquals(1, store.getCodeCount());
+        assertEquals(10, store.getEvictedCount());
+        assertEquals(valid, store.retrieveLatest("valid@email.com", "client"));
+    }
+
+    @Test
+    public void expiredCodesAreEvictedInTheBackground() throws Exception {
+        store.setEvictionInterval(20);
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 50));
+        long wait = System.currentTimeMillis() + 5000;
+        while (store.getCodeCount() > 0 && System.currentTimeMillis() < wait) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, store.getCodeCount());
+    }
+
+    @Test
+    public void memoryUseIsTracked() {
+        assertEquals(0, store.getMemoryUse());
+        ExpiringCode code = store.generateCode(data("test@email.com", "client"), new Timestamp(System.currentTimeMillis() + 60000));
+        assertTrue(store.getMemoryUse() > InMemoryExpiringCodeStore.ENTRY_OVERHEAD + 2 * code.getData().length());
+        store.retrieveCode(code.getCode());
+        assertEquals(0, store.getMemoryUse());
+    }
+}
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.db;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.UserCredentialsDataSourceAdapter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The primary is the test database, the replica a second in-memory HSQLDB
+ * database whose heartbeat row is advanced by hand in place of replication.
+ */
+public class ReplicaRouterTests extends JdbcTestBase {
+
+    private static final String WHICH_DATABASE = "select max(id) from " + ReplicaRouter.HEARTBEAT_TABLE;
+
+    private static final int PRIMARY = 1;
+
+    private static final int REPLICA = 2;
+
+    private org.apache.tomcat.jdbc.pool.DataSource replicaPool;
+
+    private JdbcTemplate replica;
+
+    private ReplicaRouter router;
+
+    @Before
+    public void setUpReplica() throws Exception {
+        replicaPool = new org.apache.tomcat.jdbc.pool.DataSource();
+        replicaPool.setDriverClassName("org.hsqldb.jdbcDriver");
+        replicaPool.setUrl("jdbc:hsqldb:mem:replica");
+        replicaPool.setUsername("sa");
+        replicaPool.setPassword("");
+        replica = new JdbcTemplate(replicaPool);
+        replica.execute("create table " + ReplicaRouter.HEARTBEAT_TABLE + " (id integer not null primary key, beat bigint not null)");
+        replica.update("insert into " + ReplicaRouter.HEARTBEAT_TABLE + " (id, beat) values (1, 0)");
+        replica.update("insert into " + ReplicaRouter.HEARTBEAT_TABLE + " (id, beat) values (2, 0)");
+
+        router = ((TimingDataSource) dataSource).getReplicaRouter();
+        assertFalse(router.isEnabled());
+        router.setReplica(replicaPool);
+        router.setEnabled(true);
+        router.setReadYourWritesWindow(0);
+    }
+
+    @After
+    public void tearDownReplica() throws Exception {
+        RequestContextHolder.resetRequestAttributes();
+        replica.execute("drop table " + ReplicaRouter.HEARTBEAT_TABLE + " if exists");
+        replicaPool.close(true);
+    }
+
+    @Test
+    public void lookupsUseTheReplicaWhenInSync() throws Exception {
+        assertEquals(PRIMARY, lookup());
+        replicate();
+        heartbeat();
+        assertTrue(router.isReplicaHealthy());
+        assertEquals(REPLICA, lookup());
+        assertEquals(PRIMARY, (int) jdbcTemplate.queryForObject(WHICH_DATABASE, Integer.class));
+        assertEquals(1, router.getReplicaConnectionCount());
+    }
+
+    @Test
+    public void connectionsWithCredentialsAreRoutedToo() throws Exception {
+        router.setReadYourWritesWindow(60000);
+        replicate();
+        heartbeat();
+        UserCredentialsDataSourceAdapter withCredentials = new UserCredentialsDataSourceAdapter();
+        withCredentials.setTargetDataSource(dataSource);
+        withCredentials.setUsername("sa");
+        withCredentials.setPassword("");
+        JdbcTemplate template = new JdbcTemplate(withCredentials);
+        assertEquals(REPLICA, (int) ReplicaRouter.readOnly(() -> template.queryForObject(WHICH_DATABASE, Integer.class)));
+
+        template.update("update identity_zone set name=name where id=?", "uaa");
+        assertEquals(PRIMARY, lookup());
+    }
+
+    @Test
+    public void lookupsUseThePrimaryWhileTheReplicaLags() throws Exception {
+        router.setMaxReplicaLag(1000);
+        replica.update("update " + ReplicaRouter.HEARTBEAT_TABLE + " set beat=? where id=1", System.currentTimeMillis() - 60000);
+        heartbeat();
+        assertFalse(router.isReplicaHealthy());
+        assertTrue(router.getReplicaLag() >= 60000);
+        assertEquals(PRIMARY, lookup());
+        assertEquals(1, router.getLaggingFallbackCount());
+
+        replicate();
+        heartbeat();
+        assertEquals(REPLICA, lookup());
+    }
+
+    @Test
+    public void lookupsUseThePrimaryWhenTheReplicaFails() throws Exception {
+        replicate();
+        heartbeat();
+        assertEquals(REPLICA, lookup());
+
+        replica.execute("drop table " + ReplicaRouter.HEARTBEAT_TABLE);
+        heartbeat();
+        assertFalse(router.isReplicaHealthy());
+        assertEquals(-1, router.getReplicaLag());
+        assertEquals(1, router.getHeartbeatFailureCount());
+        assertEquals(PRIMARY, lookup());
+    }
+
+    @Test
+    public void lookupsReadTheirOwnWrites() throws Exception {
+        router.setReadYourWritesWindow(60000);
+        replicate();
+        heartbeat();
+        assertEquals(REPLICA, lookup());
+
+        jdbcTemplate.update("update identity_zone set name=name where id=?", "uaa");
+        assertEquals(PRIMARY, lookup());
+        assertEquals(1, router.getReadYourWritesFallbackCount());
+
+        // other threads outside of the session are not affected
+        final int[] other = new int[1];
+        runInThread(() -> other[0] = lookup());
+        assertEquals(REPLICA, other[0]);
+    }
+
+    @Test
+    public void writesAreTrackedPerSession() throws Exception {
+        router.setReadYourWritesWindow(60000);
+        replicate();
+        heartbeat();
+        MockHttpSession session = new MockHttpSession();
+
+        runInThread(() -> {
+            inSession(session);
+            jdbcTemplate.update("update identity_zone set name=name where id=?", "uaa");
+        });
+        final int[] sameSession = new int[1];
+        runInThread(() -> {
+            inSession(session);
+            sameSession[0] = lookup();
+        });
+        final int[] otherSession = new int[1];
+        runInThread(() -> {
+            inSession(new MockHttpSession());
+            otherSession[0] = lookup();
+        });
+        assertEquals(PRIMARY, sameSession[0]);
+        assertEquals(REPLICA, otherSession[0]);
+    }
+
+    @Test
+    public void sessionsThatWroteLeastRecentlyAreForgotten() throws Exception {
+        router.setReadYourWritesWindow(60000);
+        router.setMaxSessions(2);
+        replicate();
+        heartbeat();
+        MockHttpSession[] sessions = {new MockHttpSession(), new MockHttpSession(), new MockHttpSession()};
+        for (MockHttpSession session : sessions) {
+            runInThread(() -> {
+                inSession(session);
+                jdbcTemplate.update("update identity_zone set name=name where id=?", "uaa");
+            });
+        }
+        final int[] databases = new int[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            final int index = i;
+            runInThread(() -> {
+                inSession(sessions[index]);
+                databases[index] = lookup();
+            });
+        }
+        assertEquals(REPLICA, databases[0]);
+        assertEquals(PRIMARY, databases[1]);
+        assertEquals(PRIMARY, databases[2]);
+    }
+
+    @Test
+    public void lookupsInATransactionUseThePrimary() throws Exception {
+        replicate();
+        heartbeat();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(replicaPool));
+        assertEquals(PRIMARY, (int) transactionTemplate.execute(status -> lookup()));
+        assertEquals(REPLICA, lookup());
+    }
+
+    @Test
+    public void disabledRouterUsesThePrimary() throws Exception {
+        replicate();
+        heartbeat();
+        router.setEnabled(false);
+        assertEquals(PRIMARY, lookup());
+        assertEquals(0, router.getReplicaConnectionCount());
+    }
+
+    @Test
+    public void readOnlyCanBeNested() {
+        assertFalse(ReplicaRouter.isReadOnly());
+        ReplicaRouter.readOnly(() -> {
+            assertTrue(ReplicaRouter.isReadOnly());
+            ReplicaRouter.readOnly(() -> null);
+            assertTrue(ReplicaRouter.isReadOnly());
+            return null;
+        });
+        assertFalse(ReplicaRouter.isReadOnly());
+    }
+
+    @Test
+    public void onlyQueriesAreReads() {
+        assertFalse(ReplicaRouter.isWrite(" SELECT 1"));
+        assertFalse(ReplicaRouter.isWrite("with t as (select 1) select * from t"));
+        assertTrue(ReplicaRouter.isWrite("update users set active=?"));
+        assertTrue(ReplicaRouter.isWrite("insert into users values (?)"));
+        assertTrue(ReplicaRouter.isWrite("delete from users"));
+    }
+
+    private int lookup() {
+        return ReplicaRouter.readOnly(() -> jdbcTemplate.queryForObject(WHICH_DATABASE, Integer.class));
+    }
+
+    private void replicate() {
+        replica.update("update " + ReplicaRouter.HEARTBEAT_TABLE + " set beat=? where id=1", System.currentTimeMillis());
+    }
+
+    /**
+     * The heartbeat writes to the primary, so it runs on its own thread as
+     * it does on the router's timer.
+     */
+    private void heartbeat() throws Exception {
+        runInThread(() -> router.checkReplica());
+    }
+
+    private static void inSession(MockHttpSession session) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setSession(session);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+    }
+
+    private static void runInThread(Runnable runnable) throws Exception {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+}
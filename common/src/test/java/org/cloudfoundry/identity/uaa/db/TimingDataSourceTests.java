@@ -0,0 +1,133 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.mock.env.MockEnvironment;
+
+public class TimingDataSourceTests extends JdbcTestBase {
+
+    private static final String SELECT_ZONE = "select id from identity_zone where id=?";
+
+    private StatementStatistics statistics;
+
+    @Override
+    public void setUp() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("database.statement_timing", "true");
+        setUp(environment);
+        statistics = webApplicationContext.getBean(StatementStatistics.class);
+    }
+
+    @Test
+    public void testStatementsAndPoolWaitAreRecorded() throws Exception {
+        assertTrue(((TimingDataSource) dataSource).isStatementTiming());
+        long connections = statistics.getConnectionCount();
+        jdbcTemplate.queryForList(SELECT_ZONE, String.class, "uaa");
+        jdbcTemplate.queryForList(SELECT_ZONE, String.class, "uaa");
+        Map<String, Object> select = statistics.getStatements().get(SELECT_ZONE);
+        assertEquals(2L, select.get("count"));
+        assertEquals(2L, select.get("rows"));
+        assertEquals(0L, select.get("errors"));
+        assertEquals(connections + 2, statistics.getConnectionCount());
+    }
+
+    @Test
+    public void testUpdateCountsAndErrorsAreRecorded() throws Exception {
+        String update = "update identity_zone set name=? where id=?";
+        assertEquals(1, jdbcTemplate.update(update, "uaa", "uaa"));
+        try {
+            jdbcTemplate.update(update, null, null);
+            fail();
+        } catch (DataAccessException expected) {
+        }
+        assertEquals(2L, statistics.getStatements().get(update).get("count"));
+        assertEquals(1L, statistics.getStatements().get(update).get("rows"));
+        assertEquals(1L, statistics.getStatements().get(update).get("errors"));
+    }
+
+    @Test
+    public void testSlowStatementsAreReportedWithBindTypesOnly() throws Exception {
+        final List<List<String>> binds = new ArrayList<>();
+        StatementStatistics capturing = new StatementStatistics() {
+            @Override
+            public void recordExecution(String sql, long elapsedNanos, boolean success, List<String> bindTypes) {
+                binds.add(bindTypes);
+                super.recordExecution(sql, elapsedNanos, success, bindTypes);
+            }
+        };
+        capturing.setSlowQueryThreshold(0);
+        ((TimingDataSource) dataSource).setStatementStatistics(capturing);
+        jdbcTemplate.queryForList("select id from identity_zone where id=? and created<?", String.class, "uaa",
+                        new Timestamp(System.currentTimeMillis()));
+        assertEquals(Arrays.asList(Arrays.asList("String", "Timestamp")), binds);
+        assertEquals(1, capturing.getSlowQueryCount());
+    }
+
+    @Test
+    public void testRowsOfAResultSetAreRecordedOnce() throws Exception {
+        final List<Long> recorded = new ArrayList<>();
+        StatementStatistics capturing = new StatementStatistics() {
+            @Override
+            public void recordRows(String sql, long rows) {
+                recorded.add(rows);
+                super.recordRows(sql, rows);
+            }
+        };
+        ((TimingDataSource) dataSource).setStatementStatistics(capturing);
+        String select = "select id from identity_zone union all select id from identity_zone union all select id from identity_zone";
+        int size = jdbcTemplate.queryForList(select, String.class).size();
+        assertTrue(size >= 3);
+        assertEquals(Arrays.asList((long) size), recorded);
+        assertEquals((long) size, capturing.getStatements().get(select).get("rows"));
+    }
+
+    @Test
+    public void testLiteralsAreNotRecorded() throws Exception {
+        statistics.reset();
+        jdbcTemplate.queryForList("select id from identity_zone where id='uaa' and name<>'it''s' and version>-1", String.class);
+        jdbcTemplate.queryForList("select id from identity_zone where id in (?, ?,?)", String.class, "uaa", "a", "b");
+        assertEquals(new HashSet<>(Arrays.asList("select id from identity_zone where id=? and name<>? and version>-?",
+                        "select id from identity_zone where id in (?)")), statistics.getStatements().keySet());
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("select \"user1\", t2.x from t2 where a=? limit ?", StatementStatistics.normalize("select \"user1\", t2.x from t2 where a=1.5 limit 10"));
+        assertEquals("insert into t (a, b) values (?)", StatementStatistics.normalize("insert into t (a, b) values (?, 'x')"));
+        assertEquals("update t set a=?, b=?", StatementStatistics.normalize("update t set a=?, b='unterminated"));
+    }
+
+    @Test
+    public void testConnectionsAreNotWrappedWhenTimingIsOff() throws Exception {
+        ((TimingDataSource) dataSource).setStatementTiming(false);
+        long connections = statistics.getConnectionCount();
+        statistics.reset();
+        jdbcTemplate.queryForList(SELECT_ZONE, String.class, "uaa");
+        assertTrue(statistics.getStatements().isEmpty());
+        assertEquals(connections, statistics.getConnectionCount());
+    }
+}
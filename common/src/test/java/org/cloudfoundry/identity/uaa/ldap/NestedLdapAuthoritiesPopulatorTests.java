@@ -0,0 +1,163 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.ldap;
+
+import org.cloudfoundry.identity.uaa.ldap.extension.LdapAuthority;
+import org.cloudfoundry.identity.uaa.ldap.extension.NestedLdapAuthoritiesPopulator;
+import org.cloudfoundry.identity.uaa.ldap.extension.SpringSecurityLdapTemplate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NestedLdapAuthoritiesPopulatorTests {
+
+    private static final String USER_DN = "uid=marissa,ou=users,dc=test,dc=com";
+
+    /**
+     * member DN to the DNs of the groups it belongs to
+     */
+    private final Map<String, List<String>> directory = new HashMap<>();
+
+    private final Map<String, AtomicInteger> searches = new ConcurrentHashMap<>();
+
+    private final AtomicInteger searchCount = new AtomicInteger();
+
+    private final Set<String> searchThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private NestedLdapAuthoritiesPopulator populator;
+
+    @Before
+    public void setUp() {
+        populator = new NestedLdapAuthoritiesPopulator(mock(ContextSource.class), "ou=groups,dc=test,dc=com") {
+            @Override
+            protected Set<Map<String, String[]>> searchForGroups(String dn, String name, String[] attributeNames) {
+                searches.putIfAbsent(dn, new AtomicInteger());
+                searches.get(dn).incrementAndGet();
+                searchCount.incrementAndGet();
+                searchThreads.add(Thread.currentThread().getName());
+                Set<Map<String, String[]>> result = new HashSet<>();
+                List<String> groups = directory.get(dn);
+                for (String group : groups == null ? Collections.<String>emptyList() : groups) {
+                    Map<String, String[]> record = new HashMap<>();
+                    record.put(SpringSecurityLdapTemplate.DN_KEY, new String[] {group});
+                    record.put("cn", new String[] {group.substring(3, group.indexOf(','))});
+                    result.add(record);
+                }
+                return result;
+            }
+        };
+        populator.setAttributeNames(new HashSet<>(Arrays.asList("cn")));
+        populator.setRolePrefix("");
+        populator.setConvertToUpperCase(false);
+
+        member(USER_DN, "cn=developers,ou=groups", "cn=testers,ou=groups", "cn=operators,ou=groups");
+        member("cn=developers,ou=groups", "cn=engineering,ou=groups");
+        member("cn=testers,ou=groups", "cn=engineering,ou=groups");
+        member("cn=operators,ou=groups", "cn=engineering,ou=groups");
+        member("cn=engineering,ou=groups", "cn=company,ou=groups");
+        member("cn=company,ou=groups", "cn=developers,ou=groups");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        populator.destroy();
+    }
+
+    private void member(String dn, String... groups) {
+        directory.put(dn, Arrays.asList(groups));
+    }
+
+    private Set<String> getRoles() {
+        DirContextOperations user = mock(DirContextOperations.class);
+        when(user.getNameInNamespace()).thenReturn(USER_DN);
+        Collection<GrantedAuthority> authorities = populator.getGrantedAuthorities(user, "marissa");
+        Set<String> result = new HashSet<>();
+        for (GrantedAuthority authority : authorities) {
+            assertTrue(authority instanceof LdapAuthority);
+            result.add(authority.getAuthority());
+        }
+        return result;
+    }
+
+    @Test
+    public void nestedGroupsAreExpandedOnceEachInParallel() {
+        assertEquals(new HashSet<>(Arrays.asList("developers", "testers", "operators", "engineering", "company")), getRoles());
+        for (Map.Entry<String, AtomicInteger> search : searches.entrySet()) {
+            assertEquals(search.getKey(), 1, search.getValue().get());
+        }
+        assertEquals(6, searches.size());
+        assertTrue(searchThreads.size() > 1);
+    }
+
+    @Test
+    public void searchDepthIsLimited() {
+        populator.setMaxSearchDepth(2);
+        assertEquals(new HashSet<>(Arrays.asList("developers", "testers", "operators", "engineering")), getRoles());
+        assertEquals(4, searchCount.get());
+    }
+
+    @Test
+    public void searchesRunInlineWithOneThread() {
+        populator.setSearchThreads(1);
+        assertEquals(5, getRoles().size());
+        assertEquals(Collections.singleton(Thread.currentThread().getName()), searchThreads);
+    }
+
+    @Test
+    public void authoritiesAndParentGroupsAreCached() {
+        populator.setAuthoritiesCacheSeconds(60);
+        assertEquals(5, getRoles().size());
+        assertEquals(5, getRoles().size());
+        assertEquals(6, searchCount.get());
+        assertEquals(1, populator.getCacheHits());
+        assertEquals(1, populator.getCacheMisses());
+
+        // another user in the same group only needs its own search
+        member("uid=joe,ou=users,dc=test,dc=com", "cn=operators,ou=groups");
+        DirContextOperations joe = mock(DirContextOperations.class);
+        when(joe.getNameInNamespace()).thenReturn("uid=joe,ou=users,dc=test,dc=com");
+        assertEquals(4, populator.getGrantedAuthorities(joe, "joe").size());
+        assertEquals(7, searchCount.get());
+    }
+
+    @Test
+    public void nothingIsCachedByDefault() {
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            getRoles();
+            counts.add(searchCount.get());
+        }
+        assertEquals(Arrays.asList(6, 12), counts);
+        assertEquals(0, populator.getCacheHits());
+    }
+}
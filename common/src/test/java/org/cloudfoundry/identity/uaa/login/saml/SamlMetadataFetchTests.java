@@ -0,0 +1,165 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.login.saml;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.params.HttpClientParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SamlMetadataFetchTests {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor = Executors.newCachedThreadPool();
+    private SamlIdentityProviderConfigurator conf;
+    private AtomicInteger requests = new AtomicInteger();
+    private AtomicInteger notModified = new AtomicInteger();
+
+    @BeforeClass
+    public static void initializeOpenSAML() throws Exception {
+        if (!org.apache.xml.security.Init.isInitialized()) {
+            DefaultBootstrap.bootstrap();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/metadata/", new MetadataHandler());
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        conf = new SamlIdentityProviderConfigurator();
+        conf.setParserPool(new BasicParserPool());
+        conf.setClientParams(new HttpClientParams());
+    }
+
+    @After
+    public void tearDown() {
+        conf.destroy();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testUnchangedMetadataIsNotFetchedOrParsedAgain() throws Exception {
+        SamlIdentityProviderDefinition def = definition("idp1", "/metadata/idp1");
+        ExtendedMetadataDelegate[] first = conf.addSamlIdentityProviderDefinition(def);
+        assertNull(first[1]);
+        assertEquals(1, requests.get());
+        assertEquals(0, notModified.get());
+
+        ExtendedMetadataDelegate[] second = conf.addSamlIdentityProviderDefinition(def);
+        assertEquals(2, requests.get());
+        assertEquals(1, notModified.get());
+        assertSame(first[0], second[0]);
+        assertNull(second[1]);
+        assertEquals(1, conf.getIdentityProviderDefinitions().size());
+    }
+
+    @Test
+    public void testProvidersAreFetchedInParallel() throws Exception {
+        List<ExtendedMetadataDelegate[]> result = conf.addSamlIdentityProviderDefinitions(asList(
+            definition("idp1", "/metadata/idp1"),
+            definition("idp2", "/metadata/idp2"),
+            definition("idp3", "/metadata/idp3")
+        ));
+        assertEquals(3, result.size());
+        for (ExtendedMetadataDelegate[] delegates : result) {
+            assertNotNull(delegates);
+            assertNotNull(delegates[0]);
+        }
+        assertEquals(3, requests.get());
+        assertEquals(3, conf.getIdentityProviderDefinitions().size());
+    }
+
+    @Test
+    public void testSlowProviderTimesOutWithoutBlockingOthers() throws Exception {
+        conf.setMetadataFetchTimeout(500);
+        long start = System.currentTimeMillis();
+        List<ExtendedMetadataDelegate[]> result = conf.addSamlIdentityProviderDefinitions(asList(
+            definition("slow", "/slow"),
+            definition("idp1", "/metadata/idp1")
+        ));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertNull(result.get(0));
+        assertNotNull(result.get(1));
+        assertEquals(1, conf.getIdentityProviderDefinitions().size());
+    }
+
+    private SamlIdentityProviderDefinition definition(String alias, String path) {
+        SamlIdentityProviderDefinition def = new SamlIdentityProviderDefinition();
+        def.setMetaDataLocation("http://localhost:" + server.getAddress().getPort() + path);
+        def.setIdpEntityAlias(alias);
+        def.setZoneId("uaa");
+        def.setMetadataTrustCheck(false);
+        def.setNameID("urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress");
+        return def;
+    }
+
+    private class MetadataHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            String alias = exchange.getRequestURI().getPath().substring("/metadata/".length());
+            String etag = "\"" + alias + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = String.format(IdentityProviderConfiguratorTests.xmlWithoutID, "http://" + alias + ".example.com").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        }
+    }
+}
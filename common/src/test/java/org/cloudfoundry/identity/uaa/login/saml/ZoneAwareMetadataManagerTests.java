@@ -0,0 +1,205 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.login.saml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.zone.IdentityProvider;
+import org.cloudfoundry.identity.uaa.zone.IdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneProvisioning;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+public class ZoneAwareMetadataManagerTests {
+
+    private IdentityProviderProvisioning providerDao = mock(IdentityProviderProvisioning.class);
+    private SamlIdentityProviderConfigurator configurator = mock(SamlIdentityProviderConfigurator.class);
+    private IdentityZone zone = MultitenancyFixture.identityZone("other-zone", "other");
+    private IdentityProvider uaaProvider = samlProvider("uaa-idp", IdentityZone.getUaa().getId());
+    private IdentityProvider zoneProvider = samlProvider("zone-idp", zone.getId());
+    private ZoneAwareMetadataManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        when(providerDao.retrieveAll(false, IdentityZone.getUaa().getId())).thenReturn(Arrays.asList(uaaProvider));
+        when(providerDao.retrieveAll(false, zone.getId())).thenReturn(Arrays.asList(zoneProvider));
+        when(providerDao.retrieveModifiedSince(eq(Origin.SAML), any(Date.class))).thenReturn(Collections.<IdentityProvider>emptyList());
+        ExtendedMetadataDelegate delegate = mock(ExtendedMetadataDelegate.class);
+        when(configurator.addSamlIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class)))
+            .thenReturn(new ExtendedMetadataDelegate[] {delegate, null});
+        when(configurator.addSamlIdentityProviderDefinitions(anyListOf(SamlIdentityProviderDefinition.class)))
+            .thenAnswer(new Answer<List<ExtendedMetadataDelegate[]>>() {
+                @Override
+                public List<ExtendedMetadataDelegate[]> answer(InvocationOnMock invocation) throws Throwable {
+                    List<ExtendedMetadataDelegate[]> result = new ArrayList<>();
+                    for (Object definition : (List<?>) invocation.getArguments()[0]) {
+                        result.add(configurator.addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) definition));
+                    }
+                    return result;
+                }
+            });
+        manager = new ZoneAwareMetadataManager(providerDao, mock(IdentityZoneProvisioning.class), configurator,
+            mock(KeyManager.class), mock(ProviderChangedListener.class));
+        manager.setRefreshCheckInterval(0);
+        manager.checkAllProviders();
+    }
+
+    @After
+    public void tearDown() {
+        manager.destroy();
+    }
+
+    @Test
+    public void testOnlyTheDefaultZoneIsLoadedAtStartup() throws Exception {
+        verify(providerDao).retrieveAll(false, IdentityZone.getUaa().getId());
+        verify(providerDao, never()).retrieveAll(false, zone.getId());
+        verify(configurator, times(1)).addSamlIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class));
+        assertEquals(1, manager.getLoadedZoneCount());
+    }
+
+    @Test
+    public void testZoneIsLoadedOnFirstUse() throws Exception {
+        manager.getManager(zone);
+        manager.getManager(zone);
+        verify(providerDao, times(1)).retrieveAll(false, zone.getId());
+        assertEquals(2, manager.getLoadedZoneCount());
+        assertEquals(2, manager.getZoneLoadCount());
+    }
+
+    @Test
+    public void testRefreshOnlyRebuildsProvidersWithANewVersion() throws Exception {
+        manager.getManager(zone);
+        IdentityProvider unloadedZoneProvider = samlProvider("unloaded-idp", "unloaded-zone");
+        when(providerDao.retrieveModifiedSince(eq(Origin.SAML), any(Date.class)))
+            .thenReturn(Arrays.asList(uaaProvider, zoneProvider, unloadedZoneProvider));
+        manager.refreshAllProviders(false);
+        verify(configurator, times(2)).addSamlIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class));
+
+        IdentityProvider updated = samlProvider("zone-idp", zone.getId()).setId(zoneProvider.getId()).setVersion(1);
+        when(providerDao.retrieveModifiedSince(eq(Origin.SAML), any(Date.class))).thenReturn(Arrays.asList(uaaProvider, updated));
+        manager.refreshAllProviders(false);
+        verify(configurator, times(3)).addSamlIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class));
+        verify(providerDao, never()).retrieveAll(false, "unloaded-zone");
+        verify(providerDao, times(1)).retrieveAll(false, zone.getId());
+    }
+
+    @Test
+    public void testZoneLoadsWhileARefreshIsRunning() throws Exception {
+        final CountDownLatch refreshing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(providerDao.retrieveModifiedSince(eq(Origin.SAML), any(Date.class))).thenAnswer(new Answer<List<IdentityProvider>>() {
+            @Override
+            public List<IdentityProvider> answer(InvocationOnMock invocation) throws Throwable {
+                refreshing.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return Collections.emptyList();
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> refresh = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        manager.refreshAllProviders(false);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+            Future<?> load = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    manager.getManager(zone);
+                }
+            });
+            load.get(5, TimeUnit.SECONDS);
+            assertEquals(2, manager.getLoadedZoneCount());
+            release.countDown();
+            refresh.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIdleZonesAreEvictedAndReloadedOnUse() throws Exception {
+        manager.getManager(zone);
+        manager.setZoneIdleTimeout(1);
+        Thread.sleep(10);
+        manager.refreshAllProviders(false);
+        assertEquals(1, manager.getLoadedZoneCount());
+        assertEquals(1, manager.getZoneEvictionCount());
+        verify(configurator, times(1)).removeIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class));
+
+        manager.getManager(zone);
+        verify(providerDao, times(2)).retrieveAll(false, zone.getId());
+        assertEquals(2, manager.getLoadedZoneCount());
+    }
+
+    @Test
+    public void testRefreshIsTimed() throws Exception {
+        long count = manager.getRefreshCount();
+        manager.refreshAllProviders(false);
+        assertEquals(count + 1, manager.getRefreshCount());
+        verify(providerDao, times(1)).retrieveModifiedSince(eq(Origin.SAML), any(Date.class));
+        //only the default zone, at startup
+        verify(providerDao, times(1)).retrieveAll(eq(false), anyString());
+    }
+
+    private static IdentityProvider samlProvider(String alias, String zoneId) {
+        SamlIdentityProviderDefinition definition = new SamlIdentityProviderDefinition();
+        definition.setIdpEntityAlias(alias);
+        definition.setZoneId(zoneId);
+        definition.setMetaDataLocation(String.format(IdentityProviderConfiguratorTests.xmlWithoutID, alias));
+        return new IdentityProvider()
+            .setId(alias + "-id")
+            .setOriginKey(alias)
+            .setType(Origin.SAML)
+            .setIdentityZoneId(zoneId)
+            .setActive(true)
+            .setConfig(JsonUtils.writeValueAsString(definition));
+    }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTests {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (int i = 0; i < Histogram.SUB_BUCKETS; i++) {
+            histogram.record(i);
+        }
+        assertEquals(Histogram.SUB_BUCKETS, histogram.getCount());
+        assertEquals(7, histogram.getValueAtPercentile(50));
+        assertEquals(Histogram.SUB_BUCKETS - 1, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+        assertWithinPrecision(50000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(99000, histogram.getValueAtPercentile(99));
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long previousUpperBound = -1;
+        for (int i = 0; i < Histogram.BUCKET_COUNT - 1; i++) {
+            long upperBound = Histogram.bucketUpperBound(i);
+            assertEquals(i, Histogram.bucketIndex(previousUpperBound + 1));
+            assertEquals(i, Histogram.bucketIndex(upperBound));
+            previousUpperBound = upperBound;
+        }
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void negativeValuesAreRecordedAsZero() {
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(1, histogram.getCount());
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected);
+        assertTrue(expected + " vs " + actual, actual <= expected + expected / Histogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class UaaMetricsTests {
+
+    private final UaaMetrics metrics = new UaaMetrics();
+
+    @After
+    public void clearZone() {
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void operationsAreCountedPerZoneAndClient() {
+        OperationMetrics tokens = metrics.getOperation(UaaMetrics.TOKEN_ISSUANCE);
+        tokens.record("uaa", "cf", TimeUnit.MILLISECONDS.toNanos(5), true);
+        tokens.record("uaa", "admin", TimeUnit.MILLISECONDS.toNanos(10), true);
+        tokens.record("zone1", "cf", TimeUnit.MILLISECONDS.toNanos(20), false);
+
+        assertEquals(3, metrics.getTokenIssuanceCount());
+        assertEquals(1, tokens.getFailureCount());
+        assertEquals(Long.valueOf(2), tokens.getZoneCounts().get("uaa"));
+        assertEquals(Long.valueOf(1), tokens.getZoneCounts().get("zone1"));
+        assertEquals(Long.valueOf(2), tokens.getClientCounts().get("cf"));
+        assertTrue(metrics.getTokenIssuance99thPercentile() >= 20);
+    }
+
+    @Test
+    public void numberOfCountedKeysIsBounded() {
+        metrics.setMaxKeys(2);
+        OperationMetrics clients = metrics.getOperation(UaaMetrics.CLIENT_LOAD);
+        for (int i = 0; i < 10; i++) {
+            clients.record("uaa", "client" + i, 1000, true);
+        }
+        Map<String, Long> counts = clients.getClientCounts();
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(8), counts.get(OperationMetrics.OTHER));
+    }
+
+    @Test
+    public void summaryCanBeSerialized() {
+        metrics.getOperation(UaaMetrics.ZONE_RESOLUTION).record("uaa", null, 1000, true);
+        Map<String, Object> summary = JsonUtils.readValue(JsonUtils.writeValueAsString(metrics.getSummary()), Map.class);
+        Map<String, Object> zones = (Map<String, Object>) summary.get(UaaMetrics.ZONE_RESOLUTION);
+        assertEquals(1, zones.get("count"));
+        assertNotNull(zones.get("latency_ms"));
+    }
+
+    @Test
+    public void passwordChecksAreTimed() {
+        IdentityZoneHolder.set(IdentityZone.getUaa());
+        TimedBCryptPasswordEncoder encoder = new TimedBCryptPasswordEncoder();
+        encoder.setMetrics(metrics);
+        String hash = BCrypt.hashpw("secret", BCrypt.gensalt(4));
+        assertTrue(encoder.matches("secret", hash));
+        assertFalse(encoder.matches("wrong", hash));
+        OperationMetrics checks = metrics.getOperation(UaaMetrics.PASSWORD_CHECK);
+        assertEquals(2, checks.getCount());
+        assertEquals(1, checks.getFailureCount());
+        assertEquals(Long.valueOf(2), checks.getZoneCounts().get(IdentityZone.getUaa().getId()));
+    }
+
+    @Test
+    public void varzReportsHeapUsage() {
+        Map<String, Object> varz = new VarzEndpoint(metrics).getVarz();
+        Map<String, Object> memory = (Map<String, Object>) varz.get("memory");
+        assertNotNull(((Map<String, Object>) memory.get("heap_memory_usage")).get("used"));
+        assertNotNull(varz.get("metrics"));
+    }
+}
@@ -270,6 +270,38 @@ public class ClientAdminBootstrapTests extends JdbcTestBase {
         assertEquals("Password hash must not change on an update:", hash, details.getClientSecret());
     }
 
+    @Test
+    public void testBulkAddAndOverrideClients() throws Exception {
+        Map<String, Map<String, Object>> clients = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("id", "client" + i);
+            map.put("secret", "secret" + i);
+            map.put("scope", "openid");
+            map.put("authorized-grant-types", "client_credentials");
+            clients.put("client" + i, map);
+        }
+        bootstrap.setEncoderThreads(4);
+        bootstrap.setClients(clients);
+        bootstrap.afterPropertiesSet();
+        assertEquals(20, clientRegistrationService.listClientDetails().size());
+        String unchangedHash = clientRegistrationService.loadClientByClientId("client2").getClientSecret();
+        assertTrue(bootstrap.getPasswordEncoder().matches("secret2", unchangedHash));
+
+        clients.get("client0").put("secret", "changed");
+        clients.get("client0").put("scope", "openid,uaa.user");
+        clients.get("client1").put("secret", "changed");
+        clients.get("client1").put("override", false);
+        bootstrap.setClients(clients);
+        bootstrap.afterPropertiesSet();
+
+        ClientDetails client0 = clientRegistrationService.loadClientByClientId("client0");
+        assertTrue(bootstrap.getPasswordEncoder().matches("changed", client0.getClientSecret()));
+        assertEquals(new HashSet<>(Arrays.asList("openid", "uaa.user")), client0.getScope());
+        assertTrue(bootstrap.getPasswordEncoder().matches("secret1", clientRegistrationService.loadClientByClientId("client1").getClientSecret()));
+        assertEquals(unchangedHash, clientRegistrationService.loadClientByClientId("client2").getClientSecret());
+    }
+
     private ClientDetails doSimpleTest(Map<String, Object> map) throws Exception {
         bootstrap.setClients(Collections.singletonMap((String) map.get("id"), map));
         bootstrap.afterPropertiesSet();
@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -23,6 +24,7 @@ import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStat
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -43,6 +45,7 @@ import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
 import org.springframework.security.oauth2.provider.client.InMemoryClientDetailsService;
@@ -162,6 +165,65 @@ public class ApprovalsAdminEndpointsTests extends JdbcTestBase {
         assertTrue(updatedApprovals.contains(new Approval(marissa.getId(), "c1", "uaa.user", 2000, APPROVED)));
     }
 
+    @Test
+    public void canUpdateClientApprovals() {
+        addApproval(marissa.getId(), "c1", "uaa.user", 6000, APPROVED);
+        addApproval(marissa.getId(), "c2", "uaa.user", 6000, APPROVED);
+
+        Approval[] app = new Approval[] { new Approval(null, "c1", "openid", 2000, APPROVED),
+                        new Approval(null, "c1", "dash.user", 2000, DENIED) };
+        List<Approval> response = endpoints.updateClientApprovals("c1", app);
+        assertEquals(2, response.size());
+        assertTrue(response.contains(new Approval(marissa.getId(), "c1", "openid", 2000, APPROVED)));
+        assertTrue(response.contains(new Approval(marissa.getId(), "c1", "dash.user", 2000, DENIED)));
+        assertEquals(1, dao.getApprovals(marissa.getId(), "c2").size());
+    }
+
+    @Test
+    public void addApprovalsRefreshesExistingAndInsertsNewApprovals() {
+        addApproval(marissa.getId(), "c1", "uaa.user", 6000, APPROVED);
+        addApproval(marissa.getId(), "c1", "openid", 6000, APPROVED);
+
+        dao.addApprovals(Arrays.asList(new Approval(marissa.getId(), "c1", "openid", 18000, DENIED),
+                        new Approval(marissa.getId(), "c1", "dash.user", 2000, APPROVED),
+                        new Approval(marissa.getId(), "c1", "dash.user", 4000, DENIED)));
+
+        List<Approval> approvals = dao.getApprovals(marissa.getId(), "c1");
+        assertEquals(3, approvals.size());
+        assertTrue(approvals.contains(new Approval(marissa.getId(), "c1", "uaa.user", 6000, APPROVED)));
+        assertTrue(approvals.contains(new Approval(marissa.getId(), "c1", "openid", 18000, DENIED)));
+        assertTrue(approvals.contains(new Approval(marissa.getId(), "c1", "dash.user", 4000, DENIED)));
+    }
+
+    @Test
+    public void addApprovalsChangesNothingWhenOneFails() {
+        addApproval(marissa.getId(), "c1", "uaa.user", 6000, APPROVED);
+
+        try {
+            dao.addApprovals(Arrays.asList(new Approval(marissa.getId(), "c1", "uaa.user", 6000, DENIED),
+                            new Approval(marissa.getId(), "c1", "dash.user", 2000, APPROVED),
+                            new Approval(marissa.getId(), "c1", null, 2000, APPROVED)));
+            fail();
+        } catch (DataAccessException expected) {
+        }
+
+        List<Approval> approvals = dao.getApprovals(marissa.getId(), "c1");
+        assertEquals(1, approvals.size());
+        assertEquals(APPROVED, approvals.get(0).getStatus());
+    }
+
+    @Test
+    public void getApprovalsForUserAndClientOnlyMatchesExactIds() {
+        addApproval(marissa.getId(), "c1", "uaa.user", 6000, APPROVED);
+        addApproval(marissa.getId(), "C1", "uaa.user", 6000, APPROVED);
+        addApproval(marissa.getId(), "c2", "uaa.user", 6000, APPROVED);
+
+        List<Approval> approvals = dao.getApprovals(marissa.getId(), "c1");
+        assertEquals(1, approvals.size());
+        assertEquals("c1", approvals.get(0).getClientId());
+        assertEquals(0, dao.getApprovals("other-user", "c1").size());
+    }
+
     public void attemptingToCreateDuplicateApprovalsExtendsValidity() {
         addApproval(marissa.getId(), "c1", "uaa.user", 6000, APPROVED);
         addApproval(marissa.getId(), "c1", "uaa.admin", 12000, DENIED);
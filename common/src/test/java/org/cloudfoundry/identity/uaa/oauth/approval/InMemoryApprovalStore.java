@@ -29,6 +29,11 @@ public class InMemoryApprovalStore implements ApprovalStore {
         return store.add(approval);
     }
 
+    @Override
+    public boolean addApprovals(List<Approval> approvals) {
+        return store.addAll(approvals);
+    }
+
     @Override
     public boolean revokeApproval(Approval approval) {
         for (Approval a : store) {
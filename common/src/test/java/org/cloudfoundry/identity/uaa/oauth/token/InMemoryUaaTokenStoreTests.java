@@ -0,0 +1,137 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class InMemoryUaaTokenStoreTests {
+
+    private InMemoryUaaTokenStore store;
+    private OAuth2Authentication authentication;
+    private UaaPrincipal principal = new UaaPrincipal("userid","username","username@test.org", Origin.UAA, null, IdentityZone.getUaa().getId());
+
+    @Before
+    public void setUp() {
+        store = new InMemoryUaaTokenStore();
+        BaseClientDetails client = new BaseClientDetails("clientid", null, "openid","authorization_code", "oauth.login", null);
+        Map<String,String> parameters = new HashMap<>();
+        parameters.put(OAuth2Utils.CLIENT_ID, client.getClientId());
+        parameters.put("scope","openid");
+        TokenRequest request = new TokenRequest(parameters, client.getClientId(), client.getScope(), "authorization_code");
+        List<GrantedAuthority> userAuthorities = Arrays.<GrantedAuthority>asList(new SimpleGrantedAuthority("openid"));
+        UaaAuthentication userAuthentication = new UaaAuthentication(principal, userAuthorities, new UaaAuthenticationDetails(new MockHttpServletRequest()));
+        authentication = new OAuth2Authentication(request.createOAuth2Request(client), userAuthentication);
+    }
+
+    @Test
+    public void codeCanBeConsumed() {
+        String code = store.createAuthorizationCode(authentication);
+        assertEquals(1, store.getSize());
+        OAuth2Authentication result = store.consumeAuthorizationCode(code);
+        assertEquals(principal, result.getUserAuthentication().getPrincipal());
+        assertEquals(authentication.getOAuth2Request().getScope(), result.getOAuth2Request().getScope());
+        assertEquals(0, store.getSize());
+    }
+
+    @Test(expected = InvalidGrantException.class)
+    public void unknownCodeIsRejected() {
+        store.consumeAuthorizationCode("non-existent");
+    }
+
+    @Test
+    public void codeIsHandedOutOnlyOnceUnderContention() throws Exception {
+        final String code = store.createAuthorizationCode(authentication);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> consumers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                consumers.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        try {
+                            return store.consumeAuthorizationCode(code) != null;
+                        } catch (InvalidGrantException e) {
+                            return false;
+                        }
+                    }
+                });
+            }
+            int consumed = 0;
+            for (Future<Boolean> result : executor.invokeAll(consumers)) {
+                if (result.get()) {
+                    consumed++;
+                }
+            }
+            assertEquals(1, consumed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void expiredCodesAreRejectedAndRemoved() throws Exception {
+        store = new InMemoryUaaTokenStore(-1000);
+        String code = store.createAuthorizationCode(authentication);
+        store.createAuthorizationCode(authentication);
+        try {
+            store.consumeAuthorizationCode(code);
+            fail();
+        } catch (InvalidGrantException e) {
+        }
+        assertEquals(1, store.getSize());
+        assertEquals(1, store.purgeExpiredEntries(10));
+        assertEquals(0, store.getSize());
+    }
+
+    @Test
+    public void expiredCodesArePurgedInBatches() {
+        store = new InMemoryUaaTokenStore(-1000);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(store.createAuthorizationCode(authentication));
+        }
+        assertEquals(2, store.purgeExpiredEntries(2));
+        assertEquals(3, store.getSize());
+        assertEquals(3, store.purgeExpiredEntries(10));
+        assertEquals(0, store.getSize());
+    }
+}
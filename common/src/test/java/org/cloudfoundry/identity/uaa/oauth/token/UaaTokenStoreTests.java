@@ -170,6 +170,92 @@ public class UaaTokenStoreTests extends JdbcTestBase {
         assertEquals(principal, authentication.getUserAuthentication().getPrincipal());
     }
 
+    @Test
+    public void codes_are_stored_in_json_format_by_default() throws Exception {
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        byte[] data = jdbcTemplate.queryForObject("SELECT authentication FROM oauth_code WHERE code = ?", byte[].class, code);
+        assertEquals('{', data[0]);
+        OAuth2Authentication authentication = OAuth2AuthenticationSerializer.deserializeJson(data);
+        assertEquals(principal, authentication.getUserAuthentication().getPrincipal());
+        assertEquals(uaaAuthentication.getOAuth2Request().getScope(), authentication.getOAuth2Request().getScope());
+        assertEquals(principal, store.consumeAuthorizationCode(code).getUserAuthentication().getPrincipal());
+    }
+
+    @Test
+    public void codes_are_stored_in_binary_format() throws Exception {
+        store.setBinaryFormat(true);
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        byte[] data = jdbcTemplate.queryForObject("SELECT authentication FROM oauth_code WHERE code = ?", byte[].class, code);
+        assertEquals(OAuth2AuthenticationSerializer.VERSION, data[0]);
+        OAuth2Authentication authentication = store.consumeAuthorizationCode(code);
+        assertEquals(principal, authentication.getUserAuthentication().getPrincipal());
+        assertEquals(uaaAuthentication.getOAuth2Request().getScope(), authentication.getOAuth2Request().getScope());
+        assertEquals(uaaAuthentication.getOAuth2Request().getRequestParameters(), authentication.getOAuth2Request().getRequestParameters());
+        assertEquals(uaaAuthentication.getOAuth2Request().getClientId(), authentication.getOAuth2Request().getClientId());
+    }
+
+    @Test
+    public void binary_format_is_smaller_than_json() throws Exception {
+        store.setBinaryFormat(true);
+        byte[] binary = store.serializeOauth2Authentication(uaaAuthentication);
+        OAuth2Authentication authentication = store.deserializeOauth2Authentication(UAA_AUTHENTICATION_DATA_OLD_STYLE);
+        assertTrue(store.serializeOauth2Authentication(authentication).length < UAA_AUTHENTICATION_DATA_OLD_STYLE.length);
+        assertEquals(principal, store.deserializeOauth2Authentication(binary).getUserAuthentication().getPrincipal());
+    }
+
+    @Test
+    public void code_can_only_be_consumed_once() throws Exception {
+        String code = store.createAuthorizationCode(usernamePasswordAuthentication);
+        assertNotNull(store.consumeAuthorizationCode(code));
+        try {
+            store.consumeAuthorizationCode(code);
+            fail();
+        } catch (InvalidGrantException e) {
+        }
+    }
+
+    @Test
+    public void code_removed_by_another_node_is_not_handed_out() throws Exception {
+        store = new UaaTokenStore(dataSource) {
+            @Override
+            public TokenCode createTokenCode(String code, String userId, String clientId, long expiresAt, Timestamp created, byte[] authentication) {
+                //another request consumes the code between the select and the delete
+                jdbcTemplate.update("DELETE FROM oauth_code WHERE code = ?", code);
+                return super.createTokenCode(code, userId, clientId, expiresAt, created, authentication);
+            }
+        };
+        String code = store.createAuthorizationCode(usernamePasswordAuthentication);
+        try {
+            store.consumeAuthorizationCode(code);
+            fail();
+        } catch (InvalidGrantException e) {
+        }
+    }
+
+    @Test
+    public void expired_codes_are_not_removed_on_the_request_path() throws Exception {
+        String code = store.createAuthorizationCode(clientAuthentication);
+        String expired = store.createAuthorizationCode(clientAuthentication);
+        jdbcTemplate.update("UPDATE oauth_code SET expiresat = ? WHERE code = ?", System.currentTimeMillis() - 60000, expired);
+        store.consumeAuthorizationCode(code);
+        store.createAuthorizationCode(clientAuthentication);
+        assertEquals(2, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
+    }
+
+    @Test
+    public void expired_codes_are_purged_in_batches() throws Exception {
+        for (int i=0; i<5; i++) {
+            store.createAuthorizationCode(clientAuthentication);
+        }
+        jdbcTemplate.update("UPDATE oauth_code SET expiresat = ?", System.currentTimeMillis() - 60000);
+        String valid = store.createAuthorizationCode(clientAuthentication);
+        assertEquals(2, store.purgeExpiredEntries(2));
+        assertEquals(4, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
+        assertEquals(3, store.purgeExpiredEntries(10));
+        assertEquals(0, store.purgeExpiredEntries(10));
+        assertNotNull(store.consumeAuthorizationCode(valid));
+    }
+
     @Test
     public void testRetrieveToken() throws Exception {
         String code = store.createAuthorizationCode(clientAuthentication);
@@ -222,6 +308,8 @@ public class UaaTokenStoreTests extends JdbcTestBase {
             fail();
         } catch (InvalidGrantException e) {
         }
+        assertEquals(count-1, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
+        assertEquals(count-1, store.purgeExpiredEntries(100));
         assertEquals(0, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
 
     }
@@ -235,16 +323,10 @@ public class UaaTokenStoreTests extends JdbcTestBase {
         }
         assertEquals(count, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
         jdbcTemplate.update("UPDATE oauth_code SET created = ?", new Timestamp(System.currentTimeMillis() - (2 * oneday)));
-        try {
-            store.consumeAuthorizationCode("non-existent");
-            fail();
-        } catch (InvalidGrantException e) {}
+        assertEquals(0, store.purgeExpiredEntries(100));
         assertEquals(count, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
         jdbcTemplate.update("UPDATE oauth_code SET created = ?", new Timestamp(System.currentTimeMillis() - (4 * oneday)));
-        try {
-            store.consumeAuthorizationCode("non-existent");
-            fail();
-        } catch (InvalidGrantException e) {}
+        assertEquals(count, store.purgeExpiredEntries(100));
         assertEquals(0, jdbcTemplate.queryForInt("SELECT count(*) FROM oauth_code"));
     }
 
@@ -301,6 +383,7 @@ public class UaaTokenStoreTests extends JdbcTestBase {
 
             assertEquals(count, template.queryForInt("SELECT count(*) FROM oauth_code"));
             try { store.consumeAuthorizationCode(lastCode); } catch (Exception ignore) {}
+            store.purgeExpiredEntries(100);
             assertEquals(count-1, template.queryForInt("SELECT count(*) FROM oauth_code"));
         } finally {
             con.close();
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.security.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.cloudfoundry.identity.uaa.security.web.FilterChainIndexPostProcessor.FilterChainIndex;
+import org.cloudfoundry.identity.uaa.security.web.FilterChainIndexPostProcessor.IndexedFilterChainProxy;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.web.DefaultSecurityFilterChain;
+import org.springframework.security.web.FilterChainProxy;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.firewall.FirewalledRequest;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.AnyRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+public class FilterChainIndexPostProcessorTests {
+
+    private FilterChainProxy original;
+    private IndexedFilterChainProxy indexed;
+
+    @Before
+    public void setUp() throws Exception {
+        UaaRequestMatcher tokenMatcher = new UaaRequestMatcher("/oauth/token");
+        tokenMatcher.setAccept(Arrays.asList("application/json"));
+        tokenMatcher.setParameters(Collections.singletonMap("grant_type", "password"));
+        UaaRequestMatcher authorizeMatcher = new UaaRequestMatcher("/oauth/authorize");
+        authorizeMatcher.setMethod(HttpMethod.POST);
+        UaaRequestMatcher plainTokenMatcher = new UaaRequestMatcher("/oauth/token");
+
+        original = new FilterChainProxy(Arrays.<SecurityFilterChain>asList(
+            chain(new AntPathRequestMatcher("/oauth/clients/*/secret")),
+            chain(new AntPathRequestMatcher("/oauth/clients/**")),
+            chain(tokenMatcher),
+            chain(authorizeMatcher),
+            chain(plainTokenMatcher),
+            chain(new AntPathRequestMatcher("/token_key**")),
+            chain(new AntPathRequestMatcher("/User*/*/password")),
+            chain(new AntPathRequestMatcher("/Users/**")),
+            chain(new AntPathRequestMatcher("/userinfo")),
+            chain(new AntPathRequestMatcher("/identity-zones/{id}")),
+            chain(new AntPathRequestMatcher("/healthz/**", null, false)),
+            chain(AnyRequestMatcher.INSTANCE),
+            chain(new AntPathRequestMatcher("/**"))
+        ));
+        indexed = (IndexedFilterChainProxy) new FilterChainIndexPostProcessor().postProcessAfterInitialization(original, "springSecurityFilterChain");
+    }
+
+    @Test
+    public void testChainsAreUnchanged() {
+        assertEquals(original.getFilterChains().size(), indexed.getFilterChains().size());
+        for (int i = 0; i < original.getFilterChains().size(); i++) {
+            assertSame(original.getFilterChains().get(i), indexed.getFilterChains().get(i));
+        }
+    }
+
+    @Test
+    public void testChainsKeepTheirTypeAndMatcher() {
+        final List<RequestMatcher> validated = new ArrayList<>();
+        //like the namespace's DefaultFilterChainValidator, which casts every chain
+        original.setFilterChainValidator(new FilterChainProxy.FilterChainValidator() {
+            @Override
+            public void validate(FilterChainProxy filterChainProxy) {
+                for (SecurityFilterChain chain : filterChainProxy.getFilterChains()) {
+                    validated.add(((DefaultSecurityFilterChain) chain).getRequestMatcher());
+                }
+            }
+        });
+        indexed = (IndexedFilterChainProxy) new FilterChainIndexPostProcessor().postProcessAfterInitialization(original, "springSecurityFilterChain");
+        assertEquals(original.getFilterChains().size(), validated.size());
+        for (int i = 0; i < original.getFilterChains().size(); i++) {
+            assertSame(((DefaultSecurityFilterChain) original.getFilterChains().get(i)).getRequestMatcher(), validated.get(i));
+        }
+    }
+
+    @Test
+    public void testSelectedChainIsUnchanged() {
+        List<String> paths = Arrays.asList(
+            "/", "", "/oauth/token", "/oauth/token/", "/oauth/tokens", "/oauth/authorize", "/oauth/clients",
+            "/oauth/clients/", "/oauth/clients/admin", "/oauth/clients/admin/secret", "//oauth/clients/admin/secret",
+            "/oauth/clients/ admin /secret", "/OAUTH/clients/admin", "/token_key", "/token_keys", "/token_key/x",
+            "/Users", "/Users/", "/Users/123", "/Users/123/password", "/User/123/password", "/users/123",
+            "/userinfo", "/userinfo/", "/USERINFO", "//userinfo", "/identity-zones", "/identity-zones/zone",
+            "/healthz", "/HEALTHZ/x", "/login", "/x/oauth/token"
+        );
+        int requests = 0;
+        for (String path : paths) {
+            for (String method : Arrays.asList("GET", "POST")) {
+                for (String accept : Arrays.asList(null, "application/json", "text/html")) {
+                    for (String grantType : Arrays.asList(null, "password", "client_credentials")) {
+                        for (String contextPath : Arrays.asList("", "/uaa")) {
+                            MockHttpServletRequest request = new MockHttpServletRequest(method, contextPath + path);
+                            request.setContextPath(contextPath);
+                            request.setServletPath(path);
+                            if (accept != null) {
+                                request.addHeader("Accept", accept);
+                            }
+                            if (grantType != null) {
+                                request.setParameter("grant_type", grantType);
+                            }
+                            assertEquals(request.toString() + " " + path, selected(original, request), indexed.getMatchingChain(request));
+                            requests++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(requests > 0);
+    }
+
+    @Test
+    public void testFiltersOfTheSelectedChainAreRun() throws Exception {
+        final List<String> invoked = new ArrayList<>();
+        List<SecurityFilterChain> chains = Arrays.<SecurityFilterChain>asList(
+            new DefaultSecurityFilterChain(new AntPathRequestMatcher("/Users/**"), recording("users", invoked), recording("users2", invoked)),
+            new DefaultSecurityFilterChain(new AntPathRequestMatcher("/**"), recording("default", invoked))
+        );
+        indexed = (IndexedFilterChainProxy) new FilterChainIndexPostProcessor().postProcessAfterInitialization(new FilterChainProxy(chains), "springSecurityFilterChain");
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/Users/123");
+        request.setServletPath("/Users/123");
+        MockFilterChain filterChain = new MockFilterChain();
+        indexed.doFilter(request, new MockHttpServletResponse(), filterChain);
+        assertEquals(Arrays.asList("users", "users2"), invoked);
+        //the rest of the servlet chain gets the firewalled request, as with FilterChainProxy
+        assertTrue(filterChain.getRequest() instanceof FirewalledRequest);
+
+        invoked.clear();
+        request = new MockHttpServletRequest("GET", "/login");
+        request.setServletPath("/login");
+        indexed.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        assertEquals(Arrays.asList("default"), invoked);
+        assertEquals(chains.get(0).getFilters(), indexed.getFilters("/Users/123"));
+    }
+
+    @Test
+    public void testOnlyCandidateChainsAreTried() {
+        FilterChainIndex index = new FilterChainIndex();
+        for (SecurityFilterChain chain : original.getFilterChains()) {
+            index.add(chain);
+        }
+        //the any request matcher and /**
+        assertEquals(2, index.getAlwaysTried().cardinality());
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/Users/123");
+        request.setServletPath("/Users/123");
+        //User*/*/password, Users/** and the two that are always tried
+        assertEquals(4, index.getCandidates(request).cardinality());
+
+        request = new MockHttpServletRequest("GET", "/oauth/token");
+        request.setServletPath("/oauth/token");
+        assertEquals(4, index.getCandidates(request).cardinality());
+    }
+
+    @Test
+    public void testCandidatesFollowTheRequestPath() {
+        FilterChainIndex index = new FilterChainIndex();
+        for (SecurityFilterChain chain : original.getFilterChains()) {
+            index.add(chain);
+        }
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/userinfo");
+        request.setServletPath("/userinfo");
+        assertTrue(index.getCandidates(request).get(8));
+        //a forward changes the path of the same request
+        request.setRequestURI("/login");
+        request.setServletPath("/login");
+        assertEquals(2, index.getCandidates(request).cardinality());
+    }
+
+    @Test
+    public void testAntPatternPrefix() {
+        assertNull(FilterChainIndex.getAntPatternPrefix("/**"));
+        assertNull(FilterChainIndex.getAntPatternPrefix("**"));
+        assertNull(FilterChainIndex.getAntPatternPrefix("/*/x"));
+        assertEquals("/oauth/clients", FilterChainIndex.getAntPatternPrefix("/oauth/clients/*/secret"));
+        assertEquals("/token_key", FilterChainIndex.getAntPatternPrefix("/token_key**"));
+        assertEquals("/user", FilterChainIndex.getAntPatternPrefix("/User*/*/password"));
+        assertEquals("/identity-zones", FilterChainIndex.getAntPatternPrefix("/identity-zones/{id}"));
+        assertEquals("/a/b", FilterChainIndex.getAntPatternPrefix("//a/ b /"));
+    }
+
+    private static SecurityFilterChain chain(RequestMatcher matcher) {
+        return new DefaultSecurityFilterChain(matcher, new ArrayList<Filter>());
+    }
+
+    private static Filter recording(final String name, final List<String> invoked) {
+        return new Filter() {
+            @Override
+            public void init(FilterConfig filterConfig) {
+            }
+
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+                invoked.add(name);
+                chain.doFilter(request, response);
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+    }
+
+    private static SecurityFilterChain selected(FilterChainProxy proxy, MockHttpServletRequest request) {
+        for (SecurityFilterChain chain : proxy.getFilterChains()) {
+            if (chain.matches(request)) {
+                return chain;
+            }
+        }
+        return null;
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Collections;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class JdbcUaaUserDatabaseTests extends JdbcTestBase {
 
@@ -132,6 +133,14 @@ public class JdbcUaaUserDatabaseTests extends JdbcTestBase {
                         joe.getAuthorities().contains(new SimpleGrantedAuthority("uaa.user")));
     }
 
+    @Test
+    public void getValidUserCaseInsensitiveWithoutLower() {
+        String platform = webApplicationContext.getBean("platform", String.class);
+        assumeTrue("username only compares case insensitive on hsqldb and mysql", "hsqldb".equals(platform) || "mysql".equals(platform));
+        db.setCaseInsensitive(true);
+        getValidUserCaseInsensitive();
+    }
+
     @Test(expected = UsernameNotFoundException.class)
     public void getNonExistentUserRaisedNotFoundException() {
         db.retrieveUserByName("jo", Origin.UAA);
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+
+package org.cloudfoundry.identity.uaa.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JsonUtilsTest {
+
+    public static class Base {
+        private String name;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Extended extends Base {
+        private int count;
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+    }
+
+    @Test
+    public void testReadersAreCachedPerType() {
+        Map<String, Object> first = JsonUtils.readValue("{\"a\":1}", new TypeReference<Map<String, Object>>() {});
+        Map<String, Object> second = JsonUtils.readValue("{\"b\":[2]}".getBytes(StandardCharsets.UTF_8), new TypeReference<Map<String, Object>>() {});
+        assertEquals(1, first.get("a"));
+        assertEquals(Arrays.asList(2), second.get("b"));
+        assertSame(JsonUtils.getReader(new TypeReference<Map<String, Object>>() {}.getType()),
+                   JsonUtils.getReader(new TypeReference<Map<String, Object>>() {}.getType()));
+        assertSame(JsonUtils.getReader(Base.class), JsonUtils.getReader(Base.class));
+    }
+
+    @Test
+    public void testWriterUsesTheRuntimeClass() {
+        Extended extended = new Extended();
+        extended.setName("name");
+        extended.setCount(3);
+        Base base = extended;
+        String json = JsonUtils.writeValueAsString(base);
+        assertTrue(json, json.contains("\"count\":3"));
+        assertEquals(json, new String(JsonUtils.writeValueAsBytes(base), StandardCharsets.UTF_8));
+        assertSame(JsonUtils.getWriter(extended), JsonUtils.getWriter(new Extended()));
+        assertEquals("null", JsonUtils.writeValueAsString(null));
+    }
+
+    @Test
+    public void testElementsAreWrittenWithTheirRuntimeClass() throws Exception {
+        Extended extended = new Extended();
+        extended.setName("name");
+        extended.setCount(3);
+        Base[] array = new Base[] {extended};
+        List<Base> list = Arrays.<Base>asList(extended);
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.writeValueAsString(array), JsonUtils.writeValueAsString(array));
+        assertEquals(mapper.writeValueAsString(list), JsonUtils.writeValueAsString(list));
+    }
+
+    @Test
+    public void testStreamRoundTrip() {
+        Extended extended = new Extended();
+        extended.setName("name");
+        extended.setCount(3);
+        CloseTrackingOutputStream out = new CloseTrackingOutputStream();
+        JsonUtils.writeValue(out, extended);
+        assertFalse(out.closed);
+
+        CloseTrackingInputStream in = new CloseTrackingInputStream(out.toByteArray());
+        Extended read = JsonUtils.readValue(in, Extended.class);
+        assertFalse(in.closed);
+        assertEquals("name", read.getName());
+        assertEquals(3, read.getCount());
+
+        List<String> list = JsonUtils.readValue(new ByteArrayInputStream("[\"a\",\"b\"]".getBytes(StandardCharsets.UTF_8)), new TypeReference<List<String>>() {});
+        assertEquals(Arrays.asList("a", "b"), list);
+    }
+
+    @Test
+    public void testEmptyInputReadsAsNull() {
+        assertNull(JsonUtils.readValue("", Base.class));
+        assertNull(JsonUtils.readValue(new byte[0], Base.class));
+        assertNull(JsonUtils.readValue((InputStream) null, Base.class));
+        assertNull(JsonUtils.readValue(new ByteArrayInputStream(new byte[0]), Base.class));
+        assertNull(JsonUtils.readValue(new ByteArrayInputStream(" ".getBytes(StandardCharsets.UTF_8)), new TypeReference<Map<String, Object>>() {}));
+    }
+
+    @Test(expected = JsonUtils.JsonUtilException.class)
+    public void testInvalidStream() {
+        JsonUtils.readValue(new ByteArrayInputStream("{".getBytes(StandardCharsets.UTF_8)), Base.class);
+    }
+
+    private static class CloseTrackingOutputStream extends ByteArrayOutputStream {
+        private boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static class CloseTrackingInputStream extends ByteArrayInputStream {
+        private boolean closed = false;
+
+        private CloseTrackingInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
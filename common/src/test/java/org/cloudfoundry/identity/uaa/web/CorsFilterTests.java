@@ -1,6 +1,7 @@
 package org.cloudfoundry.identity.uaa.web;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.internal.util.reflection.Whitebox.getInternalState;
 import static org.mockito.internal.util.reflection.Whitebox.setInternalState;
@@ -10,6 +11,7 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import javax.servlet.FilterChain;
@@ -379,6 +381,58 @@ public class CorsFilterTests {
                 this.writer.toString().contains("Invalid regular expression pattern in cors.xhr.allowed.origins:"));
     }
 
+    @Test
+    public void testCombinedPatternMatchesLikeTheIndividualPatterns() {
+        List<Pattern> patterns = Arrays.asList(Pattern.compile("^/uaa/userinfo$"), Pattern.compile("^/uaa/logout\\.do$"));
+        Pattern combined = CorsFilter.combine(patterns);
+        for (String uri : Arrays.asList("/uaa/userinfo", "/uaa/logout.do", "/uaa/logoutxdo", "/uaa/userinfo/x", "/other/uaa/userinfo")) {
+            boolean any = false;
+            for (Pattern pattern : patterns) {
+                any |= pattern.matcher(uri).find();
+            }
+            assertEquals(uri, any, combined.matcher(uri).find());
+        }
+    }
+
+    @Test
+    public void testPatternsWithBackReferencesAreNotCombined() {
+        assertNull(CorsFilter.combine(Arrays.asList(Pattern.compile("^(a)\\1$"), Pattern.compile("^b$"))));
+        assertNull(CorsFilter.combine(Arrays.asList(Pattern.compile("^a$", Pattern.CASE_INSENSITIVE))));
+        assertNull(CorsFilter.combine(new ArrayList<Pattern>()));
+    }
+
+    @Test
+    public void testOriginDecisionsAreCachedWithABound() throws ServletException, IOException {
+        CorsFilter corsFilter = createConfiguredCorsFilter();
+        corsFilter.setMaxOriginCacheSize(2);
+        for (String origin : Arrays.asList("example.com", "other.com", "example.com", "third.com", "example.com")) {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/uaa/userinfo");
+            request.addHeader("Origin", origin);
+            request.addHeader("X-Requested-With", "XMLHttpRequest");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            corsFilter.doFilter(request, response, newMockFilterChain());
+            assertEquals(origin, origin.equals("example.com") ? 200 : 403, response.getStatus());
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Boolean> cache = (Map<String, Boolean>) getInternalState(corsFilter, "corsXhrAllowedOriginCache");
+        assertTrue(cache.size() <= 2);
+        assertEquals(Boolean.TRUE, cache.get("example.com"));
+    }
+
+    @Test
+    public void testPreFlightMaxAgeIsConfigurable() throws ServletException, IOException {
+        CorsFilter corsFilter = createConfiguredCorsFilter();
+        corsFilter.setMaxAge(600);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("OPTIONS", "/uaa/userinfo");
+        request.addHeader("Access-Control-Request-Headers", "X-Requested-With");
+        request.addHeader("Access-Control-Request-Method", "GET");
+        request.addHeader("Origin", "example.com");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, newMockFilterChain());
+        assertEquals("600", response.getHeaderValue("Access-Control-Max-Age"));
+    }
+
     private static CorsFilter createConfiguredCorsFilter() {
         CorsFilter corsFilter = new CorsFilter();
 
@@ -197,6 +197,21 @@ public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
         assertEquals(1, identityProviders.size());
     }
 
+    @Test
+    public void testRetrieveModifiedSince() throws Exception {
+        String zoneId = UUID.randomUUID().toString();
+        IdentityProvider before = db.create(MultitenancyFixture.identityProvider("before", zoneId));
+        jdbcTemplate.update("update identity_provider set lastmodified=? where id=?", new Timestamp(System.currentTimeMillis() - 60000), before.getId());
+        Timestamp since = new Timestamp(System.currentTimeMillis() - 1000);
+        IdentityProvider after = db.create(MultitenancyFixture.identityProvider("after", zoneId));
+
+        List<IdentityProvider> modified = db.retrieveModifiedSince("after type", since);
+        assertEquals(1, modified.size());
+        assertEquals(after.getId(), modified.get(0).getId());
+        assertEquals(0, db.retrieveModifiedSince("before type", since).size());
+        assertEquals(1, db.retrieveModifiedSince("before type", new Timestamp(0)).size());
+    }
+
     @Test
     public void testRetrieveIdentityProviderByOriginInSameZone() {
         String originKey = RandomStringUtils.randomAlphabetic(6);
@@ -4,6 +4,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -14,6 +16,11 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class EmailService implements MessageService {
     private final Log logger = LogFactory.getLog(getClass());
@@ -49,6 +56,39 @@ public class EmailService implements MessageService {
 
     @Override
     public void sendMessage(String email, MessageType messageType, String subject, String htmlContent) {
+        mailSender.send(createMessage(email, subject, htmlContent));
+    }
+
+    /**
+     * Sends the messages over a single connection to the mail server. All
+     * messages are sent from the current identity zone.
+     *
+     * @return the messages that could not be sent
+     */
+    public List<OutboundMessage> sendMessages(List<OutboundMessage> messages) {
+        Map<MimeMessage, OutboundMessage> mimeMessages = new LinkedHashMap<>();
+        for (OutboundMessage message : messages) {
+            mimeMessages.put(createMessage(message.getEmail(), message.getSubject(), message.getHtmlContent()), message);
+        }
+        try {
+            mailSender.send(mimeMessages.keySet().toArray(new MimeMessage[mimeMessages.size()]));
+            return Collections.emptyList();
+        } catch (MailSendException e) {
+            List<OutboundMessage> failed = new ArrayList<>();
+            for (Object message : e.getFailedMessages().keySet()) {
+                if (mimeMessages.containsKey(message)) {
+                    failed.add(mimeMessages.get(message));
+                }
+            }
+            logger.warn("Unable to send " + (failed.isEmpty() ? messages.size() : failed.size()) + " of " + messages.size() + " messages", e);
+            return failed.isEmpty() ? messages : failed;
+        } catch (MailException e) {
+            logger.warn("Unable to send " + messages.size() + " messages", e);
+            return messages;
+        }
+    }
+
+    private MimeMessage createMessage(String email, String subject, String htmlContent) {
         MimeMessage message = mailSender.createMimeMessage();
         try {
             message.addFrom(getSenderAddresses());
@@ -60,7 +100,6 @@ public class EmailService implements MessageService {
         } catch (UnsupportedEncodingException e) {
             logger.error("Exception raised while sending message to " + email, e);
         }
-
-        mailSender.send(message);
+        return message;
     }
 }
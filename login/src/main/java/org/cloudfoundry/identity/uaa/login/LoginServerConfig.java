@@ -26,11 +26,22 @@ public class LoginServerConfig {
 
     @Bean
     public MessageService messageService(EmailService emailService, NotificationsService notificationsService, Environment environment) {
+        MessageService messageService;
         if (environment.getProperty("notifications.url") != null && !environment.getProperty("notifications.url").equals("")) {
-            return notificationsService;
+            messageService = notificationsService;
         }
         else {
-            return emailService;
+            messageService = emailService;
         }
+        if (environment.getProperty("message_queue.enabled", Boolean.class, false)) {
+            QueuedMessageService queuedMessageService = new QueuedMessageService(messageService);
+            queuedMessageService.setThreads(environment.getProperty("message_queue.threads", Integer.class, 2));
+            queuedMessageService.setCapacity(environment.getProperty("message_queue.capacity", Integer.class, 1000));
+            queuedMessageService.setBatchSize(environment.getProperty("message_queue.batch_size", Integer.class, 20));
+            queuedMessageService.setMaxAttempts(environment.getProperty("message_queue.max_attempts", Integer.class, 3));
+            queuedMessageService.setBackoff(environment.getProperty("message_queue.backoff", Long.class, 1000L));
+            messageService = queuedMessageService;
+        }
+        return messageService;
     }
 }
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.login;
+
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+
+/**
+ * A message waiting in the {@link QueuedMessageService}, together with the
+ * identity zone it was sent from.
+ */
+public class OutboundMessage {
+
+    private final String email;
+    private final MessageType messageType;
+    private final String subject;
+    private final String htmlContent;
+    private final IdentityZone zone;
+    private int attempts = 0;
+
+    public OutboundMessage(String email, MessageType messageType, String subject, String htmlContent, IdentityZone zone) {
+        this.email = email;
+        this.messageType = messageType;
+        this.subject = subject;
+        this.htmlContent = htmlContent;
+        this.zone = zone;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public MessageType getMessageType() {
+        return messageType;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getHtmlContent() {
+        return htmlContent;
+    }
+
+    public IdentityZone getZone() {
+        return zone;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    int incrementAttempts() {
+        return ++attempts;
+    }
+}
@@ -0,0 +1,320 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.login;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends messages through another {@link MessageService} from background
+ * threads, so that the request sending a message doesn't wait for the mail
+ * server or the notifications service.
+ * <p>
+ * Messages wait in a queue of at most {@link #setCapacity(int) capacity}
+ * entries. When it is full a message is sent on the calling thread instead.
+ * Each of the {@link #setThreads(int) threads} takes up to
+ * {@link #setBatchSize(int) batchSize} messages at a time; an
+ * {@link EmailService} sends them over one connection to the mail server.
+ * A message that fails is retried after {@link #setBackoff(long) backoff}
+ * milliseconds, doubling with every attempt, until it has been tried
+ * {@link #setMaxAttempts(int) maxAttempts} times.
+ */
+@ManagedResource
+public class QueuedMessageService implements MessageService, InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final MessageService delegate;
+
+    private int threads = 2;
+
+    private int capacity = 1000;
+
+    private int batchSize = 20;
+
+    private int maxAttempts = 3;
+
+    private long backoff = 1000;
+
+    private long shutdownTimeout = 10000;
+
+    private BlockingQueue<OutboundMessage> queue;
+
+    private ExecutorService workers;
+
+    private ScheduledExecutorService retries;
+
+    private volatile boolean running = false;
+
+    private final AtomicLong queuedCount = new AtomicLong();
+
+    private final AtomicLong inlineCount = new AtomicLong();
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public QueuedMessageService(MessageService delegate) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public MessageService getDelegate() {
+        return delegate;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setBackoff(long backoff) {
+        this.backoff = backoff;
+    }
+
+    /**
+     * @param shutdownTimeout milliseconds to wait on shutdown for the
+     *            messages being sent
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        running = true;
+        workers = Executors.newFixedThreadPool(threads, threadFactory("QueuedMessageService"));
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainQueue();
+                }
+            });
+        }
+        retries = Executors.newSingleThreadScheduledExecutor(threadFactory("QueuedMessageService-retry"));
+    }
+
+    /**
+     * Stops the background threads and sends the messages still in the
+     * queue. Retries that are not yet due are dropped.
+     */
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        if (retries != null) {
+            int dropped = retries.shutdownNow().size();
+            if (dropped > 0) {
+                failedCount.addAndGet(dropped);
+                logger.warn("Dropped " + dropped + " messages waiting to be retried");
+            }
+        }
+        if (workers != null) {
+            workers.shutdown();
+            workers.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS);
+        }
+        List<OutboundMessage> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            deliver(remaining);
+        }
+    }
+
+    @Override
+    public void sendMessage(String email, MessageType messageType, String subject, String htmlContent) {
+        OutboundMessage message = new OutboundMessage(email, messageType, subject, htmlContent, IdentityZoneHolder.get());
+        if (queue.offer(message)) {
+            queuedCount.incrementAndGet();
+        } else {
+            inlineCount.incrementAndGet();
+            logger.warn("Outbound message queue is full, sending message to " + email + " on the request thread");
+            deliver(Collections.singletonList(message));
+        }
+    }
+
+    private void drainQueue() {
+        while (running) {
+            try {
+                OutboundMessage first = queue.poll(500, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    List<OutboundMessage> batch = new ArrayList<>();
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    deliver(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Unable to send outbound messages", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the messages from the identity zones they were queued in.
+     */
+    protected void deliver(List<OutboundMessage> messages) {
+        Map<String, List<OutboundMessage>> byZone = new LinkedHashMap<>();
+        for (OutboundMessage message : messages) {
+            String zoneId = message.getZone() == null ? null : message.getZone().getId();
+            if (!byZone.containsKey(zoneId)) {
+                byZone.put(zoneId, new ArrayList<OutboundMessage>());
+            }
+            byZone.get(zoneId).add(message);
+        }
+        IdentityZone current = IdentityZoneHolder.get();
+        try {
+            for (List<OutboundMessage> zoneMessages : byZone.values()) {
+                IdentityZone zone = zoneMessages.get(0).getZone();
+                IdentityZoneHolder.set(zone == null ? IdentityZone.getUaa() : zone);
+                List<OutboundMessage> failed = send(zoneMessages);
+                sentCount.addAndGet(zoneMessages.size() - failed.size());
+                for (OutboundMessage message : failed) {
+                    retry(message);
+                }
+            }
+        } finally {
+            IdentityZoneHolder.set(current);
+        }
+    }
+
+    private List<OutboundMessage> send(List<OutboundMessage> messages) {
+        for (OutboundMessage message : messages) {
+            message.incrementAttempts();
+        }
+        if (delegate instanceof EmailService) {
+            batchCount.incrementAndGet();
+            return ((EmailService) delegate).sendMessages(messages);
+        }
+        List<OutboundMessage> failed = new ArrayList<>();
+        for (OutboundMessage message : messages) {
+            try {
+                delegate.sendMessage(message.getEmail(), message.getMessageType(), message.getSubject(), message.getHtmlContent());
+            } catch (RuntimeException e) {
+                logger.warn("Unable to send message to " + message.getEmail(), e);
+                failed.add(message);
+            }
+        }
+        return failed;
+    }
+
+    private void retry(final OutboundMessage message) {
+        if (message.getAttempts() >= maxAttempts || retries == null) {
+            failedCount.incrementAndGet();
+            logger.error("Giving up sending message to " + message.getEmail() + " after " + message.getAttempts() + " attempts");
+            return;
+        }
+        long delay = backoff << (message.getAttempts() - 1);
+        try {
+            retries.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!queue.offer(message)) {
+                        deliver(Collections.singletonList(message));
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            retryCount.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            failedCount.incrementAndGet();
+            logger.error("Giving up sending message to " + message.getEmail() + " on shutdown");
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Queued Messages")
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Messages Queued")
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Messages Sent On The Request Thread")
+    public long getInlineCount() {
+        return inlineCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Messages Sent")
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Mail Server Connections")
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Retries")
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Messages Given Up")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.login;
+
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueuedMessageServiceTests {
+
+    private SmtpServer smtpServer;
+
+    private QueuedMessageService service;
+
+    @Before
+    public void setUp() throws Exception {
+        smtpServer = new SmtpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.destroy();
+        }
+        smtpServer.close();
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void testMessagesAreSentInTheBackground() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        service = new QueuedMessageService((email, messageType, subject, htmlContent) -> {
+            await(release);
+            sent.add(email);
+        });
+        service.afterPropertiesSet();
+
+        service.sendMessage("user@example.com", MessageType.CHANGE_EMAIL, "Test Message", "<html><body>hi</body></html>");
+        assertEquals(0, sent.size());
+        release.countDown();
+        waitFor(() -> service.getSentCount() == 1);
+        assertEquals(Collections.singletonList("user@example.com"), sent);
+        assertEquals(1, service.getQueuedCount());
+    }
+
+    @Test
+    public void testEmailsAreBatchedOverOneConnection() throws Exception {
+        service = new QueuedMessageService(new EmailService(mailSender(), "http://login.example.com/login", "oss"));
+        service.setBatchSize(10);
+        for (int i = 0; i < 5; i++) {
+            service.sendMessage("user" + i + "@example.com", MessageType.PASSWORD_RESET, "Reset " + i, "<html><body>hi</body></html>");
+        }
+        assertEquals(5, service.getQueueSize());
+        service.afterPropertiesSet();
+
+        waitFor(() -> service.getSentCount() == 5);
+        assertEquals(1, smtpServer.connections.get());
+        assertEquals(5, smtpServer.messages.size());
+        assertEquals(1, service.getBatchCount());
+        assertTrue(smtpServer.messages.get(0).contains("Reset 0"));
+    }
+
+    @Test
+    public void testEmailsAreRetriedWhenTheMailServerIsDown() throws Exception {
+        JavaMailSenderImpl mailSender = mailSender();
+        smtpServer.close();
+        service = new QueuedMessageService(new EmailService(mailSender, "http://login.example.com/login", "oss"));
+        service.setBackoff(50);
+        service.setMaxAttempts(10);
+        service.afterPropertiesSet();
+        service.sendMessage("user@example.com", MessageType.PASSWORD_RESET, "Reset", "<html><body>hi</body></html>");
+
+        waitFor(() -> service.getRetryCount() >= 1);
+        smtpServer = new SmtpServer(mailSender.getPort());
+        waitFor(() -> service.getSentCount() == 1);
+        assertEquals(1, smtpServer.messages.size());
+        assertEquals(0, service.getFailedCount());
+    }
+
+    @Test
+    public void testRetriesBackOffAndGiveUp() throws Exception {
+        final List<Long> attempts = Collections.synchronizedList(new ArrayList<Long>());
+        service = new QueuedMessageService((email, messageType, subject, htmlContent) -> {
+            attempts.add(System.currentTimeMillis());
+            throw new IllegalStateException("unavailable");
+        });
+        service.setBackoff(40);
+        service.setMaxAttempts(3);
+        service.afterPropertiesSet();
+        service.sendMessage("user@example.com", MessageType.INVITATION, "Invitation", "<html><body>hi</body></html>");
+
+        waitFor(() -> service.getFailedCount() == 1);
+        assertEquals(3, attempts.size());
+        assertEquals(2, service.getRetryCount());
+        assertTrue(attempts.get(1) - attempts.get(0) >= 40);
+        assertTrue(attempts.get(2) - attempts.get(1) >= 80);
+        assertEquals(0, service.getSentCount());
+    }
+
+    @Test
+    public void testFullQueueSendsOnTheCallingThread() throws Exception {
+        final List<String> threads = new ArrayList<>();
+        service = new QueuedMessageService((email, messageType, subject, htmlContent) -> threads.add(Thread.currentThread().getName()));
+        service.setCapacity(1);
+        service.sendMessage("first@example.com", MessageType.INVITATION, "Invitation", "hi");
+        service.sendMessage("second@example.com", MessageType.INVITATION, "Invitation", "hi");
+        assertEquals(Collections.singletonList(Thread.currentThread().getName()), threads);
+        assertEquals(1, service.getInlineCount());
+        assertEquals(1, service.getQueueSize());
+    }
+
+    @Test
+    public void testMessagesAreSentFromTheirZone() throws Exception {
+        final List<String> zones = Collections.synchronizedList(new ArrayList<String>());
+        service = new QueuedMessageService((email, messageType, subject, htmlContent) -> zones.add(IdentityZoneHolder.get().getId()));
+        IdentityZone zone = new IdentityZone();
+        zone.setId("zone-id");
+        IdentityZoneHolder.set(zone);
+        service.sendMessage("user@example.com", MessageType.CHANGE_EMAIL, "Test Message", "hi");
+        IdentityZoneHolder.clear();
+        service.sendMessage("admin@example.com", MessageType.CHANGE_EMAIL, "Test Message", "hi");
+        service.afterPropertiesSet();
+
+        waitFor(() -> service.getSentCount() == 2);
+        assertEquals(2, zones.size());
+        assertTrue(zones.contains("zone-id"));
+        assertTrue(zones.contains(IdentityZone.getUaa().getId()));
+    }
+
+    @Test
+    public void testQueuedMessagesAreSentOnShutdown() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        service = new QueuedMessageService((email, messageType, subject, htmlContent) -> sent.add(email));
+        service.sendMessage("user@example.com", MessageType.CHANGE_EMAIL, "Test Message", "hi");
+        service.destroy();
+        assertEquals(Collections.singletonList("user@example.com"), sent);
+        service = null;
+    }
+
+    private JavaMailSenderImpl mailSender() {
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(smtpServer.getPort());
+        return mailSender;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.met() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Timed out", condition.met());
+    }
+
+    /**
+     * Accepts any mail and records each message and connection.
+     */
+    private static class SmtpServer implements Runnable {
+
+        private final ServerSocket serverSocket;
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        private SmtpServer() throws IOException {
+            this(0);
+        }
+
+        private SmtpServer(int port) throws IOException {
+            serverSocket = new ServerSocket(port);
+            Thread thread = new Thread(this, "SmtpServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    connections.incrementAndGet();
+                    converse(socket);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void converse(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            reply(out, "220 localhost SMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    StringBuilder message = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        message.append(line).append('\n');
+                    }
+                    messages.add(message.toString());
+                    reply(out, "250 OK");
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    reply(out, "250 OK");
+                }
+            }
+        }
+
+        private static void reply(OutputStream out, String reply) throws IOException {
+            out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+}
@@ -33,4 +33,12 @@ public interface ScimGroupExternalMembershipManager {
 
     List<ScimGroupExternalMember> getExternalGroupMapsByGroupName(String groupName, String origin)
         throws ScimResourceNotFoundException;
+
+    /**
+     * Retrieve all external group mappings of an origin in the current zone
+     *
+     * @param origin the origin of the external groups
+     * @return the mappings, empty if there are none
+     */
+    List<ScimGroupExternalMember> getExternalGroupMaps(String origin);
 }
@@ -12,7 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.cloudfoundry.identity.uaa.rest.Queryable;
@@ -35,6 +37,33 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
     ScimGroupMember addMember(String groupId, ScimGroupMember member) throws ScimResourceNotFoundException,
                     MemberAlreadyExistsException;
 
+    /**
+     * Add several members to a group. Members that already belong to the group
+     * are left untouched.
+     *
+     * @param groupId id of a valid group that already exists.
+     * @param members membership info for enrolling existing scim objects
+     * @return the members that were actually added
+     * @throws ScimResourceNotFoundException
+     * @throws MemberAlreadyExistsException
+     */
+    List<ScimGroupMember> addMembers(String groupId, List<ScimGroupMember> members) throws ScimResourceNotFoundException,
+                    MemberAlreadyExistsException;
+
+    /**
+     * Make a user a member of exactly the given groups for the given origin.
+     * Memberships of the origin that are not in the list are revoked, missing
+     * ones are added, and memberships of other origins and of default groups
+     * are left untouched.
+     *
+     * @param memberId id of an existing user
+     * @param origin the origin of the memberships to update
+     * @param groupIds ids of the groups the user should belong to
+     * @return the number of memberships that were added or revoked
+     * @throws ScimResourceNotFoundException
+     */
+    int updateMemberships(String memberId, String origin, Set<String> groupIds) throws ScimResourceNotFoundException;
+
     /**
      * Retrieve all members of a group
      *
@@ -66,6 +95,16 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve the groups of the current zone that the given members belong
+     * to directly
+     *
+     * @param memberIds
+     * @return the group ids keyed by member id, members without groups are
+     *         left out
+     */
+    Map<String, Set<String>> getDirectGroupIds(Collection<String> memberIds);
+
     /**
      * Retrieve a particular member's membership details
      *
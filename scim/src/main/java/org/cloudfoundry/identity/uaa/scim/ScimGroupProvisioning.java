@@ -12,8 +12,20 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 
 public interface ScimGroupProvisioning extends ResourceManager<ScimGroup>, Queryable<ScimGroup> {
+
+    /**
+     * Retrieve the groups of the current zone with the given display names.
+     * Display names compare case insensitive.
+     *
+     * @param displayNames the display names to look up
+     * @return the groups found, in no particular order
+     */
+    List<ScimGroup> retrieveByDisplayNames(Collection<String> displayNames);
 }
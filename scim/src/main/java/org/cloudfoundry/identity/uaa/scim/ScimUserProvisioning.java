@@ -12,6 +12,10 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
@@ -30,6 +34,50 @@ public interface ScimUserProvisioning extends ResourceManager<ScimUser>, Queryab
     public void changePassword(String id, String oldPassword, String newPassword)
         throws ScimResourceNotFoundException;
 
+    /**
+     * Create several users at once. The password at a given index belongs to
+     * the user at the same index.
+     *
+     * @param users the users to create
+     * @param passwords the clear text passwords of the users
+     * @return the supplied users with their generated ids
+     */
+    public List<ScimUser> createUsers(List<ScimUser> users, List<String> passwords) throws InvalidPasswordException,
+        InvalidScimResourceException;
+
+    /**
+     * Change the passwords of several users at once. Passwords that already
+     * match the stored ones are left untouched.
+     *
+     * @param passwords clear text passwords keyed by user id
+     */
+    public void changePasswords(Map<String, String> passwords) throws ScimResourceNotFoundException;
+
+    /**
+     * Retrieve the users of the current zone with the given user names, of
+     * any origin. User names compare case insensitive.
+     *
+     * @param userNames the user names to look up
+     * @return the users found, in no particular order
+     */
+    public List<ScimUser> retrieveByUsernames(Collection<String> userNames);
+
+    /**
+     * Retrieve the users with the given ids. Ids that don't exist are skipped.
+     *
+     * @param ids the ids to look up
+     * @return the users found, in no particular order
+     */
+    public List<ScimUser> retrieveByIds(Collection<String> ids);
+
+    /**
+     * Update several users at once. The version of each user must match the
+     * stored one.
+     *
+     * @param users the updated users keyed by user id
+     */
+    public void updateUsers(Map<String, ScimUser> users) throws InvalidScimResourceException;
+
     public ScimUser verifyUser(String id, int version) throws ScimResourceNotFoundException,
         InvalidScimResourceException;
 
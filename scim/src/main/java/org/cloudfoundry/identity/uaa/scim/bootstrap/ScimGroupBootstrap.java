@@ -49,8 +49,6 @@ public class ScimGroupBootstrap implements InitializingBean {
 
     private final ScimUserProvisioning scimUserProvisioning;
 
-    private static final String USER_BY_NAME_FILTER = "username eq \"%s\"";
-
     private static final String GROUP_BY_NAME_FILTER = "displayName eq \"%s\"";
 
     private final Log logger = LogFactory.getLog(getClass());
@@ -105,42 +103,84 @@ public class ScimGroupBootstrap implements InitializingBean {
         logger.debug("admins: " + groupAdmins + ", members: " + groupMembers);
     }
 
+    /**
+     * Looks up the configured groups and members by name, creates the missing
+     * groups and adds the configured members of each group with a single batch.
+     */
     @Override
     public void afterPropertiesSet() throws Exception {
+        long start = System.currentTimeMillis();
+        Set<String> memberNames = new HashSet<String>();
+        for (Set<String> names : groupMembers.values()) {
+            memberNames.addAll(names);
+        }
+        for (Set<String> names : groupAdmins.values()) {
+            memberNames.addAll(names);
+        }
+        Set<String> groupNames = new HashSet<String>(groups);
+        groupNames.addAll(memberNames);
+        Map<String, ScimGroup> existingGroups = new HashMap<String, ScimGroup>();
+        for (ScimGroup group : scimGroupProvisioning.retrieveByDisplayNames(groupNames)) {
+            existingGroups.put(group.getDisplayName().toLowerCase(), group);
+        }
+        Map<String, ScimUser> existingUsers = new HashMap<String, ScimUser>();
+        for (ScimUser user : scimUserProvisioning.retrieveByUsernames(memberNames)) {
+            String key = user.getUserName().toLowerCase();
+            if (!existingUsers.containsKey(key)) {
+                existingUsers.put(key, user);
+            }
+        }
+        long lookup = System.currentTimeMillis();
+
+        int created = 0;
         for (String g : groups) {
-            addGroup(g);
+            if (addGroup(g, existingGroups)) {
+                created++;
+            }
         }
+        long write = System.currentTimeMillis();
+
         for (String g : groups) {
-            addMembers(g);
+            addMembers(g, existingGroups, existingUsers);
         }
+        long end = System.currentTimeMillis();
+
+        logger.info(String.format("Bootstrapped %d groups (%d created): lookup %d ms, groups %d ms, memberships %d ms",
+            groups.size(), created, lookup - start, write - lookup, end - write));
     }
 
-    private void addMembers(String g) {
-        ScimGroup group = getGroup(g);
+    private void addMembers(String g, Map<String, ScimGroup> existingGroups, Map<String, ScimUser> existingUsers) {
+        ScimGroup group = existingGroups.get(g.toLowerCase());
         if (group == null) {
-            addGroup(g);
+            return;
+        }
+        List<ScimGroupMember> members = new ArrayList<ScimGroupMember>();
+        members.addAll(getMembers(groupMembers.get(g), ScimGroupMember.GROUP_MEMBER, existingGroups, existingUsers));
+        members.addAll(getMembers(groupAdmins.get(g), ScimGroupMember.GROUP_ADMIN, existingGroups, existingUsers));
+        if (members.isEmpty()) {
+            return;
         }
-        List<ScimGroupMember> members = getMembers(groupMembers.get(g), ScimGroupMember.GROUP_MEMBER);
-        members.addAll(getMembers(groupAdmins.get(g), ScimGroupMember.GROUP_ADMIN));
         logger.debug("adding members: " + members + " into group: " + g);
-
-        for (ScimGroupMember member : members) {
-            try {
-                membershipManager.addMember(group.getId(), member);
-            } catch (MemberAlreadyExistsException ex) {
-                logger.debug(member.getMemberId() + " already is member of group " + g);
-            }
+        try {
+            membershipManager.addMembers(group.getId(), members);
+        } catch (MemberAlreadyExistsException ex) {
+            logger.debug("members already are part of group " + g);
         }
     }
 
-    private List<ScimGroupMember> getMembers(Set<String> names, List<ScimGroupMember.Role> auth) {
+    private List<ScimGroupMember> getMembers(Set<String> names, List<ScimGroupMember.Role> auth,
+                                             Map<String, ScimGroup> existingGroups, Map<String, ScimUser> existingUsers) {
         if (names == null || names.isEmpty()) {
             return Collections.<ScimGroupMember> emptyList();
         }
 
         List<ScimGroupMember> members = new ArrayList<ScimGroupMember>();
         for (String name : names) {
-            ScimCore member = getScimResourceId(name);
+            ScimCore member = existingUsers.get(name.toLowerCase());
+            if (member == null) {
+                logger.debug("user " + name + " does not exist, checking in groups...");
+                member = existingGroups.get(name.toLowerCase());
+            }
             if (member != null) {
                 members.add(
                     new ScimGroupMember(
@@ -154,25 +194,6 @@ public class ScimGroupBootstrap implements InitializingBean {
         return members;
     }
 
-    private ScimCore getScimResourceId(String name) {
-
-        ScimCore res = getUser(name);
-        if (res != null) {
-            return res;
-        }
-
-        logger.debug("user " + name + " does not exist, checking in groups...");
-        return getGroup(name);
-    }
-
-    private ScimUser getUser(String name) {
-        List<ScimUser> user = scimUserProvisioning.query(String.format(USER_BY_NAME_FILTER, name));
-        if (user != null && !user.isEmpty()) {
-            return user.get(0);
-        }
-        return null;
-    }
-
     ScimGroup getGroup(String name) {
         List<ScimGroup> g = scimGroupProvisioning.query(String.format(GROUP_BY_NAME_FILTER, name));
         if (g != null && !g.isEmpty()) {
@@ -184,16 +205,22 @@ public class ScimGroupBootstrap implements InitializingBean {
         return null;
     }
 
-    private void addGroup(String name) {
-        if (name.isEmpty()) {
-            return;
+    private boolean addGroup(String name, Map<String, ScimGroup> existingGroups) {
+        if (name.isEmpty() || existingGroups.containsKey(name.toLowerCase())) {
+            return false;
         }
         logger.debug("adding group: " + name);
         ScimGroup g = new ScimGroup(null,name,IdentityZoneHolder.get().getId());
         try {
-            scimGroupProvisioning.create(g);
+            existingGroups.put(name.toLowerCase(), scimGroupProvisioning.create(g));
+            return true;
         } catch (ScimResourceAlreadyExistsException ex) {
             logger.debug("group " + g + " already exists, ignoring...");
+            ScimGroup existing = getGroup(name);
+            if (existing != null) {
+                existingGroups.put(name.toLowerCase(), existing);
+            }
+            return false;
         }
     }
 }
@@ -18,6 +18,8 @@ import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.authentication.manager.AuthEvent;
 import org.cloudfoundry.identity.uaa.authentication.manager.ExternalGroupAuthorizationEvent;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMember;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
@@ -31,15 +33,26 @@ import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationListener;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Convenience class for provisioning user accounts from {@link UaaUser}
@@ -58,6 +71,20 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
     private final ScimGroupMembershipManager membershipManager;
 
+    private ScimGroupExternalMembershipManager externalMembershipManager;
+
+    private static final int GROUP_NAME_QUERY_SIZE = 100;
+
+    /**
+     * Digest of the external authorities a user had on the last login,
+     * keyed by user id.
+     */
+    private final ConcurrentMap<String, MembershipDigest> membershipDigests = new ConcurrentHashMap<>();
+
+    private int maxMembershipDigests = 10000;
+
+    private long membershipDigestExpiryMillis = 5 * 60 * 1000;
+
     private boolean override = false;
 
     private final Collection<UaaUser> users;
@@ -75,6 +102,35 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
         return override;
     }
 
+    /**
+     * Optional. When set, the groups that external authorities map to are
+     * resolved from the in memory index of external group mappings instead
+     * of querying the groups table for every authority.
+     *
+     * @param externalMembershipManager the external group mappings
+     */
+    public void setExternalMembershipManager(ScimGroupExternalMembershipManager externalMembershipManager) {
+        this.externalMembershipManager = externalMembershipManager;
+    }
+
+    /**
+     * @param maxMembershipDigests the number of users for which the external
+     *            authorities of the last login are remembered (default 10000)
+     */
+    public void setMaxMembershipDigests(int maxMembershipDigests) {
+        this.maxMembershipDigests = maxMembershipDigests;
+    }
+
+    /**
+     * @param membershipDigestExpirySeconds how long the external authorities
+     *            of a login are remembered. Within that time a login with the
+     *            same authorities does not touch the group memberships, even
+     *            if they were changed by other means (default 300)
+     */
+    public void setMembershipDigestExpirySeconds(int membershipDigestExpirySeconds) {
+        this.membershipDigestExpiryMillis = membershipDigestExpirySeconds * 1000l;
+    }
+
     public ScimUserBootstrap(ScimUserProvisioning scimUserProvisioning, ScimGroupProvisioning scimGroupProvisioning,
                     ScimGroupMembershipManager membershipManager, Collection<UaaUser> users) {
         Assert.notNull(scimUserProvisioning, "scimUserProvisioning cannot be null");
@@ -87,11 +143,180 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
         this.users = Collections.unmodifiableCollection(users);
     }
 
+    /**
+     * Bootstraps all configured users in bulk. The configured users and the
+     * groups of their authorities are looked up by name, the configured users
+     * are diffed against them in memory, and the new users, updates and group
+     * memberships are written with batched statements.
+     */
     @Override
     public void afterPropertiesSet() throws Exception {
-        for (UaaUser u : users) {
-            addUser(u);
+        long start = System.currentTimeMillis();
+        Set<String> userNames = new HashSet<>();
+        Set<String> groupNames = new HashSet<>();
+        for (UaaUser user : users) {
+            userNames.add(user.getUsername());
+            for (String name : convertToGroups(user.getAuthorities())) {
+                if (StringUtils.hasText(name)) {
+                    groupNames.add(name);
+                }
+            }
+        }
+        Map<String, ScimUser> existingUsersByName = new HashMap<>();
+        Map<String, ScimUser> existingUsersById = new HashMap<>();
+        for (ScimUser user : scimUserProvisioning.retrieveByUsernames(userNames)) {
+            existingUsersByName.put(getUserKey(user.getUserName(), user.getOrigin()), user);
+            existingUsersById.put(user.getId(), user);
+        }
+        Set<String> unmatchedIds = new HashSet<>();
+        for (UaaUser user : users) {
+            if (StringUtils.hasText(user.getId())
+                && !existingUsersByName.containsKey(getUserKey(user.getUsername(), user.getOrigin()))
+                && !existingUsersById.containsKey(user.getId())) {
+                unmatchedIds.add(user.getId());
+            }
+        }
+        if (!unmatchedIds.isEmpty()) {
+            for (ScimUser user : scimUserProvisioning.retrieveByIds(unmatchedIds)) {
+                existingUsersById.put(user.getId(), user);
+            }
+        }
+        Map<String, ScimGroup> existingGroups = new HashMap<>();
+        for (ScimGroup group : scimGroupProvisioning.retrieveByDisplayNames(groupNames)) {
+            existingGroups.put(group.getDisplayName().toLowerCase(), group);
+        }
+        long lookup = System.currentTimeMillis();
+
+        Map<String, UaaUser> newUsers = new LinkedHashMap<>();
+        Map<String, UaaUser> updatedUsers = new LinkedHashMap<>();
+        for (UaaUser user : users) {
+            String key = getUserKey(user.getUsername(), user.getOrigin());
+            ScimUser existing = existingUsersByName.get(key);
+            if (existing == null && StringUtils.hasText(user.getId())) {
+                existing = existingUsersById.get(user.getId());
+            }
+            if (existing == null) {
+                if (override || !newUsers.containsKey(key)) {
+                    newUsers.put(key, user);
+                }
+            } else if (override) {
+                updatedUsers.put(existing.getId(), user);
+            } else {
+                logger.debug("Override flag not set. Not registering existing user: " + user);
+            }
+        }
+        long diff = System.currentTimeMillis();
+
+        Map<String, Collection<String>> memberships = new LinkedHashMap<>();
+        if (!newUsers.isEmpty()) {
+            List<UaaUser> toCreate = new ArrayList<>(newUsers.values());
+            List<ScimUser> scimUsers = new ArrayList<>();
+            List<String> passwords = new ArrayList<>();
+            for (UaaUser user : toCreate) {
+                logger.debug("Registering new user account: " + user);
+                scimUsers.add(convertToScimUser(user));
+                passwords.add(user.getPassword());
+            }
+            List<ScimUser> created = scimUserProvisioning.createUsers(scimUsers, passwords);
+            for (int i = 0; i < created.size(); i++) {
+                memberships.put(created.get(i).getId(), convertToGroups(toCreate.get(i).getAuthorities()));
+            }
+        }
+        Map<String, ScimUser> changedUsers = new LinkedHashMap<>();
+        Map<String, String> changedPasswords = new HashMap<>();
+        for (Map.Entry<String, UaaUser> entry : updatedUsers.entrySet()) {
+            String id = entry.getKey();
+            UaaUser updatedUser = entry.getValue();
+            logger.debug("Updating user account: " + updatedUser + " with SCIM Id: " + id);
+            ScimUser newScimUser = convertToScimUser(updatedUser);
+            newScimUser.setVersion(existingUsersById.get(id).getVersion());
+            changedUsers.put(id, newScimUser);
+            if (Origin.UAA.equals(newScimUser.getOrigin())) { //password is not relevant for non UAA users
+                changedPasswords.put(id, updatedUser.getPassword());
+            }
+            memberships.put(id, convertToGroups(updatedUser.getAuthorities()));
+        }
+        scimUserProvisioning.updateUsers(changedUsers);
+        if (!changedPasswords.isEmpty()) {
+            scimUserProvisioning.changePasswords(changedPasswords);
+        }
+        long write = System.currentTimeMillis();
+
+        updateMemberships(memberships, updatedUsers.keySet(), existingGroups);
+        long end = System.currentTimeMillis();
+
+        logger.info(String.format("Bootstrapped %d users (%d created, %d updated): lookup %d ms, diff %d ms, users %d ms, memberships %d ms",
+            users.size(), newUsers.size(), updatedUsers.size(), lookup - start, diff - lookup, write - diff, end - write));
+    }
+
+    /**
+     * Brings the direct group memberships of the bootstrapped users in line with
+     * their authorities. Missing groups are created; memberships of updated
+     * users in groups they no longer have an authority for are revoked.
+     */
+    private void updateMemberships(Map<String, Collection<String>> memberships, Set<String> updatedUserIds,
+                                   Map<String, ScimGroup> existingGroups) {
+        Map<String, Set<String>> desiredGroups = new HashMap<>();
+        Map<String, String> groupNames = new LinkedHashMap<>();
+        Map<String, List<ScimGroupMember>> newMembers = new HashMap<>();
+        for (Map.Entry<String, Collection<String>> entry : memberships.entrySet()) {
+            Set<String> desired = new HashSet<>();
+            for (String name : entry.getValue()) {
+                if (!StringUtils.hasText(name)) {
+                    continue;
+                }
+                String key = name.toLowerCase();
+                if (desired.add(key)) {
+                    if (!groupNames.containsKey(key)) {
+                        groupNames.put(key, name);
+                        newMembers.put(key, new ArrayList<ScimGroupMember>());
+                    }
+                    newMembers.get(key).add(new ScimGroupMember(entry.getKey()));
+                }
+            }
+            desiredGroups.put(entry.getKey(), desired);
+        }
+
+        for (Map.Entry<String, String> entry : groupNames.entrySet()) {
+            if (!existingGroups.containsKey(entry.getKey())) {
+                existingGroups.put(entry.getKey(),
+                    scimGroupProvisioning.create(new ScimGroup(null, entry.getValue(), IdentityZoneHolder.get().getId())));
+            }
+        }
+
+        if (!updatedUserIds.isEmpty()) {
+            logger.debug("Removing obsolete group memberships ...");
+            Map<String, Set<String>> currentGroups = membershipManager.getDirectGroupIds(updatedUserIds);
+            for (Map.Entry<String, Set<String>> entry : currentGroups.entrySet()) {
+                String memberId = entry.getKey();
+                Set<String> desiredGroupIds = new HashSet<>();
+                for (String name : desiredGroups.get(memberId)) {
+                    desiredGroupIds.add(existingGroups.get(name).getId());
+                }
+                for (String groupId : entry.getValue()) {
+                    if (!desiredGroupIds.contains(groupId)) {
+                        try {
+                            membershipManager.removeMemberById(groupId, memberId);
+                        } catch (MemberNotFoundException ex) {
+                            // do nothing
+                        }
+                    }
+                }
+            }
         }
+
+        for (Map.Entry<String, String> entry : groupNames.entrySet()) {
+            try {
+                logger.debug("Adding members to group: " + entry.getValue());
+                membershipManager.addMembers(existingGroups.get(entry.getKey()).getId(), newMembers.get(entry.getKey()));
+            } catch (MemberAlreadyExistsException ex) {
+                // do nothing
+            }
+        }
+    }
+
+    private String getUserKey(String username, String origin) {
+        return username.toLowerCase() + "|" + (origin == null ? Origin.UAA : origin);
     }
 
     protected ScimUser getScimUser(UaaUser user) {
@@ -173,13 +398,14 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
     public void onApplicationEvent(AuthEvent event) {
         if (event instanceof ExternalGroupAuthorizationEvent) {
             ExternalGroupAuthorizationEvent exEvent = (ExternalGroupAuthorizationEvent)event;
-            //delete previous membership relation ships
             String origin = exEvent.getUser().getOrigin();
-            if (!Origin.UAA.equals(origin)) {//only delete non UAA relationships
-                membershipManager.delete("member_id eq \""+event.getUser().getId()+"\" and origin eq \""+origin+"\"");
-            }
-            for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
-                addToGroup(exEvent.getUser().getId(), authority.getAuthority(), exEvent.getUser().getOrigin(), exEvent.isAddGroups());
+            if (Origin.UAA.equals(origin)) {
+                //UAA relationships are never revoked on login
+                for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
+                    addToGroup(exEvent.getUser().getId(), authority.getAuthority(), origin, exEvent.isAddGroups());
+                }
+            } else {
+                updateExternalMemberships(exEvent);
             }
             //update the user itself
             if(event.isUserModified()) {
@@ -192,6 +418,125 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
         }
     }
 
+    /**
+     * @return the ids of the groups that external groups of the origin are
+     *         mapped to, keyed by lower cased group name
+     */
+    private Map<String, String> getMappedGroupIds(String origin) {
+        Map<String, String> result = new HashMap<>();
+        if (externalMembershipManager != null && !Origin.UAA.equals(origin)) {
+            for (ScimGroupExternalMember mapping : externalMembershipManager.getExternalGroupMaps(origin)) {
+                if (mapping.getDisplayName() != null) {
+                    result.put(mapping.getDisplayName().toLowerCase(), mapping.getGroupId());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Makes the memberships of the user for the origin of the event match the
+     * external authorities. Nothing is read or written when the authorities
+     * are the same as on the previous login of the user.
+     */
+    private void updateExternalMemberships(ExternalGroupAuthorizationEvent event) {
+        String userId = event.getUser().getId();
+        String origin = event.getUser().getOrigin();
+        Set<String> groupNames = new TreeSet<>();
+        for (GrantedAuthority authority : event.getExternalAuthorities()) {
+            if (StringUtils.hasText(authority.getAuthority())) {
+                groupNames.add(authority.getAuthority());
+            }
+        }
+        String digest = getMembershipDigest(origin, groupNames, event.isAddGroups());
+        MembershipDigest previous = membershipDigests.get(userId);
+        if (previous != null && previous.matches(digest, membershipDigestExpiryMillis)) {
+            logger.debug("External authorities of " + userId + " are unchanged, skipping membership update");
+            return;
+        }
+        int changed = membershipManager.updateMemberships(userId, origin, getGroupIds(groupNames, origin, event.isAddGroups()));
+        logger.debug("Updated " + changed + " memberships of " + userId + " for origin " + origin);
+        if (membershipDigests.size() >= maxMembershipDigests) {
+            membershipDigests.clear();
+        }
+        membershipDigests.put(userId, new MembershipDigest(digest));
+    }
+
+    /**
+     * Resolves group names to group ids, using the external group mappings
+     * of the origin first and a single query for the remaining names.
+     */
+    private Set<String> getGroupIds(Set<String> groupNames, String origin, boolean addGroups) {
+        Map<String, String> mappedGroupIds = getMappedGroupIds(origin);
+        Set<String> result = new HashSet<>();
+        List<String> unresolved = new ArrayList<>();
+        for (String name : groupNames) {
+            String groupId = mappedGroupIds.get(name.toLowerCase());
+            if (groupId != null) {
+                result.add(groupId);
+            } else {
+                unresolved.add(name);
+            }
+        }
+        Map<String, ScimGroup> existing = getGroupsByName(unresolved);
+        for (String name : unresolved) {
+            ScimGroup group = existing.get(name.toLowerCase());
+            if (group == null && !addGroups) {
+                logger.debug("No group found with name:" + name + ". Group membership will not be added.");
+                continue;
+            } else if (group == null) {
+                group = scimGroupProvisioning.create(new ScimGroup(null, name, IdentityZoneHolder.get().getId()));
+            }
+            result.add(group.getId());
+        }
+        return result;
+    }
+
+    private Map<String, ScimGroup> getGroupsByName(List<String> names) {
+        Map<String, ScimGroup> result = new HashMap<>();
+        for (int i = 0; i < names.size(); i += GROUP_NAME_QUERY_SIZE) {
+            StringBuilder filter = new StringBuilder();
+            for (String name : names.subList(i, Math.min(i + GROUP_NAME_QUERY_SIZE, names.size()))) {
+                if (filter.length() > 0) {
+                    filter.append(" or ");
+                }
+                filter.append(String.format("displayName eq \"%s\"", name));
+            }
+            for (ScimGroup group : scimGroupProvisioning.query(filter.toString())) {
+                String key = group.getDisplayName().toLowerCase();
+                if (!result.containsKey(key)) {
+                    result.put(key, group);
+                }
+            }
+        }
+        return result;
+    }
+
+    private String getMembershipDigest(String origin, Set<String> groupNames, boolean addGroups) {
+        StringBuilder value = new StringBuilder(IdentityZoneHolder.get().getId()).append('\n').append(origin).append('\n').append(addGroups);
+        for (String name : groupNames) {
+            value.append('\n').append(name);
+        }
+        try {
+            return new String(Hex.encode(MessageDigest.getInstance("SHA-256").digest(Utf8.encode(value.toString()))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class MembershipDigest {
+        private final String digest;
+        private final long created = System.currentTimeMillis();
+
+        MembershipDigest(String digest) {
+            this.digest = digest;
+        }
+
+        boolean matches(String digest, long expiryMillis) {
+            return this.digest.equals(digest) && System.currentTimeMillis() - created < expiryMillis;
+        }
+    }
+
     private void addToGroup(String scimUserId, String gName) {
         addToGroup(scimUserId,gName,Origin.UAA, true);
     }
@@ -14,6 +14,9 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationBus;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
@@ -25,6 +28,7 @@ import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailedException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -40,10 +44,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<ScimGroupExternalMember>
-    implements ScimGroupExternalMembershipManager {
+    implements ScimGroupExternalMembershipManager, ApplicationListener<GroupModifiedEvent> {
 
     private JdbcTemplate jdbcTemplate;
 
@@ -68,21 +79,42 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
         String.format("select %s from %s where gm.group_id=? and %s",
             JOIN_EXTERNAL_GROUP_MAPPING_FIELDS, JOIN_GROUP_TABLE, JOIN_WHERE_ID);
 
-    public static final String GET_GROUPS_BY_EXTERNAL_GROUP_MAPPING_SQL = String.format("select %s from %s where %s and lower(external_group)=lower(?)",
+    // external_group is stored lower case (see ADD_EXTERNAL_GROUP_MAPPING_SQL), so only the
+    // parameter is lowered and the lookups can use external_group_unique_key
+    public static final String GET_GROUPS_BY_EXTERNAL_GROUP_MAPPING_SQL = String.format("select %s from %s where %s and external_group=lower(?)",
             JOIN_EXTERNAL_GROUP_MAPPING_FIELDS, JOIN_GROUP_TABLE, JOIN_WHERE_ID);
 
     public static final String GET_GROUPS_WITH_EXTERNAL_GROUP_MAPPINGS_SQL =
-        String.format("select %s from %s where g.id=? and %s and lower(external_group) like lower(?)",
+        String.format("select %s from %s where g.id=? and %s and external_group like lower(?)",
+            JOIN_EXTERNAL_GROUP_MAPPING_FIELDS, JOIN_GROUP_TABLE, JOIN_WHERE_ID);
+
+    public static final String GET_EXTERNAL_GROUP_MAPPINGS_IN_ZONE_SQL = String.format("select %s from %s where %s and g.identity_zone_id=?",
             JOIN_EXTERNAL_GROUP_MAPPING_FIELDS, JOIN_GROUP_TABLE, JOIN_WHERE_ID);
 
     public static final String DELETE_EXTERNAL_GROUP_MAPPING_SQL =
-        String.format("delete from %s where group_id=? and lower(external_group)=lower(?) and origin=?",
+        String.format("delete from %s where group_id=? and external_group=lower(?) and origin=?",
             EXTERNAL_GROUP_MAPPING_TABLE);
 
     private final RowMapper<ScimGroupExternalMember> rowMapper = new ScimGroupExternalMemberRowMapper();
 
     private ScimGroupProvisioning scimGroupProvisioning;
 
+    /**
+     * Mappings indexed by zone id and origin, then by lower cased external
+     * group. The index is dropped whenever mappings or groups change through
+     * this node, or through another node when a {@link CacheInvalidationBus}
+     * is set, and expires after {@link #setIndexExpirySeconds(int)}.
+     */
+    private final ConcurrentMap<String, ExternalGroupIndex> externalGroupIndex = new ConcurrentHashMap<>();
+
+    private final AtomicLong indexGeneration = new AtomicLong();
+
+    private long indexExpiryMillis = 30 * 1000;
+
+    public static final String EXTERNAL_GROUP_INDEX_CACHE = "externalGroupIndex";
+
+    private CacheInvalidationBus cacheInvalidationBus;
+
     public JdbcScimGroupExternalMembershipManager(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
         super(jdbcTemplate, pagingListFactory, new ScimGroupExternalMemberRowMapper());
         Assert.notNull(jdbcTemplate);
@@ -90,6 +122,29 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
         setQueryConverter(new ScimSearchQueryConverter());
     }
 
+    /**
+     * @param indexExpirySeconds how long the in memory index of external
+     *            group mappings is used before it is reloaded (default 30)
+     */
+    public void setIndexExpirySeconds(int indexExpirySeconds) {
+        this.indexExpiryMillis = indexExpirySeconds * 1000l;
+    }
+
+    /**
+     * Drops the index on every node when mappings or groups change.
+     */
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.addListener(EXTERNAL_GROUP_INDEX_CACHE, new CacheInvalidationListener() {
+                @Override
+                public void invalidate(String key, long version) {
+                    clearExternalGroupIndex();
+                }
+            });
+        }
+    }
+
     protected String adjustFilterForJoin(String filter) {
         if (StringUtils.hasText(filter)) {
             filter = filter.replace("displayName", "g.displayName");
@@ -121,7 +176,9 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
             }
             completeSql += "group_id IN (SELECT id FROM groups WHERE identity_zone_id='"+ IdentityZoneHolder.get().getId()+"')";
             logger.debug("delete sql: " + completeSql + ", params: " + where.getParams());
-            return new NamedParameterJdbcTemplate(jdbcTemplate).update(completeSql, where.getParams());
+            int deleted = new NamedParameterJdbcTemplate(jdbcTemplate).update(completeSql, where.getParams());
+            invalidateExternalGroupIndex();
+            return deleted;
         } catch (DataAccessException e) {
             logger.debug("Filter '" + filter + "' generated invalid SQL", e);
             throw new IllegalArgumentException("Invalid delete filter: " + filter);
@@ -159,6 +216,7 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
                     }
                 });
                 System.out.println("update count = " + result);
+                invalidateExternalGroupIndex();
             } catch (DuplicateKeyException e) {
                 // we should not throw, if the mapping exist, we should leave it
                 // there.
@@ -192,6 +250,7 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
                     ps.setString(3, origin);
                 }
             });
+            invalidateExternalGroupIndex();
             if (count==1) {
                 return result;
             } else if (count==0) {
@@ -238,19 +297,94 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
         }
     }
 
+    /**
+     * Served from the in memory index of the current zone and origin.
+     */
     @Override
     public List<ScimGroupExternalMember> getExternalGroupMapsByExternalGroup(final String externalGroup,
                                                                              final String origin)
         throws ScimResourceNotFoundException {
+        if (externalGroup == null) {
+            return new ArrayList<>();
+        }
+        List<ScimGroupExternalMember> result = getExternalGroupIndex(origin).byExternalGroup.get(externalGroup.toLowerCase());
+        return result == null ? new ArrayList<ScimGroupExternalMember>() : new ArrayList<>(result);
+    }
 
-        return jdbcTemplate.query(GET_GROUPS_BY_EXTERNAL_GROUP_MAPPING_SQL, new PreparedStatementSetter() {
-            @Override
-            public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setString(1, origin);
-                ps.setString(2, externalGroup);
+    @Override
+    public List<ScimGroupExternalMember> getExternalGroupMaps(String origin) {
+        return new ArrayList<>(getExternalGroupIndex(origin).mappings);
+    }
 
+    protected ExternalGroupIndex getExternalGroupIndex(final String origin) {
+        final String zoneId = IdentityZoneHolder.get().getId();
+        String key = zoneId + "|" + origin;
+        ExternalGroupIndex index = externalGroupIndex.get(key);
+        if (index == null || index.isExpired(indexExpiryMillis)) {
+            long generation = indexGeneration.get();
+            index = new ExternalGroupIndex(jdbcTemplate.query(GET_EXTERNAL_GROUP_MAPPINGS_IN_ZONE_SQL, new PreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps) throws SQLException {
+                    ps.setString(1, origin);
+                    ps.setString(2, zoneId);
+                }
+            }, rowMapper));
+            // do not cache an index that was loaded while the mappings changed
+            if (generation == indexGeneration.get()) {
+                externalGroupIndex.put(key, index);
             }
-        }, rowMapper);
+        }
+        return index;
+    }
+
+    protected void invalidateExternalGroupIndex() {
+        if (cacheInvalidationBus == null) {
+            clearExternalGroupIndex();
+            return;
+        }
+        try {
+            cacheInvalidationBus.invalidate(EXTERNAL_GROUP_INDEX_CACHE, null, System.currentTimeMillis());
+        } catch (DataAccessException x) {
+            clearExternalGroupIndex();
+            logger.warn("Unable to invalidate the external group index on other nodes", x);
+        }
+    }
+
+    private void clearExternalGroupIndex() {
+        indexGeneration.incrementAndGet();
+        externalGroupIndex.clear();
+    }
+
+    /**
+     * Group names are part of the indexed mappings, so the index is dropped
+     * when a group is created, renamed or deleted.
+     */
+    @Override
+    public void onApplicationEvent(GroupModifiedEvent event) {
+        invalidateExternalGroupIndex();
+    }
+
+    protected static class ExternalGroupIndex {
+        final long created = System.currentTimeMillis();
+        final List<ScimGroupExternalMember> mappings;
+        final Map<String, List<ScimGroupExternalMember>> byExternalGroup;
+
+        ExternalGroupIndex(List<ScimGroupExternalMember> mappings) {
+            Map<String, List<ScimGroupExternalMember>> index = new HashMap<>();
+            for (ScimGroupExternalMember mapping : mappings) {
+                String externalGroup = mapping.getExternalGroup().toLowerCase();
+                if (!index.containsKey(externalGroup)) {
+                    index.put(externalGroup, new ArrayList<ScimGroupExternalMember>());
+                }
+                index.get(externalGroup).add(mapping);
+            }
+            this.mappings = Collections.unmodifiableList(mappings);
+            this.byExternalGroup = Collections.unmodifiableMap(index);
+        }
+
+        boolean isExpired(long expiryMillis) {
+            return System.currentTimeMillis() - created > expiryMillis;
+        }
     }
 
     @Override
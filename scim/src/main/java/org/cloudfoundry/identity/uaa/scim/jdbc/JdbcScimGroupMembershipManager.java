@@ -15,18 +15,26 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationBus;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
@@ -42,22 +50,31 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailed
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SingleColumnRowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
-public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupMember> implements ScimGroupMembershipManager {
+public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupMember> implements ScimGroupMembershipManager,
+    ApplicationListener<GroupModifiedEvent> {
 
     private JdbcTemplate jdbcTemplate;
 
+    private final TransactionTemplate transactionTemplate;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     public static final String MEMBERSHIP_FIELDS = "group_id,member_id,member_type,authorities,added,origin";
@@ -84,6 +101,18 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     public static final String DELETE_MEMBER_IN_GROUPS_SQL_USER = String.format("delete from %s where member_id in (select id from users where id=? and identity_zone_id=?)",MEMBERSHIP_TABLE);
 
+    public static final String GET_GROUPS_BY_MEMBERS_SQL = String.format("select group_id, member_id from %s where member_id in (:ids) and group_id in (select id from groups where identity_zone_id=:zoneId)", MEMBERSHIP_TABLE);
+
+    public static final String GET_MEMBERSHIP_ORIGINS_BY_MEMBER_SQL = String.format("select group_id, origin from %s where member_id=? and group_id in (select id from groups where identity_zone_id=?)", MEMBERSHIP_TABLE);
+
+    public static final String DELETE_MEMBER_OF_ORIGIN_SQL = String.format("delete from %s where group_id=? and member_id=? and origin=?", MEMBERSHIP_TABLE);
+
+    public static final String GET_USER_ZONES_SQL = "select id, identity_zone_id from users where id in (:ids)";
+
+    public static final String GET_GROUP_ZONES_SQL = "select id, identity_zone_id from groups where id in (:ids)";
+
+    private static final int MAX_IN_CLAUSE_SIZE = 1000;
+
     public static final String DELETE_MEMBER_IN_GROUPS_SQL_GROUP = String.format("delete from %s where member_id in (select id from groups where id=? and identity_zone_id=?)",MEMBERSHIP_TABLE);
 
     private final RowMapper<ScimGroupMember> rowMapper = new ScimGroupMemberRowMapper();
@@ -92,31 +121,128 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     private ScimGroupProvisioning groupProvisioning;
 
-    private Map<IdentityZone,Set<ScimGroup>> defaultUserGroups = new ConcurrentHashMap<>();
+    private volatile Set<String> defaultUserGroupNames = Collections.emptySet();
+
+    /**
+     * Default user groups resolved per zone id. Entries are immutable and are
+     * dropped whenever a group in the zone is created, renamed or deleted, on
+     * any node when a {@link CacheInvalidationBus} is set, so the next lookup
+     * rebuilds them from the database.
+     */
+    private final ConcurrentMap<String, DefaultUserGroups> defaultUserGroups = new ConcurrentHashMap<>();
+
+    public static final String DEFAULT_USER_GROUPS_CACHE = "defaultUserGroups";
+
+    private CacheInvalidationBus cacheInvalidationBus;
+
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.addListener(DEFAULT_USER_GROUPS_CACHE, new CacheInvalidationListener() {
+                @Override
+                public void invalidate(String key, long version) {
+                    if (key == null) {
+                        defaultUserGroups.clear();
+                    } else {
+                        defaultUserGroups.remove(key);
+                    }
+                }
+            });
+        }
+    }
 
     //we do not yet support default user groups for other zones
     public void setDefaultUserGroups(Set<String> groupNames) {
-        Set<ScimGroup> usergroups = new HashSet<>();
+        Set<String> names = new LinkedHashSet<>();
         for (String name : groupNames) {
-            List<ScimGroup> g = groupProvisioning.query(String.format("displayName co \"%s\" and identity_zone_id eq \""+IdentityZone.getUaa().getId()+"\"", name));
-            if (!g.isEmpty()) {
-                usergroups.add(g.get(0));
-            } else { // default group must exist, hence if not already present,
+            if (StringUtils.hasText(name)) {
+                names.add(name);
+            }
+        }
+        defaultUserGroupNames = Collections.unmodifiableSet(names);
+        String zoneId = IdentityZone.getUaa().getId();
+        Set<String> existing = new HashSet<>();
+        for (ScimGroup group : queryDefaultUserGroups(zoneId)) {
+            existing.add(group.getDisplayName().toLowerCase());
+        }
+        for (String name : names) {
+            if (!existing.contains(name.toLowerCase())) {
+                // default group must exist, hence if not already present,
                 // create it
-                usergroups.add(groupProvisioning.create(new ScimGroup(null, name, IdentityZone.getUaa().getId())));
+                groupProvisioning.create(new ScimGroup(null, name, zoneId));
             }
         }
-        defaultUserGroups.put(IdentityZone.getUaa(), usergroups);
+        defaultUserGroups.remove(zoneId);
     }
 
     public Set<ScimGroup> getDefaultUserGroups(IdentityZone zone) {
-        Set<ScimGroup> groups = defaultUserGroups.get(zone);
-        if (groups==null) {
-            return Collections.EMPTY_SET;
+        return getDefaultUserGroups(zone.getId()).groups;
+    }
+
+    protected DefaultUserGroups getDefaultUserGroups(String zoneId) {
+        if (!IdentityZone.getUaa().getId().equals(zoneId) || defaultUserGroupNames.isEmpty()) {
+            return DefaultUserGroups.EMPTY;
+        }
+        DefaultUserGroups groups = defaultUserGroups.get(zoneId);
+        if (groups == null) {
+            // query outside of the map, so a slow database doesn't block other zones
+            DefaultUserGroups loaded = new DefaultUserGroups(queryDefaultUserGroups(zoneId));
+            groups = defaultUserGroups.putIfAbsent(zoneId, loaded);
+            if (groups == null) {
+                groups = loaded;
+            }
         }
         return groups;
     }
 
+    private List<ScimGroup> queryDefaultUserGroups(String zoneId) {
+        if (defaultUserGroupNames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        StringBuilder filter = new StringBuilder("(");
+        for (String name : defaultUserGroupNames) {
+            if (filter.length() > 1) {
+                filter.append(" or ");
+            }
+            filter.append("displayName eq \"").append(name).append("\"");
+        }
+        filter.append(") and identity_zone_id eq \"").append(zoneId).append("\"");
+        return groupProvisioning.query(filter.toString());
+    }
+
+    /**
+     * Drops the cached default user groups of the zone the group event was
+     * raised in.
+     */
+    @Override
+    public void onApplicationEvent(GroupModifiedEvent event) {
+        String zoneId = IdentityZoneHolder.get().getId();
+        defaultUserGroups.remove(zoneId);
+        if (cacheInvalidationBus != null) {
+            try {
+                cacheInvalidationBus.invalidate(DEFAULT_USER_GROUPS_CACHE, zoneId, System.currentTimeMillis());
+            } catch (DataAccessException x) {
+                logger.warn("Unable to invalidate the default user groups of zone " + zoneId + " on other nodes", x);
+            }
+        }
+    }
+
+    protected static class DefaultUserGroups {
+        static final DefaultUserGroups EMPTY = new DefaultUserGroups(Collections.<ScimGroup>emptyList());
+
+        final Set<ScimGroup> groups;
+        final Set<String> ids;
+
+        DefaultUserGroups(Collection<ScimGroup> groups) {
+            Set<String> ids = new HashSet<>();
+            for (ScimGroup group : groups) {
+                ids.add(group.getId());
+            }
+            this.groups = Collections.unmodifiableSet(new HashSet<>(groups));
+            this.ids = Collections.unmodifiableSet(ids);
+        }
+    }
+
     public void setScimUserProvisioning(ScimUserProvisioning userProvisioning) {
         this.userProvisioning = userProvisioning;
     }
@@ -129,6 +255,7 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         super(jdbcTemplate,pagingListFactory,new ScimGroupMemberRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
     }
 
     @Override
@@ -174,12 +301,7 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     }
 
     public boolean isDefaultGroup(String groupId) {
-        for (ScimGroup g : getDefaultUserGroups(IdentityZoneHolder.get())) {
-            if (g.getId().equals(groupId)) {
-                return true;
-            }
-        }
-        return false;
+        return getDefaultUserGroups(IdentityZoneHolder.get().getId()).ids.contains(groupId);
     }
 
     @Override
@@ -212,6 +334,112 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return getMemberById(groupId, member.getMemberId());
     }
 
+    @Override
+    public List<ScimGroupMember> addMembers(final String groupId, final List<ScimGroupMember> members)
+                    throws ScimResourceNotFoundException, MemberAlreadyExistsException {
+        return transactionTemplate.execute(new TransactionCallback<List<ScimGroupMember>>() {
+            @Override
+            public List<ScimGroupMember> doInTransaction(TransactionStatus status) {
+                return doAddMembers(groupId, members);
+            }
+        });
+    }
+
+    protected List<ScimGroupMember> doAddMembers(final String groupId, List<ScimGroupMember> members) {
+        Set<String> current = new HashSet<>();
+        for (ScimGroupMember member : getMembers(groupId)) {
+            current.add(member.getMemberId());
+        }
+        List<ScimGroupMember> newMembersToAdd = new ArrayList<>();
+        for (ScimGroupMember member : members) {
+            if (current.add(member.getMemberId())) {
+                newMembersToAdd.add(member);
+            }
+        }
+        if (newMembersToAdd.isEmpty()) {
+            return newMembersToAdd;
+        }
+        if (isDefaultGroup(groupId)) {
+            throw new MemberAlreadyExistsException("Trying to add member to default group");
+        }
+        validateRequest(groupId, newMembersToAdd);
+        logger.debug("adding new members: " + newMembersToAdd + " into group: " + groupId);
+        insertMembers(groupId, newMembersToAdd);
+        return newMembersToAdd;
+    }
+
+    private void insertMembers(String groupId, List<ScimGroupMember> members) {
+        Timestamp added = new Timestamp(new Date().getTime());
+        List<Object[]> args = new ArrayList<>();
+        for (ScimGroupMember member : members) {
+            String type = (member.getType() == null ? ScimGroupMember.Type.USER : member.getType()).toString();
+            args.add(new Object[] {groupId, member.getMemberId(), type, getGroupAuthorities(member), added, member.getOrigin()});
+        }
+        try {
+            jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, args);
+        } catch (DuplicateKeyException e) {
+            throw new MemberAlreadyExistsException("A member is already part of the group: " + groupId);
+        }
+    }
+
+    @Override
+    public int updateMemberships(final String memberId, final String origin, final Set<String> groupIds)
+                    throws ScimResourceNotFoundException {
+        return transactionTemplate.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(TransactionStatus status) {
+                return doUpdateMemberships(memberId, origin, groupIds);
+            }
+        });
+    }
+
+    protected int doUpdateMemberships(final String memberId, String origin, Set<String> groupIds) {
+        final Map<String, String> current = new HashMap<>();
+        jdbcTemplate.query(GET_MEMBERSHIP_ORIGINS_BY_MEMBER_SQL, new Object[] {memberId, IdentityZoneHolder.get().getId()}, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                current.put(rs.getString(1).trim(), rs.getString(2));
+            }
+        });
+        List<Object[]> revoked = new ArrayList<>();
+        for (Map.Entry<String, String> membership : current.entrySet()) {
+            if (origin.equals(membership.getValue()) && !groupIds.contains(membership.getKey())) {
+                revoked.add(new Object[] {membership.getKey(), memberId, origin});
+            }
+        }
+        Set<String> defaultGroupIds = getDefaultUserGroups(IdentityZoneHolder.get().getId()).ids;
+        List<String> added = new ArrayList<>();
+        for (String groupId : groupIds) {
+            if (!current.containsKey(groupId) && !defaultGroupIds.contains(groupId)) {
+                added.add(groupId);
+            }
+        }
+        if (!revoked.isEmpty()) {
+            logger.debug("revoking " + revoked.size() + " memberships of origin " + origin + " from member: " + memberId);
+            jdbcTemplate.batchUpdate(DELETE_MEMBER_OF_ORIGIN_SQL, revoked);
+        }
+        if (!added.isEmpty()) {
+            logger.debug("adding member: " + memberId + " to groups: " + added);
+            String memberZoneId = userProvisioning.retrieve(memberId).getZoneId();
+            Map<String, String> groupZones = getZoneIds(GET_GROUP_ZONES_SQL, new HashSet<>(added));
+            Timestamp now = new Timestamp(new Date().getTime());
+            String authorities = StringUtils.collectionToCommaDelimitedString(ScimGroupMember.GROUP_MEMBER);
+            List<Object[]> args = new ArrayList<>();
+            for (String groupId : added) {
+                String groupZoneId = groupZones.get(groupId);
+                if (groupZoneId == null) {
+                    throw new ScimResourceNotFoundException("Group " + groupId + " does not exist");
+                }
+                if (!groupZoneId.equals(memberZoneId) || !memberZoneId.equals(IdentityZoneHolder.get().getId())) {
+                    throw new ScimResourceConstraintFailedException("The zone of the group and the member must be the same.");
+                }
+                args.add(new Object[] {groupId, memberId, ScimGroupMember.Type.USER.toString(), authorities, now, origin});
+            }
+            jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, args);
+        }
+        return revoked.size() + added.size();
+    }
+
     @Override
     public List<ScimGroupMember> getMembers(final String groupId) throws ScimResourceNotFoundException {
         List<ScimGroupMember> result = jdbcTemplate.query(GET_MEMBERS_SQL, new PreparedStatementSetter() {
@@ -235,6 +463,27 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return new HashSet<>(results);
     }
 
+    @Override
+    public Map<String, Set<String>> getDirectGroupIds(Collection<String> memberIds) {
+        Map<String, Set<String>> result = new HashMap<>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        List<String> idList = new ArrayList<>(memberIds);
+        Map<String, Object> params = new HashMap<>();
+        params.put("zoneId", IdentityZoneHolder.get().getId());
+        for (int i = 0; i < idList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            params.put("ids", idList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, idList.size())));
+            for (Map<String, Object> row : template.queryForList(GET_GROUPS_BY_MEMBERS_SQL, params)) {
+                // ids may be padded CHAR columns
+                String memberId = ((String) row.get("member_id")).trim();
+                if (!result.containsKey(memberId)) {
+                    result.put(memberId, new HashSet<String>());
+                }
+                result.get(memberId).add(((String) row.get("group_id")).trim());
+            }
+        }
+        return result;
+    }
+
     private void getGroupsWithMember(List<ScimGroup> results, final String memberId, boolean transitive) {
         if (results == null) {
             return;
@@ -320,35 +569,101 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     }
 
     @Override
-    public List<ScimGroupMember> updateOrAddMembers(String groupId, List<ScimGroupMember> members)
+    public List<ScimGroupMember> updateOrAddMembers(final String groupId, final List<ScimGroupMember> members)
                     throws ScimResourceNotFoundException {
+        return transactionTemplate.execute(new TransactionCallback<List<ScimGroupMember>>() {
+            @Override
+            public List<ScimGroupMember> doInTransaction(TransactionStatus status) {
+                return doUpdateOrAddMembers(groupId, members);
+            }
+        });
+    }
+
+    /**
+     * Computes the difference between the current and the requested members in memory,
+     * validates all added and updated members with bulk queries and then applies
+     * the removes, adds and updates as JDBC batches.
+     */
+    protected List<ScimGroupMember> doUpdateOrAddMembers(final String groupId, List<ScimGroupMember> members) {
         List<ScimGroupMember> currentMembers = getMembers(groupId);
         logger.debug("current-members: " + currentMembers + ", in request: " + members);
 
-        List<ScimGroupMember> currentMembersToRemove = new ArrayList<>(currentMembers);
-        currentMembersToRemove.removeAll(members);
+        Map<String, ScimGroupMember> requested = new HashMap<>();
+        for (ScimGroupMember member : members) {
+            requested.put(getMemberKey(member), member);
+        }
+        Map<String, ScimGroupMember> current = new HashMap<>();
+        for (ScimGroupMember member : currentMembers) {
+            current.put(getMemberKey(member), member);
+        }
+
+        List<ScimGroupMember> currentMembersToRemove = new ArrayList<>();
+        for (ScimGroupMember member : currentMembers) {
+            if (!requested.containsKey(getMemberKey(member))) {
+                currentMembersToRemove.add(member);
+            }
+        }
+        List<ScimGroupMember> newMembersToAdd = new ArrayList<>();
+        List<ScimGroupMember> membersToUpdate = new ArrayList<>();
+        for (ScimGroupMember member : members) {
+            if (current.containsKey(getMemberKey(member))) {
+                membersToUpdate.add(member);
+            } else {
+                newMembersToAdd.add(member);
+            }
+        }
+
+        if (!newMembersToAdd.isEmpty() && isDefaultGroup(groupId)) {
+            throw new MemberAlreadyExistsException("Trying to add member to default group");
+        }
+        List<ScimGroupMember> membersToValidate = new ArrayList<>(newMembersToAdd);
+        membersToValidate.addAll(membersToUpdate);
+        validateRequest(groupId, membersToValidate);
+
+        final String zoneId = IdentityZoneHolder.get().getId();
         logger.debug("removing members: " + currentMembersToRemove);
-        for (ScimGroupMember member : currentMembersToRemove) {
-            removeMemberById(groupId, member.getMemberId());
+        if (!currentMembersToRemove.isEmpty()) {
+            List<Object[]> args = new ArrayList<>();
+            for (ScimGroupMember member : currentMembersToRemove) {
+                args.add(new Object[] {member.getMemberId(), groupId, zoneId});
+            }
+            validateBatchCount(jdbcTemplate.batchUpdate(DELETE_MEMBER_SQL, args), "unexpected number of members removed");
         }
 
-        List<ScimGroupMember> newMembersToAdd = new ArrayList<>(members);
-        newMembersToAdd.removeAll(currentMembers);
         logger.debug("adding new members: " + newMembersToAdd);
-        for (ScimGroupMember member : newMembersToAdd) {
-            addMember(groupId, member);
+        if (!newMembersToAdd.isEmpty()) {
+            insertMembers(groupId, newMembersToAdd);
         }
 
-        List<ScimGroupMember> membersToUpdate = new ArrayList<>(members);
-        membersToUpdate.retainAll(currentMembers);
         logger.debug("updating members: " + membersToUpdate);
-        for (ScimGroupMember member : membersToUpdate) {
-            updateMember(groupId, member);
+        if (!membersToUpdate.isEmpty()) {
+            List<Object[]> args = new ArrayList<>();
+            for (ScimGroupMember member : membersToUpdate) {
+                args.add(new Object[] {getGroupAuthorities(member), groupId, member.getMemberId()});
+            }
+            validateBatchCount(jdbcTemplate.batchUpdate(UPDATE_MEMBER_SQL, args), "unexpected number of members updated");
         }
 
         return getMembers(groupId);
     }
 
+    /**
+     * Members are the same if their id and type are, like in
+     * {@link ScimGroupMember#equals(Object)}. The origin is not part of the
+     * key, unlike in the hash code of the member.
+     */
+    private static String getMemberKey(ScimGroupMember member) {
+        return member.getType() + ":" + member.getMemberId();
+    }
+
+    private void validateBatchCount(int[] counts, String message) {
+        for (int count : counts) {
+            if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                throw new IncorrectResultSizeDataAccessException(message, 1, count);
+            }
+        }
+    }
+
     @Override
     public ScimGroupMember removeMemberById(final String groupId, final String memberId)
                     throws ScimResourceNotFoundException, MemberNotFoundException {
@@ -424,15 +739,7 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     }
 
     private void validateRequest(String groupId, ScimGroupMember member) {
-        if (!StringUtils.hasText(groupId) ||
-            !StringUtils.hasText(member.getMemberId()) ||
-            !StringUtils.hasText(member.getOrigin())) {
-            throw new InvalidScimResourceException("group-id, member-id, origin and member-type must be non-empty");
-        }
-
-        if (groupId.equals(member.getMemberId())) { // oops! cycle detected
-            throw new InvalidScimResourceException("trying to nest group within itself, aborting");
-        }
+        validateMemberFields(groupId, member);
 
         // check if the group exists and the member-id is a valid group or user
         // id
@@ -445,6 +752,22 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         } else {
             memberZoneId = userProvisioning.retrieve(member.getMemberId()).getZoneId();
         }
+        validateMemberZone(group, memberZoneId);
+    }
+
+    private void validateMemberFields(String groupId, ScimGroupMember member) {
+        if (!StringUtils.hasText(groupId) ||
+            !StringUtils.hasText(member.getMemberId()) ||
+            !StringUtils.hasText(member.getOrigin())) {
+            throw new InvalidScimResourceException("group-id, member-id, origin and member-type must be non-empty");
+        }
+
+        if (groupId.equals(member.getMemberId())) { // oops! cycle detected
+            throw new InvalidScimResourceException("trying to nest group within itself, aborting");
+        }
+    }
+
+    private void validateMemberZone(ScimGroup group, String memberZoneId) {
         if (!memberZoneId.equals(group.getZoneId())) {
             throw new ScimResourceConstraintFailedException("The zone of the group and the member must be the same.");
         }
@@ -453,6 +776,62 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         }
     }
 
+    /**
+     * Validates a list of members for the same group the way {@link #validateRequest(String, ScimGroupMember)}
+     * does, but looks up the zones of all members with one IN query per member type.
+     */
+    private void validateRequest(String groupId, List<ScimGroupMember> members) {
+        if (members.isEmpty()) {
+            return;
+        }
+        Set<String> userIds = new HashSet<>();
+        Set<String> groupIds = new HashSet<>();
+        for (ScimGroupMember member : members) {
+            validateMemberFields(groupId, member);
+            if (member.getType() == ScimGroupMember.Type.GROUP) {
+                groupIds.add(member.getMemberId());
+            } else {
+                userIds.add(member.getMemberId());
+            }
+        }
+
+        ScimGroup group = groupProvisioning.retrieve(groupId);
+        Map<String, String> userZones = getZoneIds(GET_USER_ZONES_SQL, userIds);
+        Map<String, String> groupZones = getZoneIds(GET_GROUP_ZONES_SQL, groupIds);
+        for (ScimGroupMember member : members) {
+            String memberZoneId;
+            if (member.getType() == ScimGroupMember.Type.GROUP) {
+                memberZoneId = groupZones.get(member.getMemberId());
+                if (memberZoneId == null) {
+                    throw new ScimResourceNotFoundException("Group " + member.getMemberId() + " does not exist");
+                }
+            } else {
+                memberZoneId = userZones.get(member.getMemberId());
+                if (memberZoneId == null) {
+                    throw new ScimResourceNotFoundException("User " + member.getMemberId() + " does not exist");
+                }
+            }
+            validateMemberZone(group, memberZoneId);
+        }
+    }
+
+    private Map<String, String> getZoneIds(String sql, Set<String> ids) {
+        Map<String, String> result = new HashMap<>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        List<String> idList = new ArrayList<>(ids);
+        for (int i = 0; i < idList.size(); i += MAX_IN_CLAUSE_SIZE) {
+            List<String> chunk = idList.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, idList.size()));
+            for (Map<String, Object> row : template.queryForList(sql, Collections.singletonMap("ids", chunk))) {
+                // id may be a padded CHAR column
+                result.put(((String) row.get("id")).trim(), (String) row.get("identity_zone_id"));
+            }
+        }
+        return result;
+    }
+
     private String getGroupAuthorities(ScimGroupMember member) {
         if (member.getRoles() != null && !member.getRoles().isEmpty()) {
             return StringUtils.collectionToCommaDelimitedString(member.getRoles());
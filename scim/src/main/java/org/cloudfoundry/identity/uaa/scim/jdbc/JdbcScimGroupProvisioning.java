@@ -16,8 +16,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
@@ -62,6 +66,8 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 
     public static final String GET_GROUP_SQL = String.format("select %s from %s where id=? and identity_zone_id=?", GROUP_FIELDS, GROUP_TABLE);
 
+    public static final String GET_GROUPS_BY_NAMES_SQL = String.format("select %s from %s where %%s in (:displayNames) and identity_zone_id=:zoneId", GROUP_FIELDS, GROUP_TABLE);
+
     public static final String DELETE_GROUP_SQL = String.format("delete from %s where id=? and identity_zone_id=?", GROUP_TABLE);
 
     private final RowMapper<ScimGroup> rowMapper = new ScimGroupRowMapper();
@@ -107,6 +113,17 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
         }
     }
 
+    @Override
+    public List<ScimGroup> retrieveByDisplayNames(Collection<String> displayNames) {
+        boolean caseInsensitive = isCaseInsensitive("displayname");
+        Set<String> values = new HashSet<>();
+        for (String displayName : displayNames) {
+            values.add(caseInsensitive ? displayName : displayName.toLowerCase());
+        }
+        String sql = String.format(GET_GROUPS_BY_NAMES_SQL, caseInsensitive ? "displayName" : "lower(displayName)");
+        return queryInChunks(sql, "displayNames", values, Collections.singletonMap("zoneId", IdentityZoneHolder.get().getId()));
+    }
+
     @Override
     public ScimGroup create(final ScimGroup group) throws InvalidScimResourceException {
         final String id = UUID.randomUUID().toString();
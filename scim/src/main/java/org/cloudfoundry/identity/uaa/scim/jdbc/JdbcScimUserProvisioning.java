@@ -35,6 +35,7 @@ import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
@@ -46,14 +47,20 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * @author Luke Taylor
@@ -80,10 +87,18 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     public static final String READ_PASSWORD_SQL = "select password from users where id=?";
 
+    public static final String READ_PASSWORDS_SQL = "select id, password from users where id in (:ids)";
+
+    private static final int MAX_IN_CLAUSE_SIZE = 1000;
+
     public static final String USER_BY_ID_QUERY = "select " + USER_FIELDS + " from users " + "where id=?";
 
     public static final String ALL_USERS = "select " + USER_FIELDS + " from users";
 
+    public static final String USERS_BY_USERNAMES_QUERY = ALL_USERS + " where %s in (:userNames) and identity_zone_id=:zoneId";
+
+    public static final String USERS_BY_IDS_QUERY = ALL_USERS + " where id in (:ids)";
+
     protected final JdbcTemplate jdbcTemplate;
 
     private PasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
@@ -200,6 +215,101 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         return create(user);
     }
 
+    /**
+     * Encodes the passwords in parallel and inserts all users with a single
+     * JDBC batch.
+     */
+    @Override
+    public List<ScimUser> createUsers(List<ScimUser> users, List<String> passwords) throws InvalidPasswordException,
+                    InvalidScimResourceException {
+        Assert.isTrue(users.size() == passwords.size(), "Each user must have a password");
+        for (ScimUser user : users) {
+            validate(user);
+        }
+        logger.debug("Creating " + users.size() + " new users");
+        List<String> encodedPasswords = encodePasswords(passwords);
+
+        Timestamp t = new Timestamp(new Date().getTime());
+        Timestamp passwordLastModified = getPasswordLastModifiedTimestamp(t);
+        String identityZoneId = IdentityZoneHolder.get().getId();
+        List<Object[]> args = new ArrayList<>();
+        for (int i = 0; i < users.size(); i++) {
+            ScimUser user = users.get(i);
+            String origin = StringUtils.hasText(user.getOrigin()) ? user.getOrigin() : Origin.UAA;
+            user.setId(UUID.randomUUID().toString());
+            user.setOrigin(origin);
+            user.setZoneId(identityZoneId);
+            args.add(new Object[] {
+                user.getId(),
+                user.getVersion(),
+                t,
+                t,
+                user.getUserName(),
+                user.getPrimaryEmail(),
+                user.getName() == null ? null : user.getName().getGivenName(),
+                user.getName() == null ? null : user.getName().getFamilyName(),
+                user.isActive(),
+                extractPhoneNumber(user),
+                user.isVerified(),
+                origin,
+                StringUtils.hasText(user.getExternalId()) ? user.getExternalId() : null,
+                identityZoneId,
+                user.getSalt(),
+                passwordLastModified,
+                encodedPasswords.get(i)
+            });
+        }
+        try {
+            jdbcTemplate.batchUpdate(CREATE_USER_SQL, args);
+        } catch (DuplicateKeyException e) {
+            throw new ScimResourceAlreadyExistsException("Username already in use: " + e.getMessage());
+        }
+        return users;
+    }
+
+    /**
+     * Reads the current password hashes with bulk queries, checks and encodes
+     * the new passwords in parallel and updates the changed ones with a single
+     * JDBC batch.
+     */
+    @Override
+    public void changePasswords(Map<String, String> passwords) throws ScimResourceNotFoundException {
+        final Map<String, String> currentPasswords = readPasswords(passwords.keySet());
+        for (String id : passwords.keySet()) {
+            if (!currentPasswords.containsKey(id)) {
+                throw new ScimResourceNotFoundException("User " + id + " does not exist");
+            }
+        }
+        final Timestamp t = new Timestamp(System.currentTimeMillis());
+        final Timestamp passwordLastModified = getPasswordLastModifiedTimestamp(t);
+        List<Object[]> args = passwords.entrySet().parallelStream()
+            .filter(e -> !passwordEncoder.matches(e.getValue(), currentPasswords.get(e.getKey())))
+            .map(e -> new Object[] {t, passwordEncoder.encode(e.getValue()), passwordLastModified, e.getKey()})
+            .collect(Collectors.toList());
+        logger.debug("Changing passwords of " + args.size() + " out of " + passwords.size() + " users");
+        if (!args.isEmpty()) {
+            jdbcTemplate.batchUpdate(CHANGE_PASSWORD_SQL, args);
+        }
+    }
+
+    private List<String> encodePasswords(List<String> passwords) {
+        return passwords.parallelStream().map(passwordEncoder::encode).collect(Collectors.toList());
+    }
+
+    private Map<String, String> readPasswords(Collection<String> ids) {
+        Map<String, String> result = new HashMap<>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        List<String> all = new ArrayList<>(ids);
+        for (int i = 0; i < all.size(); i += MAX_IN_CLAUSE_SIZE) {
+            List<String> chunk = all.subList(i, Math.min(all.size(), i + MAX_IN_CLAUSE_SIZE));
+            for (Map<String, Object> row : template.queryForList(READ_PASSWORDS_SQL, Collections.singletonMap("ids", chunk))) {
+                //ids are stored in CHAR columns on some platforms
+                result.put(((String) row.get("id")).trim(), (String) row.get("password"));
+            }
+        }
+        return result;
+    }
+
     private void validate(final ScimUser user) throws InvalidScimResourceException {
         if (!usernamePattern.matcher(user.getUserName()).matches()) {
             throw new InvalidScimResourceException("Username must match pattern: " + usernamePattern.pattern());
@@ -217,6 +327,66 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         return phoneNumber;
     }
 
+    @Override
+    public List<ScimUser> retrieveByUsernames(Collection<String> userNames) {
+        boolean caseInsensitive = isCaseInsensitive("username");
+        Set<String> values = new HashSet<>();
+        for (String userName : userNames) {
+            values.add(caseInsensitive ? userName : userName.toLowerCase());
+        }
+        String sql = String.format(USERS_BY_USERNAMES_QUERY, caseInsensitive ? "username" : "lower(username)");
+        return queryInChunks(sql, "userNames", values, Collections.singletonMap("zoneId", IdentityZoneHolder.get().getId()));
+    }
+
+    @Override
+    public List<ScimUser> retrieveByIds(Collection<String> ids) {
+        return queryInChunks(USERS_BY_IDS_QUERY, "ids", ids, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * Updates all users with a single JDBC batch. The passwords are left
+     * untouched.
+     */
+    @Override
+    public void updateUsers(Map<String, ScimUser> users) throws InvalidScimResourceException {
+        if (users.isEmpty()) {
+            return;
+        }
+        logger.debug("Updating " + users.size() + " users");
+        Timestamp t = new Timestamp(new Date().getTime());
+        List<String> ids = new ArrayList<>();
+        List<Object[]> args = new ArrayList<>();
+        for (Map.Entry<String, ScimUser> entry : users.entrySet()) {
+            ScimUser user = entry.getValue();
+            validate(user);
+            ids.add(entry.getKey());
+            args.add(new Object[] {
+                user.getVersion() + 1,
+                t,
+                user.getUserName(),
+                user.getPrimaryEmail(),
+                user.getName().getGivenName(),
+                user.getName().getFamilyName(),
+                user.isActive(),
+                extractPhoneNumber(user),
+                user.isVerified(),
+                StringUtils.hasText(user.getOrigin()) ? user.getOrigin() : Origin.UAA,
+                StringUtils.hasText(user.getExternalId()) ? user.getExternalId() : null,
+                user.getSalt(),
+                entry.getKey(),
+                user.getVersion()
+            });
+        }
+        int[] updated = jdbcTemplate.batchUpdate(UPDATE_USER_SQL, args);
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] == 0) {
+                throw new OptimisticLockingFailureException(String.format(
+                                "Attempt to update a user (%s) with wrong version: expected=%d", ids.get(i),
+                                users.get(ids.get(i)).getVersion()));
+            }
+        }
+    }
+
     @Override
     public ScimUser update(final String id, final ScimUser user) throws InvalidScimResourceException {
         validate(user);
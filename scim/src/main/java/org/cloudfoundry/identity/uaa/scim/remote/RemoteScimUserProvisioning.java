@@ -22,10 +22,15 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundExceptio
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Remote implementation of
@@ -93,6 +98,16 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
         return create(user);
     }
 
+    @Override
+    public List<ScimUser> createUsers(List<ScimUser> users, List<String> passwords) throws InvalidPasswordException,
+                    InvalidScimResourceException {
+        List<ScimUser> result = new ArrayList<ScimUser>();
+        for (int i = 0; i < users.size(); i++) {
+            result.add(createUser(users.get(i), passwords.get(i)));
+        }
+        return result;
+    }
+
     @Override
     public ScimUser update(String id, ScimUser user) throws InvalidScimResourceException, ScimResourceNotFoundException {
         restTemplate.put(baseUrl + "/User/{id}", user, id);
@@ -108,6 +123,44 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
         restTemplate.put(baseUrl + "/User/{id}/password", request, id);
     }
 
+    @Override
+    public void changePasswords(Map<String, String> passwords) throws ScimResourceNotFoundException {
+        for (Map.Entry<String, String> entry : passwords.entrySet()) {
+            changePassword(entry.getKey(), null, entry.getValue());
+        }
+    }
+
+    @Override
+    public List<ScimUser> retrieveByUsernames(Collection<String> userNames) {
+        List<ScimUser> result = new ArrayList<ScimUser>();
+        for (String userName : userNames) {
+            result.addAll(query(String.format("userName eq \"%s\"", userName)));
+        }
+        return result;
+    }
+
+    @Override
+    public List<ScimUser> retrieveByIds(Collection<String> ids) {
+        List<ScimUser> result = new ArrayList<ScimUser>();
+        for (String id : ids) {
+            try {
+                result.add(retrieve(id));
+            } catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.NOT_FOUND) {
+                    throw e;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void updateUsers(Map<String, ScimUser> users) throws InvalidScimResourceException {
+        for (Map.Entry<String, ScimUser> entry : users.entrySet()) {
+            update(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public ScimUser verifyUser(String id, int version) throws ScimResourceNotFoundException,
                     InvalidScimResourceException {
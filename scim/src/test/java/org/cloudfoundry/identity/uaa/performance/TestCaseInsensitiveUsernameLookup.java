@@ -0,0 +1,164 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.performance;
+
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.scim.jdbc.ScimSearchQueryConverter;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.user.JdbcUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares username lookups through lower(username) with the index friendly
+ * queries added together with the V2_7_4 case insensitive lookup migrations.
+ */
+@RunWith(Parameterized.class)
+public class TestCaseInsensitiveUsernameLookup extends JdbcTestBase {
+
+    @BeforeClass
+    public static void ignorePerformanceTest() throws Exception {
+        //comment out this line to run the tests.
+        assumeTrue(false);
+    }
+
+    public static final String MYSQL_DEFAULT = "mysql,default";
+    public static final String POSTGRESQL_DEFAULT = "postgresql,default";
+    public static final String HSQLDB_DEFAULT = "hsqldb,default";
+
+    public static final String CLEAR_USERS = "delete from users";
+
+    static final int LOOKUP_COUNT = 1000;
+    static final int TABLE_SIZE = 100000;
+
+    @Parameters(name = "{index}: profile:{0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(
+            new Object[] {MYSQL_DEFAULT, true},
+            new Object[] {HSQLDB_DEFAULT, true},
+            new Object[] {POSTGRESQL_DEFAULT, false}
+        );
+    }
+
+    private final String profile;
+    private final boolean caseInsensitive;
+    private JdbcUaaUserDatabase userDatabase;
+    private JdbcScimUserProvisioning userProvisioning;
+    private ScimSearchQueryConverter converter;
+
+    public TestCaseInsensitiveUsernameLookup(String profile, boolean caseInsensitive) {
+        this.profile = profile;
+        this.caseInsensitive = caseInsensitive;
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("database.removeabandoned", "false");
+        environment.setProperty("database.logabandoned", "false");
+        environment.setProperty("spring.profiles.active", profile);
+        super.setUp(environment);
+        userDatabase = new JdbcUaaUserDatabase(jdbcTemplate);
+        converter = new ScimSearchQueryConverter();
+        userProvisioning = new JdbcScimUserProvisioning(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter));
+        userProvisioning.setQueryConverter(converter);
+    }
+
+    protected List<String> addRecords() throws Exception {
+        List<String> usernames = new LinkedList<>();
+        RandomValueStringGenerator generator = new RandomValueStringGenerator();
+        Connection con = dataSource.getConnection();
+        PreparedStatement st = con.prepareStatement("insert into users (id, username, email, password, verified) values (?, ?, ?, ?, true)");
+        try {
+            for (int i=0; i<TABLE_SIZE; i++) {
+                String username = "User-" + generator.generate() + "@domain-" + generator.generate() + ".com";
+                int pos = 1;
+                st.setString(pos++, generator.generate() + generator.generate());
+                st.setString(pos++, username);
+                st.setString(pos++, username);
+                st.setString(pos++, username);
+                st.addBatch();
+                if (i % (TABLE_SIZE / LOOKUP_COUNT) == 0) {
+                    usernames.add(username);
+                    st.executeBatch();
+                }
+            }
+            st.executeBatch();
+        } finally {
+            st.close();
+            con.close();
+        }
+        Collections.shuffle(usernames);
+        return usernames;
+    }
+
+    @Test
+    public void compareLookups() throws Exception {
+        jdbcTemplate.update(CLEAR_USERS);
+        List<String> usernames = addRecords();
+
+        userDatabase.setCaseInsensitive(false);
+        timeLookups("lower(username)", usernames);
+        timeLookups("lower(username)", usernames);
+        userDatabase.setCaseInsensitive(caseInsensitive);
+        timeLookups("indexed username", usernames);
+        timeLookups("indexed username", usernames);
+
+        timeFilters("LOWER(username) filter", usernames);
+        converter.setCaseInsensitiveAttributes(caseInsensitive ? Arrays.asList("username") : Collections.<String>emptyList());
+        timeFilters("indexed username filter", usernames);
+    }
+
+    protected void timeLookups(String description, List<String> usernames) {
+        long start = System.currentTimeMillis();
+        for (String username : usernames) {
+            UaaUser user = userDatabase.retrieveUserByName(username, Origin.UAA);
+            assertNotNull(user);
+        }
+        long stop = System.currentTimeMillis();
+        System.err.println("[" + profile + "] " + description + ": " + usernames.size() + " lookups in " + (stop - start) + " ms.");
+    }
+
+    protected void timeFilters(String description, List<String> usernames) {
+        long start = System.currentTimeMillis();
+        for (String username : usernames) {
+            assertEquals(1, userProvisioning.query("userName eq \"" + username + "\"").size());
+        }
+        long stop = System.currentTimeMillis();
+        System.err.println("[" + profile + "] " + description + ": " + usernames.size() + " queries in " + (stop - start) + " ms.");
+    }
+}
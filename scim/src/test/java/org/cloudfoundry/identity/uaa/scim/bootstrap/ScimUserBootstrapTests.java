@@ -20,6 +20,7 @@ import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.endpoints.ScimUserEndpoints;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupExternalMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupProvisioning;
 import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
@@ -52,6 +53,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 public class ScimUserBootstrapTests {
 
@@ -247,6 +251,49 @@ public class ScimUserBootstrapTests {
         assertEquals(passwordHash, jdbcTemplate.queryForObject("select password from users where username='joe'", new Object[0], String.class));
     }
 
+    @Test
+    public void canBootstrapManyUsers() throws Exception {
+        List<UaaUser> users = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            UaaUser user = new UaaUser("user" + i, "password" + i, "user" + i + "@test.org", "User", "" + i);
+            users.add(user.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,group" + (i % 3))));
+        }
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, users);
+        bootstrap.afterPropertiesSet();
+        assertEquals(50, db.retrieveAll().size());
+        assertEquals(50, mdb.getMembers(gdb.query("displayName eq \"openid\"").get(0).getId()).size());
+        assertEquals(17, mdb.getMembers(gdb.query("displayName eq \"group0\"").get(0).getId()).size());
+
+        users.set(0, users.get(0).authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,group1")));
+        bootstrap = new ScimUserBootstrap(db, gdb, mdb, users);
+        bootstrap.setOverride(true);
+        bootstrap.afterPropertiesSet();
+        assertEquals(50, db.retrieveAll().size());
+        assertEquals(16, mdb.getMembers(gdb.query("displayName eq \"group0\"").get(0).getId()).size());
+        assertEquals(18, mdb.getMembers(gdb.query("displayName eq \"group1\"").get(0).getId()).size());
+        String id = db.query("userName eq \"user0\"").get(0).getId();
+        assertTrue(db.checkPasswordMatches(id, "password0"));
+    }
+
+    @Test
+    public void bootstrapOnlyReadsConfiguredUsersAndGroups() throws Exception {
+        UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
+        new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe)).afterPropertiesSet();
+
+        JdbcScimUserProvisioning users = spy(db);
+        JdbcScimGroupProvisioning groups = spy(gdb);
+        UaaUser mabel = new UaaUser("mabel", "password", "mabel@blah.com", "Mabel", "User");
+        joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "Bloggs");
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(users, groups, mdb, Arrays.asList(joe, mabel));
+        bootstrap.setOverride(true);
+        bootstrap.afterPropertiesSet();
+
+        verify(users, never()).retrieveAll();
+        verify(groups, never()).retrieveAll();
+        assertEquals(2, db.retrieveAll().size());
+        assertEquals("Bloggs", db.query("userName eq \"joe\"").get(0).getName().getFamilyName());
+    }
+
     @Test
     public void failedAttemptToUpdateUsersNotFatal() throws Exception {
         UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
@@ -319,6 +366,55 @@ public class ScimUserBootstrapTests {
         }
     }
 
+    @Test
+    public void mappedGroupsAreResolvedThroughTheExternalGroupIndex() throws Exception {
+        String[] externalAuthorities = new String[] {"extTest1","extTest2"};
+        String[] userAuthorities = new String[] {"usrTest1"};
+        String origin = "testOrigin";
+        addIdentityProvider(jdbcTemplate,origin);
+        JdbcScimGroupExternalMembershipManager edb = new JdbcScimGroupExternalMembershipManager(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, new DefaultLimitSqlAdapter()));
+        edb.setScimGroupProvisioning(gdb);
+        for (String name : externalAuthorities) {
+            ScimGroup group = gdb.create(new ScimGroup(null, name, IdentityZoneHolder.get().getId()));
+            edb.mapExternalGroup(group.getId(), "cn=" + name, origin);
+        }
+        String username = new RandomValueStringGenerator().generate();
+        UaaUser user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "", null, new RandomValueStringGenerator().generate(), username);
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(user));
+        bootstrap.setExternalMembershipManager(edb);
+        bootstrap.afterPropertiesSet();
+
+        ScimUser created = db.query("userName eq \""+username +"\" and origin eq \""+origin+"\"").get(0);
+        user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "", null, created.getId(), username);
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), false));
+        validateAuthoritiesCreated(externalAuthorities, userAuthorities, origin, created);
+    }
+
+    @Test
+    public void unchangedExternalAuthoritiesDoNotTouchMemberships() throws Exception {
+        String[] externalAuthorities = new String[] {"extTest1","extTest2"};
+        String[] userAuthorities = new String[] {"usrTest1"};
+        String origin = "testOrigin";
+        addIdentityProvider(jdbcTemplate,origin);
+        String username = new RandomValueStringGenerator().generate();
+        UaaUser user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "", null, new RandomValueStringGenerator().generate(), username);
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(user));
+        bootstrap.afterPropertiesSet();
+
+        ScimUser created = db.query("userName eq \""+username +"\" and origin eq \""+origin+"\"").get(0);
+        user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "", null, created.getId(), username);
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), true));
+        validateAuthoritiesCreated(externalAuthorities, userAuthorities, origin, created);
+
+        jdbcTemplate.update("delete from group_membership where member_id=? and origin=?", created.getId(), origin);
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), true));
+        validateAuthoritiesCreated(new String[0], userAuthorities, origin, created);
+
+        bootstrap.setMembershipDigestExpirySeconds(0);
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), true));
+        validateAuthoritiesCreated(externalAuthorities, userAuthorities, origin, created);
+    }
+
     @Test
     public void canUpdateEmailThroughEvent() throws Exception {
         String[] externalAuthorities = new String[] {"extTest1","extTest2","extTest3"};
@@ -528,9 +528,9 @@ public class ScimGroupEndpointsTests extends JdbcTestBase {
             endpoints.updateGroup(g1, g1.getId(), "*", new MockHttpServletResponse());
             fail("must have thrown exception");
         } catch (ScimException ex) {
-            // ensure that displayName was not updated
+            // ensure that displayName was not updated and the membership update was rolled back
             g1 = endpoints.getGroup(g1.getId(), new MockHttpServletResponse());
-            validateGroup(g1, "clients.read", 0);
+            validateGroup(g1, "clients.read", 1);
             validateSearchResults(endpoints.listGroups("id", "displayName eq \"clients.write\"", "id", "ASC", 1, 100), 0);
         }
 
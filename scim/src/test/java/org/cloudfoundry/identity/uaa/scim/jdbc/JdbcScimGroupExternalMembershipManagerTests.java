@@ -19,7 +19,9 @@ import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMember;
@@ -143,6 +145,65 @@ public class JdbcScimGroupExternalMembershipManagerTests extends JdbcTestBase {
         assertEquals(6, jdbcTemplate.queryForInt("select count(*) from external_group_mapping"));
     }
 
+    @Test
+    public void external_group_lookups_use_an_index_per_zone_and_origin() {
+        map3GroupsInEachZone();
+        String engineering = "CN=Engineering,ou=groups,dc=example,dc=com";
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+        assertEquals("g1-" + IdentityZone.getUaa().getId(), edao.getExternalGroupMapsByExternalGroup(engineering, origin).get(0).getGroupId());
+        assertEquals(3, edao.getExternalGroupMaps(origin).size());
+        assertEquals(0, edao.getExternalGroupMaps(Origin.UAA).size());
+
+        IdentityZoneHolder.set(otherZone);
+        assertEquals("g1-" + otherZone.getId(), edao.getExternalGroupMapsByExternalGroup(engineering, origin).get(0).getGroupId());
+        IdentityZoneHolder.clear();
+
+        // changes bypassing the manager are only seen once the index is dropped
+        jdbcTemplate.update("update groups set displayName='renamed' where id=?", "g1-" + IdentityZone.getUaa().getId());
+        assertEquals("test1", edao.getExternalGroupMapsByExternalGroup(engineering, origin).get(0).getDisplayName());
+        edao.onApplicationEvent(GroupModifiedEvent.groupModified("g1-" + IdentityZone.getUaa().getId(), "renamed", new String[0]));
+        assertEquals("renamed", edao.getExternalGroupMapsByExternalGroup(engineering, origin).get(0).getDisplayName());
+
+        // changes through the manager are seen immediately
+        edao.mapExternalGroup("g2-" + IdentityZone.getUaa().getId(), engineering, origin);
+        assertEquals(2, edao.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+        edao.unmapExternalGroup("g1-" + IdentityZone.getUaa().getId(), engineering, origin);
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+        edao.delete("");
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+    }
+
+    @Test
+    public void external_group_index_expires() throws Exception {
+        edao.setIndexExpirySeconds(0);
+        String engineering = "cn=engineering,ou=groups,dc=example,dc=com";
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+        jdbcTemplate.update("insert into external_group_mapping (group_id, external_group, added, origin) values (?,?,?,?)",
+            "g1-" + IdentityZone.getUaa().getId(), engineering, new java.sql.Timestamp(System.currentTimeMillis()), origin);
+        Thread.sleep(5);
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+    }
+
+    @Test
+    public void external_group_index_is_dropped_when_another_node_changes_mappings() throws Exception {
+        JdbcCacheInvalidationBus bus = new JdbcCacheInvalidationBus(jdbcTemplate);
+        bus.setPollInterval(0);
+        bus.afterPropertiesSet();
+        edao.setCacheInvalidationBus(bus);
+        JdbcCacheInvalidationBus otherBus = new JdbcCacheInvalidationBus(jdbcTemplate);
+        otherBus.setPollInterval(0);
+        otherBus.afterPropertiesSet();
+        JdbcScimGroupExternalMembershipManager otherNode = new JdbcScimGroupExternalMembershipManager(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter));
+        otherNode.setScimGroupProvisioning(gdao);
+        otherNode.setCacheInvalidationBus(otherBus);
+
+        String engineering = "cn=engineering,ou=groups,dc=example,dc=com";
+        assertEquals(0, otherNode.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+        edao.mapExternalGroup("g1-" + IdentityZone.getUaa().getId(), engineering, origin);
+        assertEquals(0, otherNode.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+        assertEquals(1, otherBus.poll());
+        assertEquals(1, otherNode.getExternalGroupMapsByExternalGroup(engineering, origin).size());
+    }
 
     protected void map3GroupsInEachZone() {
         for (IdentityZone zone : Arrays.asList(IdentityZone.getUaa(), otherZone)) {
@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim.jdbc;
 
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -31,11 +32,13 @@ import org.junit.Test;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -220,6 +223,15 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         addMember("g2", "m3", "USER", "READER");
     }
 
+    @Test
+    public void canGetDirectGroupIdsOfManyMembers() {
+        addMembers();
+        Map<String, Set<String>> groupIds = dao.getDirectGroupIds(Arrays.asList("m2", "m3", "m4"));
+        assertEquals(2, groupIds.size());
+        assertEquals(new HashSet<>(Arrays.asList("g1", "g2")), groupIds.get("m3"));
+        assertEquals(Collections.singleton("g3"), groupIds.get("m2"));
+    }
+
     @Test
     public void canGetGroupsForMemberEvenWhenCycleExistsInGroupHierarchy() {
         addMember("g1", "m3", "USER", "READER");
@@ -337,6 +349,33 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         assertEquals(1, groups.size());
     }
 
+    @Test
+    public void defaultGroupsAreCachedUntilAGroupIsModified() {
+        ScimGroup uaaUser = gdao.query("displayName eq \"uaa.user\"").get(0);
+        assertTrue(dao.isDefaultGroup(uaaUser.getId()));
+        assertFalse(dao.isDefaultGroup("g1"));
+
+        jdbcTemplate.update("update groups set displayName='renamed.user' where id=?", uaaUser.getId());
+        assertTrue(dao.isDefaultGroup(uaaUser.getId()));
+
+        dao.onApplicationEvent(GroupModifiedEvent.groupModified(uaaUser.getId(), "renamed.user", new String[0]));
+        assertFalse(dao.isDefaultGroup(uaaUser.getId()));
+        assertEquals(0, dao.getGroupsWithMember("m1", false).size());
+
+        jdbcTemplate.update("update groups set displayName='uaa.user' where id=?", uaaUser.getId());
+        dao.onApplicationEvent(GroupModifiedEvent.groupModified(uaaUser.getId(), "uaa.user", new String[0]));
+        assertTrue(dao.isDefaultGroup(uaaUser.getId()));
+        assertEquals(1, dao.getGroupsWithMember("m1", false).size());
+    }
+
+    @Test
+    public void defaultGroupsAreOnlyResolvedForTheUaaZone() {
+        ScimGroup uaaUser = gdao.query("displayName eq \"uaa.user\"").get(0);
+        IdentityZoneHolder.set(MultitenancyFixture.identityZone(new RandomValueStringGenerator().generate(), "otherzone"));
+        assertFalse(dao.isDefaultGroup(uaaUser.getId()));
+        assertEquals(0, dao.getDefaultUserGroups(IdentityZoneHolder.get()).size());
+    }
+
     @Test
     public void canGetAdminMembers() {
         addMember("g1", "m3", "USER", "READER,WRITER");
@@ -407,6 +446,100 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         validateUserGroups("m1");
     }
 
+    @Test
+    public void updateOrAddMembersKeepsMembersOfAnotherOrigin() {
+        addMember("g1", "m1", "USER", "member", Origin.LDAP);
+        Timestamp added = new Timestamp(System.currentTimeMillis() - 60000);
+        jdbcTemplate.update("update group_membership set added=? where group_id='g1' and member_id='m1'", added);
+
+        ScimGroupMember m1 = new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_ADMIN);
+        m1.setOrigin(Origin.UAA);
+        dao.updateOrAddMembers("g1", Arrays.asList(m1));
+
+        validateCount(1);
+        assertEquals(ScimGroupMember.GROUP_ADMIN, dao.getMemberById("g1", "m1").getRoles());
+        assertEquals(added, jdbcTemplate.queryForObject("select added from group_membership where group_id='g1' and member_id='m1'", Timestamp.class));
+        assertEquals(Origin.LDAP, jdbcTemplate.queryForObject("select origin from group_membership where group_id='g1' and member_id='m1'", String.class));
+    }
+
+    @Test
+    public void updateOrAddMembersWithUnknownMemberChangesNothing() {
+        dao.addMember("g1", new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        validateCount(1);
+
+        ScimGroupMember m2 = new ScimGroupMember("m2", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER);
+        ScimGroupMember unknown = new ScimGroupMember("unknown-user", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER);
+        try {
+            dao.updateOrAddMembers("g1", Arrays.asList(m2, unknown));
+            fail("unknown member should have been rejected");
+        } catch (ScimResourceNotFoundException expected) {
+        }
+
+        validateCount(1);
+        validateUserGroups("m1", "test1");
+        validateUserGroups("m2");
+    }
+
+    @Test
+    public void canUpdateOrAddManyMembers() {
+        List<ScimGroupMember> members = new ArrayList<>();
+        for (int i=0; i<1500; i++) {
+            String id = "bulk-" + i;
+            addUser(id, "test", IdentityZone.getUaa().getId());
+            members.add(new ScimGroupMember(id, ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        }
+        dao.addMember("g1", new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        dao.addMember("g1", new ScimGroupMember("bulk-0", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        members.set(0, new ScimGroupMember("bulk-0", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_ADMIN));
+
+        List<ScimGroupMember> result = dao.updateOrAddMembers("g1", members);
+
+        assertEquals(1500, result.size());
+        validateCount(1500);
+        assertEquals(ScimGroupMember.GROUP_ADMIN, dao.getMemberById("g1", "bulk-0").getRoles());
+        validateUserGroups("m1");
+    }
+
+    @Test
+    public void canAddManyMembersWithoutTouchingExistingOnes() {
+        addMember("g1", "m1", "USER", "READER,WRITER");
+        List<ScimGroupMember> added = dao.addMembers("g1", Arrays.asList(
+            new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER),
+            new ScimGroupMember("m2", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER),
+            new ScimGroupMember("m2", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_ADMIN),
+            new ScimGroupMember("g2", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER)
+        ));
+        assertEquals(2, added.size());
+        validateCount(3);
+        assertEquals(ScimGroupMember.GROUP_ADMIN, dao.getMemberById("g1", "m1").getRoles());
+        assertEquals(ScimGroupMember.GROUP_MEMBER, dao.getMemberById("g1", "m2").getRoles());
+        assertEquals(0, dao.addMembers("g1", Arrays.asList(new ScimGroupMember("m2"))).size());
+    }
+
+    @Test
+    public void canUpdateMembershipsOfAnOriginAsADiff() {
+        addMember("g1", "m1", "USER", "READER", Origin.LDAP);
+        addMember("g2", "m1", "USER", "READER", Origin.LDAP);
+        addMember("g3", "m1", "USER", "READER", Origin.UAA);
+        assertEquals(1, dao.updateMemberships("m1", Origin.LDAP, new HashSet<>(Arrays.asList("g1", "g3"))));
+        validateCount(2);
+        assertEquals(Origin.LDAP, dao.getMemberById("g1", "m1").getOrigin());
+        assertEquals(Origin.UAA, dao.getMemberById("g3", "m1").getOrigin());
+
+        assertEquals(1, dao.updateMemberships("m1", Origin.LDAP, new HashSet<>(Arrays.asList("g1", "g2", "g3"))));
+        validateCount(3);
+        assertEquals(Origin.LDAP, dao.getMemberById("g2", "m1").getOrigin());
+        assertEquals(0, dao.updateMemberships("m1", Origin.LDAP, new HashSet<>(Arrays.asList("g1", "g2", "g3"))));
+
+        assertEquals(2, dao.updateMemberships("m1", Origin.LDAP, Collections.<String>emptySet()));
+        validateCount(1);
+    }
+
+    @Test(expected = ScimResourceNotFoundException.class)
+    public void cannotUpdateMembershipsWithNonExistentGroup() {
+        dao.updateMemberships("m1", Origin.LDAP, Collections.singleton("invalid-group"));
+    }
+
     @Test
     public void canRemoveMemberById() throws Exception {
         addMember("g1", "m1", "USER", "READER");
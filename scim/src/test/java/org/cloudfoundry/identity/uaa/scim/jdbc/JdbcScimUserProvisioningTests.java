@@ -183,6 +183,66 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertEquals((user.getMeta().getLastModified().getTime() / 1000l) * 1000l, user.getPasswordLastModified().getTime());
     }
 
+    @Test
+    public void canCreateAndChangePasswordsOfManyUsers() throws Exception {
+        List<ScimUser> users = new ArrayList<>();
+        List<String> passwords = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ScimUser user = new ScimUser(null, generator.generate() + "@foo.com", "Jo", "User");
+            user.addEmail(user.getUserName());
+            users.add(user);
+            passwords.add("password" + i);
+        }
+        List<ScimUser> created = db.createUsers(users, passwords);
+        assertEquals(5, created.size());
+        for (int i = 0; i < 5; i++) {
+            ScimUser user = db.retrieve(created.get(i).getId());
+            assertEquals(users.get(i).getUserName(), user.getUserName());
+            assertEquals(Origin.UAA, user.getOrigin());
+            assertTrue(db.checkPasswordMatches(user.getId(), "password" + i));
+        }
+
+        String unchangedHash = jdbcTemplate.queryForObject("select password from users where id=?", String.class, created.get(0).getId());
+        Map<String, String> changes = new HashMap<>();
+        changes.put(created.get(0).getId(), "password0");
+        changes.put(created.get(1).getId(), "newpassword");
+        db.changePasswords(changes);
+        assertEquals(unchangedHash, jdbcTemplate.queryForObject("select password from users where id=?", String.class, created.get(0).getId()));
+        assertTrue(db.checkPasswordMatches(created.get(1).getId(), "newpassword"));
+
+        try {
+            db.changePasswords(Collections.singletonMap("unknown-id", "password"));
+            fail("Unknown users cannot change their password");
+        } catch (ScimResourceNotFoundException x) {
+        }
+    }
+
+    @Test
+    public void canRetrieveAndUpdateManyUsers() throws Exception {
+        List<ScimUser> found = db.retrieveByUsernames(Arrays.asList("JOE", "mabel", "unknown"));
+        assertEquals(2, found.size());
+        assertEquals(1, db.retrieveByIds(Arrays.asList(MABEL_ID, "unknown-id")).size());
+
+        IdentityZoneHolder.set(MultitenancyFixture.identityZone("my-zone-id", "my-zone-id"));
+        assertEquals(0, db.retrieveByUsernames(Arrays.asList("joe", "mabel")).size());
+        IdentityZoneHolder.clear();
+
+        Map<String, ScimUser> updates = new HashMap<>();
+        for (ScimUser user : found) {
+            user.setName(new ScimUser.Name("Updated", user.getName().getFamilyName()));
+            updates.put(user.getId(), user);
+        }
+        db.updateUsers(updates);
+        assertEquals("Updated", db.retrieve(JOE_ID).getName().getGivenName());
+        assertEquals("Updated", db.retrieve(MABEL_ID).getName().getGivenName());
+
+        try {
+            db.updateUsers(Collections.singletonMap(JOE_ID, updates.get(JOE_ID)));
+            fail("The version of joe changed");
+        } catch (OptimisticLockingFailureException x) {
+        }
+    }
+
     @Test
     public void canCreateUserInOtherIdentityZone() {
         String otherZoneId = "my-zone-id";
@@ -17,6 +17,7 @@ import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFil
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -88,6 +89,17 @@ public class ScimSearchQueryConverterTests {
         validate(filterProcessor.convert("test eq 1000000", null, false),"test = :__value_0", 1, Double.class);
     }
 
+    @Test
+    public void caseInsensitiveAttributesDoNotInjectLower() throws Exception {
+        filterProcessor.setCaseInsensitiveAttributes(Arrays.asList("username", "email"));
+        validate(filterProcessor.convert("username eq \"joe\"", null, false), "username = :__value_0", 1);
+        validate(filterProcessor.convert("USERNAME eq \"joe\"", null, false), "USERNAME = :__value_0", 1);
+        validate(filterProcessor.convert("userName sw \"jo\"", null, false), "userName LIKE :__value_0", 1);
+        validate(filterProcessor.convert("emails.value co \".com\"", null, false), "email LIKE :__value_0", 1);
+        validate(filterProcessor.convert("displayName eq \"openid\"", null, false), "LOWER(displayName) = LOWER(:__value_0)", 1);
+        validate(filterProcessor.convert("username eq \"joe\" or givenName co \"jo\"", null, false),"(username = :__value_0 OR LOWER(givenName) LIKE LOWER(:__value_1))", 2);
+    }
+
     @Test
     public void canConvertWithReplacePatterns() {
         validate(filterProcessor.convert("emails.value sw \"joe\"", null, false), "LOWER(email) LIKE LOWER(:__value_0)", 1);
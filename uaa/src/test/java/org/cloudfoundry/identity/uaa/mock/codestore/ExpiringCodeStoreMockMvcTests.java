@@ -12,8 +12,8 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.mock.codestore;
 
+import org.cloudfoundry.identity.uaa.codestore.ExpiredEntriesReaper;
 import org.cloudfoundry.identity.uaa.codestore.ExpiringCode;
-import org.cloudfoundry.identity.uaa.codestore.JdbcExpiringCodeStore;
 import org.cloudfoundry.identity.uaa.mock.InjectedMockContextTest;
 import org.cloudfoundry.identity.uaa.test.TestClient;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
@@ -202,7 +202,7 @@ public class ExpiringCodeStoreMockMvcTests extends InjectedMockContextTest {
     }
 
     @Test
-    public void testCodeThatIsExpiredIsDeletedOnCreateOfNewCode() throws Exception {
+    public void testCodeThatIsExpiredIsDeletedByTheReaper() throws Exception {
         Timestamp ts = new Timestamp(System.currentTimeMillis() + 1000);
         ExpiringCode code = new ExpiringCode(null, ts, "{}");
         String requestBody = JsonUtils.writeValueAsString(code);
@@ -233,52 +233,13 @@ public class ExpiringCodeStoreMockMvcTests extends InjectedMockContextTest {
             .andExpect(status().isCreated())
             .andReturn();
 
+        assertEquals(2, getWebApplicationContext().getBean(JdbcTemplate.class).queryForInt("select count(*) from expiring_code_store"));
+        getWebApplicationContext().getBean(ExpiredEntriesReaper.class).purge();
         assertEquals(1, getWebApplicationContext().getBean(JdbcTemplate.class).queryForInt("select count(*) from expiring_code_store"));
     }
 
 
-    @Test
-    public void testCodeThatIsExpirationIntervalWorks() throws Exception {
-        Timestamp ts = new Timestamp(System.currentTimeMillis() + 1000);
-        ExpiringCode code = new ExpiringCode(null, ts, "{}");
-        String requestBody = JsonUtils.writeValueAsString(code);
-        MockHttpServletRequestBuilder post = post("/Codes")
-            .header("Authorization", "Bearer " + loginToken)
-            .contentType(APPLICATION_JSON)
-            .accept(MediaType.APPLICATION_JSON)
-            .content(requestBody);
-
-        MvcResult result = getMockMvc().perform(post)
-            .andExpect(status().isCreated())
-            .andReturn();
-
-        ExpiringCode rc = JsonUtils.readValue(result.getResponse().getContentAsString(), ExpiringCode.class);
-
-        expireAllCodes();
-        long interval = getWebApplicationContext().getBean(JdbcExpiringCodeStore.class).getExpirationInterval();
-        try {
-            getWebApplicationContext().getBean(JdbcExpiringCodeStore.class).setExpirationInterval(10000000);
-            ts = new Timestamp(System.currentTimeMillis() + 1000);
-            code = new ExpiringCode(null, ts, "{}");
-            requestBody = JsonUtils.writeValueAsString(code);
-            post = post("/Codes")
-                .header("Authorization", "Bearer " + loginToken)
-                .contentType(APPLICATION_JSON)
-                .accept(MediaType.APPLICATION_JSON)
-                .content(requestBody);
-
-            getMockMvc().perform(post)
-                .andExpect(status().isCreated())
-                .andReturn();
-
-            assertEquals(2, getWebApplicationContext().getBean(JdbcTemplate.class).queryForInt("select count(*) from expiring_code_store"));
-        }finally {
-            getWebApplicationContext().getBean(JdbcExpiringCodeStore.class).setExpirationInterval(interval);
-        }
-    }
-
     protected void expireAllCodes() throws Exception {
-        getWebApplicationContext().getBean(JdbcExpiringCodeStore.class).setExpirationInterval(0);
         Timestamp expired = new Timestamp(System.currentTimeMillis() - 5000);
         getWebApplicationContext().getBean(JdbcTemplate.class).update("update expiring_code_store set expiresat=?", expired.getTime());
     }
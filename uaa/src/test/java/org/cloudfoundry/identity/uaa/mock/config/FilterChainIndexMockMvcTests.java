@@ -0,0 +1,95 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.mock.config;
+
+import org.cloudfoundry.identity.uaa.mock.InjectedMockContextTest;
+import org.cloudfoundry.identity.uaa.security.web.FilterChainIndexPostProcessor.IndexedFilterChainProxy;
+import org.cloudfoundry.identity.uaa.security.web.UaaRequestMatcher;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.DefaultSecurityFilterChain;
+import org.springframework.security.web.FilterChainProxy;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilterChainIndexMockMvcTests extends InjectedMockContextTest {
+
+    @Test
+    public void testSelectedChainIsUnchangedForEveryPath() {
+        FilterChainProxy bean = getWebApplicationContext().getBean("springSecurityFilterChain", FilterChainProxy.class);
+        assertTrue(bean instanceof IndexedFilterChainProxy);
+        IndexedFilterChainProxy proxy = (IndexedFilterChainProxy) bean;
+
+        Set<String> paths = new TreeSet<>(Arrays.asList(
+            "/", "/login", "/login.do", "/logout.do", "/oauth/token", "/oauth/authorize", "/oauth/clients",
+            "/oauth/clients/cf", "/oauth/clients/cf/secret", "/oauth/clients/tx/modify", "/check_token",
+            "/token_key", "/userinfo", "/clientinfo", "/Users", "/Users/id", "/Users/id/password", "/ids/Users",
+            "/Groups", "/Groups/External", "/approvals", "/identity-zones", "/identity-zones/id",
+            "/identity-providers", "/authenticate", "/password/score", "/healthz", "/info", "/invalid"
+        ));
+        for (SecurityFilterChain chain : proxy.getFilterChains()) {
+            RequestMatcher matcher = ((DefaultSecurityFilterChain) chain).getRequestMatcher();
+            if (matcher instanceof UaaRequestMatcher) {
+                paths.add(((UaaRequestMatcher) matcher).getPath());
+            } else if (matcher instanceof AntPathRequestMatcher) {
+                String pattern = ((AntPathRequestMatcher) matcher).getPattern();
+                paths.add(pattern.replaceAll("\\{[^}]*\\}", "id").replace("**", "x").replace("*", "x"));
+                paths.add(pattern.replaceAll("\\{[^}]*\\}", "id").replace("/**", "").replace("*", ""));
+            }
+        }
+
+        List<String> accepts = Arrays.asList(null, "application/json", "text/html");
+        List<String> authorizations = Arrays.asList(null, "Bearer token", "Basic Y2Y6");
+        for (String path : paths) {
+            for (String method : Arrays.asList("GET", "POST", "PUT", "DELETE")) {
+                for (String accept : accepts) {
+                    for (String authorization : authorizations) {
+                        for (String grantType : Arrays.asList(null, "password", "authorization_code", "client_credentials")) {
+                            MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+                            request.setServletPath(path);
+                            if (accept != null) {
+                                request.addHeader("Accept", accept);
+                            }
+                            if (authorization != null) {
+                                request.addHeader("Authorization", authorization);
+                            }
+                            if (grantType != null) {
+                                request.setParameter("grant_type", grantType);
+                                request.setParameter("response_type", "code");
+                            }
+                            assertEquals(method + " " + path, selected(proxy, request), proxy.getMatchingChain(request));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static SecurityFilterChain selected(FilterChainProxy proxy, MockHttpServletRequest request) {
+        for (SecurityFilterChain chain : proxy.getFilterChains()) {
+            if (chain.matches(request)) {
+                return chain;
+            }
+        }
+        return null;
+    }
+}